@@ -0,0 +1,711 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+
+import com.googlecode.eyesfree.compat.CompatUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Caches application and activity labels and icons. Entries are held in an
+ * in-memory LRU tier, sized in bytes, backed by a small on-disk tier that
+ * survives process death. Both tiers key entries by package version code,
+ * so an upgraded package never serves a stale label.
+ * <p>
+ * Loading happens on a single background thread and results are delivered on
+ * the main thread. Entries for a package are invalidated when the package
+ * changes, see {@link PackageChangeReceiver}.
+ */
+public class AppLabelCache {
+    /** The fraction of the memory class that the memory tier may use. */
+    private static final int MEMORY_CLASS_DIVISOR = 16;
+
+    /** The maximum number of entries held on disk. */
+    private static final int MAX_DISK_ENTRIES = 1024;
+
+    /** The maximum number of bytes held on disk. */
+    private static final long MAX_DISK_BYTES = 4 * 1024 * 1024;
+
+    /** The directory, relative to the cache directory, used for disk entries. */
+    private static final String DISK_DIR = "labels";
+
+    /** Version of the disk entry format. Bump when the format changes. */
+    private static final int DISK_FORMAT_VERSION = 1;
+
+    /** Separator between the package and activity in a cache key. */
+    private static final char KEY_SEPARATOR = '/';
+
+    /** Separator between a cache key and the package version code. */
+    private static final char VERSION_SEPARATOR = '@';
+
+    private static final Method METHOD_getMemoryClass =
+            CompatUtils.getMethod(ActivityManager.class, "getMemoryClass");
+
+    private static AppLabelCache sInstance;
+
+    /**
+     * Memory tier, keyed by package name or flattened component plus the
+     * version code. Sized in bytes.
+     */
+    private final MemoryCache mMemoryCache;
+
+    /** Known version codes, keyed by package name. */
+    private final ConcurrentHashMap<String, Integer> mVersions =
+            new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Incremented whenever a package is invalidated, so that loads started
+     * before the invalidation don't insert stale entries. Guarded by
+     * {@link #mMemoryCache}.
+     */
+    private int mGeneration;
+
+    /** Background executor used for package manager and disk access. */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "AppLabelCache");
+                }
+            });
+
+    /**
+     * The number of entries on disk, or {@code -1} until the disk tier is
+     * first listed. Guarded by this cache.
+     */
+    private int mDiskEntries = -1;
+
+    /** The number of bytes on disk. Guarded by this cache. */
+    private long mDiskBytes;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final PackageManager mPackageManager;
+    private final File mDiskDir;
+    private final int mIconSize;
+
+    /**
+     * Returns the shared label cache, creating it if necessary.
+     *
+     * @param context The parent context.
+     * @return The shared label cache.
+     */
+    public static synchronized AppLabelCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppLabelCache(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private AppLabelCache(Context context) {
+        mPackageManager = context.getPackageManager();
+        mDiskDir = new File(context.getCacheDir(), DISK_DIR);
+        mIconSize = context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+        mMemoryCache = new MemoryCache(getMemoryCacheSize(context));
+    }
+
+    /**
+     * Returns the size of the memory tier in bytes, as a fraction of the
+     * per-process heap limit.
+     */
+    private static int getMemoryCacheSize(Context context) {
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final long heapBytes;
+
+        // Memory class is only available on API 5 and above.
+        final Integer memoryClass = (Integer) CompatUtils.invoke(am, null, METHOD_getMemoryClass);
+        if (memoryClass != null) {
+            heapBytes = memoryClass * 1024L * 1024L;
+        } else {
+            heapBytes = Runtime.getRuntime().maxMemory();
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE, heapBytes / MEMORY_CLASS_DIVISOR);
+    }
+
+    /**
+     * Returns the cached label for the application that owns the specified
+     * component, or {@code null} if it is not in memory. Never calls the
+     * package manager.
+     *
+     * @param component The component whose application label to return.
+     * @return The cached application label, or {@code null}.
+     */
+    public CharSequence peekApplicationLabel(ComponentName component) {
+        final Entry entry = peek(component, false);
+        return (entry != null) ? entry.label : null;
+    }
+
+    /**
+     * Returns the cached label for the specified activity, or {@code null} if
+     * it is not in memory. Never calls the package manager.
+     *
+     * @param component The activity whose label to return.
+     * @return The cached activity label, or {@code null}.
+     */
+    public CharSequence peekActivityLabel(ComponentName component) {
+        final Entry entry = peek(component, true);
+        return (entry != null) ? entry.label : null;
+    }
+
+    /**
+     * Returns the memory entry for a component, or {@code null} if it is not
+     * in memory or the package version is not yet known.
+     */
+    private Entry peek(ComponentName component, boolean forActivity) {
+        final Integer versionCode = mVersions.get(component.getPackageName());
+        if (versionCode == null) {
+            return null;
+        }
+
+        return mMemoryCache.get(getMemoryKey(getKey(component, forActivity), versionCode));
+    }
+
+    /**
+     * Loads the label and icon for the application that owns the specified
+     * component. If the entry is already in memory, the listener is called
+     * immediately. Otherwise it is called on the main thread once loaded.
+     *
+     * @param component The component whose application label to load.
+     * @param listener The listener to notify.
+     */
+    public void loadApplicationLabel(ComponentName component, OnLabelLoadedListener listener) {
+        load(component, false, listener);
+    }
+
+    /**
+     * Loads the label and icon for the specified activity. If the entry is
+     * already in memory, the listener is called immediately. Otherwise it is
+     * called on the main thread once loaded.
+     *
+     * @param component The activity whose label to load.
+     * @param listener The listener to notify.
+     */
+    public void loadActivityLabel(ComponentName component, OnLabelLoadedListener listener) {
+        load(component, true, listener);
+    }
+
+    /**
+     * Returns the label for the application that owns the specified
+     * component, loading it from disk or the package manager if necessary.
+     * Must not be called on the main thread.
+     *
+     * @param component The component whose application label to return.
+     * @return The application label, or {@code null} if the package could not
+     *         be found.
+     */
+    public CharSequence getApplicationLabelBlocking(ComponentName component) {
+        final Entry cached = peek(component, false);
+        if (cached != null) {
+            return cached.label;
+        }
+
+        final int generation = getGeneration();
+        final String key = getKey(component, false);
+        final Entry entry = loadInBackground(component, false, key);
+        if (entry == null) {
+            return null;
+        }
+
+        putIfCurrent(key, entry, generation);
+
+        return entry.label;
+    }
+
+    /**
+     * Removes all memory and disk entries for the specified package.
+     *
+     * @param packageName The package to invalidate.
+     */
+    public void invalidatePackage(final String packageName) {
+        final String packageKey = packageName;
+        final String packagePrefix = packageName + VERSION_SEPARATOR;
+        final String activityPrefix = packageName + KEY_SEPARATOR;
+
+        synchronized (mMemoryCache) {
+            mGeneration++;
+            mVersions.remove(packageName);
+
+            for (String key : mMemoryCache.snapshot().keySet()) {
+                if (key.startsWith(packagePrefix) || key.startsWith(activityPrefix)) {
+                    mMemoryCache.remove(key);
+                }
+            }
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = mDiskDir.listFiles();
+                if (files == null) {
+                    return;
+                }
+
+                for (File file : files) {
+                    final String key = decodeFileName(file.getName());
+                    if (key.equals(packageKey) || key.startsWith(activityPrefix)) {
+                        deleteFromDisk(file);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes all entries from the memory tier. Disk entries are kept.
+     */
+    public void evictMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * Shrinks the shared cache's memory tier, if it has been created.
+     *
+     * @param evictAll Whether to remove every entry rather than the least
+     *            recently used half.
+     */
+    public static synchronized void trimMemory(boolean evictAll) {
+        if (sInstance == null) {
+            return;
+        }
+
+        if (evictAll) {
+            sInstance.evictMemory();
+        } else {
+            sInstance.mMemoryCache.trimToSize(sInstance.mMemoryCache.maxSize() / 2);
+        }
+    }
+
+    private void load(final ComponentName component, final boolean forActivity,
+            final OnLabelLoadedListener listener) {
+        final Entry cached = peek(component, forActivity);
+        if (cached != null) {
+            listener.onLabelLoaded(component, cached.label, cached.icon);
+            return;
+        }
+
+        final int generation = getGeneration();
+        final String key = getKey(component, forActivity);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                final Entry entry = loadInBackground(component, forActivity, key);
+                if (entry != null) {
+                    putIfCurrent(key, entry, generation);
+                }
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (entry == null) {
+                            listener.onLabelLoaded(component, null, null);
+                        } else {
+                            listener.onLabelLoaded(component, entry.label, entry.icon);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private int getGeneration() {
+        synchronized (mMemoryCache) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Adds a loaded entry to the memory tier, unless a package was
+     * invalidated since the load started.
+     */
+    private void putIfCurrent(String key, Entry entry, int generation) {
+        synchronized (mMemoryCache) {
+            if (generation != mGeneration) {
+                return;
+            }
+
+            final String packageName = getPackageName(key);
+            mVersions.put(packageName, entry.versionCode);
+            mMemoryCache.put(getMemoryKey(key, entry.versionCode), entry);
+        }
+    }
+
+    /**
+     * Loads an entry from disk or, if that fails, from the package manager.
+     * Disk entries are always checked against the installed version code.
+     * Package changes may have been missed while the process was dead, so if
+     * the version code is not known yet it is read from the package manager
+     * first, which is much cheaper than loading the label and icon. Must not
+     * be called on the main thread.
+     */
+    private Entry loadInBackground(ComponentName component, boolean forActivity, String key) {
+        final String packageName = component.getPackageName();
+        PackageInfo packageInfo = null;
+        Integer versionCode = mVersions.get(packageName);
+
+        if (versionCode == null) {
+            try {
+                packageInfo = mPackageManager.getPackageInfo(packageName, 0);
+            } catch (NameNotFoundException e) {
+                return null;
+            }
+
+            versionCode = packageInfo.versionCode;
+        }
+
+        final File file = new File(mDiskDir, encodeFileName(key));
+        final Entry diskEntry = readFromDisk(file, versionCode);
+        if (diskEntry != null) {
+            return diskEntry;
+        }
+
+        if (packageInfo == null) {
+            try {
+                packageInfo = mPackageManager.getPackageInfo(packageName, 0);
+            } catch (NameNotFoundException e) {
+                return null;
+            }
+        }
+
+        final CharSequence label;
+        final Drawable icon;
+
+        if (forActivity) {
+            final ActivityInfo activity;
+
+            try {
+                activity = mPackageManager.getActivityInfo(component, 0);
+            } catch (NameNotFoundException e) {
+                return null;
+            }
+
+            label = activity.loadLabel(mPackageManager);
+            icon = activity.loadIcon(mPackageManager);
+        } else {
+            label = packageInfo.applicationInfo.loadLabel(mPackageManager);
+            icon = packageInfo.applicationInfo.loadIcon(mPackageManager);
+        }
+
+        final Entry entry = new Entry(packageInfo.versionCode, label, toBitmap(icon));
+        writeToDisk(file, entry);
+
+        return entry;
+    }
+
+    /**
+     * Reads a disk entry, deleting it if it is unreadable or doesn't match
+     * the expected version code.
+     *
+     * @param file The entry file.
+     * @param versionCode The installed version code.
+     */
+    private Entry readFromDisk(File file, int versionCode) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            final int formatVersion = in.readInt();
+            final int entryVersionCode = in.readInt();
+            if ((formatVersion != DISK_FORMAT_VERSION) || (entryVersionCode != versionCode)) {
+                // Stale entry, the package has been upgraded since.
+                in.close();
+                in = null;
+                deleteFromDisk(file);
+                return null;
+            }
+
+            final String label = in.readUTF();
+            final int iconLength = in.readInt();
+            Bitmap icon = null;
+
+            if (iconLength > 0) {
+                final byte[] iconBytes = new byte[iconLength];
+                in.readFully(iconBytes);
+                icon = BitmapFactory.decodeByteArray(iconBytes, 0, iconLength);
+            }
+
+            return new Entry(entryVersionCode, label, icon);
+        } catch (IOException e) {
+            e.printStackTrace();
+            deleteFromDisk(file);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeToDisk(File file, Entry entry) {
+        if (!mDiskDir.exists() && !mDiskDir.mkdirs()) {
+            return;
+        }
+
+        final boolean existed = file.exists();
+        final long previousLength = file.length();
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(DISK_FORMAT_VERSION);
+            out.writeInt(entry.versionCode);
+            out.writeUTF(String.valueOf(entry.label));
+
+            if (entry.icon != null) {
+                final ByteArrayOutputStream iconBytes = new ByteArrayOutputStream();
+                entry.icon.compress(Bitmap.CompressFormat.PNG, 100, iconBytes);
+                out.writeInt(iconBytes.size());
+                iconBytes.writeTo(out);
+            } else {
+                out.writeInt(0);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+        } finally {
+            closeQuietly(out);
+        }
+
+        updateDiskUsage((file.exists() ? 1 : 0) - (existed ? 1 : 0),
+                file.length() - previousLength);
+        trimDisk();
+    }
+
+    private void deleteFromDisk(File file) {
+        final long length = file.length();
+        if (file.delete()) {
+            updateDiskUsage(-1, -length);
+        }
+    }
+
+    private synchronized void updateDiskUsage(int entries, long bytes) {
+        if (mDiskEntries < 0) {
+            // Not counted yet, the next trim lists the directory.
+            return;
+        }
+
+        mDiskEntries += entries;
+        mDiskBytes += bytes;
+    }
+
+    /**
+     * Removes the least recently written disk entries until the disk tier is
+     * within its limits. The directory is only listed the first time and
+     * when the running totals exceed a limit.
+     */
+    private synchronized void trimDisk() {
+        if ((mDiskEntries >= 0) && (mDiskEntries <= MAX_DISK_ENTRIES)
+                && (mDiskBytes <= MAX_DISK_BYTES)) {
+            return;
+        }
+
+        final File[] files = mDiskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        int entries = files.length;
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+
+        mDiskEntries = entries;
+        mDiskBytes = bytes;
+
+        if ((entries <= MAX_DISK_ENTRIES) && (bytes <= MAX_DISK_BYTES)) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long lhsModified = lhs.lastModified();
+                final long rhsModified = rhs.lastModified();
+                return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; (i < files.length)
+                && ((entries > MAX_DISK_ENTRIES) || (bytes > MAX_DISK_BYTES)); i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                entries--;
+                bytes -= length;
+            }
+        }
+
+        mDiskEntries = entries;
+        mDiskBytes = bytes;
+    }
+
+    private Bitmap toBitmap(Drawable drawable) {
+        if (drawable == null) {
+            return null;
+        }
+
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if ((bitmap.getWidth() <= mIconSize) && (bitmap.getHeight() <= mIconSize)) {
+                return bitmap;
+            }
+        }
+
+        final Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, mIconSize, mIconSize);
+        drawable.draw(canvas);
+
+        return bitmap;
+    }
+
+    private static String getKey(ComponentName component, boolean forActivity) {
+        if (forActivity) {
+            return component.getPackageName() + KEY_SEPARATOR + component.getClassName();
+        }
+
+        return component.getPackageName();
+    }
+
+    private static String getMemoryKey(String key, int versionCode) {
+        return key + VERSION_SEPARATOR + versionCode;
+    }
+
+    private static String getPackageName(String key) {
+        final int separator = key.indexOf(KEY_SEPARATOR);
+        return (separator < 0) ? key : key.substring(0, separator);
+    }
+
+    private static String encodeFileName(String key) {
+        try {
+            return URLEncoder.encode(key, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decodeFileName(String fileName) {
+        try {
+            return URLDecoder.decode(fileName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Do nothing.
+        }
+    }
+
+    /**
+     * Memory tier that counts the size of labels and icons in bytes.
+     */
+    private static class MemoryCache extends LruCache<String, Entry> {
+        public MemoryCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, Entry entry) {
+            // Bitmap.getByteCount() is only available on API 12 and above.
+            final int iconBytes = (entry.icon != null)
+                    ? (entry.icon.getRowBytes() * entry.icon.getHeight()) : 0;
+            final int labelBytes = (entry.label != null) ? (entry.label.length() * 2) : 0;
+            return iconBytes + labelBytes + (key.length() * 2);
+        }
+    }
+
+    /**
+     * A cached label and icon.
+     */
+    private static class Entry {
+        final int versionCode;
+        final CharSequence label;
+        final Bitmap icon;
+
+        public Entry(int versionCode, CharSequence label, Bitmap icon) {
+            this.versionCode = versionCode;
+            this.label = label;
+            this.icon = icon;
+        }
+    }
+
+    /**
+     * Listener for asynchronously loaded labels.
+     */
+    public interface OnLabelLoadedListener {
+        /**
+         * Called on the main thread when a label has been loaded.
+         *
+         * @param component The component that was requested.
+         * @param label The loaded label, or {@code null} if the component
+         *            could not be found.
+         * @param icon The loaded icon, or {@code null} if unavailable.
+         */
+        public void onLabelLoaded(ComponentName component, CharSequence label, Bitmap icon);
+    }
+}
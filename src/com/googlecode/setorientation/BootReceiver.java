@@ -29,12 +29,16 @@ import android.content.Intent;
 public class BootReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
+        // Alarms don't survive a reboot.
+        RuleCompactor.schedule(context);
+
         final OrientationPrefsManager prefsManager = new OrientationPrefsManager(context);
         if (!prefsManager.getServiceEnabled()) {
             return;
         }
 
-        final ScreenOrientation defaultOrientation = prefsManager.getDefaultRule();
+        final ScreenOrientation defaultOrientation = prefsManager.getDefaultRule(
+                CustomRuleManager.getActiveProfile(context));
         final Intent service = new Intent(context, OrientationService.class);
         service.putExtra(OrientationService.EXTRA_ORIENTATION, defaultOrientation.getCode());
         context.startService(service);
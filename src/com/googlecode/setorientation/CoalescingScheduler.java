@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.googlecode.eyesfree.utils.WeakReferenceHandler;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Runs delayed and periodic tasks on a single thread with as few wakeups as
+ * possible.
+ * <p>
+ * Each task declares a window: the earliest time it may run, its deadline,
+ * and how late it may run, its tolerance. The scheduler starts a batch with
+ * the task that is due first and adds, in deadline order, every task whose
+ * window overlaps the windows already in the batch. It arms a single wakeup
+ * at the latest deadline in the batch, which lies inside every window in
+ * it, so a task that shares its window with no other runs at its deadline
+ * rather than at the end of its tolerance.
+ * <p>
+ * Pending tasks are stored in a binary min-heap ordered by deadline, so
+ * scheduling and cancelling are O(log n), and choosing the next wakeup only
+ * visits the tasks that are due before the first task's window closes. All
+ * methods must be called on the scheduler's thread.
+ */
+public class CoalescingScheduler {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    /** Pending tasks, as a binary min-heap ordered by deadline. */
+    private Task[] mHeap = new Task[INITIAL_CAPACITY];
+
+    /** Reused buffer of tasks that may share the next wakeup. */
+    private Task[] mCandidates = new Task[INITIAL_CAPACITY];
+
+    private final WakeupHandler mHandler;
+
+    /** Reused list of tasks that are due at the current wakeup. */
+    private final ArrayList<Task> mDueTasks = new ArrayList<Task>();
+
+    /** The number of pending tasks. */
+    private int mTaskCount;
+
+    /** The time of the currently armed wakeup, or {@code -1} if none. */
+    private long mArmedTime = -1;
+
+    private final long mStartTime;
+    private long mWakeupCount;
+    private long mTaskRunCount;
+    private long mHourStartTime;
+    private long mHourWakeupCount;
+    private long mPreviousHourWakeupCount = -1;
+
+    /**
+     * Constructs a new scheduler that runs tasks on the specified looper.
+     *
+     * @param looper The looper to run tasks on.
+     */
+    public CoalescingScheduler(Looper looper) {
+        mHandler = new WakeupHandler(this, looper);
+        mStartTime = SystemClock.uptimeMillis();
+        mHourStartTime = mStartTime;
+    }
+
+    /**
+     * Schedules a task to run once. If the task is already pending, it is
+     * rescheduled.
+     *
+     * @param task The task to run.
+     * @param delayMillis The delay before the task may run.
+     * @param toleranceMillis How late the task may run.
+     */
+    public void schedule(Task task, long delayMillis, long toleranceMillis) {
+        schedule(task, delayMillis, toleranceMillis, 0);
+    }
+
+    /**
+     * Schedules a task to run repeatedly. Each run is scheduled
+     * {@code periodMillis} after the previous run. If the task is already
+     * pending, it is rescheduled.
+     *
+     * @param task The task to run.
+     * @param initialDelayMillis The delay before the first run.
+     * @param periodMillis The delay between the end of one run and the next.
+     * @param toleranceMillis How late each run may be.
+     */
+    public void schedulePeriodic(
+            Task task, long initialDelayMillis, long periodMillis, long toleranceMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+
+        schedule(task, initialDelayMillis, toleranceMillis, periodMillis);
+    }
+
+    /**
+     * Cancels a pending task. No-op if the task is not pending.
+     *
+     * @param task The task to cancel.
+     */
+    public void cancel(Task task) {
+        if (task.mIndex == Task.INDEX_DUE) {
+            // Due at the current wakeup but not run yet, so just skip it.
+            task.mIndex = Task.INDEX_NONE;
+            return;
+        }
+
+        if (!task.isScheduled()) {
+            return;
+        }
+
+        removeAt(task.mIndex);
+        updateWakeup();
+    }
+
+    /**
+     * Cancels all pending tasks.
+     */
+    public void cancelAll() {
+        for (int i = 0; i < mTaskCount; i++) {
+            mHeap[i].mIndex = Task.INDEX_NONE;
+            mHeap[i] = null;
+        }
+
+        mTaskCount = 0;
+
+        for (int i = 0; i < mDueTasks.size(); i++) {
+            mDueTasks.get(i).mIndex = Task.INDEX_NONE;
+        }
+
+        updateWakeup();
+    }
+
+    /**
+     * @return The number of wakeups since this scheduler was created.
+     */
+    public long getWakeupCount() {
+        return mWakeupCount;
+    }
+
+    /**
+     * @return The average number of wakeups per hour since this scheduler was
+     *         created.
+     */
+    public float getWakeupsPerHour() {
+        final long elapsed = Math.max(1, SystemClock.uptimeMillis() - mStartTime);
+        return (mWakeupCount * (float) HOUR_MILLIS) / elapsed;
+    }
+
+    /**
+     * Writes scheduler metrics to the specified writer.
+     *
+     * @param writer The writer to dump to.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("CoalescingScheduler:");
+        writer.println("  pending tasks: " + mTaskCount);
+        writer.println("  wakeups: " + mWakeupCount);
+        writer.println("  task runs: " + mTaskRunCount);
+        writer.println("  wakeups/hour (average): " + getWakeupsPerHour());
+        if (mPreviousHourWakeupCount >= 0) {
+            writer.println("  wakeups/hour (previous hour): " + mPreviousHourWakeupCount);
+        }
+        writer.println("  wakeups (current hour): " + mHourWakeupCount);
+    }
+
+    private void schedule(Task task, long delayMillis, long toleranceMillis, long periodMillis) {
+        if (task.isScheduled()) {
+            removeAt(task.mIndex);
+        }
+
+        task.mDeadline = SystemClock.uptimeMillis() + Math.max(0, delayMillis);
+        task.mTolerance = Math.max(0, toleranceMillis);
+        task.mPeriod = periodMillis;
+
+        insert(task);
+        updateWakeup();
+    }
+
+    private void insert(Task task) {
+        if (mTaskCount == mHeap.length) {
+            final Task[] heap = new Task[mHeap.length * 2];
+            System.arraycopy(mHeap, 0, heap, 0, mTaskCount);
+            mHeap = heap;
+            mCandidates = new Task[heap.length];
+        }
+
+        mHeap[mTaskCount] = task;
+        task.mIndex = mTaskCount;
+        mTaskCount++;
+        siftUp(task.mIndex);
+    }
+
+    private void removeAt(int index) {
+        final Task removed = mHeap[index];
+        final int last = --mTaskCount;
+
+        if (index != last) {
+            mHeap[index] = mHeap[last];
+            mHeap[index].mIndex = index;
+            mHeap[last] = null;
+            siftDown(index);
+            siftUp(index);
+        } else {
+            mHeap[last] = null;
+        }
+
+        removed.mIndex = Task.INDEX_NONE;
+    }
+
+    private void siftUp(int index) {
+        final Task task = mHeap[index];
+
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (mHeap[parent].mDeadline <= task.mDeadline) {
+                break;
+            }
+
+            mHeap[index] = mHeap[parent];
+            mHeap[index].mIndex = index;
+            index = parent;
+        }
+
+        mHeap[index] = task;
+        task.mIndex = index;
+    }
+
+    private void siftDown(int index) {
+        final Task task = mHeap[index];
+
+        while (true) {
+            int child = (index * 2) + 1;
+            if (child >= mTaskCount) {
+                break;
+            }
+
+            if (((child + 1) < mTaskCount)
+                    && (mHeap[child + 1].mDeadline < mHeap[child].mDeadline)) {
+                child++;
+            }
+
+            if (task.mDeadline <= mHeap[child].mDeadline) {
+                break;
+            }
+
+            mHeap[index] = mHeap[child];
+            mHeap[index].mIndex = index;
+            index = child;
+        }
+
+        mHeap[index] = task;
+        task.mIndex = index;
+    }
+
+    /**
+     * Arms a single wakeup for the batch of tasks that starts with the first
+     * task due. Tasks join the batch in deadline order while their window
+     * overlaps every window already in it.
+     */
+    private void updateWakeup() {
+        if (mTaskCount == 0) {
+            mHandler.removeMessages(WakeupHandler.WAKEUP);
+            mArmedTime = -1;
+            return;
+        }
+
+        // Only tasks due before the first task's window closes can join.
+        final Task first = mHeap[0];
+        final int count = collectCandidates(0, first.mDeadline + first.mTolerance, 0);
+        sortCandidates(count);
+
+        long wakeupTime = first.mDeadline;
+        long batchEnd = first.mDeadline + first.mTolerance;
+        for (int i = 1; i < count; i++) {
+            final Task task = mCandidates[i];
+            if (task.mDeadline > batchEnd) {
+                break;
+            }
+
+            wakeupTime = task.mDeadline;
+            batchEnd = Math.min(batchEnd, task.mDeadline + task.mTolerance);
+        }
+
+        Arrays.fill(mCandidates, 0, count, null);
+
+        if (wakeupTime == mArmedTime) {
+            return;
+        }
+
+        mHandler.removeMessages(WakeupHandler.WAKEUP);
+        mHandler.sendEmptyMessageAtTime(WakeupHandler.WAKEUP, wakeupTime);
+        mArmedTime = wakeupTime;
+    }
+
+    /**
+     * Adds every task in the subtree at {@code index} whose deadline is no
+     * later than {@code bound} to the candidates, skipping subtrees that
+     * can't contain any.
+     *
+     * @return The new number of candidates.
+     */
+    private int collectCandidates(int index, long bound, int count) {
+        if ((index >= mTaskCount) || (mHeap[index].mDeadline > bound)) {
+            return count;
+        }
+
+        mCandidates[count++] = mHeap[index];
+        count = collectCandidates((index * 2) + 1, bound, count);
+        return collectCandidates((index * 2) + 2, bound, count);
+    }
+
+    /**
+     * Sorts candidates by deadline. There are rarely more than a few.
+     */
+    private void sortCandidates(int count) {
+        for (int i = 1; i < count; i++) {
+            final Task task = mCandidates[i];
+            int j = i - 1;
+
+            while ((j >= 0) && (mCandidates[j].mDeadline > task.mDeadline)) {
+                mCandidates[j + 1] = mCandidates[j];
+                j--;
+            }
+
+            mCandidates[j + 1] = task;
+        }
+    }
+
+    private void onWakeup() {
+        final long now = SystemClock.uptimeMillis();
+
+        mArmedTime = -1;
+        recordWakeup(now);
+
+        while ((mTaskCount > 0) && (mHeap[0].mDeadline <= now)) {
+            final Task task = mHeap[0];
+            removeAt(0);
+            task.mIndex = Task.INDEX_DUE;
+            mDueTasks.add(task);
+        }
+
+        final int dueCount = mDueTasks.size();
+        for (int i = 0; i < dueCount; i++) {
+            final Task task = mDueTasks.get(i);
+
+            // Skip tasks cancelled or rescheduled by an earlier task.
+            if (task.mIndex != Task.INDEX_DUE) {
+                continue;
+            }
+
+            task.mIndex = Task.INDEX_NONE;
+
+            // Reschedule periodic tasks first so the task may cancel itself.
+            if (task.mPeriod > 0) {
+                task.mDeadline = now + task.mPeriod;
+                insert(task);
+            }
+
+            mTaskRunCount++;
+            task.run();
+        }
+
+        mDueTasks.clear();
+        updateWakeup();
+    }
+
+    private void recordWakeup(long now) {
+        mWakeupCount++;
+
+        if ((now - mHourStartTime) >= HOUR_MILLIS) {
+            mPreviousHourWakeupCount = mHourWakeupCount;
+            mHourWakeupCount = 0;
+            mHourStartTime = now;
+        }
+
+        mHourWakeupCount++;
+    }
+
+    /**
+     * A task that can be scheduled on a {@link CoalescingScheduler}. A task
+     * may be pending on at most one scheduler at a time.
+     */
+    public static abstract class Task {
+        /** Index of a task that is not pending. */
+        private static final int INDEX_NONE = -1;
+
+        /** Index of a task that is due at the current wakeup. */
+        private static final int INDEX_DUE = -2;
+
+        private int mIndex = INDEX_NONE;
+        private long mDeadline;
+        private long mTolerance;
+        private long mPeriod;
+
+        /**
+         * @return Whether this task is pending.
+         */
+        public boolean isScheduled() {
+            return (mIndex >= 0);
+        }
+
+        /**
+         * Called on the scheduler's thread when the task is due.
+         */
+        protected abstract void run();
+    }
+
+    private static class WakeupHandler extends WeakReferenceHandler<CoalescingScheduler> {
+        private static final int WAKEUP = 1;
+
+        public WakeupHandler(CoalescingScheduler parent, Looper looper) {
+            super(parent, looper);
+        }
+
+        @Override
+        protected void handleMessage(Message msg, CoalescingScheduler parent) {
+            switch (msg.what) {
+                case WAKEUP:
+                    parent.onWakeup();
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A map from unconditional rule filters to orientations, stored in a few
+ * primitive arrays instead of one entry object and key string per rule.
+ * <p>
+ * A filter is split at {@code /} into a package and a class segment, as
+ * produced by {@link CustomRuleManager#getPackageFilter} and
+ * {@link CustomRuleManager#getComponentFilter}. Each package name is stored
+ * once in a shared pool, however many activity rules refer to it. Class
+ * segments are packed into a single character array and referenced by
+ * offset and length, and orientations are stored as ordinals in a byte
+ * array. Both the package pool and the rules are open-addressed hash tables,
+ * so a lookup never allocates.
+ * <p>
+ * Tables are compiled with a little spare room, so that single rules can be
+ * changed, removed or added in place. Only a table without room for a new
+ * rule is rebuilt. Tables are not safe for concurrent updates and lookups.
+ */
+public class CompactRuleTable {
+    /** Marks an empty hash slot. */
+    private static final int EMPTY_SLOT = -1;
+
+    /** Separates the package and class segments of a component filter. */
+    private static final char CLASS_SEPARATOR = '/';
+
+    /** The minimum number of rules or packages that fit before rebuilding. */
+    private static final int MIN_SPARE = 4;
+
+    /** Spare class characters reserved per spare rule. */
+    private static final int SPARE_CHARS_PER_RULE = 16;
+
+    private static final ScreenOrientation[] ORIENTATIONS = ScreenOrientation.values();
+
+    /** An empty table. It has no spare room, so it is never updated in place. */
+    public static final CompactRuleTable EMPTY =
+            compile(new HashMap<String, ScreenOrientation>(), false);
+
+    /** Package names, indexed by package id. */
+    private final String[] mPackages;
+
+    /** Package ids, open-addressed by package name hash. */
+    private final int[] mPackageSlots;
+
+    /** The package id of each rule. */
+    private final int[] mRulePackages;
+
+    /** The offset of each rule's class segment in {@link #mClassChars}. */
+    private final int[] mClassOffsets;
+
+    /** The length of each rule's class segment, or {@code -1} for packages. */
+    private final int[] mClassLengths;
+
+    /** The orientation ordinal of each rule. */
+    private final byte[] mOrientations;
+
+    /** Rule indices, open-addressed by package id and class segment hash. */
+    private final int[] mRuleSlots;
+
+    /** Every class segment, concatenated. */
+    private final char[] mClassChars;
+
+    /** The number of package ids in use. */
+    private int mPackageCount;
+
+    /** The number of rule indices in use, including those of removed rules. */
+    private int mRuleEnd;
+
+    /** The number of class characters in use. */
+    private int mClassEnd;
+
+    /** The number of rules. */
+    private int mSize;
+
+    private CompactRuleTable(String[] packages, int[] packageSlots, int[] rulePackages,
+            int[] classOffsets, int[] classLengths, byte[] orientations, int[] ruleSlots,
+            char[] classChars, int packageCount, int ruleCount, int classEnd) {
+        mPackages = packages;
+        mPackageSlots = packageSlots;
+        mRulePackages = rulePackages;
+        mClassOffsets = classOffsets;
+        mClassLengths = classLengths;
+        mOrientations = orientations;
+        mRuleSlots = ruleSlots;
+        mClassChars = classChars;
+        mPackageCount = packageCount;
+        mRuleEnd = ruleCount;
+        mClassEnd = classEnd;
+        mSize = ruleCount;
+    }
+
+    /**
+     * Compiles unconditional rules into a compact table.
+     *
+     * @param rules A map of filters to orientations.
+     * @return A compact table.
+     */
+    public static CompactRuleTable compile(Map<String, ScreenOrientation> rules) {
+        return compile(rules, true);
+    }
+
+    private static CompactRuleTable compile(
+            Map<String, ScreenOrientation> rules, boolean spareRoom) {
+        final int ruleCount = rules.size();
+        final int spareRules = spareRoom ? getSpare(ruleCount) : 0;
+        final int ruleCapacity = ruleCount + spareRules;
+        final HashMap<String, Integer> packageIds = new HashMap<String, Integer>();
+        final int[] rulePackages = new int[ruleCapacity];
+        final int[] classOffsets = new int[ruleCapacity];
+        final int[] classLengths = new int[ruleCapacity];
+        final byte[] orientations = new byte[ruleCapacity];
+
+        int classCharCount = 0;
+        for (String filter : rules.keySet()) {
+            final int separator = filter.indexOf(CLASS_SEPARATOR);
+            if (separator >= 0) {
+                classCharCount += filter.length() - separator - 1;
+            }
+        }
+
+        final char[] classChars = new char[classCharCount + (spareRules * SPARE_CHARS_PER_RULE)];
+        int classEnd = 0;
+        int rule = 0;
+
+        for (Entry<String, ScreenOrientation> entry : rules.entrySet()) {
+            final String filter = entry.getKey();
+            final int separator = filter.indexOf(CLASS_SEPARATOR);
+            final String packageName = (separator >= 0) ? filter.substring(0, separator) : filter;
+
+            Integer packageId = packageIds.get(packageName);
+            if (packageId == null) {
+                packageId = packageIds.size();
+                packageIds.put(packageName, packageId);
+            }
+
+            rulePackages[rule] = packageId;
+            orientations[rule] = (byte) entry.getValue().ordinal();
+
+            if (separator >= 0) {
+                final int length = filter.length() - separator - 1;
+                filter.getChars(separator + 1, filter.length(), classChars, classEnd);
+                classOffsets[rule] = classEnd;
+                classLengths[rule] = length;
+                classEnd += length;
+            } else {
+                classLengths[rule] = -1;
+            }
+
+            rule++;
+        }
+
+        final int packageCount = packageIds.size();
+        final String[] packages =
+                new String[packageCount + (spareRoom ? getSpare(packageCount) : 0)];
+        final int[] packageSlots = newSlots(packageCount + MIN_SPARE);
+        for (Entry<String, Integer> entry : packageIds.entrySet()) {
+            final String packageName = entry.getKey();
+            packages[entry.getValue()] = packageName;
+            insert(packageSlots, hash(packageName, 0, packageName.length()), entry.getValue());
+        }
+
+        // Slots are sized for the current rules, so spare rules raise the
+        // load above half only slightly instead of doubling the slot arrays.
+        final int[] ruleSlots = newSlots(ruleCount + MIN_SPARE);
+        for (int i = 0; i < ruleCount; i++) {
+            insert(ruleSlots, hashRule(rulePackages[i], classChars, classOffsets[i],
+                    classLengths[i]), i);
+        }
+
+        return new CompactRuleTable(packages, packageSlots, rulePackages, classOffsets,
+                classLengths, orientations, ruleSlots, classChars, packageCount, ruleCount,
+                classEnd);
+    }
+
+    /**
+     * Returns the rule for a filter, or {@code null} if there is none. Never
+     * allocates.
+     *
+     * @param filter A package or component filter without qualifiers.
+     * @return The rule, or {@code null} if none.
+     */
+    public ScreenOrientation get(String filter) {
+        final int slot = findSlot(filter);
+        if (slot < 0) {
+            return null;
+        }
+
+        return ORIENTATIONS[mOrientations[mRuleSlots[slot]]];
+    }
+
+    /**
+     * Sets or removes a single rule. Changing or removing an existing rule
+     * happens in place, as does adding one while the table has spare room.
+     * Otherwise a larger copy is compiled. Either way, the returned table
+     * replaces this one.
+     *
+     * @param filter A package or component filter without qualifiers.
+     * @param orientation The rule to set, or {@code null} to remove it.
+     * @return This table, or a larger copy if it had no room for the rule.
+     */
+    public CompactRuleTable update(String filter, ScreenOrientation orientation) {
+        final int slot = findSlot(filter);
+
+        if (orientation == null) {
+            if (slot >= 0) {
+                removeSlot(slot);
+                mSize--;
+            }
+
+            return this;
+        }
+
+        if (slot >= 0) {
+            mOrientations[mRuleSlots[slot]] = (byte) orientation.ordinal();
+            return this;
+        }
+
+        if (add(filter, orientation)) {
+            return this;
+        }
+
+        final HashMap<String, ScreenOrientation> rules =
+                new HashMap<String, ScreenOrientation>();
+        for (int rule : mRuleSlots) {
+            if (rule != EMPTY_SLOT) {
+                rules.put(getFilter(rule), ORIENTATIONS[mOrientations[rule]]);
+            }
+        }
+
+        rules.put(filter, orientation);
+        return compile(rules);
+    }
+
+    /**
+     * Adds a rule that isn't in the table yet, if there is room for it.
+     *
+     * @return Whether the rule was added.
+     */
+    private boolean add(String filter, ScreenOrientation orientation) {
+        final int separator = filter.indexOf(CLASS_SEPARATOR);
+        final int packageEnd = (separator >= 0) ? separator : filter.length();
+        final int classLength = (separator >= 0) ? (filter.length() - separator - 1) : -1;
+        int packageId = findPackage(filter, packageEnd);
+
+        if ((mRuleEnd == mOrientations.length)
+                || (classLength > (mClassChars.length - mClassEnd))
+                || ((packageId < 0) && (mPackageCount == mPackages.length))) {
+            return false;
+        }
+
+        if (packageId < 0) {
+            final String packageName = filter.substring(0, packageEnd);
+            packageId = mPackageCount++;
+            mPackages[packageId] = packageName;
+            insert(mPackageSlots, hash(packageName, 0, packageEnd), packageId);
+        }
+
+        final int rule = mRuleEnd++;
+        mRulePackages[rule] = packageId;
+        mOrientations[rule] = (byte) orientation.ordinal();
+        mClassLengths[rule] = classLength;
+
+        if (classLength >= 0) {
+            filter.getChars(separator + 1, filter.length(), mClassChars, mClassEnd);
+            mClassOffsets[rule] = mClassEnd;
+            mClassEnd += classLength;
+        }
+
+        insert(mRuleSlots, hashRule(packageId, mClassChars, mClassOffsets[rule], classLength),
+                rule);
+        mSize++;
+
+        return true;
+    }
+
+    /**
+     * Empties a rule slot, shifting later rules in the same probe sequence
+     * back so that lookups never stop early at the gap.
+     */
+    private void removeSlot(int slot) {
+        final int mask = mRuleSlots.length - 1;
+        int hole = slot;
+        mRuleSlots[hole] = EMPTY_SLOT;
+
+        for (int i = (hole + 1) & mask; mRuleSlots[i] != EMPTY_SLOT; i = (i + 1) & mask) {
+            final int rule = mRuleSlots[i];
+            final int home = mix(hashRule(mRulePackages[rule], mClassChars, mClassOffsets[rule],
+                    mClassLengths[rule])) & mask;
+
+            // Move the rule only if the hole lies between its home and here.
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                mRuleSlots[hole] = rule;
+                mRuleSlots[i] = EMPTY_SLOT;
+                hole = i;
+            }
+        }
+    }
+
+    private String getFilter(int rule) {
+        final String packageName = mPackages[mRulePackages[rule]];
+        if (mClassLengths[rule] < 0) {
+            return packageName;
+        }
+
+        return packageName + CLASS_SEPARATOR
+                + new String(mClassChars, mClassOffsets[rule], mClassLengths[rule]);
+    }
+
+    /**
+     * Returns the slot holding the rule for a filter, or {@code -1} if there
+     * is none.
+     */
+    private int findSlot(String filter) {
+        if (mSize == 0) {
+            return -1;
+        }
+
+        final int separator = filter.indexOf(CLASS_SEPARATOR);
+        final int packageEnd = (separator >= 0) ? separator : filter.length();
+        final int packageId = findPackage(filter, packageEnd);
+        if (packageId < 0) {
+            return -1;
+        }
+
+        final int classStart = packageEnd + 1;
+        final int classLength = (separator >= 0) ? (filter.length() - classStart) : -1;
+
+        int hash = packageId;
+        if (classLength >= 0) {
+            hash = (31 * hash) + hash(filter, classStart, filter.length());
+        }
+
+        final int mask = mRuleSlots.length - 1;
+        for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+            final int rule = mRuleSlots[slot];
+            if (rule == EMPTY_SLOT) {
+                return -1;
+            }
+
+            if ((mRulePackages[rule] == packageId) && (mClassLengths[rule] == classLength)
+                    && classEquals(rule, filter, classStart)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * @return The number of rules in the table.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the approximate number of bytes retained by the table,
+     * counting array payloads, array headers and pooled package names.
+     *
+     * @return The approximate retained size in bytes.
+     */
+    public int getRetainedBytes() {
+        // Roughly 16 bytes per array header and 24 per string object.
+        final int arrayOverhead = 16;
+        final int stringOverhead = 24 + arrayOverhead;
+
+        int bytes = 8 * arrayOverhead;
+        bytes += 4 * (mPackages.length + mPackageSlots.length + mRulePackages.length
+                + mClassOffsets.length + mClassLengths.length + mRuleSlots.length);
+        bytes += mOrientations.length + (2 * mClassChars.length);
+
+        for (int i = 0; i < mPackageCount; i++) {
+            bytes += stringOverhead + (2 * mPackages[i].length());
+        }
+
+        return bytes;
+    }
+
+    private int findPackage(String filter, int packageEnd) {
+        final int mask = mPackageSlots.length - 1;
+        for (int slot = mix(hash(filter, 0, packageEnd)) & mask;; slot = (slot + 1) & mask) {
+            final int packageId = mPackageSlots[slot];
+            if (packageId == EMPTY_SLOT) {
+                return -1;
+            }
+
+            final String packageName = mPackages[packageId];
+            if ((packageName.length() == packageEnd)
+                    && filter.regionMatches(0, packageName, 0, packageEnd)) {
+                return packageId;
+            }
+        }
+    }
+
+    private boolean classEquals(int rule, String filter, int classStart) {
+        final int offset = mClassOffsets[rule];
+        final int length = mClassLengths[rule];
+
+        for (int i = 0; i < length; i++) {
+            if (mClassChars[offset + i] != filter.charAt(classStart + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the spare room to reserve for a number of rules or packages.
+     * Filling it keeps a table of {@link #newSlots} less than 9/16 full.
+     */
+    private static int getSpare(int count) {
+        return Math.max(MIN_SPARE, count / 8);
+    }
+
+    /**
+     * Returns slots for a hash table that stays at most half full.
+     */
+    private static int[] newSlots(int count) {
+        int size = 2;
+        while (size < (count * 2)) {
+            size <<= 1;
+        }
+
+        final int[] slots = new int[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = EMPTY_SLOT;
+        }
+
+        return slots;
+    }
+
+    private static void insert(int[] slots, int hash, int value) {
+        final int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot] != EMPTY_SLOT) {
+            slot = (slot + 1) & mask;
+        }
+
+        slots[slot] = value;
+    }
+
+    private static int hashRule(int packageId, char[] chars, int offset, int length) {
+        if (length < 0) {
+            return packageId;
+        }
+
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = (31 * hash) + chars[offset + i];
+        }
+
+        return (31 * packageId) + hash;
+    }
+
+    /**
+     * Hashes a range of characters the same way as {@link String#hashCode}.
+     */
+    private static int hash(String value, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = (31 * hash) + value.charAt(i);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Spreads hash bits so that similar names don't cluster in linear probing.
+     */
+    private static int mix(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+}
@@ -17,40 +17,238 @@
 package com.googlecode.setorientation;
 
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 
+import com.googlecode.eyesfree.compat.CompatUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 public class CustomRuleManager {
+    /** Backup change notification, available on API 8 and above. */
+    private static final Method METHOD_dataChanged = CompatUtils.getMethod(
+            CompatUtils.getClass("android.app.backup.BackupManager"), "dataChanged",
+            String.class);
+
     /** The preferences file in which to store the custom rules. */
-    private static final String PREFS_FILE = "com.googlecode.eyesfree.setorientation_ruleprefs";
+    static final String PREFS_FILE = "com.googlecode.eyesfree.setorientation_ruleprefs";
 
-    /** The preference key in which to store the custom rules. */
+    /**
+     * The preference key in which to store the default profile's rules.
+     * Other profiles append a period and the profile name.
+     */
     private static final String PREF_COMPONENT_RULES = "component_rules";
 
-    /** Map of package and component names to orientations. */
-    private final HashMap<String, ScreenOrientation>
-            mComponentRules = new HashMap<String, ScreenOrientation>();
+    /** The preference key in which to store the active profile name. */
+    static final String PREF_ACTIVE_PROFILE = "active_profile";
+
+    /** The name of the profile that exists on every installation. */
+    public static final String DEFAULT_PROFILE = "default";
+
+    /** Loaded profiles, keyed by name. */
+    private final HashMap<String, Profile> mProfiles = new HashMap<String, Profile>();
+
+    /** The active profile. Switching profiles only replaces this reference. */
+    private volatile Profile mActive;
+
+    private static final ScreenOrientation[] ORIENTATIONS = ScreenOrientation.values();
+
+    /** The number of components held in the hot tier. */
+    private static final int HOT_TIER_SIZE = 8;
+
+    /**
+     * The hot tier holds resolved rules for the most frequently used
+     * components. It is only valid for {@link #mHotTable} and
+     * {@link #mHotState}.
+     */
+    private final ComponentName[] mHotComponents = new ComponentName[HOT_TIER_SIZE];
+    private final String[] mHotFilters = new String[HOT_TIER_SIZE];
+    private final ScreenOrientation[] mHotRules = new ScreenOrientation[HOT_TIER_SIZE];
+    private final int[] mHotWeights = new int[HOT_TIER_SIZE];
+    private DecisionTable mHotTable;
+    private int mHotState;
+
+    /**
+     * Whether memory was trimmed. While trimmed, only the active profile's
+     * compiled table and timeline are held, and anything else reloads all
+     * profiles first.
+     */
+    private boolean mTrimmed;
+
+    /** Records rule hits, or {@code null} if not counting. */
+    private RuleHitCounter mHitCounter;
 
     /** Shared preferences, used to persist rules. */
     private final SharedPreferences mPrefs;
 
+    /**
+     * Reads rules through {@link RuleProvider} when reloading, or
+     * {@code null} to read preferences.
+     */
+    private ContentResolver mRemoteResolver;
+
     /** Listener used to send callbacks when rules are modified. */
     private RuleListener mListener;
 
+    private final Context mContext;
+
+    /** The parent package, used to request backups when rules change. */
+    private final String mPackageName;
+
     /**
      * Constructs a new custom rule manager for the given context.
      *
      * @param context The parent context.
      */
     public CustomRuleManager(Context context) {
+        this(context, true);
+    }
+
+    private CustomRuleManager(Context context, boolean listen) {
+        mContext = context;
         mPrefs = context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
-        mPrefs.registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
+        mPackageName = context.getPackageName();
+
+        if (listen) {
+            mPrefs.registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
+        }
+
+        loadProfiles();
+    }
+
+    /**
+     * Constructs a rule manager that never listens for preference changes.
+     * Preference listeners are called on the main thread, so this is the only
+     * kind of rule manager that is safe to use on a background thread. It
+     * doesn't see changes made by other rule managers after it is created.
+     *
+     * @param context The parent context.
+     * @return A new rule manager owned by the calling thread.
+     */
+    public static CustomRuleManager createDetached(Context context) {
+        return new CustomRuleManager(context, false);
+    }
+
+    /**
+     * Constructs a rule manager for a process that doesn't write rules, such
+     * as the service's. Preferences are read from storage the first time a
+     * process uses them but never reread, so rules are first loaded from
+     * preferences and reloaded through {@link RuleProvider} after that.
+     * Changes made in the main process arrive through {@link RuleStore}
+     * notifications, see {@link #refreshRule} and {@link #refreshProfile}.
+     *
+     * @param context The parent context.
+     * @return A new rule manager.
+     */
+    public static CustomRuleManager createRemote(Context context) {
+        final CustomRuleManager manager = new CustomRuleManager(context, true);
+        manager.mRemoteResolver = context.getContentResolver();
+        return manager;
+    }
+
+    /**
+     * Returns the name of the active profile without loading any rules.
+     *
+     * @param context The parent context.
+     * @return The name of the active profile.
+     */
+    public static String getActiveProfile(Context context) {
+        return context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE)
+                .getString(PREF_ACTIVE_PROFILE, DEFAULT_PROFILE);
+    }
+
+    /**
+     * Returns whether a name may be used for a profile. Names may contain
+     * letters, digits, hyphens and underscores.
+     *
+     * @param name The profile name to check.
+     * @return Whether the name is valid.
+     */
+    public static boolean isValidProfileName(String name) {
+        return (name != null) && name.matches("[A-Za-z0-9_-]+");
+    }
+
+    /**
+     * @return The name of the active profile.
+     */
+    public String getActiveProfile() {
+        return mActive.name;
+    }
+
+    /**
+     * @return The names of all profiles, sorted.
+     */
+    public List<String> getProfileNames() {
+        ensureLoaded();
+
+        final ArrayList<String> names = new ArrayList<String>(mProfiles.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Makes the specified profile active, creating it if it does not exist.
+     * Every profile is kept compiled, so this only swaps a reference and
+     * persists the profile name.
+     *
+     * @param name The name of the profile to activate.
+     * @return Whether the profile name was valid.
+     */
+    public boolean setActiveProfile(String name) {
+        ensureLoaded();
+
+        if (!isValidProfileName(name)) {
+            return false;
+        }
+
+        if (name.equals(mActive.name)) {
+            return true;
+        }
+
+        activateProfile(name);
+
+        final Editor editor = mPrefs.edit();
+        editor.putString(PREF_ACTIVE_PROFILE, name);
+        editor.commit();
+
+        return true;
+    }
+
+    /**
+     * Deletes the specified profile and its rules. The default and active
+     * profiles cannot be deleted.
+     *
+     * @param name The name of the profile to delete.
+     * @return Whether the profile was deleted.
+     */
+    public boolean deleteProfile(String name) {
+        ensureLoaded();
+
+        if (DEFAULT_PROFILE.equals(name) || name.equals(mActive.name)
+                || (mProfiles.remove(name) == null)) {
+            return false;
+        }
+
+        final Editor editor = mPrefs.edit();
+        editor.remove(getProfileKey(name));
+        editor.commit();
 
-        loadComponentRules();
+        requestBackup(mPackageName);
+
+        return true;
     }
 
     /**
@@ -73,10 +271,32 @@ public class CustomRuleManager {
     }
 
     /**
-     * @return Whether any custom rules have been set.
+     * Returns whether any rule in the active profile can resolve to something
+     * other than the default rule. With an unspecified default, rules that
+     * defer to the app can't either, since an activity that declares no
+     * orientation falls back to the default. Never reloads rules after a
+     * memory trim.
+     *
+     * @param defaultRule The active profile's default rule.
+     * @return Whether any rule can change the outcome of the default rule.
      */
-    public boolean hasComponentRules() {
-        return mComponentRules.isEmpty();
+    public boolean hasRulesOverriding(ScreenOrientation defaultRule) {
+        final int[] counts = mActive.orientationCounts;
+
+        for (ScreenOrientation orientation : ORIENTATIONS) {
+            if ((counts[orientation.ordinal()] == 0) || (orientation == defaultRule)) {
+                continue;
+            }
+
+            if ((defaultRule == ScreenOrientation.UNSPECIFIED)
+                    && (orientation == ScreenOrientation.DECLARED)) {
+                continue;
+            }
+
+            return true;
+        }
+
+        return false;
     }
 
     /**
@@ -86,7 +306,7 @@ public class CustomRuleManager {
      * @param orientation The custom rule to set.
      */
     public void setRuleForPackage(ComponentName component, ScreenOrientation orientation) {
-        storeRule(component.getPackageName(), orientation);
+        storeRule(getPackageFilter(component.getPackageName()), orientation);
     }
 
     /**
@@ -97,7 +317,286 @@ public class CustomRuleManager {
      * @param orientation The custom rule to set.
      */
     public void setRuleForComponent(ComponentName component, ScreenOrientation orientation) {
-        storeRule(component.flattenToShortString(), orientation);
+        storeRule(getComponentFilter(component), orientation);
+    }
+
+    /**
+     * Sets or removes several custom rules with a single write to
+     * preferences.
+     *
+     * @param rules A map of component filters, obtained from
+     *            {@link #getPackageFilter} or {@link #getComponentFilter}, to
+     *            the custom rules to set. A {@code null} value removes the
+     *            rule for that filter.
+     */
+    public void setRules(Map<String, ScreenOrientation> rules) {
+        ensureLoaded();
+
+        for (Entry<String, ScreenOrientation> entry : rules.entrySet()) {
+            if (entry.getValue() == null) {
+                mActive.rules.remove(entry.getKey());
+            } else {
+                mActive.rules.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        commitToPreference();
+    }
+
+    /**
+     * Returns the rules for a profile, which need not be active.
+     *
+     * @param name The profile name.
+     * @return An unmodifiable view of the profile's rules, keyed by filter,
+     *         or {@code null} if there is no such profile.
+     */
+    public Map<String, ScreenOrientation> getRules(String name) {
+        ensureLoaded();
+
+        final Profile profile = mProfiles.get(name);
+        if (profile == null) {
+            return null;
+        }
+
+        return Collections.unmodifiableMap(profile.rules);
+    }
+
+    /**
+     * Merges rules into several profiles, creating profiles as needed, and
+     * commits them all in a single preferences write.
+     *
+     * @param profileRules Maps of filters to rules, keyed by profile name.
+     */
+    public void mergeRules(Map<String, ? extends Map<String, ScreenOrientation>> profileRules) {
+        ensureLoaded();
+
+        final Editor editor = mPrefs.edit();
+        final ArrayList<Profile> changed = new ArrayList<Profile>();
+
+        for (Entry<String, ? extends Map<String, ScreenOrientation>> entry
+                : profileRules.entrySet()) {
+            final String name = entry.getKey();
+            if (!isValidProfileName(name)) {
+                continue;
+            }
+
+            Profile profile = mProfiles.get(name);
+            if (profile == null) {
+                profile = new Profile(name);
+                mProfiles.put(name, profile);
+            }
+
+            profile.rules.putAll(entry.getValue());
+            editor.putString(getProfileKey(name), serialize(profile));
+            changed.add(profile);
+        }
+
+        editor.commit();
+
+        for (Profile profile : changed) {
+            profile.compile();
+        }
+
+        requestBackup(mPackageName);
+    }
+
+    /**
+     * @return An unmodifiable view of all custom rules, keyed by filter.
+     */
+    public Map<String, ScreenOrientation> getRules() {
+        ensureLoaded();
+
+        return Collections.unmodifiableMap(mActive.rules);
+    }
+
+    /**
+     * Returns the custom rule set for the specified package, ignoring any
+     * activity-specific rules, or {@code null} if none.
+     *
+     * @param packageName The package name.
+     * @return The custom rule set for the package, or {@code null} if none.
+     */
+    public ScreenOrientation getRuleForPackage(String packageName) {
+        ensureLoaded();
+
+        return mActive.rules.get(getPackageFilter(packageName));
+    }
+
+    /**
+     * Returns the custom rule set specifically for the specified activity,
+     * ignoring any package rules, or {@code null} if none.
+     *
+     * @param component The activity's component.
+     * @return The custom rule set for the activity, or {@code null} if none.
+     */
+    public ScreenOrientation getRuleForActivity(ComponentName component) {
+        ensureLoaded();
+
+        return mActive.rules.get(getComponentFilter(component));
+    }
+
+    /**
+     * Returns the filter used to store package rules.
+     *
+     * @param packageName The package name.
+     * @return The filter used to store rules for the package.
+     */
+    public static String getPackageFilter(String packageName) {
+        return packageName;
+    }
+
+    /**
+     * Returns the filter used to store activity rules.
+     *
+     * @param component The activity's component.
+     * @return The filter used to store rules for the activity.
+     */
+    public static String getComponentFilter(ComponentName component) {
+        return component.flattenToShortString();
+    }
+
+    /**
+     * Removes all package and activity rules for the specified package from
+     * every profile, with a single write to preferences per changed profile.
+     *
+     * @param packageName The package whose rules should be removed.
+     * @return The number of rules removed.
+     */
+    public int removeRulesForPackage(String packageName) {
+        ensureLoaded();
+
+        final String packageFilter = getPackageFilter(packageName);
+        final String activityPrefix = packageFilter + "/";
+        final String qualifiedPrefix = packageFilter + DecisionTable.QUALIFIER_SEPARATOR;
+        int removed = 0;
+
+        for (Profile profile : mProfiles.values()) {
+            final Iterator<String> filters = profile.rules.keySet().iterator();
+            final int removedBefore = removed;
+
+            while (filters.hasNext()) {
+                final String filter = filters.next();
+                if (filter.equals(packageFilter) || filter.startsWith(activityPrefix)
+                        || filter.startsWith(qualifiedPrefix)) {
+                    filters.remove();
+                    removed++;
+                }
+            }
+
+            if (removed > removedBefore) {
+                commitToPreference(profile);
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes every rule, including conditional and scheduled rules, whose
+     * component filter is in the specified set from every profile, with a
+     * single write to preferences.
+     *
+     * @param filters Component filters, such as those returned by
+     *            {@link #getAllFilters()}.
+     * @return The number of rules removed.
+     */
+    public int removeRulesForFilters(Set<String> filters) {
+        ensureLoaded();
+
+        final Editor editor = mPrefs.edit();
+        final ArrayList<Profile> changed = new ArrayList<Profile>();
+        int removed = 0;
+
+        for (Profile profile : mProfiles.values()) {
+            final Iterator<String> keys = profile.rules.keySet().iterator();
+            final int removedBefore = removed;
+
+            while (keys.hasNext()) {
+                if (filters.contains(DecisionTable.getFilter(keys.next()))) {
+                    keys.remove();
+                    removed++;
+                }
+            }
+
+            if (removed > removedBefore) {
+                editor.putString(getProfileKey(profile.name), serialize(profile));
+                changed.add(profile);
+            }
+        }
+
+        if (changed.isEmpty()) {
+            return 0;
+        }
+
+        editor.commit();
+
+        for (Profile profile : changed) {
+            profile.compile();
+        }
+
+        requestBackup(mPackageName);
+
+        return removed;
+    }
+
+    /**
+     * @return The number of rules in every profile.
+     */
+    public int getTotalRuleCount() {
+        ensureLoaded();
+
+        int count = 0;
+
+        for (Profile profile : mProfiles.values()) {
+            count += profile.rules.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The filters of every rule in every profile.
+     */
+    public Set<String> getAllFilters() {
+        ensureLoaded();
+
+        final HashSet<String> filters = new HashSet<String>();
+
+        for (Profile profile : mProfiles.values()) {
+            for (String key : profile.rules.keySet()) {
+                filters.add(DecisionTable.getFilter(key));
+            }
+        }
+
+        return filters;
+    }
+
+    /**
+     * @return The size in bytes of the persisted rules for every profile.
+     */
+    public int getStorageSize() {
+        ensureLoaded();
+
+        int size = 0;
+
+        for (String name : mProfiles.keySet()) {
+            size += getStorageSize(getProfileKey(name));
+        }
+
+        return size;
+    }
+
+    private int getStorageSize(String key) {
+        final String rulePref = mPrefs.getString(key, null);
+        if (rulePref == null) {
+            return 0;
+        }
+
+        try {
+            return rulePref.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            return rulePref.length();
+        }
     }
 
     /**
@@ -108,10 +607,12 @@ public class CustomRuleManager {
      * @param orientation The custom rule to set.
      */
     private void storeRule(String filter, ScreenOrientation orientation) {
+        ensureLoaded();
+
         if (orientation == null) {
-            mComponentRules.remove(filter);
+            mActive.rules.remove(filter);
         } else {
-            mComponentRules.put(filter, orientation);
+            mActive.rules.put(filter, orientation);
         }
 
         commitToPreference();
@@ -126,18 +627,21 @@ public class CustomRuleManager {
      *         or {@code null} if no rules apply.
      */
     public ScreenOrientation getRuleForComponent(ComponentName component) {
+        ensureLoaded();
+
         if (component == null) {
             return null;
         }
 
         // First preference goes to rules that specify a package and activity.
-        final ScreenOrientation forActivity = mComponentRules.get(component.flattenToShortString());
+        final ScreenOrientation forActivity = mActive.rules.get(getComponentFilter(component));
         if (forActivity != null) {
             return forActivity;
         }
 
         // Second preference goes to rules that only specify a package.
-        final ScreenOrientation forPackage = mComponentRules.get(component.getPackageName());
+        final ScreenOrientation forPackage = mActive.rules.get(
+                getPackageFilter(component.getPackageName()));
         if (forPackage != null) {
             return forPackage;
         }
@@ -146,75 +650,655 @@ public class CustomRuleManager {
     }
 
     /**
-     * Loads custom rules from preferences.
+     * Returns the filter of the active profile's rule that applies to the
+     * specified component in the specified device state, trying the activity
+     * filter before the package filter. Reads only the compiled table, so it
+     * never reloads rules after a memory trim and never records a hit.
+     *
+     * @param component The component for which to find a rule.
+     * @param state The device state bit vector from {@link DeviceStateTracker}.
+     * @return The matching filter, from {@link #getComponentFilter} or
+     *         {@link #getPackageFilter}, or {@code null} if no rules apply.
      */
-    private void loadComponentRules() {
-        mComponentRules.clear();
-
-        // TODO(alanv): Consider moving this to an SQLite database.
-        final String rulePref = mPrefs.getString(PREF_COMPONENT_RULES, null);
-        if (rulePref == null) {
-            // No preference set, this must be a new installation.
-            loadDefaultRules();
-            return;
+    public String getMatchingFilter(ComponentName component, int state) {
+        if (component == null) {
+            return null;
         }
 
-        final String[] rules = rulePref.split("[\n,]");
-
-        try {
-            for (int i = 0; i < (rules.length - 1); i += 2) {
-                final String component = rules[i];
-                final int code = Integer.parseInt(rules[i + 1]);
-                final ScreenOrientation orientation = ScreenOrientation.fromCode(code);
-
-                mComponentRules.put(component, orientation);
-            }
-        } catch (NumberFormatException e) {
-            e.printStackTrace();
+        final DecisionTable table = mActive.table;
 
-            // Rules are broken, overwrite with defaults.
-            loadDefaultRules();
-            return;
+        final String componentFilter = getComponentFilter(component);
+        if (table.get(componentFilter, state) != null) {
+            return componentFilter;
         }
 
-        if (mListener != null) {
-            mListener.onRulesChanged();
+        final String packageFilter = getPackageFilter(component.getPackageName());
+        if (table.get(packageFilter, state) != null) {
+            return packageFilter;
         }
+
+        return null;
     }
 
     /**
-     * Loads default rules and commits them to preferences.
+     * Returns the rule that applies to the specified component in the
+     * specified device state, like
+     * {@link #getRuleForComponent(ComponentName, int)}, but without recording
+     * a hit, touching the hot tier or reloading rules after a memory trim.
+     *
+     * @param component The component for which to obtain a rule.
+     * @param state The device state bit vector from {@link DeviceStateTracker}.
+     * @return The most specific rule that applies, or {@code null} if none.
      */
-    private void loadDefaultRules() {
-        mComponentRules.clear();
-
-        mComponentRules.put("com.android.camera", ScreenOrientation.UNSPECIFIED);
-        mComponentRules.put("com.google.android.gallery3d/com.android.camera.CameraLauncher",
-                ScreenOrientation.UNSPECIFIED);
+    public ScreenOrientation peekRuleForComponent(ComponentName component, int state) {
+        if (component == null) {
+            return null;
+        }
 
-        commitToPreference();
+        final DecisionTable table = mActive.table;
+        final ScreenOrientation forActivity = table.get(getComponentFilter(component), state);
+        if (forActivity != null) {
+            return forActivity;
+        }
+
+        return table.get(getPackageFilter(component.getPackageName()), state);
+    }
+
+    /**
+     * Returns the most specific rule that applies to the specified component
+     * in the specified device state, or {@code null} if no rules apply. Rules
+     * without conditions apply in every state. Records a hit if a
+     * {@link RuleHitCounter} is set. Must be called on the main thread.
+     *
+     * @param component The component for which to obtain a rule.
+     * @param state The device state bit vector from {@link DeviceStateTracker}.
+     * @return The most specific rule that applies, or {@code null} if none.
+     */
+    public ScreenOrientation getRuleForComponent(ComponentName component, int state) {
+        if (component == null) {
+            return null;
+        }
+
+        final DecisionTable table = mActive.table;
+        if ((table != mHotTable) || (state != mHotState)) {
+            clearHotTier();
+            mHotTable = table;
+            mHotState = state;
+        }
+
+        // Frequently used components resolve without building filter strings.
+        for (int i = 0; i < HOT_TIER_SIZE; i++) {
+            if (component.equals(mHotComponents[i])) {
+                mHotWeights[i]++;
+                recordHit(mHotFilters[i]);
+                return mHotRules[i];
+            }
+        }
+
+        // First preference goes to rules that specify a package and activity,
+        // second preference goes to rules that only specify a package.
+        String filter = getComponentFilter(component);
+        ScreenOrientation rule = table.get(filter, state);
+        if (rule == null) {
+            filter = getPackageFilter(component.getPackageName());
+            rule = table.get(filter, state);
+        }
+
+        if (rule == null) {
+            filter = RuleHitCounter.DEFAULT_FILTER;
+        }
+
+        recordHit(filter);
+        admitToHotTier(component, filter, rule, false);
+
+        return rule;
+    }
+
+    /**
+     * Resolves the rule for a component that is likely to come to the
+     * foreground soon and admits it to the hot tier, so that the next
+     * {@link #getRuleForComponent(ComponentName, int)} call for it needs no
+     * filter strings or table lookups. Doesn't record a hit. Must be called on
+     * the main thread.
+     *
+     * @param component The component to resolve.
+     * @param state The device state bit vector from {@link DeviceStateTracker}.
+     * @return Whether the component was already in the hot tier.
+     */
+    public boolean prewarm(ComponentName component, int state) {
+        final DecisionTable table = mActive.table;
+        if ((table != mHotTable) || (state != mHotState)) {
+            clearHotTier();
+            mHotTable = table;
+            mHotState = state;
+        }
+
+        for (int i = 0; i < HOT_TIER_SIZE; i++) {
+            if (component.equals(mHotComponents[i])) {
+                return true;
+            }
+        }
+
+        String filter = getComponentFilter(component);
+        ScreenOrientation rule = table.get(filter, state);
+        if (rule == null) {
+            filter = getPackageFilter(component.getPackageName());
+            rule = table.get(filter, state);
+        }
+
+        if (rule == null) {
+            filter = RuleHitCounter.DEFAULT_FILTER;
+        }
+
+        admitToHotTier(component, filter, rule, true);
+        return false;
+    }
+
+    /**
+     * Sets a counter that records which rule filters resolve orientations.
+     * Only the instance that drives the service should count hits.
+     *
+     * @param hitCounter The hit counter, or {@code null} to stop counting.
+     */
+    public void setHitCounter(RuleHitCounter hitCounter) {
+        mHitCounter = hitCounter;
+    }
+
+    private void recordHit(String filter) {
+        if (mHitCounter != null) {
+            mHitCounter.recordHit(filter);
+        }
+    }
+
+    /**
+     * Admits a resolved component to the hot tier if it is used more often
+     * than the least used entry, or unconditionally if forced. Components
+     * without a rule share the default filter's hit count, which says nothing
+     * about any one of them, so they start with a weight of one.
+     */
+    private void admitToHotTier(ComponentName component, String filter, ScreenOrientation rule,
+            boolean force) {
+        int weight = ((mHitCounter != null) && (rule != null))
+                ? mHitCounter.getCount(filter) : 1;
+        int victim = 0;
+
+        for (int i = 0; i < HOT_TIER_SIZE; i++) {
+            if (mHotComponents[i] == null) {
+                victim = i;
+                break;
+            }
+
+            if (mHotWeights[i] < mHotWeights[victim]) {
+                victim = i;
+            }
+        }
+
+        if ((mHotComponents[victim] != null) && (mHotWeights[victim] >= weight)) {
+            if (!force) {
+                return;
+            }
+
+            // Predicted components only displace the least used entry.
+            weight = mHotWeights[victim];
+        }
+
+        mHotComponents[victim] = component;
+        mHotFilters[victim] = filter;
+        mHotRules[victim] = rule;
+        mHotWeights[victim] = weight;
+    }
+
+    private void clearHotTier() {
+        for (int i = 0; i < HOT_TIER_SIZE; i++) {
+            mHotComponents[i] = null;
+            mHotFilters[i] = null;
+            mHotRules[i] = null;
+            mHotWeights[i] = 0;
+        }
+    }
+
+    /**
+     * @return Whether any rules depend on the device state.
+     */
+    public boolean hasConditionalRules() {
+        return mActive.table.hasConditionalRules();
+    }
+
+    /**
+     * @return The wall clock time at which a scheduled rule next becomes
+     *         active or inactive, or {@code -1} if none will.
+     */
+    public long getNextScheduleTransition() {
+        return mActive.timeline.getNextTransitionTime();
+    }
+
+    /**
+     * Applies scheduled rule transitions in the active profile that are due
+     * and recompiles only the affected filters.
+     *
+     * @return The component filters whose rules changed.
+     */
+    public Set<String> applyScheduleTransitions() {
+        return mActive.advanceSchedule();
+    }
+
+    /**
+     * Re-evaluates every scheduled rule, for example after the time or time
+     * zone changes.
+     */
+    public void rebuildSchedule() {
+        ensureLoaded();
+
+        mActive.compile();
+    }
+
+    /**
+     * Releases inactive profiles and, if {@code minimal} is set, the active
+     * profile's rule map. Lookups keep working from the compiled table, and
+     * everything else reloads from preferences on demand.
+     *
+     * @param minimal Whether to also release the active profile's rule map.
+     */
+    public void trimMemory(boolean minimal) {
+        final Profile active = mActive;
+
+        mProfiles.clear();
+        mProfiles.put(active.name, active);
+        clearHotTier();
+
+        if (minimal) {
+            active.rules = null;
+        }
+
+        mTrimmed = true;
+    }
+
+    /**
+     * @return Whether memory was trimmed and not yet reloaded.
+     */
+    public boolean isTrimmed() {
+        return mTrimmed;
+    }
+
+    /**
+     * @return The number of profiles currently held in memory.
+     */
+    public int getLoadedProfileCount() {
+        return mProfiles.size();
+    }
+
+    /**
+     * @return The active profile's compiled decision table. Never reloads
+     *         rules after a memory trim.
+     */
+    public DecisionTable getActiveTable() {
+        return mActive.table;
+    }
+
+    /**
+     * Reloads every profile if memory was trimmed.
+     */
+    private void ensureLoaded() {
+        if (!mTrimmed) {
+            return;
+        }
+
+        mTrimmed = false;
+        loadProfiles();
+    }
+
+    /**
+     * Swaps in the named profile, creating an empty one if needed, and
+     * notifies the listener.
+     */
+    private void activateProfile(String name) {
+        Profile profile = mProfiles.get(name);
+        if (profile == null) {
+            profile = new Profile(name);
+            mProfiles.put(name, profile);
+        }
+
+        // Inactive profiles don't receive schedule transitions, so catch up.
+        profile.advanceSchedule();
+        mActive = profile;
 
         if (mListener != null) {
-            mListener.onRulesChanged();
+            mListener.onProfileChanged(name);
         }
     }
 
     /**
-     * Commits all loaded rules to preferences.
+     * Returns the preference key used to store the specified profile.
+     */
+    static String getProfileKey(String name) {
+        if (DEFAULT_PROFILE.equals(name)) {
+            return PREF_COMPONENT_RULES;
+        }
+
+        return PREF_COMPONENT_RULES + "." + name;
+    }
+
+    /**
+     * Returns the profile name stored in the specified preference key, or
+     * {@code null} if the key does not store a profile.
+     */
+    static String getProfileName(String key) {
+        if (PREF_COMPONENT_RULES.equals(key)) {
+            return DEFAULT_PROFILE;
+        } else if ((key != null) && key.startsWith(PREF_COMPONENT_RULES + ".")) {
+            return key.substring(PREF_COMPONENT_RULES.length() + 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Loads and compiles every profile from preferences, or through the
+     * provider for a remote rule manager.
+     */
+    private void loadProfiles() {
+        mProfiles.clear();
+
+        if ((mRemoteResolver != null) && loadRemoteProfiles()) {
+            return;
+        }
+
+        for (String key : mPrefs.getAll().keySet()) {
+            final String name = getProfileName(key);
+            if (name != null) {
+                mProfiles.put(name, loadProfile(name));
+            }
+        }
+
+        if (!mProfiles.containsKey(DEFAULT_PROFILE)) {
+            // No preference set, this must be a new installation.
+            mProfiles.put(DEFAULT_PROFILE, loadDefaultRules());
+        }
+
+        final String activeName = mPrefs.getString(PREF_ACTIVE_PROFILE, DEFAULT_PROFILE);
+        Profile active = mProfiles.get(activeName);
+        if (active == null) {
+            active = new Profile(activeName);
+            mProfiles.put(activeName, active);
+        }
+
+        mActive = active;
+    }
+
+    /**
+     * Loads and compiles every profile through the provider, without writing
+     * to preferences.
+     *
+     * @return Whether the provider was available.
+     */
+    private boolean loadRemoteProfiles() {
+        final ArrayList<String> names = RuleStore.queryProfileNames(mRemoteResolver);
+        final String activeName = RuleStore.queryActiveProfile(mRemoteResolver);
+        if ((names == null) || (activeName == null)) {
+            return false;
+        }
+
+        for (String name : names) {
+            final HashMap<String, ScreenOrientation> rules =
+                    RuleStore.queryProfile(mRemoteResolver, name);
+            if (rules != null) {
+                final Profile profile = new Profile(name);
+                profile.rules.putAll(rules);
+                profile.compile();
+                mProfiles.put(name, profile);
+            }
+        }
+
+        Profile active = mProfiles.get(activeName);
+        if (active == null) {
+            active = new Profile(activeName);
+            mProfiles.put(activeName, active);
+        }
+
+        mActive = active;
+        return true;
+    }
+
+    /**
+     * Loads and compiles a single profile from preferences.
+     */
+    private Profile loadProfile(String name) {
+        final Profile profile = new Profile(name);
+
+        // TODO(alanv): Consider moving this to an SQLite database.
+        final String rulePref = mPrefs.getString(getProfileKey(name), null);
+        if (rulePref == null) {
+            return profile;
+        }
+
+        final HashMap<String, ScreenOrientation> rules = parseRules(rulePref);
+        if (rules != null) {
+            profile.rules.putAll(rules);
+        } else if (DEFAULT_PROFILE.equals(name)) {
+            // Rules are broken, overwrite with defaults.
+            return loadDefaultRules();
+        }
+
+        profile.compile();
+
+        return profile;
+    }
+
+    /**
+     * Parses a profile's rules from their persisted form.
+     *
+     * @param rulePref The persisted rules.
+     * @return The rules keyed by filter, or {@code null} if they are broken.
+     */
+    static HashMap<String, ScreenOrientation> parseRules(String rulePref) {
+        final HashMap<String, ScreenOrientation> parsed = new HashMap<String, ScreenOrientation>();
+        final String[] rules = rulePref.split("[\n,]");
+
+        try {
+            for (int i = 0; i < (rules.length - 1); i += 2) {
+                final String component = rules[i];
+                final int code = Integer.parseInt(rules[i + 1]);
+                final ScreenOrientation orientation = ScreenOrientation.fromCode(code);
+
+                parsed.put(component, orientation);
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        return parsed;
+    }
+
+    /**
+     * Reloads a single profile after it was changed in preferences.
+     */
+    private void reloadProfile(String name) {
+        replaceProfile(name, mPrefs.contains(getProfileKey(name)) ? loadProfile(name) : null);
+    }
+
+    /**
+     * Replaces a profile's rules after they were changed by another process,
+     * without writing to preferences.
+     *
+     * @param name The profile name.
+     * @param rules The profile's rules, which may be empty, or {@code null}
+     *            if it was deleted.
+     */
+    public void refreshProfile(String name, Map<String, ScreenOrientation> rules) {
+        ensureLoaded();
+
+        Profile profile = null;
+        if (rules != null) {
+            profile = new Profile(name);
+            profile.rules.putAll(rules);
+            profile.compile();
+        }
+
+        replaceProfile(name, profile);
+    }
+
+    /**
+     * Sets or removes a single rule after it was changed by another process,
+     * without writing to preferences or reloading the rest of the profile.
+     * Only the rule's filter is recompiled.
+     *
+     * @param name The profile name.
+     * @param key The rule key.
+     * @param orientation The rule, or {@code null} if it was removed.
+     * @return Whether the change was applied. If not, the whole profile
+     *         should be refreshed instead.
+     */
+    public boolean refreshRule(String name, String key, ScreenOrientation orientation) {
+        if (ScheduleTimeline.isScheduled(key)) {
+            // The timeline is rebuilt from every key, so it needs the profile.
+            return false;
+        }
+
+        final Profile profile = mProfiles.get(name);
+        if (profile == null) {
+            // Profiles released by a memory trim reload from preferences.
+            return mTrimmed;
+        }
+
+        if (profile.rules == null) {
+            // The rule map was trimmed, so the previous rule is unknown.
+            return false;
+        }
+
+        final ScreenOrientation previous = (orientation != null)
+                ? profile.rules.put(key, orientation) : profile.rules.remove(key);
+        profile.countRule(previous, orientation);
+        profile.table = profile.table.update(key, orientation, profile.timeline);
+
+        if (profile == mActive) {
+            // The table may have changed in place, keeping its identity.
+            mHotTable = null;
+
+            if (mListener != null) {
+                mListener.onRulesChanged();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Switches the active profile after it was changed by another process,
+     * without writing to preferences.
+     *
+     * @param name The name of the new active profile.
+     */
+    public void refreshActiveProfile(String name) {
+        ensureLoaded();
+
+        if (isValidProfileName(name) && !name.equals(mActive.name)) {
+            activateProfile(name);
+        }
+    }
+
+    /**
+     * Replaces a loaded profile and notifies the listener if it is active.
+     *
+     * @param name The profile name.
+     * @param profile The new profile, or {@code null} if it was deleted.
+     */
+    private void replaceProfile(String name, Profile profile) {
+        if (profile == null) {
+            if (!name.equals(mActive.name)) {
+                mProfiles.remove(name);
+                return;
+            }
+
+            // The active profile stays active until another is activated, but
+            // its rules are gone, so it must not keep applying them.
+            profile = new Profile(name);
+            profile.compile();
+        }
+
+        mProfiles.put(name, profile);
+
+        if (name.equals(mActive.name)) {
+            mActive = profile;
+
+            if (mListener != null) {
+                mListener.onRulesChanged();
+            }
+        }
+    }
+
+    /**
+     * Creates the default profile with default rules and commits it to
+     * preferences.
+     */
+    private Profile loadDefaultRules() {
+        final Profile profile = new Profile(DEFAULT_PROFILE);
+
+        // Camera apps declare their own orientation, so leave them alone.
+        profile.rules.put("com.android.camera", ScreenOrientation.DECLARED);
+        profile.rules.put("com.google.android.gallery3d/com.android.camera.CameraLauncher",
+                ScreenOrientation.DECLARED);
+
+        commitToPreference(profile);
+
+        return profile;
+    }
+
+    /**
+     * Commits the active profile's rules to preferences.
      */
     private void commitToPreference() {
+        commitToPreference(mActive);
+    }
+
+    /**
+     * Commits a profile's rules to preferences and recompiles it.
+     */
+    private void commitToPreference(Profile profile) {
+        final Editor editor = mPrefs.edit();
+        editor.putString(getProfileKey(profile.name), serialize(profile));
+        editor.commit();
+
+        profile.compile();
+
+        requestBackup(mPackageName);
+    }
+
+    /**
+     * Tells the backup manager that rules or settings changed, so
+     * {@link RuleBackupAgent} runs at the next backup pass. No-op prior to
+     * API 8.
+     *
+     * @param packageName The parent package.
+     */
+    static void requestBackup(String packageName) {
+        CompatUtils.invoke(null, null, METHOD_dataChanged, packageName);
+    }
+
+    /**
+     * Returns a profile's rules in their persisted form.
+     */
+    private static String serialize(Profile profile) {
+        return serialize(profile.rules);
+    }
+
+    /**
+     * Serializes rules in the format read by {@link #parseRules}.
+     *
+     * @param profileRules The rules, keyed by filter.
+     * @return The serialized rules.
+     */
+    static String serialize(Map<String, ScreenOrientation> profileRules) {
         final StringBuffer rules = new StringBuffer();
 
-        for (Entry<String, ScreenOrientation> entry : mComponentRules.entrySet()) {
+        for (Entry<String, ScreenOrientation> entry : profileRules.entrySet()) {
             rules.append(entry.getKey());
             rules.append(",");
             rules.append(entry.getValue().getCode());
             rules.append("\n");
         }
 
-        final Editor editor = mPrefs.edit();
-        editor.putString(PREF_COMPONENT_RULES, rules.toString());
-        editor.commit();
+        return rules.toString();
     }
 
     private final SharedPreferences.OnSharedPreferenceChangeListener
@@ -222,17 +1306,144 @@ public class CustomRuleManager {
                 @Override
                 public void onSharedPreferenceChanged(
                         SharedPreferences sharedPreferences, String key) {
-                    loadComponentRules();
+                    if (mTrimmed) {
+                        onPreferenceChangedWhileTrimmed();
+                        return;
+                    }
+
+                    if (PREF_ACTIVE_PROFILE.equals(key)) {
+                        final String name = sharedPreferences.getString(
+                                PREF_ACTIVE_PROFILE, DEFAULT_PROFILE);
+                        if (!name.equals(mActive.name)) {
+                            activateProfile(name);
+                        }
+
+                        return;
+                    }
+
+                    final String name = getProfileName(key);
+                    if (name != null) {
+                        reloadProfile(name);
+                    }
                 }
             };
 
+    /**
+     * Reloads everything after a change made while memory was trimmed, since
+     * the individual profiles to update may not be loaded.
+     */
+    private void onPreferenceChangedWhileTrimmed() {
+        final String previousName = mActive.name;
+
+        ensureLoaded();
+
+        if (mListener == null) {
+            return;
+        }
+
+        if (previousName.equals(mActive.name)) {
+            mListener.onRulesChanged();
+        } else {
+            mListener.onProfileChanged(mActive.name);
+        }
+    }
+
+    /**
+     * A named set of rules, kept compiled in memory.
+     */
+    private static class Profile {
+        /** The profile name. */
+        public final String name;
+
+        /**
+         * Map of package and component names to orientations, or
+         * {@code null} if released by {@link CustomRuleManager#trimMemory}.
+         */
+        public HashMap<String, ScreenOrientation> rules =
+                new HashMap<String, ScreenOrientation>();
+
+        /**
+         * The number of rules per orientation ordinal. Kept while the rule
+         * map is trimmed.
+         */
+        public final int[] orientationCounts = new int[ORIENTATIONS.length];
+
+        /** Tracks which scheduled rules are active. */
+        public final ScheduleTimeline timeline =
+                new ScheduleTimeline(ScheduleTimeline.SYSTEM_CLOCK);
+
+        /** Rules compiled for lookup by component and device state. */
+        public volatile DecisionTable table = DecisionTable.EMPTY;
+
+        public Profile(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Rebuilds the schedule timeline and decision table from the rules.
+         */
+        public void compile() {
+            Arrays.fill(orientationCounts, 0);
+            for (ScreenOrientation orientation : rules.values()) {
+                orientationCounts[orientation.ordinal()]++;
+            }
+
+            timeline.rebuild(rules.keySet());
+            table = DecisionTable.compile(rules, timeline);
+        }
+
+        /**
+         * Updates the orientation counts after a single rule changed.
+         *
+         * @param previous The previous rule, or {@code null} if it was added.
+         * @param orientation The new rule, or {@code null} if it was removed.
+         */
+        public void countRule(ScreenOrientation previous, ScreenOrientation orientation) {
+            if (previous != null) {
+                orientationCounts[previous.ordinal()]--;
+            }
+
+            if (orientation != null) {
+                orientationCounts[orientation.ordinal()]++;
+            }
+        }
+
+        /**
+         * Applies due schedule transitions and recompiles only the affected
+         * filters.
+         *
+         * @return The component filters whose rules changed.
+         */
+        public Set<String> advanceSchedule() {
+            final List<String> changedKeys = timeline.advance();
+            final HashSet<String> changedFilters = new HashSet<String>();
+
+            for (String key : changedKeys) {
+                changedFilters.add(DecisionTable.getFilter(key));
+            }
+
+            if (!changedFilters.isEmpty()) {
+                table = table.recompile(changedFilters, timeline);
+            }
+
+            return changedFilters;
+        }
+    }
+
     /**
      * Listener for changes in custom rules.
      */
     public interface RuleListener {
         /**
-         * Called when custom rules are changed.
+         * Called when custom rules in the active profile are changed.
          */
         public void onRulesChanged();
+
+        /**
+         * Called when a different profile becomes active.
+         *
+         * @param profile The name of the new active profile.
+         */
+        public void onProfileChanged(String profile);
     }
 }
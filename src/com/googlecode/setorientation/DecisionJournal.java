@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.ComponentName;
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size ring of orientation decisions, backed by a memory-mapped file so
+ * that it survives process death and can be inspected after the fact.
+ * <p>
+ * Each entry holds the wall clock time, an interned component id, the chosen
+ * orientation and where the decision came from. Appending reserves a slot
+ * with an atomic increment and writes it in place, so it never locks or
+ * allocates once a component has been seen. Component names are appended to
+ * a side file the first time each one is seen.
+ */
+public class DecisionJournal {
+    /** The decision came from the default rule. */
+    public static final int ORIGIN_DEFAULT = 0;
+
+    /** The decision came from a custom rule. */
+    public static final int ORIGIN_RULE = 1;
+
+    /** The decision was requested explicitly, e.g. from the notification. */
+    public static final int ORIGIN_COMMAND = 2;
+
+    /** The decision came from the smart rotation controller. */
+    public static final int ORIGIN_SMART = 3;
+
+    private static final String[] ORIGIN_NAMES = { "default", "rule", "command", "smart" };
+
+    /** The file, relative to the files directory, holding the journal. */
+    private static final String JOURNAL_FILE = "decision_journal";
+
+    /** Suffix of the side file holding interned component names. */
+    private static final String NAMES_SUFFIX = ".names";
+
+    private static final int FILE_MAGIC = 0x534f444a;
+
+    /** Version of the journal format. Bump when the format changes. */
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    /** The number of entries held before the oldest is overwritten. */
+    private static final int CAPACITY = 2048;
+
+    /** The maximum number of component names that will be interned. */
+    private static final int MAX_NAMES = 4096;
+
+    /** Component id recorded for unknown or uninterned components. */
+    private static final int NO_COMPONENT = -1;
+
+    // Header: magic, version, capacity.
+    private static final int HEADER_SIZE = 12;
+
+    // Entry: serial, time, component id, orientation code, origin, padding.
+    private static final int OFFSET_SERIAL = 0;
+    private static final int OFFSET_TIME = 4;
+    private static final int OFFSET_COMPONENT = 12;
+    private static final int OFFSET_ORIENTATION = 16;
+    private static final int OFFSET_ORIGIN = 18;
+    private static final int ENTRY_SIZE = 20;
+
+    private final File mJournalFile;
+    private final File mNamesFile;
+
+    /** Component ids, keyed by component. */
+    private final ConcurrentHashMap<ComponentName, Integer> mIds =
+            new ConcurrentHashMap<ComponentName, Integer>();
+
+    /** The sequence number of the next entry. */
+    private final AtomicInteger mCursor = new AtomicInteger();
+
+    /** The mapped journal, or {@code null} if it could not be opened. */
+    private MappedByteBuffer mBuffer;
+
+    /**
+     * Opens the journal, creating it if it doesn't exist or is unreadable.
+     * If the journal can't be mapped, recording is a no-op.
+     *
+     * @param context The parent context.
+     */
+    public DecisionJournal(Context context) {
+        mJournalFile = new File(context.getFilesDir(), JOURNAL_FILE);
+        mNamesFile = getNamesFile(mJournalFile);
+
+        try {
+            open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            mBuffer = null;
+        }
+    }
+
+    private void open() throws IOException {
+        final int size = HEADER_SIZE + (CAPACITY * ENTRY_SIZE);
+        final boolean existed = (mJournalFile.length() == size);
+        final RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+
+        try {
+            file.setLength(size);
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            closeQuietly(file);
+        }
+
+        if (!existed || !isValidHeader(mBuffer)) {
+            // Start over, since old entries may refer to old names.
+            for (int i = 0; i < size; i++) {
+                mBuffer.put(i, (byte) 0);
+            }
+
+            mBuffer.putInt(0, FILE_MAGIC);
+            mBuffer.putInt(4, FILE_FORMAT_VERSION);
+            mBuffer.putInt(8, CAPACITY);
+            mNamesFile.delete();
+            return;
+        }
+
+        int lastSerial = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            lastSerial = Math.max(lastSerial, mBuffer.getInt(getOffset(i) + OFFSET_SERIAL));
+        }
+
+        mCursor.set(lastSerial);
+
+        final ArrayList<String> names = readNames(mNamesFile);
+        for (int i = 0; i < names.size(); i++) {
+            final ComponentName component = ComponentName.unflattenFromString(names.get(i));
+            if (component != null) {
+                mIds.put(component, i);
+            }
+        }
+    }
+
+    /**
+     * Appends a decision, overwriting the oldest entry if the journal is
+     * full. Safe to call from any thread.
+     *
+     * @param component The foreground component, or {@code null} if unknown.
+     * @param orientation The chosen orientation.
+     * @param origin Where the decision came from, e.g. {@link #ORIGIN_RULE}.
+     */
+    public void record(ComponentName component, ScreenOrientation orientation, int origin) {
+        final MappedByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            return;
+        }
+
+        final int serial = mCursor.incrementAndGet() & Integer.MAX_VALUE;
+        final int offset = getOffset(serial % CAPACITY);
+
+        // Clear the serial first so a torn entry is never decoded.
+        buffer.putInt(offset + OFFSET_SERIAL, 0);
+        buffer.putLong(offset + OFFSET_TIME, System.currentTimeMillis());
+        buffer.putInt(offset + OFFSET_COMPONENT, intern(component));
+        buffer.putShort(offset + OFFSET_ORIENTATION, (short) orientation.getCode());
+        buffer.put(offset + OFFSET_ORIGIN, (byte) origin);
+        buffer.putInt(offset + OFFSET_SERIAL, serial);
+    }
+
+    /**
+     * Prints the journal, oldest entry first.
+     *
+     * @param writer The writer to print to.
+     */
+    public void dump(PrintWriter writer) {
+        if (mBuffer == null) {
+            writer.println("  unavailable");
+            return;
+        }
+
+        decode(mBuffer.duplicate(), readNames(mNamesFile), writer);
+    }
+
+    /**
+     * Decodes a journal file, such as one copied off a device along with its
+     * names file, and prints it oldest entry first.
+     *
+     * @param journalFile The journal file. The names file must be next to it.
+     * @param writer The writer to print to.
+     * @return Whether the file was a valid journal.
+     */
+    public static boolean decode(File journalFile, PrintWriter writer) {
+        final ByteBuffer buffer;
+        FileInputStream in = null;
+
+        try {
+            in = new FileInputStream(journalFile);
+            buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, journalFile.length());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+
+        if (!isValidHeader(buffer)) {
+            return false;
+        }
+
+        decode(buffer, readNames(getNamesFile(journalFile)), writer);
+        return true;
+    }
+
+    /**
+     * @param context The parent context.
+     * @return The journal file, which can be passed to {@link #decode}.
+     */
+    public static File getJournalFile(Context context) {
+        return new File(context.getFilesDir(), JOURNAL_FILE);
+    }
+
+    private static void decode(ByteBuffer buffer, ArrayList<String> names, PrintWriter writer) {
+        final int capacity = buffer.getInt(8);
+        final long[] entries = new long[capacity];
+        int count = 0;
+
+        // Sort occupied slots by serial, keeping the slot in the low bits.
+        for (int i = 0; i < capacity; i++) {
+            final int serial = buffer.getInt(getOffset(i) + OFFSET_SERIAL);
+            if (serial > 0) {
+                entries[count++] = (((long) serial) << 32) | i;
+            }
+        }
+
+        Arrays.sort(entries, 0, count);
+
+        final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        final Date date = new Date();
+
+        for (int i = 0; i < count; i++) {
+            final int offset = getOffset((int) entries[i]);
+            final int componentId = buffer.getInt(offset + OFFSET_COMPONENT);
+            final int code = buffer.getShort(offset + OFFSET_ORIENTATION);
+            final int origin = buffer.get(offset + OFFSET_ORIGIN);
+
+            date.setTime(buffer.getLong(offset + OFFSET_TIME));
+
+            final String component = ((componentId >= 0) && (componentId < names.size()))
+                    ? names.get(componentId) : null;
+            final String originName = ((origin >= 0) && (origin < ORIGIN_NAMES.length))
+                    ? ORIGIN_NAMES[origin] : Integer.toString(origin);
+
+            writer.println("  " + format.format(date) + " " + component + " -> "
+                    + ScreenOrientation.fromCode(code) + " (" + originName + ")");
+        }
+    }
+
+    /**
+     * Returns the id for a component, appending it to the names file the
+     * first time it is seen.
+     */
+    private int intern(ComponentName component) {
+        if (component == null) {
+            return NO_COMPONENT;
+        }
+
+        final Integer id = mIds.get(component);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (mNamesFile) {
+            final Integer existing = mIds.get(component);
+            if (existing != null) {
+                return existing;
+            }
+
+            final int newId = mIds.size();
+            if ((newId >= MAX_NAMES) || !appendName(component.flattenToString())) {
+                return NO_COMPONENT;
+            }
+
+            mIds.put(component, newId);
+            return newId;
+        }
+    }
+
+    private boolean appendName(String name) {
+        FileOutputStream out = null;
+
+        try {
+            out = new FileOutputStream(mNamesFile, true);
+            out.write((name + "\n").getBytes("UTF-8"));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static ArrayList<String> readNames(File namesFile) {
+        final ArrayList<String> names = new ArrayList<String>();
+        if (!namesFile.exists()) {
+            return names;
+        }
+
+        BufferedReader in = null;
+
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(namesFile), "UTF-8"));
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                names.add(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(in);
+        }
+
+        return names;
+    }
+
+    private static boolean isValidHeader(ByteBuffer buffer) {
+        return (buffer.capacity() >= HEADER_SIZE)
+                && (buffer.getInt(0) == FILE_MAGIC)
+                && (buffer.getInt(4) == FILE_FORMAT_VERSION)
+                && (buffer.getInt(8) > 0) && (buffer.getInt(8) <= CAPACITY)
+                && (buffer.capacity() == (HEADER_SIZE + (buffer.getInt(8) * ENTRY_SIZE)));
+    }
+
+    private static File getNamesFile(File journalFile) {
+        return new File(journalFile.getPath() + NAMES_SUFFIX);
+    }
+
+    private static int getOffset(int slot) {
+        return HEADER_SIZE + (slot * ENTRY_SIZE);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Do nothing.
+        }
+    }
+}
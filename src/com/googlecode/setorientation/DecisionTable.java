@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A lookup table compiled from custom rules, indexed by component filter and
+ * device state.
+ * <p>
+ * A rule key is a component filter optionally followed by a condition on the
+ * device state, for example {@code com.example/.MainActivity;when=docked+!charging}.
+ * State names are defined by {@link DeviceStateTracker}. Names prefixed with
+ * {@code !} require the state to be off. When several rules for a filter match
+ * a state, the rule with the most conditions wins. Rules may also be
+ * scheduled, see {@link ScheduleTimeline}.
+ * <p>
+ * Each filter with conditional rules is compiled into an array with one entry
+ * per possible state, so a lookup is a hash and an array index regardless of
+ * how many rules exist. Unconditional rules, which are usually the vast
+ * majority, are held in a {@link CompactRuleTable}.
+ * <p>
+ * Tables are replaced rather than modified, except that {@link #update}
+ * changes unconditional rules in place. A table must not be used after it
+ * has been replaced.
+ */
+public class DecisionTable {
+    /** Separates a component filter from its qualifiers. */
+    public static final char QUALIFIER_SEPARATOR = ';';
+
+    private static final String QUALIFIER_WHEN = "when=";
+
+    private static final int STATE_COUNT = 1 << DeviceStateTracker.STATE_BIT_COUNT;
+
+    /** An empty table. */
+    public static final DecisionTable EMPTY = new DecisionTable(CompactRuleTable.EMPTY,
+            new HashMap<String, ScreenOrientation[]>(),
+            new HashMap<String, ArrayList<Condition>>());
+
+    /** Rules without conditions, keyed by filter. */
+    private final CompactRuleTable mUnconditional;
+
+    /** Rules with conditions, keyed by filter and indexed by state. */
+    private final HashMap<String, ScreenOrientation[]> mConditional;
+
+    /** Parsed conditions, keyed by filter and ordered by specificity. */
+    private final HashMap<String, ArrayList<Condition>> mConditions;
+
+    private DecisionTable(CompactRuleTable unconditional,
+            HashMap<String, ScreenOrientation[]> conditional,
+            HashMap<String, ArrayList<Condition>> conditions) {
+        mUnconditional = unconditional;
+        mConditional = conditional;
+        mConditions = conditions;
+    }
+
+    /**
+     * Compiles a set of rules into a decision table. Rules with unrecognized
+     * qualifiers are ignored. Scheduled rules are only compiled while active.
+     *
+     * @param rules A map of rule keys to orientations.
+     * @param timeline The timeline used to determine which scheduled rules
+     *            are active.
+     * @return A decision table.
+     */
+    public static DecisionTable compile(
+            Map<String, ScreenOrientation> rules, ScheduleTimeline timeline) {
+        final HashMap<String, ScreenOrientation> unconditional =
+                new HashMap<String, ScreenOrientation>();
+        final HashMap<String, ArrayList<Condition>> conditions =
+                new HashMap<String, ArrayList<Condition>>();
+
+        for (Entry<String, ScreenOrientation> entry : rules.entrySet()) {
+            final String key = entry.getKey();
+            final int separator = key.indexOf(QUALIFIER_SEPARATOR);
+            if (separator < 0) {
+                unconditional.put(key, entry.getValue());
+                continue;
+            }
+
+            final Condition condition = parseCondition(key, separator, entry.getValue());
+            if (condition == null) {
+                continue;
+            }
+
+            final String filter = key.substring(0, separator);
+            ArrayList<Condition> list = conditions.get(filter);
+            if (list == null) {
+                list = new ArrayList<Condition>();
+                conditions.put(filter, list);
+            }
+
+            list.add(condition);
+        }
+
+        final HashMap<String, ScreenOrientation[]> conditional =
+                new HashMap<String, ScreenOrientation[]>();
+
+        for (Entry<String, ArrayList<Condition>> entry : conditions.entrySet()) {
+            final String filter = entry.getKey();
+            final ArrayList<Condition> list = entry.getValue();
+
+            // Fill less specific conditions first so more specific ones win.
+            Collections.sort(list, SPECIFICITY_COMPARATOR);
+
+            conditional.put(filter, compileFilter(unconditional.get(filter), list, timeline));
+        }
+
+        return new DecisionTable(
+                CompactRuleTable.compile(unconditional), conditional, conditions);
+    }
+
+    /**
+     * Returns a copy of this table with only the specified filters
+     * recompiled, for use when scheduled rules change state.
+     *
+     * @param filters The filters to recompile.
+     * @param timeline The timeline used to determine which scheduled rules
+     *            are active.
+     * @return An updated decision table.
+     */
+    public DecisionTable recompile(Collection<String> filters, ScheduleTimeline timeline) {
+        final HashMap<String, ScreenOrientation[]> conditional =
+                new HashMap<String, ScreenOrientation[]>(mConditional);
+
+        for (String filter : filters) {
+            final ArrayList<Condition> list = mConditions.get(filter);
+            if (list != null) {
+                conditional.put(filter,
+                        compileFilter(mUnconditional.get(filter), list, timeline));
+            }
+        }
+
+        return new DecisionTable(mUnconditional, conditional, mConditions);
+    }
+
+    /**
+     * Sets or removes a single rule, for use when another process changes one
+     * rule. Unconditional rules are updated in place, and only the rule's
+     * filter is recompiled. Rules with unrecognized qualifiers are ignored.
+     * <p>
+     * Scheduled rules are not supported, since the timeline has to be rebuilt
+     * from every rule key when one is added or removed.
+     *
+     * @param key The rule key.
+     * @param orientation The rule to set, or {@code null} to remove it.
+     * @param timeline The timeline used to determine which scheduled rules
+     *            are active.
+     * @return The updated table, which replaces this one.
+     */
+    public DecisionTable update(
+            String key, ScreenOrientation orientation, ScheduleTimeline timeline) {
+        final int separator = key.indexOf(QUALIFIER_SEPARATOR);
+        final String filter = (separator < 0) ? key : key.substring(0, separator);
+        CompactRuleTable unconditional = mUnconditional;
+        HashMap<String, ArrayList<Condition>> conditions = mConditions;
+
+        if (separator < 0) {
+            unconditional = mUnconditional.update(key, orientation);
+            if (!mConditions.containsKey(filter)) {
+                return (unconditional == mUnconditional) ? this
+                        : new DecisionTable(unconditional, mConditional, mConditions);
+            }
+        } else {
+            final Condition condition = (orientation != null)
+                    ? parseCondition(key, separator, orientation) : null;
+            if ((orientation != null) && (condition == null)) {
+                return this;
+            }
+
+            final ArrayList<Condition> list = new ArrayList<Condition>();
+            final ArrayList<Condition> previous = mConditions.get(filter);
+            if (previous != null) {
+                for (Condition existing : previous) {
+                    if (!existing.key.equals(key)) {
+                        list.add(existing);
+                    }
+                }
+            }
+
+            if (condition != null) {
+                list.add(condition);
+                Collections.sort(list, SPECIFICITY_COMPARATOR);
+            }
+
+            conditions = new HashMap<String, ArrayList<Condition>>(mConditions);
+            if (list.isEmpty()) {
+                conditions.remove(filter);
+            } else {
+                conditions.put(filter, list);
+            }
+        }
+
+        final HashMap<String, ScreenOrientation[]> conditional =
+                new HashMap<String, ScreenOrientation[]>(mConditional);
+        final ArrayList<Condition> list = conditions.get(filter);
+        if (list != null) {
+            conditional.put(filter, compileFilter(unconditional.get(filter), list, timeline));
+        } else {
+            conditional.remove(filter);
+        }
+
+        return new DecisionTable(unconditional, conditional, conditions);
+    }
+
+    private static ScreenOrientation[] compileFilter(ScreenOrientation fallback,
+            ArrayList<Condition> conditions, ScheduleTimeline timeline) {
+        final ScreenOrientation[] table = new ScreenOrientation[STATE_COUNT];
+
+        // The unconditional rule, if any, applies in every other state.
+        if (fallback != null) {
+            for (int state = 0; state < STATE_COUNT; state++) {
+                table[state] = fallback;
+            }
+        }
+
+        for (Condition condition : conditions) {
+            if (condition.scheduled && !timeline.isActive(condition.key)) {
+                continue;
+            }
+
+            for (int state = 0; state < STATE_COUNT; state++) {
+                if ((state & condition.mask) == condition.value) {
+                    table[state] = condition.orientation;
+                }
+            }
+        }
+
+        return table;
+    }
+
+    /**
+     * Returns the rule for a single filter in the specified state, or
+     * {@code null} if none applies. Callers are responsible for trying
+     * activity filters before package filters.
+     *
+     * @param filter A component filter without qualifiers.
+     * @param state The device state bit vector.
+     * @return The matching rule, or {@code null} if none.
+     */
+    public ScreenOrientation get(String filter, int state) {
+        if (!mConditional.isEmpty()) {
+            final ScreenOrientation[] table = mConditional.get(filter);
+            if (table != null) {
+                return table[state & (STATE_COUNT - 1)];
+            }
+        }
+
+        return mUnconditional.get(filter);
+    }
+
+    /**
+     * @return The approximate number of bytes retained by unconditional rules.
+     */
+    public int getUnconditionalBytes() {
+        return mUnconditional.getRetainedBytes();
+    }
+
+    /**
+     * @return The number of unconditional rules.
+     */
+    public int getUnconditionalCount() {
+        return mUnconditional.size();
+    }
+
+    /**
+     * @return Whether any rules depend on the device state.
+     */
+    public boolean hasConditionalRules() {
+        return !mConditional.isEmpty();
+    }
+
+    /**
+     * Returns the component filter portion of a rule key.
+     *
+     * @param key A rule key.
+     * @return The component filter.
+     */
+    public static String getFilter(String key) {
+        final int separator = key.indexOf(QUALIFIER_SEPARATOR);
+        if (separator < 0) {
+            return key;
+        }
+
+        return key.substring(0, separator);
+    }
+
+    /**
+     * Returns whether the qualifiers in a rule key, if any, are recognized.
+     *
+     * @param key A rule key.
+     * @return Whether the key's qualifiers are valid.
+     */
+    public static boolean isValidKey(String key) {
+        final int separator = key.indexOf(QUALIFIER_SEPARATOR);
+        return (separator < 0) || (parseCondition(key, separator, null) != null);
+    }
+
+    /**
+     * Parses the qualifiers following the separator at the specified index.
+     *
+     * @return The parsed condition, or {@code null} if the qualifiers are not
+     *         recognized.
+     */
+    private static Condition parseCondition(
+            String key, int separator, ScreenOrientation orientation) {
+        final String[] qualifiers = TextUtils.split(
+                key.substring(separator + 1), String.valueOf(QUALIFIER_SEPARATOR));
+        boolean hasWhen = false;
+        boolean scheduled = false;
+        int mask = 0;
+        int value = 0;
+
+        for (String qualifier : qualifiers) {
+            if (ScheduleTimeline.isValidQualifier(qualifier)) {
+                scheduled = true;
+                continue;
+            }
+
+            if (!qualifier.startsWith(QUALIFIER_WHEN) || hasWhen) {
+                return null;
+            }
+
+            hasWhen = true;
+
+            final String[] names = TextUtils.split(
+                    qualifier.substring(QUALIFIER_WHEN.length()), "\\+");
+            if (names.length == 0) {
+                return null;
+            }
+
+            for (String name : names) {
+                final boolean negated = name.startsWith("!");
+                final int bit = DeviceStateTracker.getStateBit(
+                        negated ? name.substring(1) : name);
+                if ((bit == 0) || ((mask & bit) != 0)) {
+                    return null;
+                }
+
+                mask |= bit;
+
+                if (!negated) {
+                    value |= bit;
+                }
+            }
+        }
+
+        final int specificity = Integer.bitCount(mask) + (scheduled ? 1 : 0);
+        return new Condition(key, mask, value, scheduled, specificity, orientation);
+    }
+
+    private static final Comparator<Condition> SPECIFICITY_COMPARATOR =
+            new Comparator<Condition>() {
+                @Override
+                public int compare(Condition lhs, Condition rhs) {
+                    if (lhs.specificity != rhs.specificity) {
+                        return (lhs.specificity - rhs.specificity);
+                    }
+
+                    // Break ties consistently between compilations.
+                    return lhs.key.compareTo(rhs.key);
+                }
+            };
+
+    private static class Condition {
+        public final String key;
+        public final int mask;
+        public final int value;
+        public final boolean scheduled;
+        public final int specificity;
+        public final ScreenOrientation orientation;
+
+        public Condition(String key, int mask, int value, boolean scheduled, int specificity,
+                ScreenOrientation orientation) {
+            this.key = key;
+            this.mask = mask;
+            this.value = value;
+            this.scheduled = scheduled;
+            this.specificity = specificity;
+            this.orientation = orientation;
+        }
+    }
+}
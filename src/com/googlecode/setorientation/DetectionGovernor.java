@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.googlecode.eyesfree.compat.CompatUtils;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Sets the detection budget from the device's power state. The budget is
+ * the poll interval, how late a poll may run, and whether to capture only
+ * the focused task or every visible task.
+ * <p>
+ * Charging, battery saver and thermal status are updated from broadcasts
+ * and listeners as they change, never by polling. Thermal status is only
+ * available on API 29 and above, and is read through reflection.
+ * <p>
+ * Wakeups and CPU time of this process are attributed to the power state
+ * they occurred in, so the cost per hour in each state can be dumped.
+ * Must be used on the main thread.
+ */
+public class DetectionGovernor {
+    /** The device is connected to a power source. */
+    public static final int POWER_STATE_CHARGING = 0;
+
+    /** The device is on battery. */
+    public static final int POWER_STATE_BATTERY = 1;
+
+    /** Battery saver is on. */
+    public static final int POWER_STATE_SAVER = 2;
+
+    /** The device is thermally throttled. Takes precedence over the others. */
+    public static final int POWER_STATE_THROTTLED = 3;
+
+    private static final String[] POWER_STATE_NAMES = {
+            "charging", "battery", "battery saver", "thermal throttled" };
+
+    /** Poll interval in milliseconds, indexed by power state. */
+    private static final long[] POLL_INTERVALS = { 200, 250, 1000, 2000 };
+
+    /** How late a poll may run in milliseconds, indexed by power state. */
+    private static final long[] POLL_TOLERANCES = { 25, 50, 250, 500 };
+
+    /** Whether to capture only the focused task, indexed by power state. */
+    private static final boolean[] FOCUSED_ONLY = { false, false, true, true };
+
+    /** {@code PowerManager.THERMAL_STATUS_MODERATE}, from API 29. */
+    private static final int THERMAL_STATUS_MODERATE = 2;
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    private static final Class<?> CLASS_OnThermalStatusChangedListener =
+            CompatUtils.getClass("android.os.PowerManager$OnThermalStatusChangedListener");
+    private static final Method METHOD_getCurrentThermalStatus =
+            CompatUtils.getMethod(PowerManager.class, "getCurrentThermalStatus");
+    private static final Method METHOD_addThermalStatusListener =
+            (CLASS_OnThermalStatusChangedListener == null) ? null : CompatUtils.getMethod(
+                    PowerManager.class, "addThermalStatusListener",
+                    CLASS_OnThermalStatusChangedListener);
+    private static final Method METHOD_removeThermalStatusListener =
+            (CLASS_OnThermalStatusChangedListener == null) ? null : CompatUtils.getMethod(
+                    PowerManager.class, "removeThermalStatusListener",
+                    CLASS_OnThermalStatusChangedListener);
+
+    private final Context mContext;
+    private final CoalescingScheduler mScheduler;
+    private final PowerManager mPowerManager;
+
+    /** Thermal status listener, or {@code null} if unavailable. */
+    private final Object mThermalListener;
+
+    /** Time, wakeups and CPU time spent in each power state. */
+    private final long[] mStateMillis = new long[POWER_STATE_NAMES.length];
+    private final long[] mStateWakeups = new long[POWER_STATE_NAMES.length];
+    private final long[] mStateCpuMillis = new long[POWER_STATE_NAMES.length];
+
+    /** The counters when the current power state was last accounted. */
+    private long mAccountedTime;
+    private long mAccountedWakeups;
+    private long mAccountedCpuMillis;
+
+    private BudgetListener mListener;
+    private int mPowerState = POWER_STATE_BATTERY;
+    private boolean mCharging;
+    private boolean mPowerSave;
+    private int mThermalStatus;
+    private boolean mStarted;
+
+    /**
+     * Constructs a new governor.
+     *
+     * @param context The parent context.
+     * @param scheduler The scheduler whose wakeups are accounted.
+     */
+    public DetectionGovernor(Context context, CoalescingScheduler scheduler) {
+        mContext = context;
+        mScheduler = scheduler;
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+
+        if ((METHOD_addThermalStatusListener != null)
+                && (METHOD_removeThermalStatusListener != null)) {
+            mThermalListener = Proxy.newProxyInstance(
+                    CLASS_OnThermalStatusChangedListener.getClassLoader(),
+                    new Class<?>[] { CLASS_OnThermalStatusChangedListener },
+                    mThermalHandler);
+        } else {
+            mThermalListener = null;
+        }
+
+        mAccountedTime = SystemClock.elapsedRealtime();
+        mAccountedWakeups = scheduler.getWakeupCount();
+        mAccountedCpuMillis = Process.getElapsedCpuTime();
+    }
+
+    /**
+     * Sets a listener to receive callbacks when the budget changes.
+     *
+     * @param listener The listener to set.
+     */
+    public void setListener(BudgetListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return The current power state, e.g. {@link #POWER_STATE_BATTERY}.
+     */
+    public int getPowerState() {
+        return mPowerState;
+    }
+
+    /**
+     * @return The delay between polls in milliseconds.
+     */
+    public long getPollInterval() {
+        return POLL_INTERVALS[mPowerState];
+    }
+
+    /**
+     * @return How late a poll may run in milliseconds.
+     */
+    public long getPollTolerance() {
+        return POLL_TOLERANCES[mPowerState];
+    }
+
+    /**
+     * @return Whether polls should capture only the focused task.
+     */
+    public boolean isFocusedOnly() {
+        return FOCUSED_ONLY[mPowerState];
+    }
+
+    /**
+     * Reads the initial power state and starts listening for changes.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+
+        mStarted = true;
+        mContext.registerReceiver(mReceiver, POWER_FILTER);
+
+        // Battery status is sticky, so this doesn't register a receiver.
+        final Intent battery = mContext.registerReceiver(null, BATTERY_FILTER);
+        mCharging = (battery != null)
+                && (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            mContext.registerReceiver(mReceiver, PowerSaveCompat.FILTER);
+            mPowerSave = PowerSaveCompat.isPowerSaveMode(mPowerManager);
+        }
+
+        if (mThermalListener != null) {
+            CompatUtils.invoke(mPowerManager, null, METHOD_addThermalStatusListener,
+                    mThermalListener);
+            mThermalStatus = (Integer) CompatUtils.invoke(
+                    mPowerManager, 0, METHOD_getCurrentThermalStatus);
+        }
+
+        updatePowerState();
+    }
+
+    /**
+     * Stops listening for changes.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+
+        mStarted = false;
+        mContext.unregisterReceiver(mReceiver);
+
+        if (mThermalListener != null) {
+            CompatUtils.invoke(mPowerManager, null, METHOD_removeThermalStatusListener,
+                    mThermalListener);
+        }
+    }
+
+    private void updatePowerState() {
+        final int powerState;
+        if (mThermalStatus >= THERMAL_STATUS_MODERATE) {
+            powerState = POWER_STATE_THROTTLED;
+        } else if (mPowerSave) {
+            powerState = POWER_STATE_SAVER;
+        } else if (mCharging) {
+            powerState = POWER_STATE_CHARGING;
+        } else {
+            powerState = POWER_STATE_BATTERY;
+        }
+
+        if (powerState == mPowerState) {
+            return;
+        }
+
+        account();
+        mPowerState = powerState;
+
+        if (mListener != null) {
+            mListener.onBudgetChanged(powerState);
+        }
+    }
+
+    /**
+     * Attributes the time, wakeups and CPU time since the previous call to
+     * the current power state.
+     */
+    private void account() {
+        final long now = SystemClock.elapsedRealtime();
+        final long wakeups = mScheduler.getWakeupCount();
+        final long cpuMillis = Process.getElapsedCpuTime();
+
+        mStateMillis[mPowerState] += (now - mAccountedTime);
+        mStateWakeups[mPowerState] += (wakeups - mAccountedWakeups);
+        mStateCpuMillis[mPowerState] += (cpuMillis - mAccountedCpuMillis);
+
+        mAccountedTime = now;
+        mAccountedWakeups = wakeups;
+        mAccountedCpuMillis = cpuMillis;
+    }
+
+    /**
+     * Writes the current budget and the cost per hour in each power state.
+     *
+     * @param writer The writer to dump to.
+     */
+    public void dump(PrintWriter writer) {
+        account();
+
+        writer.println("DetectionGovernor:");
+        writer.println("  power state: " + POWER_STATE_NAMES[mPowerState]);
+        writer.println("  charging: " + mCharging + ", battery saver: " + mPowerSave
+                + ", thermal status: "
+                + ((mThermalListener != null) ? Integer.toString(mThermalStatus) : "unknown"));
+        writer.println("  poll interval: " + getPollInterval() + "ms (+"
+                + getPollTolerance() + "ms)");
+        writer.println("  foreground source: "
+                + (isFocusedOnly() ? "focused task" : "all visible tasks"));
+        writer.println("Energy cost by power state:");
+        for (int i = 0; i < POWER_STATE_NAMES.length; i++) {
+            final long millis = mStateMillis[i];
+            if (millis <= 0) {
+                continue;
+            }
+
+            writer.println("  " + POWER_STATE_NAMES[i] + ": " + (millis / 1000) + "s"
+                    + ", wakeups=" + mStateWakeups[i]
+                    + " (" + (mStateWakeups[i] * HOUR_MILLIS / millis) + "/hour)"
+                    + ", cpu=" + mStateCpuMillis[i] + "ms"
+                    + " (" + (mStateCpuMillis[i] * HOUR_MILLIS / millis) + "ms/hour)");
+        }
+    }
+
+    private static final IntentFilter BATTERY_FILTER =
+            new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+    private static final IntentFilter POWER_FILTER = new IntentFilter();
+
+    static {
+        POWER_FILTER.addAction(Intent.ACTION_POWER_CONNECTED);
+        POWER_FILTER.addAction(Intent.ACTION_POWER_DISCONNECTED);
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+
+            if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+                mCharging = true;
+            } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+                mCharging = false;
+            } else if (PowerSaveCompat.ACTION_POWER_SAVE_MODE_CHANGED.equals(action)) {
+                mPowerSave = PowerSaveCompat.isPowerSaveMode(mPowerManager);
+            } else {
+                return;
+            }
+
+            updatePowerState();
+        }
+    };
+
+    /**
+     * Receives thermal status changes through a proxy, since the listener
+     * interface doesn't exist before API 29. Called on the main thread.
+     */
+    private final InvocationHandler mThermalHandler = new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+
+            if ("onThermalStatusChanged".equals(name)) {
+                mThermalStatus = (Integer) args[0];
+                updatePowerState();
+                return null;
+            } else if ("equals".equals(name)) {
+                return (proxy == args[0]);
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return "DetectionGovernor.ThermalListener";
+            }
+
+            return null;
+        }
+    };
+
+    /**
+     * Battery saver calls, isolated so that older platforms never load them.
+     */
+    @TargetApi(21)
+    private static class PowerSaveCompat {
+        public static final String ACTION_POWER_SAVE_MODE_CHANGED =
+                PowerManager.ACTION_POWER_SAVE_MODE_CHANGED;
+
+        public static final IntentFilter FILTER =
+                new IntentFilter(ACTION_POWER_SAVE_MODE_CHANGED);
+
+        public static boolean isPowerSaveMode(PowerManager powerManager) {
+            return powerManager.isPowerSaveMode();
+        }
+    }
+
+    /**
+     * Listener for changes in the detection budget.
+     */
+    public interface BudgetListener {
+        /**
+         * Called on the main thread when the power state, and with it the
+         * detection budget, changes.
+         *
+         * @param powerState The new power state.
+         */
+        public void onBudgetChanged(int powerState);
+    }
+}
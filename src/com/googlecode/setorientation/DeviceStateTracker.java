@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.hardware.display.DisplayManager;
+import android.hardware.display.DisplayManager.DisplayListener;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+
+/**
+ * Tracks device states that rules may depend on as a bit vector. States are
+ * updated from broadcasts and callbacks as they change, never by polling.
+ * Must be used on the main thread.
+ */
+public class DeviceStateTracker {
+    /** The device is in a dock. */
+    public static final int STATE_DOCKED = 1 << 0;
+
+    /** The device is connected to a power source. */
+    public static final int STATE_CHARGING = 1 << 1;
+
+    /** A hardware keyboard is attached and exposed. */
+    public static final int STATE_KEYBOARD = 1 << 2;
+
+    /** A wired headset is connected. */
+    public static final int STATE_HEADSET = 1 << 3;
+
+    /** An external display is connected. */
+    public static final int STATE_EXTERNAL_DISPLAY = 1 << 4;
+
+    /** The number of state bits. */
+    public static final int STATE_BIT_COUNT = 5;
+
+    /** State names, indexed by bit position. Used in rule conditions. */
+    private static final String[] STATE_NAMES = {
+            "docked", "charging", "keyboard", "headset", "display" };
+
+    private final Context mContext;
+
+    /** Listener for external displays, only available on API 17 and above. */
+    private final Object mDisplayListener;
+
+    private StateListener mListener;
+    private int mState;
+    private boolean mStarted;
+
+    public DeviceStateTracker(Context context) {
+        mContext = context;
+
+        if (Build.VERSION.SDK_INT >= 17) {
+            mDisplayListener = new DisplayListenerCompat(this, context);
+        } else {
+            mDisplayListener = null;
+        }
+    }
+
+    /**
+     * Returns the bit for the specified state name, or {@code 0} if the name
+     * is not recognized.
+     *
+     * @param name A state name, such as {@code docked}.
+     * @return The state bit, or {@code 0}.
+     */
+    public static int getStateBit(String name) {
+        for (int i = 0; i < STATE_NAMES.length; i++) {
+            if (STATE_NAMES[i].equals(name)) {
+                return (1 << i);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Sets a listener to receive callbacks when the state changes.
+     *
+     * @param listener The listener to set.
+     */
+    public void setListener(StateListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return The current state bit vector.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Reads the initial state and starts listening for changes.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+
+        mStarted = true;
+
+        int state = 0;
+
+        final Intent dock = mContext.registerReceiver(mReceiver, DOCK_FILTER);
+        if ((dock != null) && (dock.getIntExtra(Intent.EXTRA_DOCK_STATE,
+                Intent.EXTRA_DOCK_STATE_UNDOCKED) != Intent.EXTRA_DOCK_STATE_UNDOCKED)) {
+            state |= STATE_DOCKED;
+        }
+
+        final Intent headset = mContext.registerReceiver(mReceiver, HEADSET_FILTER);
+        if ((headset != null) && (headset.getIntExtra("state", 0) != 0)) {
+            state |= STATE_HEADSET;
+        }
+
+        mContext.registerReceiver(mReceiver, POWER_FILTER);
+
+        // Battery status is sticky, so this doesn't register a receiver.
+        final Intent battery = mContext.registerReceiver(null, BATTERY_FILTER);
+        if ((battery != null) && (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0)) {
+            state |= STATE_CHARGING;
+        }
+
+        if (isKeyboardAttached(mContext.getResources().getConfiguration())) {
+            state |= STATE_KEYBOARD;
+        }
+
+        if (mDisplayListener != null) {
+            final DisplayListenerCompat displayListener = (DisplayListenerCompat) mDisplayListener;
+            displayListener.register();
+
+            if (displayListener.hasExternalDisplay()) {
+                state |= STATE_EXTERNAL_DISPLAY;
+            }
+        }
+
+        mState = state;
+    }
+
+    /**
+     * Stops listening for changes.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+
+        mStarted = false;
+        mContext.unregisterReceiver(mReceiver);
+
+        if (mDisplayListener != null) {
+            ((DisplayListenerCompat) mDisplayListener).unregister();
+        }
+    }
+
+    /**
+     * Updates the keyboard state. Must be called from the owning component's
+     * {@code onConfigurationChanged}.
+     *
+     * @param config The new configuration.
+     */
+    public void onConfigurationChanged(Configuration config) {
+        setState(STATE_KEYBOARD, isKeyboardAttached(config));
+    }
+
+    private void setState(int bit, boolean enabled) {
+        final int oldState = mState;
+        final int newState = enabled ? (oldState | bit) : (oldState & ~bit);
+        if (oldState == newState) {
+            return;
+        }
+
+        mState = newState;
+
+        if (mListener != null) {
+            mListener.onDeviceStateChanged(oldState, newState);
+        }
+    }
+
+    private static boolean isKeyboardAttached(Configuration config) {
+        return (config.keyboard != Configuration.KEYBOARD_NOKEYS)
+                && (config.hardKeyboardHidden == Configuration.HARDKEYBOARDHIDDEN_NO);
+    }
+
+    private static final IntentFilter DOCK_FILTER = new IntentFilter(Intent.ACTION_DOCK_EVENT);
+    private static final IntentFilter HEADSET_FILTER =
+            new IntentFilter(Intent.ACTION_HEADSET_PLUG);
+    private static final IntentFilter BATTERY_FILTER =
+            new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+    private static final IntentFilter POWER_FILTER = new IntentFilter();
+
+    static {
+        POWER_FILTER.addAction(Intent.ACTION_POWER_CONNECTED);
+        POWER_FILTER.addAction(Intent.ACTION_POWER_DISCONNECTED);
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+
+            if (Intent.ACTION_DOCK_EVENT.equals(action)) {
+                setState(STATE_DOCKED, intent.getIntExtra(Intent.EXTRA_DOCK_STATE,
+                        Intent.EXTRA_DOCK_STATE_UNDOCKED) != Intent.EXTRA_DOCK_STATE_UNDOCKED);
+            } else if (Intent.ACTION_HEADSET_PLUG.equals(action)) {
+                setState(STATE_HEADSET, intent.getIntExtra("state", 0) != 0);
+            } else if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+                setState(STATE_CHARGING, true);
+            } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+                setState(STATE_CHARGING, false);
+            }
+        }
+    };
+
+    /**
+     * Tracks external displays. Only loaded on API 17 and above.
+     */
+    @TargetApi(17)
+    private static class DisplayListenerCompat implements DisplayListener {
+        private final DeviceStateTracker mParent;
+        private final DisplayManager mDisplayManager;
+
+        public DisplayListenerCompat(DeviceStateTracker parent, Context context) {
+            mParent = parent;
+            mDisplayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        }
+
+        public void register() {
+            mDisplayManager.registerDisplayListener(this, new Handler());
+        }
+
+        public void unregister() {
+            mDisplayManager.unregisterDisplayListener(this);
+        }
+
+        public boolean hasExternalDisplay() {
+            return (mDisplayManager.getDisplays(
+                    DisplayManager.DISPLAY_CATEGORY_PRESENTATION).length > 0);
+        }
+
+        @Override
+        public void onDisplayAdded(int displayId) {
+            mParent.setState(STATE_EXTERNAL_DISPLAY, hasExternalDisplay());
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+            mParent.setState(STATE_EXTERNAL_DISPLAY, hasExternalDisplay());
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            // Do nothing.
+        }
+    }
+
+    /**
+     * Listener for changes in device state.
+     */
+    public interface StateListener {
+        /**
+         * Called on the main thread when the device state changes.
+         *
+         * @param oldState The previous state bit vector.
+         * @param newState The new state bit vector.
+         */
+        public void onDeviceStateChanged(int oldState, int newState);
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Looper;
+import android.os.StrictMode;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+
+/**
+ * Diagnostic mode, toggled at runtime with {@link #ACTION_SET_DIAGNOSTICS}.
+ * <p>
+ * While enabled, StrictMode logs disk and network access on the main thread
+ * and leaked resources, allocations are counted per poll tick and per dialog
+ * open, and blocking calls on the main thread are timed. The summary is
+ * printed by the service's and the dialog's {@code dump}. While disabled,
+ * every method returns immediately.
+ * <p>
+ * To toggle from a host:
+ * {@code adb shell am broadcast -a <action> --ez enabled true}
+ */
+public class Diagnostics {
+    /** Broadcast action that enables or disables diagnostic mode. */
+    public static final String ACTION_SET_DIAGNOSTICS =
+            "com.googlecode.eyesfree.setorientation.action.SET_DIAGNOSTICS";
+
+    /** Boolean extra specifying whether diagnostic mode is enabled. */
+    public static final String EXTRA_ENABLED = "enabled";
+
+    /** Allocation scope for a single activity poll. */
+    public static final int SCOPE_POLL_TICK = 0;
+
+    /** Allocation scope for opening the orientation dialog. */
+    public static final int SCOPE_DIALOG_OPEN = 1;
+
+    private static final String[] SCOPE_NAMES = { "poll tick", "dialog open" };
+
+    private static Diagnostics sInstance;
+
+    private final OrientationPrefsManager mPrefsManager;
+
+    /** Allocation counts, indexed by scope. */
+    private final AllocationStats[] mAllocations = new AllocationStats[SCOPE_NAMES.length];
+
+    /** Blocking call latency, keyed by call name. */
+    private final LinkedHashMap<String, LatencyStats> mBlockingCalls =
+            new LinkedHashMap<String, LatencyStats>();
+
+    /** Whether diagnostic mode is enabled, read from any thread. */
+    private volatile boolean mEnabled;
+
+    /** When diagnostic mode was last enabled. */
+    private long mEnabledTime;
+
+    /** The policies that were in place before StrictMode was enabled. */
+    private Object mSavedThreadPolicy;
+    private Object mSavedVmPolicy;
+
+    /**
+     * Returns the shared diagnostics, creating it if necessary. Must be
+     * called on the main thread, since StrictMode thread policies apply to
+     * the calling thread.
+     *
+     * @param context The parent context.
+     * @return The shared diagnostics.
+     */
+    public static synchronized Diagnostics getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new Diagnostics(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private Diagnostics(Context context) {
+        mPrefsManager = new OrientationPrefsManager(context);
+
+        for (int i = 0; i < mAllocations.length; i++) {
+            mAllocations[i] = new AllocationStats();
+        }
+
+        if (mPrefsManager.getDiagnosticsEnabled()) {
+            start();
+        }
+    }
+
+    /**
+     * @return Whether diagnostic mode is enabled.
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Enables or disables diagnostic mode and persists the state so that it
+     * survives process restarts. Must be called on the main thread.
+     *
+     * @param enabled Whether diagnostic mode should be enabled.
+     */
+    public void setEnabled(boolean enabled) {
+        setEnabled(enabled, true);
+    }
+
+    /**
+     * Enables or disables diagnostic mode. Must be called on the main
+     * thread.
+     *
+     * @param enabled Whether diagnostic mode should be enabled.
+     * @param persist Whether to persist the state. Only the main process
+     *            should persist, since it owns the settings file.
+     */
+    public void setEnabled(boolean enabled, boolean persist) {
+        if (enabled == mEnabled) {
+            return;
+        }
+
+        if (persist) {
+            mPrefsManager.setDiagnosticsEnabled(enabled);
+        }
+
+        if (enabled) {
+            start();
+        } else {
+            stop();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void start() {
+        for (AllocationStats stats : mAllocations) {
+            stats.reset();
+        }
+
+        synchronized (mBlockingCalls) {
+            mBlockingCalls.clear();
+        }
+
+        if (Build.VERSION.SDK_INT >= 9) {
+            mSavedThreadPolicy = StrictModeCompat.getThreadPolicy();
+            mSavedVmPolicy = StrictModeCompat.getVmPolicy();
+            StrictModeCompat.enable();
+        }
+
+        Debug.startAllocCounting();
+        mEnabledTime = System.currentTimeMillis();
+        mEnabled = true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void stop() {
+        mEnabled = false;
+        Debug.stopAllocCounting();
+
+        if (Build.VERSION.SDK_INT >= 9) {
+            StrictModeCompat.restore(mSavedThreadPolicy, mSavedVmPolicy);
+            mSavedThreadPolicy = null;
+            mSavedVmPolicy = null;
+        }
+    }
+
+    /**
+     * Marks the start of an allocation scope on the calling thread.
+     *
+     * @return A token to pass to {@link #endAllocations}.
+     */
+    @SuppressWarnings("deprecation")
+    public int startAllocations() {
+        return mEnabled ? Debug.getThreadAllocCount() : 0;
+    }
+
+    /**
+     * Records the allocations made on the calling thread since the matching
+     * call to {@link #startAllocations}.
+     *
+     * @param scope The scope, e.g. {@link #SCOPE_POLL_TICK}.
+     * @param token The token returned by {@link #startAllocations}.
+     */
+    @SuppressWarnings("deprecation")
+    public void endAllocations(int scope, int token) {
+        if (!mEnabled) {
+            return;
+        }
+
+        mAllocations[scope].record(Debug.getThreadAllocCount() - token);
+    }
+
+    /**
+     * Marks the start of a potentially blocking call.
+     *
+     * @return A token to pass to {@link #endBlockingCall}.
+     */
+    public long startBlockingCall() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the duration of a potentially blocking call if it ran on the
+     * main thread.
+     *
+     * @param name The name of the call.
+     * @param token The token returned by {@link #startBlockingCall}.
+     */
+    public void endBlockingCall(String name, long token) {
+        if (!mEnabled || (Looper.myLooper() != Looper.getMainLooper())) {
+            return;
+        }
+
+        final long elapsed = System.nanoTime() - token;
+
+        synchronized (mBlockingCalls) {
+            LatencyStats stats = mBlockingCalls.get(name);
+            if (stats == null) {
+                stats = new LatencyStats(name);
+                mBlockingCalls.put(name, stats);
+            }
+
+            stats.record(elapsed);
+        }
+    }
+
+    /**
+     * Writes a summary of the collected diagnostics.
+     *
+     * @param writer The writer to dump to.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Diagnostics:");
+        writer.println("  enabled: " + mEnabled);
+        if (!mEnabled) {
+            return;
+        }
+
+        writer.println("  enabled for: "
+                + ((System.currentTimeMillis() - mEnabledTime) / 1000) + "s");
+        writer.println("  strict mode: " + (Build.VERSION.SDK_INT >= 9));
+        writer.println("Allocations:");
+        for (int i = 0; i < mAllocations.length; i++) {
+            mAllocations[i].dump(writer, SCOPE_NAMES[i]);
+        }
+        writer.println("Main thread blocking calls:");
+        synchronized (mBlockingCalls) {
+            for (LatencyStats stats : mBlockingCalls.values()) {
+                stats.dump(writer);
+            }
+        }
+    }
+
+    /**
+     * Accumulates the count, mean and maximum of allocations per scope.
+     */
+    private static class AllocationStats {
+        private long mCount;
+        private long mTotal;
+        private long mMax;
+
+        public synchronized void record(int allocations) {
+            mCount++;
+            mTotal += allocations;
+            mMax = Math.max(mMax, allocations);
+        }
+
+        public synchronized void reset() {
+            mCount = 0;
+            mTotal = 0;
+            mMax = 0;
+        }
+
+        public synchronized void dump(PrintWriter writer, String name) {
+            writer.println("  " + name + ": count=" + mCount
+                    + " mean=" + ((mCount > 0) ? (mTotal / mCount) : 0)
+                    + " max=" + mMax);
+        }
+    }
+
+    /**
+     * StrictMode calls, isolated so that older platforms never load them.
+     */
+    @TargetApi(9)
+    private static class StrictModeCompat {
+        public static Object getThreadPolicy() {
+            return StrictMode.getThreadPolicy();
+        }
+
+        public static Object getVmPolicy() {
+            return StrictMode.getVmPolicy();
+        }
+
+        public static void enable() {
+            StrictMode.setThreadPolicy(
+                    new StrictMode.ThreadPolicy.Builder().detectAll().penaltyLog().build());
+            StrictMode.setVmPolicy(
+                    new StrictMode.VmPolicy.Builder().detectAll().penaltyLog().build());
+        }
+
+        public static void restore(Object threadPolicy, Object vmPolicy) {
+            if (threadPolicy != null) {
+                StrictMode.setThreadPolicy((StrictMode.ThreadPolicy) threadPolicy);
+            }
+
+            if (vmPolicy != null) {
+                StrictMode.setVmPolicy((StrictMode.VmPolicy) vmPolicy);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Toggles {@link Diagnostics} when {@link Diagnostics#ACTION_SET_DIAGNOSTICS}
+ * is received, and forwards the change to the service process if the service
+ * is enabled. Senders must hold the {@code DUMP} permission, which the shell
+ * has.
+ */
+public class DiagnosticsReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Diagnostics.ACTION_SET_DIAGNOSTICS.equals(intent.getAction())) {
+            final boolean enabled = intent.getBooleanExtra(Diagnostics.EXTRA_ENABLED, false);
+            Diagnostics.getInstance(context).setEnabled(enabled);
+
+            if (new OrientationPrefsManager(context).getServiceEnabled()) {
+                final Intent service = new Intent(Diagnostics.ACTION_SET_DIAGNOSTICS);
+                service.setClass(context, OrientationService.class);
+                service.putExtra(Diagnostics.EXTRA_ENABLED, enabled);
+                context.startService(service);
+            }
+        }
+    }
+}
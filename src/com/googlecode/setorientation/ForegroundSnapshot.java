@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningTaskInfo;
+import android.content.ComponentName;
+
+import com.googlecode.eyesfree.compat.CompatUtils;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the top activity of each visible task, captured
+ * with a single call to the activity manager.
+ * <p>
+ * The most recent task holds the focused window. On devices that show
+ * several windows at once, such as split screen or freeform windows, the
+ * top task of each other window stack is also visible. Stacks are read
+ * from the hidden {@code RunningTaskInfo.stackId} field where available;
+ * elsewhere only the focused task is reported as visible.
+ */
+public class ForegroundSnapshot {
+    /** An empty snapshot. */
+    public static final ForegroundSnapshot EMPTY = new ForegroundSnapshot(new ComponentName[0]);
+
+    /** The number of tasks requested per capture. */
+    private static final int MAX_TASKS = 4;
+
+    /**
+     * The number of tasks requested per focused-only capture, leaving room
+     * for one ignored task.
+     */
+    private static final int MAX_FOCUSED_TASKS = 2;
+
+    /** The stack holding the home screen, which is behind other windows. */
+    private static final int HOME_STACK_ID = 0;
+
+    /** Window stack of a task, available on API 24 to 28. */
+    private static final Field FIELD_stackId =
+            CompatUtils.getField(RunningTaskInfo.class, "stackId");
+
+    /** The top activity of each visible task, focused task first. */
+    private final ComponentName[] mVisible;
+
+    private ForegroundSnapshot(ComponentName[] visible) {
+        mVisible = visible;
+    }
+
+    /**
+     * Captures the visible tasks with a single call to the activity manager.
+     *
+     * @param am An instance of the activity manager.
+     * @param ignoredPackage A package whose tasks are skipped, such as the
+     *            caller's own, or {@code null} to skip none.
+     * @return A snapshot of the visible tasks.
+     */
+    public static ForegroundSnapshot capture(ActivityManager am, String ignoredPackage) {
+        return capture(am, ignoredPackage, false);
+    }
+
+    /**
+     * Captures the visible tasks with a single call to the activity manager.
+     * A focused-only capture requests fewer tasks and skips stack lookups,
+     * so it is cheaper but never reports more than one visible task.
+     *
+     * @param am An instance of the activity manager.
+     * @param ignoredPackage A package whose tasks are skipped, such as the
+     *            caller's own, or {@code null} to skip none.
+     * @param focusedOnly Whether to capture only the focused task.
+     * @return A snapshot of the visible tasks.
+     */
+    public static ForegroundSnapshot capture(
+            ActivityManager am, String ignoredPackage, boolean focusedOnly) {
+        final List<RunningTaskInfo> tasks =
+                am.getRunningTasks(focusedOnly ? MAX_FOCUSED_TASKS : MAX_TASKS);
+        final ComponentName[] visible = new ComponentName[tasks.size()];
+        final int[] stacks = new int[tasks.size()];
+        int count = 0;
+
+        for (RunningTaskInfo task : tasks) {
+            final ComponentName top = task.topActivity;
+            if ((top == null) || top.getPackageName().equals(ignoredPackage)) {
+                continue;
+            }
+
+            if (focusedOnly) {
+                return new ForegroundSnapshot(new ComponentName[] { top });
+            }
+
+            final int stackId = (Integer) CompatUtils.getFieldValue(task, -1, FIELD_stackId);
+            if ((count > 0) && !isAnotherVisibleStack(stackId, stacks, count)) {
+                // Only the top task of each stack is visible.
+                continue;
+            }
+
+            visible[count] = top;
+            stacks[count] = stackId;
+            count++;
+        }
+
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        final ComponentName[] trimmed = new ComponentName[count];
+        System.arraycopy(visible, 0, trimmed, 0, count);
+        return new ForegroundSnapshot(trimmed);
+    }
+
+    private static boolean isAnotherVisibleStack(int stackId, int[] stacks, int count) {
+        if ((stackId < 0) || (stackId == HOME_STACK_ID)) {
+            return false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (stacks[i] == stackId) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The top activity of the focused task, or {@code null} if none.
+     */
+    public ComponentName getFocused() {
+        return (mVisible.length > 0) ? mVisible[0] : null;
+    }
+
+    /**
+     * @return The number of visible tasks, including the focused one.
+     */
+    public int getVisibleCount() {
+        return mVisible.length;
+    }
+
+    /**
+     * @param index The index of the visible task. The focused task is index
+     *            {@code 0}.
+     * @return The top activity of the visible task at the specified index.
+     */
+    public ComponentName getVisible(int index) {
+        return mVisible[index];
+    }
+
+    /**
+     * Returns whether another snapshot shows the same activities in the same
+     * order. Safe to call with {@code null}.
+     *
+     * @param other The snapshot to compare with.
+     * @return Whether the snapshots show the same activities.
+     */
+    public boolean hasSameVisible(ForegroundSnapshot other) {
+        if ((other == null) || (other.mVisible.length != mVisible.length)) {
+            return false;
+        }
+
+        for (int i = 0; i < mVisible.length; i++) {
+            if (!mVisible[i].equals(other.mVisible[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < mVisible.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+
+            builder.append(mVisible[i].flattenToShortString());
+        }
+
+        return builder.append(']').toString();
+    }
+}
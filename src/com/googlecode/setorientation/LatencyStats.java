@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import java.io.PrintWriter;
+
+/**
+ * Accumulates the count, mean and maximum of a latency without allocating.
+ */
+public class LatencyStats {
+    private final String mName;
+
+    private long mCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    /**
+     * @param name The name printed by {@link #dump(PrintWriter)}.
+     */
+    public LatencyStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Records a single sample.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        mCount++;
+        mTotalNanos += nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+    }
+
+    /**
+     * @return The number of recorded samples.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The mean latency in nanoseconds, or {@code 0} if empty.
+     */
+    public long getMeanNanos() {
+        return (mCount > 0) ? (mTotalNanos / mCount) : 0;
+    }
+
+    /**
+     * Writes a single summary line to the specified writer.
+     *
+     * @param writer The writer to dump to.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("  " + mName + ": count=" + mCount
+                + " mean=" + (getMeanNanos() / 1000) + "us"
+                + " max=" + (mMaxNanos / 1000) + "us");
+    }
+}
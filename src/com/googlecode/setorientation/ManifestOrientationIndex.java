@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Index of the {@code android:screenOrientation} value declared in each
+ * activity's manifest. The index is built on a background thread, updated
+ * incrementally when packages are added, replaced or removed, and persisted
+ * so that it is available immediately after a restart.
+ * <p>
+ * Lookups never call the package manager. If a package has not been indexed
+ * yet, the lookup reports no declared orientation and the package is indexed
+ * in the background, after which the {@link IndexListener} is notified.
+ */
+public class ManifestOrientationIndex {
+    /** The file, relative to the files directory, used to persist the index. */
+    private static final String INDEX_FILE = "manifest_orientation_index";
+
+    /** Version of the persisted format. Bump when the format changes. */
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    /**
+     * Version recorded for a package that could not be found, so that
+     * lookups don't queue it again until it is installed.
+     */
+    private static final int VERSION_NOT_FOUND = Integer.MIN_VALUE;
+
+    private static ManifestOrientationIndex sInstance;
+
+    private final PackageManager mPackageManager;
+    private final File mIndexFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ManifestOrientationIndex");
+                }
+            });
+
+    /** Packages queued for indexing, accessed only on the main thread. */
+    private final HashSet<String> mPendingPackages = new HashSet<String>();
+
+    /** The current immutable snapshot, replaced on every update. */
+    private volatile Snapshot mSnapshot = new Snapshot();
+
+    /** Whether the persisted index has been loaded or a build started. */
+    private boolean mStarted;
+
+    private IndexListener mListener;
+
+    /**
+     * Returns the shared index, creating it if necessary.
+     *
+     * @param context The parent context.
+     * @return The shared index.
+     */
+    public static synchronized ManifestOrientationIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ManifestOrientationIndex(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private ManifestOrientationIndex(Context context) {
+        mPackageManager = context.getPackageManager();
+        mIndexFile = new File(context.getFilesDir(), INDEX_FILE);
+    }
+
+    /**
+     * Sets a listener to receive callbacks when indexed packages change.
+     *
+     * @param listener The listener to set.
+     */
+    public void setListener(IndexListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Loads the persisted index and then brings it up to date with the
+     * installed packages, both on a background thread. No-op if already
+     * started.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+
+        mStarted = true;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                final Snapshot loaded = readFromDisk();
+                if (loaded != null) {
+                    mSnapshot = loaded;
+                }
+
+                refreshAll();
+            }
+        });
+    }
+
+    /**
+     * Returns the orientation declared in the manifest for the specified
+     * activity. Never calls the package manager. Must be called on the main
+     * thread.
+     *
+     * @param component The activity's component.
+     * @return The declared {@code ActivityInfo.SCREEN_ORIENTATION_*} value,
+     *         or {@code SCREEN_ORIENTATION_UNSPECIFIED} if none is declared
+     *         or the package has not been indexed yet.
+     */
+    public int getDeclaredOrientation(ComponentName component) {
+        final Snapshot snapshot = mSnapshot;
+        final Integer declared = snapshot.declared.get(component.flattenToShortString());
+        if (declared != null) {
+            return declared;
+        }
+
+        final String packageName = component.getPackageName();
+        if (!snapshot.versions.containsKey(packageName) && mPendingPackages.add(packageName)) {
+            updatePackage(packageName);
+        }
+
+        return ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED;
+    }
+
+    /**
+     * Returns whether the specified activity declares an orientation of its
+     * own, as opposed to deferring to the user or system. Never calls the
+     * package manager. Must be called on the main thread.
+     *
+     * @param component The activity's component.
+     * @return Whether the activity declares its own orientation.
+     */
+    public boolean declaresOrientation(ComponentName component) {
+        return isDeclaredValue(getDeclaredOrientation(component));
+    }
+
+    /**
+     * Re-indexes the specified package on a background thread.
+     *
+     * @param packageName The package that was added, replaced or changed.
+     */
+    public void updatePackage(final String packageName) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Snapshot updated = new Snapshot(mSnapshot);
+                updated.remove(packageName);
+                indexPackage(updated, packageName);
+                publish(updated, packageName);
+            }
+        });
+    }
+
+    /**
+     * Removes the specified package from the index on a background thread.
+     *
+     * @param packageName The package that was removed.
+     */
+    public void removePackage(final String packageName) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Snapshot updated = new Snapshot(mSnapshot);
+                if (updated.remove(packageName)) {
+                    publish(updated, packageName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Brings the whole index up to date. Only packages whose version code
+     * changed are re-read. Must be called on the executor thread.
+     */
+    private void refreshAll() {
+        final List<PackageInfo> installed = mPackageManager.getInstalledPackages(0);
+        final Snapshot updated = new Snapshot(mSnapshot);
+        final HashSet<String> installedNames = new HashSet<String>();
+        boolean changed = false;
+
+        for (PackageInfo packageInfo : installed) {
+            final String packageName = packageInfo.packageName;
+            installedNames.add(packageName);
+
+            final Integer indexedVersion = updated.versions.get(packageName);
+            if ((indexedVersion != null) && (indexedVersion == packageInfo.versionCode)) {
+                continue;
+            }
+
+            updated.remove(packageName);
+            indexPackage(updated, packageName);
+            changed = true;
+        }
+
+        for (String packageName : new HashSet<String>(updated.versions.keySet())) {
+            if (!installedNames.contains(packageName)) {
+                updated.remove(packageName);
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            publish(updated, null);
+        }
+    }
+
+    /**
+     * Reads a single package's activities into the snapshot. Must be called
+     * on the executor thread.
+     */
+    private void indexPackage(Snapshot snapshot, String packageName) {
+        final PackageInfo packageInfo;
+
+        try {
+            // Query one package at a time to stay within binder limits.
+            packageInfo = mPackageManager.getPackageInfo(
+                    packageName, PackageManager.GET_ACTIVITIES);
+        } catch (NameNotFoundException e) {
+            snapshot.versions.put(packageName, VERSION_NOT_FOUND);
+            return;
+        }
+
+        snapshot.versions.put(packageName, packageInfo.versionCode);
+
+        if (packageInfo.activities == null) {
+            return;
+        }
+
+        for (ActivityInfo activity : packageInfo.activities) {
+            if (activity.screenOrientation == ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED) {
+                continue;
+            }
+
+            final ComponentName component = new ComponentName(packageName, activity.name);
+            snapshot.putDeclared(component.flattenToShortString(), activity.screenOrientation);
+        }
+    }
+
+    /**
+     * Publishes an updated snapshot, persists it and notifies the listener on
+     * the main thread. Must be called on the executor thread.
+     */
+    private void publish(Snapshot snapshot, final String packageName) {
+        mSnapshot = snapshot;
+        writeToDisk(snapshot);
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (packageName != null) {
+                    mPendingPackages.remove(packageName);
+                }
+
+                if (mListener != null) {
+                    mListener.onIndexChanged(packageName);
+                }
+            }
+        });
+    }
+
+    private Snapshot readFromDisk() {
+        if (!mIndexFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+
+            if (in.readInt() != FILE_FORMAT_VERSION) {
+                return null;
+            }
+
+            final Snapshot snapshot = new Snapshot();
+
+            final int packageCount = in.readInt();
+            for (int i = 0; i < packageCount; i++) {
+                final String packageName = in.readUTF();
+                snapshot.versions.put(packageName, in.readInt());
+            }
+
+            final int declaredCount = in.readInt();
+            for (int i = 0; i < declaredCount; i++) {
+                final String component = in.readUTF();
+                snapshot.putDeclared(component, in.readInt());
+            }
+
+            return snapshot;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeToDisk(Snapshot snapshot) {
+        final File tempFile = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_FORMAT_VERSION);
+
+            out.writeInt(snapshot.versions.size());
+            for (Entry<String, Integer> entry : snapshot.versions.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+
+            out.writeInt(snapshot.declared.size());
+            for (Entry<String, Integer> entry : snapshot.declared.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+
+            out.close();
+            out = null;
+
+            // Replace the index atomically so a crash never leaves it torn.
+            if (!tempFile.renameTo(mIndexFile)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Returns whether a declared value expresses a preference of the
+     * activity's own, as opposed to deferring to the user or system.
+     */
+    private static boolean isDeclaredValue(int screenOrientation) {
+        switch (screenOrientation) {
+            case ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED:
+            case ActivityInfo.SCREEN_ORIENTATION_USER:
+            case ActivityInfo.SCREEN_ORIENTATION_BEHIND:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Do nothing.
+        }
+    }
+
+    /**
+     * An immutable view of the index once published.
+     */
+    private static class Snapshot {
+        /** Map of indexed package names to version codes. */
+        final HashMap<String, Integer> versions;
+
+        /** Map of flattened components to declared orientations. */
+        final HashMap<String, Integer> declared;
+
+        /**
+         * Map of package names to the keys they hold in {@link #declared}.
+         * Lists are never modified once published, so copies can share them.
+         */
+        final HashMap<String, ArrayList<String>> declaredByPackage;
+
+        public Snapshot() {
+            versions = new HashMap<String, Integer>();
+            declared = new HashMap<String, Integer>();
+            declaredByPackage = new HashMap<String, ArrayList<String>>();
+        }
+
+        public Snapshot(Snapshot other) {
+            versions = new HashMap<String, Integer>(other.versions);
+            declared = new HashMap<String, Integer>(other.declared);
+            declaredByPackage = new HashMap<String, ArrayList<String>>(other.declaredByPackage);
+        }
+
+        /**
+         * Adds a declared orientation. Must only be called while building a
+         * snapshot, for a package that was just removed from it or was never
+         * in it, so that the package's key list is owned by this snapshot.
+         */
+        public void putDeclared(String component, int screenOrientation) {
+            final int separator = component.indexOf('/');
+            final String packageName =
+                    (separator < 0) ? component : component.substring(0, separator);
+
+            ArrayList<String> keys = declaredByPackage.get(packageName);
+            if (keys == null) {
+                keys = new ArrayList<String>();
+                declaredByPackage.put(packageName, keys);
+            }
+
+            keys.add(component);
+            declared.put(component, screenOrientation);
+        }
+
+        /**
+         * Removes a package and its activities.
+         *
+         * @return Whether the package was indexed.
+         */
+        public boolean remove(String packageName) {
+            final boolean removed = (versions.remove(packageName) != null);
+            final ArrayList<String> keys = declaredByPackage.remove(packageName);
+
+            if (keys != null) {
+                for (String component : keys) {
+                    declared.remove(component);
+                }
+            }
+
+            return removed;
+        }
+    }
+
+    /**
+     * Listener for changes in the index.
+     */
+    public interface IndexListener {
+        /**
+         * Called on the main thread when the index changes.
+         *
+         * @param packageName The package that changed, or {@code null} if
+         *            several packages may have changed.
+         */
+        public void onIndexChanged(String packageName);
+    }
+}
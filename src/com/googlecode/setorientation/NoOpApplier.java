@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+/**
+ * Applies {@link ScreenOrientation#UNSPECIFIED} by doing nothing, which leaves
+ * the orientation to the foreground activity and the system.
+ */
+public class NoOpApplier implements OrientationApplier {
+    @Override
+    public String getName() {
+        return "none";
+    }
+
+    @Override
+    public int getCost() {
+        return 0;
+    }
+
+    @Override
+    public boolean canApply(ScreenOrientation orientation, boolean foregroundDeclaresOrientation) {
+        return (orientation == ScreenOrientation.UNSPECIFIED);
+    }
+
+    @Override
+    public void apply(ScreenOrientation orientation) {
+        // Do nothing.
+    }
+
+    @Override
+    public void release() {
+        // Do nothing.
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+/**
+ * A mechanism for applying a screen orientation to the device.
+ * {@link OrientationService} uses the cheapest applier that can express the
+ * requested orientation and releases the previous applier when it switches.
+ */
+public interface OrientationApplier {
+    /**
+     * @return A short name for this applier, used for diagnostics.
+     */
+    public String getName();
+
+    /**
+     * @return The relative cost of applying an orientation with this applier.
+     *         Lower is cheaper.
+     */
+    public int getCost();
+
+    /**
+     * Returns whether this applier can express the specified orientation.
+     *
+     * @param orientation The orientation to apply. Never virtual.
+     * @param foregroundDeclaresOrientation Whether the foreground activity
+     *            declares an orientation of its own that a weaker applier
+     *            would not override.
+     * @return Whether this applier can apply the orientation.
+     */
+    public boolean canApply(ScreenOrientation orientation, boolean foregroundDeclaresOrientation);
+
+    /**
+     * Applies the specified orientation.
+     *
+     * @param orientation The orientation to apply. Never virtual.
+     */
+    public void apply(ScreenOrientation orientation);
+
+    /**
+     * Releases any state held by this applier and restores whatever it
+     * changed. No-op if nothing has been applied.
+     */
+    public void release();
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+/**
+ * Classifies accelerometer samples into a display rotation with hysteresis.
+ * <p>
+ * Samples are low-pass filtered to estimate gravity. Samples taken while the
+ * device is shaking or lying close to flat are ignored, so the rotation does
+ * not flip while the user is lying down. A new rotation must be more than
+ * {@code 45 + hysteresis} degrees from the current one and must hold for the
+ * settle time before it is reported.
+ * <p>
+ * This class uses only primitive state and never allocates, so it is safe to
+ * call from sensor callbacks. Not thread-safe.
+ */
+public class OrientationClassifier {
+    /** Returned when no rotation has been determined yet. */
+    public static final int ROTATION_UNKNOWN = -1;
+
+    private static final float STANDARD_GRAVITY = 9.80665f;
+    private static final float RADIANS_TO_DEGREES = (float) (180 / Math.PI);
+    private static final float NANOS_PER_MILLI = 1000000f;
+
+    /** Degrees past the quadrant boundary required to change rotation. */
+    private float mHysteresisDegrees = 15;
+
+    /** Maximum tilt away from upright, in degrees, that still counts. */
+    private float mMaxTiltDegrees = 65;
+
+    /** Maximum deviation from standard gravity, as a fraction. */
+    private float mMaxAccelerationDeviation = 0.3f;
+
+    /** How long a candidate rotation must hold before it is reported. */
+    private long mSettleNanos = 300 * 1000000L;
+
+    /** Time constant of the gravity low-pass filter. */
+    private float mFilterTimeConstantMillis = 200;
+
+    /** Whether the upside-down rotation may be reported. */
+    private boolean mAllowUpsideDown = false;
+
+    private float mFilteredX;
+    private float mFilteredY;
+    private float mFilteredZ;
+    private long mLastTimestamp = -1;
+
+    private int mRotation = ROTATION_UNKNOWN;
+    private int mCandidate = ROTATION_UNKNOWN;
+    private long mCandidateTimestamp;
+
+    /**
+     * Sets how many degrees past the boundary between two rotations the
+     * device must turn before the rotation changes.
+     *
+     * @param degrees The hysteresis in degrees, between 0 and 45.
+     */
+    public void setHysteresisDegrees(float degrees) {
+        mHysteresisDegrees = Math.max(0, Math.min(45, degrees));
+    }
+
+    /**
+     * Sets the maximum tilt from vertical at which samples are classified.
+     * Samples with more tilt, such as when lying flat, are ignored.
+     *
+     * @param degrees The maximum tilt in degrees.
+     */
+    public void setMaxTiltDegrees(float degrees) {
+        mMaxTiltDegrees = degrees;
+    }
+
+    /**
+     * Sets how long a new rotation must hold before it is reported.
+     *
+     * @param millis The settle time in milliseconds.
+     */
+    public void setSettleMillis(long millis) {
+        mSettleNanos = millis * 1000000L;
+    }
+
+    /**
+     * Sets the time constant of the gravity low-pass filter.
+     *
+     * @param millis The time constant in milliseconds.
+     */
+    public void setFilterTimeConstantMillis(float millis) {
+        mFilterTimeConstantMillis = millis;
+    }
+
+    /**
+     * Sets whether the upside-down rotation may be reported.
+     *
+     * @param allow Whether to allow the upside-down rotation.
+     */
+    public void setAllowUpsideDown(boolean allow) {
+        mAllowUpsideDown = allow;
+    }
+
+    /**
+     * Clears the filter and the current rotation.
+     */
+    public void reset() {
+        mLastTimestamp = -1;
+        mRotation = ROTATION_UNKNOWN;
+        mCandidate = ROTATION_UNKNOWN;
+    }
+
+    /**
+     * @return The current rotation as a {@code Surface.ROTATION_*} constant
+     *         relative to the device's natural orientation, or
+     *         {@link #ROTATION_UNKNOWN}.
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * Adds an accelerometer sample and returns the resulting rotation.
+     *
+     * @param x Acceleration along the device's x axis in m/s^2.
+     * @param y Acceleration along the device's y axis in m/s^2.
+     * @param z Acceleration along the device's z axis in m/s^2.
+     * @param timestampNanos The sample timestamp in nanoseconds.
+     * @return The current rotation, see {@link #getRotation()}.
+     */
+    public int addSample(float x, float y, float z, long timestampNanos) {
+        if (mLastTimestamp < 0) {
+            mFilteredX = x;
+            mFilteredY = y;
+            mFilteredZ = z;
+        } else {
+            // Batched samples may arrive late, but their timestamps still
+            // reflect when they were taken.
+            final float dtMillis = Math.max(0, timestampNanos - mLastTimestamp) / NANOS_PER_MILLI;
+            final float alpha = dtMillis / (mFilterTimeConstantMillis + dtMillis);
+            mFilteredX += alpha * (x - mFilteredX);
+            mFilteredY += alpha * (y - mFilteredY);
+            mFilteredZ += alpha * (z - mFilteredZ);
+        }
+
+        mLastTimestamp = timestampNanos;
+
+        final float magnitude = (float) Math.sqrt((mFilteredX * mFilteredX)
+                + (mFilteredY * mFilteredY) + (mFilteredZ * mFilteredZ));
+
+        // Ignore samples while the device is accelerating or in free fall.
+        final float deviation = Math.abs(magnitude - STANDARD_GRAVITY) / STANDARD_GRAVITY;
+        if (deviation > mMaxAccelerationDeviation) {
+            mCandidate = ROTATION_UNKNOWN;
+            return mRotation;
+        }
+
+        // Ignore samples while the device is close to flat.
+        final float tilt = (float) Math.asin(mFilteredZ / magnitude) * RADIANS_TO_DEGREES;
+        if (Math.abs(tilt) > mMaxTiltDegrees) {
+            mCandidate = ROTATION_UNKNOWN;
+            return mRotation;
+        }
+
+        // Zero when upright, using the same convention as the platform's
+        // window orientation listener so quadrants match display rotations.
+        float angle = (float) Math.atan2(-mFilteredX, mFilteredY) * RADIANS_TO_DEGREES;
+        if (angle < 0) {
+            angle += 360;
+        }
+
+        final int nearest = ((int) ((angle + 45) / 90)) % 4;
+        if ((nearest == mRotation) || (!mAllowUpsideDown && (nearest == 2))) {
+            mCandidate = ROTATION_UNKNOWN;
+            return mRotation;
+        }
+
+        if ((mRotation != ROTATION_UNKNOWN) && !isPastHysteresis(angle, mRotation)) {
+            mCandidate = ROTATION_UNKNOWN;
+            return mRotation;
+        }
+
+        if (nearest != mCandidate) {
+            mCandidate = nearest;
+            mCandidateTimestamp = timestampNanos;
+        }
+
+        if ((mRotation == ROTATION_UNKNOWN)
+                || ((timestampNanos - mCandidateTimestamp) >= mSettleNanos)) {
+            mRotation = nearest;
+            mCandidate = ROTATION_UNKNOWN;
+        }
+
+        return mRotation;
+    }
+
+    /**
+     * Returns whether an angle is far enough from a rotation's center to
+     * leave it.
+     */
+    private boolean isPastHysteresis(float angle, int rotation) {
+        float distance = Math.abs(angle - (rotation * 90));
+        if (distance > 180) {
+            distance = 360 - distance;
+        }
+
+        return (distance > (45 + mHysteresisDegrees));
+    }
+}
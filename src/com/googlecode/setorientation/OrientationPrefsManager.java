@@ -20,16 +20,24 @@ import android.content.Context;
 import android.content.SharedPreferences;
 
 public class OrientationPrefsManager {
-    /** The preferences file in which to store the custom rules. */
-    private static final String PREFS_FILE = "com.googlecode.eyesfree.setorientation_orientprefs";
+    /** The preferences file in which to store settings. */
+    static final String PREFS_FILE = "com.googlecode.eyesfree.setorientation_orientprefs";
     private static final String PREF_SERVICE_ENABLED = "service_enabled";
     private static final String PREF_DEFAULT_RULE = "orientation";
+    private static final String PREF_RECLAIMED_RULES = "reclaimed_rules";
+    private static final String PREF_RECLAIMED_BYTES = "reclaimed_bytes";
+    private static final String PREF_LAST_COMPACTION = "last_compaction";
+    private static final String PREF_DIAGNOSTICS_ENABLED = "diagnostics_enabled";
 
     /** Shared preferences, used to persist rules. */
     private final SharedPreferences mPrefs;
 
+    /** The parent package, used to request backups when settings change. */
+    private final String mPackageName;
+
     public OrientationPrefsManager(Context context) {
         mPrefs = context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+        mPackageName = context.getPackageName();
     }
 
     /**
@@ -41,6 +49,8 @@ public class OrientationPrefsManager {
         final SharedPreferences.Editor mPrefsEditor = mPrefs.edit();
         mPrefsEditor.putBoolean(PREF_SERVICE_ENABLED, enabled);
         mPrefsEditor.commit();
+
+        CustomRuleManager.requestBackup(mPackageName);
     }
 
     /**
@@ -53,24 +63,131 @@ public class OrientationPrefsManager {
     }
 
     /**
-     * Sets the default orientation rule and commits to preferences.
+     * Sets whether {@link Diagnostics} mode is enabled and commits to
+     * preferences.
+     *
+     * @param enabled Whether diagnostic mode is enabled.
+     */
+    public void setDiagnosticsEnabled(boolean enabled) {
+        final SharedPreferences.Editor mPrefsEditor = mPrefs.edit();
+        mPrefsEditor.putBoolean(PREF_DIAGNOSTICS_ENABLED, enabled);
+        mPrefsEditor.commit();
+    }
+
+    /**
+     * @return Whether {@link Diagnostics} mode is enabled.
+     */
+    public boolean getDiagnosticsEnabled() {
+        return mPrefs.getBoolean(PREF_DIAGNOSTICS_ENABLED, false);
+    }
+
+    /**
+     * Sets the default orientation rule for the default profile and commits
+     * to preferences.
      *
      * @param orientation The desired default orientation.
      */
     public void setDefaultRule(ScreenOrientation orientation) {
+        setDefaultRule(CustomRuleManager.DEFAULT_PROFILE, orientation);
+    }
+
+    /**
+     * Sets the default orientation rule for a profile and commits to
+     * preferences.
+     *
+     * @param profile The profile name.
+     * @param orientation The desired default orientation.
+     */
+    public void setDefaultRule(String profile, ScreenOrientation orientation) {
         final SharedPreferences.Editor mPrefsEditor = mPrefs.edit();
-        mPrefsEditor.putInt(PREF_DEFAULT_RULE, orientation.getCode());
+        mPrefsEditor.putInt(getDefaultRuleKey(profile), orientation.getCode());
         mPrefsEditor.commit();
+
+        CustomRuleManager.requestBackup(mPackageName);
     }
 
     /**
-     * Returns the default orientation rule from preferences.
+     * Returns the default orientation rule for the default profile from
+     * preferences.
      *
      * @return The default orientation preference value.
      */
     public ScreenOrientation getDefaultRule() {
-        final int code = mPrefs.getInt(PREF_DEFAULT_RULE, ScreenOrientation.UNSPECIFIED.getCode());
+        return getDefaultRule(CustomRuleManager.DEFAULT_PROFILE);
+    }
+
+    /**
+     * Returns the default orientation rule for a profile from preferences.
+     * Profiles without their own default use the default profile's.
+     *
+     * @param profile The profile name.
+     * @return The default orientation preference value.
+     */
+    public ScreenOrientation getDefaultRule(String profile) {
+        final int fallback = mPrefs.getInt(
+                PREF_DEFAULT_RULE, ScreenOrientation.UNSPECIFIED.getCode());
+        final int code = mPrefs.getInt(getDefaultRuleKey(profile), fallback);
         final ScreenOrientation orientation = ScreenOrientation.fromCode(code);
         return orientation;
     }
+
+    private static String getDefaultRuleKey(String profile) {
+        if (CustomRuleManager.DEFAULT_PROFILE.equals(profile)) {
+            return PREF_DEFAULT_RULE;
+        }
+
+        return PREF_DEFAULT_RULE + "." + profile;
+    }
+
+    /**
+     * Returns whether a preference key stores a default orientation rule.
+     *
+     * @param key The preference key.
+     * @return Whether the key stores a default rule for any profile.
+     */
+    static boolean isDefaultRuleKey(String key) {
+        return PREF_DEFAULT_RULE.equals(key)
+                || ((key != null) && key.startsWith(PREF_DEFAULT_RULE + "."));
+    }
+
+    /**
+     * Adds pruned rules to the running totals and commits to preferences.
+     *
+     * @param ruleCount The number of rules removed.
+     * @param byteCount The number of storage bytes reclaimed.
+     * @param compaction Whether the rules were removed by a full compaction,
+     *            in which case the compaction time is also recorded.
+     */
+    public void addReclaimed(int ruleCount, int byteCount, boolean compaction) {
+        final SharedPreferences.Editor mPrefsEditor = mPrefs.edit();
+        mPrefsEditor.putInt(PREF_RECLAIMED_RULES, getReclaimedRuleCount() + ruleCount);
+        mPrefsEditor.putLong(PREF_RECLAIMED_BYTES, getReclaimedBytes() + byteCount);
+        if (compaction) {
+            mPrefsEditor.putLong(PREF_LAST_COMPACTION, System.currentTimeMillis());
+        }
+        mPrefsEditor.commit();
+    }
+
+    /**
+     * @return The total number of rules removed by pruning and compaction.
+     */
+    public int getReclaimedRuleCount() {
+        return mPrefs.getInt(PREF_RECLAIMED_RULES, 0);
+    }
+
+    /**
+     * @return The total number of storage bytes reclaimed by pruning and
+     *         compaction.
+     */
+    public long getReclaimedBytes() {
+        return mPrefs.getLong(PREF_RECLAIMED_BYTES, 0);
+    }
+
+    /**
+     * @return The time of the last full compaction in milliseconds since the
+     *         epoch, or {@code 0} if none.
+     */
+    public long getLastCompactionTime() {
+        return mPrefs.getLong(PREF_LAST_COMPACTION, 0);
+    }
 }
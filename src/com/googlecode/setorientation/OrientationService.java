@@ -16,91 +16,343 @@
 
 package com.googlecode.setorientation;
 
-import android.annotation.SuppressLint;
 import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.app.AlarmManager;
+import android.app.KeyguardManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.UriMatcher;
+import android.content.res.Configuration;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
 import android.support.v4.app.NotificationCompat;
-import android.view.View;
-import android.view.WindowManager;
-import android.view.WindowManager.LayoutParams;
 
+import com.googlecode.eyesfree.compat.CompatUtils;
 import com.googlecode.eyesfree.compat.app.ServiceCompatUtils;
 import com.googlecode.eyesfree.setorientation.R;
-import com.googlecode.eyesfree.utils.WeakReferenceHandler;
 import com.googlecode.setorientation.CustomRuleManager.RuleListener;
+import com.googlecode.setorientation.DetectionGovernor.BudgetListener;
+import com.googlecode.setorientation.DeviceStateTracker.StateListener;
+import com.googlecode.setorientation.ManifestOrientationIndex.IndexListener;
+import com.googlecode.setorientation.SmartRotationController.SmartRotationListener;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
 
 public class OrientationService extends Service {
     /** Extra used to specify the orientation to apply. */
     public static final String EXTRA_ORIENTATION = "orientation";
 
+    /**
+     * Extra holding how long the orientation dialog took to set up, in
+     * nanoseconds, so that switching latency can be compared across paths.
+     */
+    public static final String EXTRA_SETUP_NANOS = "setup_nanos";
+
+    /**
+     * Action that applies and saves the orientation in
+     * {@link #EXTRA_ORIENTATION} without opening the dialog.
+     */
+    public static final String ACTION_SET_ORIENTATION =
+            "com.googlecode.eyesfree.setorientation.action.SET_ORIENTATION";
+
+    /** Action that toggles between portrait and landscape and saves the choice. */
+    public static final String ACTION_CYCLE_ORIENTATION =
+            "com.googlecode.eyesfree.setorientation.action.CYCLE_ORIENTATION";
+
+    /**
+     * Action that pins the current orientation as a rule for the foreground
+     * app, or removes the rule if the app is already pinned.
+     */
+    public static final String ACTION_TOGGLE_PIN =
+            "com.googlecode.eyesfree.setorientation.action.TOGGLE_PIN";
+
+    /**
+     * Action that sets how the orientation is chosen while several windows
+     * are visible, specified by {@link #EXTRA_WINDOW_POLICY}.
+     */
+    public static final String ACTION_SET_WINDOW_POLICY =
+            "com.googlecode.eyesfree.setorientation.action.SET_WINDOW_POLICY";
+
+    /** Extra holding a window policy, e.g. {@link #WINDOW_POLICY_FOCUSED}. */
+    public static final String EXTRA_WINDOW_POLICY = "window_policy";
+
+    /** Resolve the orientation for the focused window only. */
+    public static final int WINDOW_POLICY_FOCUSED = 0;
+
+    /** Resolve the orientation for the most restrictive visible window. */
+    public static final int WINDOW_POLICY_MOST_RESTRICTIVE = 1;
+
+    private static final String[] WINDOW_POLICY_NAMES = { "focused", "most restrictive" };
+
+    /** Action used to switch the active rule profile. */
+    public static final String ACTION_SWITCH_PROFILE =
+            "com.googlecode.eyesfree.setorientation.action.SWITCH_PROFILE";
+
+    /** Extra used to specify the profile name for {@link #ACTION_SWITCH_PROFILE}. */
+    public static final String EXTRA_PROFILE = "profile";
+
+    /** Action sent by the alarm for the next scheduled rule transition. */
+    public static final String ACTION_SCHEDULE_TRANSITION =
+            "com.googlecode.eyesfree.setorientation.action.SCHEDULE_TRANSITION";
+
+    /** How late the schedule alarm may be delivered, in milliseconds. */
+    private static final long SCHEDULE_WINDOW = 60 * 1000;
+
+    /** Inexact one-shot alarms, available on API 19 and above. */
+    private static final Method METHOD_setWindow = CompatUtils.getMethod(AlarmManager.class,
+            "setWindow", int.class, long.class, long.class, PendingIntent.class);
+
+    /** Reads the memory use of other processes, available on API 5 and above. */
+    private static final Method METHOD_getProcessMemoryInfo = CompatUtils.getMethod(
+            ActivityManager.class, "getProcessMemoryInfo", int[].class);
+
     /** Identifier for the service's ongoing notification. */
     private static final int NOTIFICATION_ID = 1;
 
-    /** Intent filter used to listen for screen on/off. */
+    /** How often rule hit counts are written to storage. */
+    private static final long HIT_FLUSH_INTERVAL = 15 * 60 * 1000;
+
+    /** How late a hit count flush may run so that it can share a wakeup. */
+    private static final long HIT_FLUSH_TOLERANCE = 5 * 60 * 1000;
+
+    /** The number of likely next activities warmed after each switch. */
+    private static final int PREDICTION_COUNT = 2;
+
+    /** How long after a switch the likely next activities are warmed. */
+    private static final long PREWARM_DELAY = 1000;
+
+    /** How late warming may run so that it can share a wakeup. */
+    private static final long PREWARM_TOLERANCE = 500;
+
+    /** The number of most frequently hit rules printed by {@link #dump}. */
+    private static final int DUMP_HIT_COUNT = 5;
+
+    /** Memory has not been trimmed. */
+    private static final int TRIM_NONE = 0;
+
+    /** Shrink caches that are cheap to refill. */
+    private static final int TRIM_LIGHT = 1;
+
+    /** Drop caches and everything not needed to resolve orientations. */
+    private static final int TRIM_CACHES = 2;
+
+    /** Hold only the active compiled rules and the current state. */
+    private static final int TRIM_MINIMAL = 3;
+
+    /** Orientation switched from the dialog. */
+    private static final int SWITCH_DIALOG = 0;
+
+    /** Orientation switched from a notification action or tile. */
+    private static final int SWITCH_ACTION = 1;
+
+    /** How late a notification update may run so that it can share a wakeup. */
+    private static final long NOTIFICATION_TOLERANCE = 250;
+
+    /** The screen is off. */
+    private static final int SCREEN_STATE_OFF = 0;
+
+    /** The screen is on, but the keyguard is showing. */
+    private static final int SCREEN_STATE_LOCKED = 1;
+
+    /** The screen is on and the user is present. */
+    private static final int SCREEN_STATE_UNLOCKED = 2;
+
+    private static final String[] SCREEN_STATE_NAMES = { "off", "locked", "unlocked" };
+
+    /** Intent filter used to listen for screen and keyguard changes. */
     private static final IntentFilter SCREEN_FILTER = new IntentFilter();
 
     static {
         SCREEN_FILTER.addAction(Intent.ACTION_SCREEN_ON);
         SCREEN_FILTER.addAction(Intent.ACTION_SCREEN_OFF);
+        SCREEN_FILTER.addAction(Intent.ACTION_USER_PRESENT);
+    }
+
+    /** Intent filter used to listen for changes that shift schedules. */
+    private static final IntentFilter TIME_FILTER = new IntentFilter();
+
+    static {
+        TIME_FILTER.addAction(Intent.ACTION_TIME_CHANGED);
+        TIME_FILTER.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+    }
+
+    /** Intent filter used to keep the manifest index current. */
+    private static final IntentFilter PACKAGE_FILTER = new IntentFilter();
+
+    static {
+        PACKAGE_FILTER.addAction(Intent.ACTION_PACKAGE_ADDED);
+        PACKAGE_FILTER.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        PACKAGE_FILTER.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        PACKAGE_FILTER.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        PACKAGE_FILTER.addDataScheme("package");
     }
 
     private OrientationPrefsManager mPrefsManager;
     private CustomRuleManager mRuleManager;
+    private RuleHitCounter mHitCounter;
+    private DecisionJournal mJournal;
+    private Diagnostics mDiagnostics;
+    private ManifestOrientationIndex mManifestIndex;
+    private TransientActivityClassifier mTransientClassifier;
+    private TransitionModel mTransitionModel;
+    private DeviceStateTracker mDeviceState;
+    private SmartRotationController mSmartController;
+    private CoalescingScheduler mScheduler;
+    private DetectionGovernor mGovernor;
     private ActivityPoller mActivityPoller;
-    private WindowManager mWindowManager;
-    private LayoutParams mLayoutParams;
-    private View mOverlayView;
+
+    /** The notification builder, or {@code null} if released. */
     private NotificationCompat.Builder mNotification;
 
+    /** The deepest trim applied since the service was created. */
+    private int mTrimTier = TRIM_NONE;
+
+    /** Available orientation appliers, ordered from cheapest. */
+    private OrientationApplier[] mAppliers;
+
+    /** Apply latency for each applier, indexed like {@link #mAppliers}. */
+    private LatencyStats[] mApplierLatency;
+
+    /** Switching latency, indexed by path, e.g. {@link #SWITCH_ACTION}. */
+    private final LatencyStats[] mSwitchLatency = new LatencyStats[] {
+            new LatencyStats("dialog"), new LatencyStats("action") };
+
+    /** The activities predicted to follow the current one, warmed in advance. */
+    private final ComponentName[] mPredictions = new ComponentName[PREDICTION_COUNT];
+    private int mPredictionCount;
+
+    /** Switches for which predictions existed, and how many were predicted. */
+    private int mPredictedSwitches;
+    private int mPredictionHits;
+
+    /** Resolve latency for predicted and unpredicted switches. */
+    private final LatencyStats mWarmResolveLatency = new LatencyStats("predicted");
+    private final LatencyStats mColdResolveLatency = new LatencyStats("not predicted");
+
+    /** How the orientation is chosen while several windows are visible. */
+    private int mWindowPolicy = WINDOW_POLICY_FOCUSED;
+
+    /** The most recent snapshot of visible tasks. */
+    private ForegroundSnapshot mSnapshot = ForegroundSnapshot.EMPTY;
+
+    /** The number of foreground changes ignored because they were transient. */
+    private int mTransientHolds;
+
+    /** Whether the foreground app was pinned when the notification was built. */
+    private boolean mNotificationPinned;
+
+    /** The applier used for the current orientation, or {@code null}. */
+    private OrientationApplier mActiveApplier;
+
+    /** The most recent foreground activity outside this package. */
+    private ComponentName mForegroundComponent;
+
     /** The currently applied screen orientation. */
     private ScreenOrientation mCurrentOrientation;
 
     /** Whether the current orientation is the result of a custom rule. */
     private boolean mUsingCustomRule;
 
-    /** Whether the overlay view has been added to the window manager. */
-    private boolean mViewAdded;
+    /** Whether the orientation is driven by the smart rotation controller. */
+    private boolean mSmartActive;
+
+    /** The active profile's default rule, refreshed through the rule store. */
+    private ScreenOrientation mDefaultRule;
+
+    /**
+     * The screen state, e.g. {@link #SCREEN_STATE_UNLOCKED}. Polling and rule
+     * resolution only run while unlocked.
+     */
+    private int mScreenState = SCREEN_STATE_UNLOCKED;
+
+    /**
+     * Whether the service is idle because no rule can change the orientation.
+     * While idle, nothing is attached, polled or scheduled.
+     */
+    private boolean mIdle;
 
-    @SuppressLint("InlinedApi")
     @Override
     public void onCreate() {
         super.onCreate();
 
-        mWindowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
+        mDiagnostics = Diagnostics.getInstance(this);
         mPrefsManager = new OrientationPrefsManager(this);
 
-        mRuleManager = new CustomRuleManager(this);
+        mRuleManager = CustomRuleManager.createRemote(this);
         mRuleManager.setListener(mRuleListener);
 
-        mActivityPoller = new ActivityPoller(this);
-        mOverlayView = new View(this);
+        mHitCounter = new RuleHitCounter(this);
+        mRuleManager.setHitCounter(mHitCounter);
+        mDefaultRule = mPrefsManager.getDefaultRule(mRuleManager.getActiveProfile());
+
+        // This process never sees preference changes made by the UI.
+        getContentResolver().registerContentObserver(
+                RuleStore.BASE_URI, true, mRuleStoreObserver);
+
+        mJournal = new DecisionJournal(this);
+
+        mManifestIndex = ManifestOrientationIndex.getInstance(this);
+        mManifestIndex.setListener(mIndexListener);
+        mManifestIndex.start();
+
+        mTransientClassifier = new TransientActivityClassifier(this, mManifestIndex);
+        mTransitionModel = new TransitionModel(this);
+
+        mDeviceState = new DeviceStateTracker(this);
+        mDeviceState.setListener(mStateListener);
+        mDeviceState.start();
 
-        mLayoutParams = new LayoutParams();
-        mLayoutParams.type = LayoutParams.TYPE_SYSTEM_ERROR;
-        mLayoutParams.width = 0;
-        mLayoutParams.height = 0;
-        mLayoutParams.flags |= LayoutParams.FLAG_HARDWARE_ACCELERATED;
-        mLayoutParams.flags |= LayoutParams.FLAG_NOT_FOCUSABLE;
-        mLayoutParams.flags |= LayoutParams.FLAG_NOT_TOUCHABLE;
-        mLayoutParams.flags &= ~LayoutParams.FLAG_TURN_SCREEN_ON;
-        mLayoutParams.flags &= ~LayoutParams.FLAG_KEEP_SCREEN_ON;
+        mSmartController = new SmartRotationController(this);
+        mSmartController.setListener(mSmartListener);
 
-        final PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
-                new Intent(this, SetOrientationActivity.class), Intent.FLAG_ACTIVITY_NEW_TASK);
+        mScheduler = new CoalescingScheduler(getMainLooper());
+        mGovernor = new DetectionGovernor(this, mScheduler);
+        mGovernor.setListener(mBudgetListener);
+        mGovernor.start();
+        mActivityPoller = new ActivityPoller(this, mScheduler, mGovernor);
+        mScheduler.schedulePeriodic(
+                mHitFlusher, HIT_FLUSH_INTERVAL, HIT_FLUSH_INTERVAL, HIT_FLUSH_TOLERANCE);
 
-        mNotification = new NotificationCompat.Builder(this).setContentIntent(contentIntent)
-                .setWhen(0).setOngoing(true);
+        mAppliers = new OrientationApplier[] {
+                new NoOpApplier(), new SystemSettingsApplier(this), new OverlayApplier(this) };
+        Arrays.sort(mAppliers, new Comparator<OrientationApplier>() {
+            @Override
+            public int compare(OrientationApplier lhs, OrientationApplier rhs) {
+                return lhs.getCost() - rhs.getCost();
+            }
+        });
+
+        mApplierLatency = new LatencyStats[mAppliers.length];
+        for (int i = 0; i < mAppliers.length; i++) {
+            mApplierLatency[i] = new LatencyStats(mAppliers[i].getName());
+        }
 
+        mScreenState = isKeyguardShowing() ? SCREEN_STATE_LOCKED : SCREEN_STATE_UNLOCKED;
         registerReceiver(mScreenReceiver, SCREEN_FILTER);
-        requestPolling(true);
+        registerReceiver(mTimeReceiver, TIME_FILTER);
+        registerReceiver(mPackageReceiver, PACKAGE_FILTER);
+        updateIdleState();
+        updateScheduleAlarm();
+
+        RuleCompactor.schedule(this);
     }
 
     @Override
@@ -111,17 +363,97 @@ public class OrientationService extends Service {
 
     @Override
     public void onDestroy() {
-        if (mViewAdded) {
-            mWindowManager.removeView(mOverlayView);
-            mViewAdded = false;
+        if (mActiveApplier != null) {
+            mActiveApplier.release();
+            mActiveApplier = null;
         }
 
+        mSmartController.stop();
         unregisterReceiver(mScreenReceiver);
+        unregisterReceiver(mTimeReceiver);
+        unregisterReceiver(mPackageReceiver);
+        getContentResolver().unregisterContentObserver(mRuleStoreObserver);
         requestPolling(false);
+        getAlarmManager().cancel(getScheduleOperation());
+
+        mManifestIndex.setListener(null);
+        mDeviceState.stop();
+        mGovernor.stop();
+        mScheduler.cancelAll();
+        mHitCounter.flush(getHitFilters());
+        mTransitionModel.flush();
+        mTransitionModel.shutdown();
 
         ServiceCompatUtils.stopForeground(this, NOTIFICATION_ID, true);
     }
 
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+
+        mDeviceState.onConfigurationChanged(newConfig);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        final int tier;
+        if ((level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+                || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)) {
+            tier = TRIM_MINIMAL;
+        } else if ((level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+                || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)) {
+            tier = TRIM_CACHES;
+        } else {
+            tier = TRIM_LIGHT;
+        }
+
+        trimMemory(tier);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        trimMemory(TRIM_MINIMAL);
+    }
+
+    /**
+     * Releases memory down to the specified tier. Each tier also releases
+     * everything in the tiers below it, and everything released is rebuilt
+     * lazily when next needed.
+     *
+     * @param tier The tier to trim to, e.g. {@link #TRIM_CACHES}.
+     */
+    private void trimMemory(int tier) {
+        mTrimTier = Math.max(mTrimTier, tier);
+
+        // Write out hit counts first, since later tiers may drop rules.
+        mHitCounter.flush(getHitFilters());
+        AppLabelCache.trimMemory(tier >= TRIM_CACHES);
+
+        if (tier < TRIM_CACHES) {
+            return;
+        }
+
+        mNotification = null;
+        mRuleManager.trimMemory(tier >= TRIM_MINIMAL);
+    }
+
+    /**
+     * Returns the filters used to drop counts for deleted rules, or
+     * {@code null} while rules are trimmed so that flushing doesn't reload
+     * them.
+     */
+    private Set<String> getHitFilters() {
+        if (mRuleManager.isTrimmed()) {
+            return null;
+        }
+
+        return mRuleManager.getAllFilters();
+    }
+
     @Override
     @SuppressWarnings("deprecation")
     public void onStart(Intent intent, int startId) {
@@ -136,36 +468,266 @@ public class OrientationService extends Service {
     }
 
     /**
-     * Toggles polling of the top-level activity. If no custom rules are loaded,
-     * polling will not start.
+     * Toggles polling of the top-level activity. Polling only starts if the
+     * outcome depends on the foreground activity, which is when a custom rule
+     * can override the default rule or the default rule defers to the app.
      *
      * @param enabled Whether polling should be enabled.
      */
     private void requestPolling(boolean enabled) {
-        if (enabled && !mRuleManager.hasComponentRules()) {
+        if (enabled && !mIdle && (mRuleManager.hasRulesOverriding(mDefaultRule)
+                || (mDefaultRule == ScreenOrientation.DECLARED))) {
             mActivityPoller.startPolling();
         } else {
             mActivityPoller.stopPolling();
         }
     }
 
+    /**
+     * Enters idle mode if no rule can change the orientation, or leaves it
+     * otherwise, and then starts polling or applies the default rule.
+     */
+    private void updateIdleState() {
+        final boolean idle = (mDefaultRule == ScreenOrientation.UNSPECIFIED)
+                && !mRuleManager.hasRulesOverriding(mDefaultRule);
+
+        if (idle && !mIdle) {
+            enterIdle();
+        } else if (!idle && mIdle) {
+            leaveIdle();
+        }
+
+        if (idle) {
+            return;
+        }
+
+        if (mScreenState != SCREEN_STATE_UNLOCKED) {
+            // The lock screen policy holds until the user is present.
+            return;
+        }
+
+        requestPolling(true);
+
+        if (!mActivityPoller.isScheduled()) {
+            // Nothing depends on the foreground activity, so resolve once.
+            onActivityChanged(mForegroundComponent);
+        }
+    }
+
+    /**
+     * Releases everything that keeps the service resident or wakes the
+     * device. The service stays started, so it leaves idle mode as soon as
+     * a rule or default rule change arrives.
+     */
+    private void enterIdle() {
+        mIdle = true;
+        mActivityPoller.stopPolling();
+        mSmartController.stop();
+        mSmartActive = false;
+
+        if (mActiveApplier != null) {
+            mActiveApplier.release();
+            mActiveApplier = null;
+        }
+
+        mCurrentOrientation = null;
+        mUsingCustomRule = false;
+
+        mScheduler.cancel(mNotificationUpdater);
+        mScheduler.cancel(mHitFlusher);
+        mScheduler.cancel(mPrewarmer);
+        mHitCounter.flush(getHitFilters());
+        mTransitionModel.flush();
+
+        ServiceCompatUtils.stopForeground(this, NOTIFICATION_ID, true);
+    }
+
+    /**
+     * Restarts the periodic work stopped by {@link #enterIdle}. The next
+     * applied orientation brings the service back to the foreground.
+     */
+    private void leaveIdle() {
+        mIdle = false;
+        mScheduler.schedulePeriodic(
+                mHitFlusher, HIT_FLUSH_INTERVAL, HIT_FLUSH_INTERVAL, HIT_FLUSH_TOLERANCE);
+        mActivityPoller.reset();
+    }
+
+    /**
+     * Handles a change in the visible tasks reported by the poller, choosing
+     * the component to resolve according to the window policy.
+     *
+     * @param snapshot The visible tasks.
+     */
+    private void onSnapshotChanged(ForegroundSnapshot snapshot) {
+        mSnapshot = snapshot;
+
+        final ComponentName focused = snapshot.getFocused();
+        if (focused == null) {
+            return;
+        }
+
+        if ((mWindowPolicy == WINDOW_POLICY_FOCUSED) || (snapshot.getVisibleCount() == 1)) {
+            onForegroundChanged(focused);
+            return;
+        }
+
+        // Ties go to the focused window, which comes first.
+        ComponentName selected = focused;
+        int selectedRestriction = getRestriction(focused);
+        for (int i = 1; i < snapshot.getVisibleCount(); i++) {
+            final ComponentName component = snapshot.getVisible(i);
+            final int restriction = getRestriction(component);
+            if (restriction > selectedRestriction) {
+                selected = component;
+                selectedRestriction = restriction;
+            }
+        }
+
+        onForegroundChanged(selected);
+    }
+
+    /**
+     * Returns how strongly a component constrains the orientation, from
+     * {@code 0} for no constraint to {@code 3} for a fixed orientation. Uses
+     * the component's rule in the current device state if it has one, or its
+     * manifest otherwise. Doesn't record rule hits or reload trimmed rules.
+     */
+    private int getRestriction(ComponentName component) {
+        final ScreenOrientation rule =
+                mRuleManager.peekRuleForComponent(component, mDeviceState.getState());
+        if (rule == null) {
+            return mManifestIndex.declaresOrientation(component) ? 3 : 0;
+        }
+
+        switch (rule) {
+            case LANDSCAPE:
+            case LANDSCAPE_REVERSE:
+            case PORTRAIT:
+            case PORTRAIT_REVERSE:
+                return 3;
+            case LANDSCAPE_SENSOR:
+            case PORTRAIT_SENSOR:
+                return 2;
+            case SENSOR:
+            case SENSOR_FULL:
+            case SMART:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Handles a change in the top-level activity reported by the poller.
+     * Transient activities, such as choosers and permission prompts, keep the
+     * previous orientation and foreground component unless they have a rule
+     * of their own.
+     *
+     * @param component The component for the top-level activity.
+     */
+    private void onForegroundChanged(ComponentName component) {
+        mTransientClassifier.onForegroundChanged(component);
+
+        if ((mCurrentOrientation != null) && mTransientClassifier.isTransient(component)
+                && (mRuleManager.peekRuleForComponent(
+                        component, mDeviceState.getState()) == null)) {
+            mTransientHolds++;
+            return;
+        }
+
+        onActivityChanged(component);
+    }
+
     /**
      * Handles changing orientation based on the top-level activity.
      *
      * @param component The component for the top-level activity.
      */
     private void onActivityChanged(ComponentName component) {
+        final boolean switched = (component != null) && !component.equals(mForegroundComponent);
+        final boolean predicted = switched && consumePrediction(component);
+        final long startNanos = System.nanoTime();
+        final ScreenOrientation rule = mRuleManager.getRuleForComponent(
+                component, mDeviceState.getState());
+        final ScreenOrientation defaultRule = mDefaultRule;
         final ScreenOrientation desiredOrientation;
 
-        if (mRuleManager.hasRuleForComponent(component)) {
+        if (switched) {
+            final LatencyStats latency = predicted ? mWarmResolveLatency : mColdResolveLatency;
+            latency.record(System.nanoTime() - startNanos);
+
+            mTransitionModel.record(mForegroundComponent, component);
+            mScheduler.schedule(mPrewarmer, PREWARM_DELAY, PREWARM_TOLERANCE);
+        }
+
+        mForegroundComponent = component;
+
+        if (rule != null) {
             mUsingCustomRule = true;
-            desiredOrientation = mRuleManager.getRuleForComponent(component);
+            desiredOrientation = resolveVirtual(component, rule, defaultRule);
         } else {
             mUsingCustomRule = false;
-            desiredOrientation = mPrefsManager.getDefaultRule();
+            desiredOrientation = resolveVirtual(
+                    component, defaultRule, ScreenOrientation.UNSPECIFIED);
         }
 
-        setOrientation(desiredOrientation);
+        mJournal.record(component, desiredOrientation, mUsingCustomRule
+                ? DecisionJournal.ORIGIN_RULE : DecisionJournal.ORIGIN_DEFAULT);
+
+        applyOrientation(desiredOrientation);
+    }
+
+    /**
+     * Scores the predictions made for the previous activity against the
+     * activity that actually followed, and discards them.
+     *
+     * @param component The activity that came to the foreground.
+     * @return Whether the activity was predicted, and so was warmed.
+     */
+    private boolean consumePrediction(ComponentName component) {
+        if (mPredictionCount == 0) {
+            return false;
+        }
+
+        boolean hit = false;
+        for (int i = 0; i < mPredictionCount; i++) {
+            hit |= component.equals(mPredictions[i]);
+            mPredictions[i] = null;
+        }
+
+        mPredictionCount = 0;
+        mPredictedSwitches++;
+        if (hit) {
+            mPredictionHits++;
+        }
+
+        return hit;
+    }
+
+    /**
+     * Resolves virtual rule modes against the foreground activity. Never
+     * calls the package manager.
+     *
+     * @param component The foreground activity, or {@code null} if unknown.
+     * @param orientation The orientation to resolve.
+     * @param fallback The orientation to use when a virtual mode does not
+     *            apply to the foreground activity.
+     * @return An orientation that can be passed to {@link #applyOrientation}.
+     */
+    private ScreenOrientation resolveVirtual(ComponentName component,
+            ScreenOrientation orientation, ScreenOrientation fallback) {
+        if (orientation != ScreenOrientation.DECLARED) {
+            return orientation;
+        }
+
+        // Stay out of the way of activities that set their own orientation.
+        if ((component != null) && mManifestIndex.declaresOrientation(component)) {
+            return ScreenOrientation.UNSPECIFIED;
+        }
+
+        return (fallback == ScreenOrientation.DECLARED) ? ScreenOrientation.UNSPECIFIED
+                : fallback;
     }
 
     /**
@@ -179,34 +741,256 @@ public class OrientationService extends Service {
             return;
         }
 
+        if (ACTION_SCHEDULE_TRANSITION.equals(intent.getAction())) {
+            onScheduleTransition();
+            return;
+        }
+
+        if (ACTION_SWITCH_PROFILE.equals(intent.getAction())) {
+            // The rule store observer switches once the change is committed.
+            RuleStore.setActiveProfile(getContentResolver(), intent.getStringExtra(EXTRA_PROFILE));
+            return;
+        }
+
+        if (ACTION_SET_WINDOW_POLICY.equals(intent.getAction())) {
+            final int policy = intent.getIntExtra(EXTRA_WINDOW_POLICY, WINDOW_POLICY_FOCUSED);
+            if ((policy >= 0) && (policy < WINDOW_POLICY_NAMES.length)) {
+                mWindowPolicy = policy;
+                mActivityPoller.reset();
+            }
+            return;
+        }
+
+        if (Diagnostics.ACTION_SET_DIAGNOSTICS.equals(intent.getAction())) {
+            final boolean enabled = intent.getBooleanExtra(Diagnostics.EXTRA_ENABLED, false);
+            mDiagnostics.setEnabled(enabled, false);
+            return;
+        }
+
+        if (ACTION_SET_ORIENTATION.equals(intent.getAction())) {
+            final int orientationCode = intent.getIntExtra(EXTRA_ORIENTATION, 0);
+            switchOrientation(ScreenOrientation.fromCode(orientationCode));
+            return;
+        }
+
+        if (ACTION_CYCLE_ORIENTATION.equals(intent.getAction())) {
+            final boolean landscape = (getResources().getConfiguration().orientation
+                    == Configuration.ORIENTATION_LANDSCAPE);
+            switchOrientation(landscape ? ScreenOrientation.PORTRAIT
+                    : ScreenOrientation.LANDSCAPE);
+            return;
+        }
+
+        if (ACTION_TOGGLE_PIN.equals(intent.getAction())) {
+            togglePin();
+            return;
+        }
+
         if (intent.hasExtra(EXTRA_ORIENTATION)) {
+            // The dialog saves its own selection when it closes.
+            final long startNanos = System.nanoTime();
             final int orientationCode = intent.getIntExtra(EXTRA_ORIENTATION, 0);
-            final ScreenOrientation orientation = ScreenOrientation.fromCode(orientationCode);
+
+            if (applyCommand(ScreenOrientation.fromCode(orientationCode))) {
+                mSwitchLatency[SWITCH_DIALOG].record(System.nanoTime() - startNanos
+                        + intent.getLongExtra(EXTRA_SETUP_NANOS, 0));
+            }
+        }
+    }
+
+    /**
+     * Applies an orientation chosen by the user.
+     *
+     * @param requested The requested orientation, which may be virtual.
+     * @return Whether the orientation was applied.
+     */
+    private boolean applyCommand(ScreenOrientation requested) {
+        final ScreenOrientation orientation = resolveVirtual(
+                mForegroundComponent, requested, ScreenOrientation.UNSPECIFIED);
+
+        if (mIdle) {
+            if (orientation == ScreenOrientation.UNSPECIFIED) {
+                return false;
+            }
+
+            // Preview the choice now. The saved default rule arrives later
+            // through the rule store and settles the idle state.
+            leaveIdle();
+        }
+
+        mJournal.record(mForegroundComponent, orientation, DecisionJournal.ORIGIN_COMMAND);
+        applyOrientation(orientation);
+        return true;
+    }
+
+    /**
+     * Applies an orientation chosen from a notification action or tile and
+     * saves it the same way the dialog would: as the foreground activity's
+     * or app's rule, whichever applies, or as the default rule otherwise.
+     * Saving goes through the rule store after the orientation is applied.
+     *
+     * @param orientation The requested orientation, which may be virtual.
+     */
+    private void switchOrientation(ScreenOrientation orientation) {
+        final long startNanos = System.nanoTime();
+        applyCommand(orientation);
+        mSwitchLatency[SWITCH_ACTION].record(System.nanoTime() - startNanos);
+
+        final ContentResolver resolver = getContentResolver();
+        final String profile = mRuleManager.getActiveProfile();
+
+        // Update whichever rule resolved the foreground activity, so an
+        // activity rule isn't shadowed by a new package rule.
+        final String filter = mRuleManager.getMatchingFilter(
+                mForegroundComponent, mDeviceState.getState());
+        if (filter != null) {
+            RuleStore.setRule(resolver, profile, filter, orientation);
+        } else {
+            RuleStore.setDefaultRule(resolver, profile, orientation);
+        }
+    }
+
+    /**
+     * Pins the current orientation as a rule for the foreground app, or
+     * removes the app's rule if it has one.
+     */
+    private void togglePin() {
+        if ((mForegroundComponent == null) || (mCurrentOrientation == null)) {
+            return;
+        }
+
+        final String packageName = mForegroundComponent.getPackageName();
+        final ScreenOrientation pinned;
+        if (mRuleManager.getRuleForPackage(packageName) != null) {
+            pinned = null;
+        } else {
+            pinned = mSmartActive ? ScreenOrientation.SMART : mCurrentOrientation;
+        }
+
+        RuleStore.setRule(getContentResolver(), mRuleManager.getActiveProfile(),
+                CustomRuleManager.getPackageFilter(packageName), pinned);
+    }
+
+    /**
+     * Reads a profile's default rule from the rule store.
+     *
+     * @param profile The profile name.
+     */
+    private void refreshDefaultRule(String profile) {
+        final ScreenOrientation rule = RuleStore.queryDefaultRule(getContentResolver(), profile);
+        if (rule != null) {
+            mDefaultRule = rule;
+        }
+    }
+
+    /**
+     * Applies due scheduled rule transitions and re-resolves the foreground
+     * activity only if its rules changed.
+     */
+    private void onScheduleTransition() {
+        final Set<String> changedFilters = mRuleManager.applyScheduleTransitions();
+
+        if ((mForegroundComponent != null) && (changedFilters.contains(
+                CustomRuleManager.getComponentFilter(mForegroundComponent))
+                || changedFilters.contains(CustomRuleManager.getPackageFilter(
+                        mForegroundComponent.getPackageName())))) {
+            onActivityChanged(mForegroundComponent);
+        }
+
+        updateScheduleAlarm();
+    }
+
+    /**
+     * Arms a single non-waking alarm for the next scheduled rule transition,
+     * or cancels it if there are no scheduled rules.
+     */
+    private void updateScheduleAlarm() {
+        final AlarmManager alarmManager = getAlarmManager();
+        final PendingIntent operation = getScheduleOperation();
+        final long nextTransition = mRuleManager.getNextScheduleTransition();
+
+        if (nextTransition < 0) {
+            alarmManager.cancel(operation);
+        } else if (Build.VERSION.SDK_INT >= 19) {
+            CompatUtils.invoke(alarmManager, null, METHOD_setWindow, AlarmManager.RTC,
+                    nextTransition, SCHEDULE_WINDOW, operation);
+        } else {
+            alarmManager.set(AlarmManager.RTC, nextTransition, operation);
+        }
+    }
+
+    private AlarmManager getAlarmManager() {
+        return (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+    }
+
+    private PendingIntent getScheduleOperation() {
+        final Intent intent = new Intent(ACTION_SCHEDULE_TRANSITION);
+        intent.setClass(this, OrientationService.class);
+        return PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Applies a resolved orientation, starting or stopping the smart rotation
+     * controller as needed.
+     *
+     * @param orientation The orientation to apply. May be
+     *            {@link ScreenOrientation#SMART}, but no other virtual mode.
+     */
+    private void applyOrientation(ScreenOrientation orientation) {
+        if ((orientation == ScreenOrientation.SMART) && !mSmartController.isAvailable()) {
+            orientation = ScreenOrientation.SENSOR;
+        }
+
+        mSmartActive = (orientation == ScreenOrientation.SMART);
+
+        if (mSmartActive) {
+            mSmartController.start();
+            setOrientation(mSmartController.getOrientation());
+        } else {
+            mSmartController.stop();
             setOrientation(orientation);
         }
     }
 
     /**
-     * Sets the current orientation.
+     * Sets the current orientation using the cheapest applier that can
+     * express it.
      *
-     * @param orientation The orientation to set.
+     * @param orientation The orientation to set. Must not be virtual.
      */
     private void setOrientation(ScreenOrientation orientation) {
-        if (mCurrentOrientation == orientation) {
+        final boolean foregroundDeclares = (mForegroundComponent != null)
+                && mManifestIndex.declaresOrientation(mForegroundComponent);
+
+        int applierIndex = 0;
+        while (!mAppliers[applierIndex].canApply(orientation, foregroundDeclares)) {
+            // The last applier can apply any orientation.
+            applierIndex++;
+        }
+
+        final OrientationApplier applier = mAppliers[applierIndex];
+        if ((mCurrentOrientation == orientation) && (mActiveApplier == applier)) {
             return;
         }
 
-        mCurrentOrientation = orientation;
-        mLayoutParams.screenOrientation = orientation.getCode();
+        if ((mActiveApplier != null) && (mActiveApplier != applier)) {
+            mActiveApplier.release();
+        }
 
-        if (mViewAdded) {
-            mWindowManager.updateViewLayout(mOverlayView, mLayoutParams);
-        } else {
-            mWindowManager.addView(mOverlayView, mLayoutParams);
-            mViewAdded = true;
+        final long startNanos = System.nanoTime();
+        applier.apply(orientation);
+        mApplierLatency[applierIndex].record(System.nanoTime() - startNanos);
+
+        mActiveApplier = applier;
+
+        if (mCurrentOrientation == orientation) {
+            return;
         }
 
-        updateNotification();
+        mCurrentOrientation = orientation;
+
+        // Rapid changes only need the final state in the notification.
+        mScheduler.schedule(mNotificationUpdater, 0, NOTIFICATION_TOLERANCE);
     }
 
     /**
@@ -220,24 +1004,262 @@ public class OrientationService extends Service {
         final int smallIcon = (mUsingCustomRule ? R.drawable.ic_stat_orientation_filled
                 : R.drawable.ic_stat_orientation);
 
-        mNotification.setContentTitle(contentTitle)
-                .setContentText(contentText).setSmallIcon(smallIcon);
+        final boolean pinned = (mForegroundComponent != null)
+                && (mRuleManager.getRuleForPackage(mForegroundComponent.getPackageName()) != null);
+        if (pinned != mNotificationPinned) {
+            // Actions can't be replaced, so rebuild with the new pin label.
+            mNotification = null;
+            mNotificationPinned = pinned;
+        }
+
+        final NotificationCompat.Builder builder = getNotificationBuilder();
+        builder.setContentTitle(contentTitle).setContentText(contentText).setSmallIcon(smallIcon);
+
+        ServiceCompatUtils.startForeground(this, NOTIFICATION_ID, builder.build());
+    }
+
+    /**
+     * Returns the notification builder, creating it if it was released.
+     */
+    private NotificationCompat.Builder getNotificationBuilder() {
+        if (mNotification == null) {
+            final PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                    new Intent(this, SetOrientationActivity.class),
+                    Intent.FLAG_ACTIVITY_NEW_TASK);
+
+            final Intent sensor = new Intent(ACTION_SET_ORIENTATION);
+            sensor.putExtra(EXTRA_ORIENTATION, ScreenOrientation.SENSOR.getCode());
+
+            // Actions go straight to the service, so switching never starts
+            // an activity.
+            mNotification = new NotificationCompat.Builder(this)
+                    .setContentIntent(contentIntent).setWhen(0).setOngoing(true)
+                    .addAction(0, getString(R.string.action_rotate),
+                            getCommandOperation(new Intent(ACTION_CYCLE_ORIENTATION)))
+                    .addAction(0, getString(R.string.sensor), getCommandOperation(sensor))
+                    .addAction(0, getString(mNotificationPinned ? R.string.action_unpin
+                            : R.string.action_pin),
+                            getCommandOperation(new Intent(ACTION_TOGGLE_PIN)));
+        }
+
+        return mNotification;
+    }
+
+    /**
+     * Returns an operation that sends a command straight to the service.
+     *
+     * @param command The command intent. Its action must be unique.
+     */
+    private PendingIntent getCommandOperation(Intent command) {
+        command.setClass(this, OrientationService.class);
+        return PendingIntent.getService(this, 0, command, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
 
-        ServiceCompatUtils.startForeground(this, NOTIFICATION_ID, mNotification.build());
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("OrientationService:");
+        writer.println("  screen state: " + SCREEN_STATE_NAMES[mScreenState]);
+        writer.println("  idle: " + mIdle);
+        writer.println("  current orientation: " + mCurrentOrientation);
+        writer.println("  foreground component: " + mForegroundComponent);
+        writer.println("  visible tasks: " + mSnapshot);
+        writer.println("  window policy: " + WINDOW_POLICY_NAMES[mWindowPolicy]);
+        writer.println("  using custom rule: " + mUsingCustomRule);
+        writer.println("  transient holds: " + mTransientHolds);
+        writer.println("  active applier: "
+                + ((mActiveApplier != null) ? mActiveApplier.getName() : null));
+        writer.println("Apply latency:");
+        for (LatencyStats latency : mApplierLatency) {
+            latency.dump(writer);
+        }
+        writer.println("Switch latency:");
+        for (LatencyStats latency : mSwitchLatency) {
+            latency.dump(writer);
+        }
+        writer.println("Predictions:");
+        writer.println("  activities modeled: " + mTransitionModel.size());
+        writer.println("  hit rate: " + mPredictionHits + "/" + mPredictedSwitches);
+        writer.println("  estimated time saved: " + (Math.max(0,
+                mColdResolveLatency.getMeanNanos() - mWarmResolveLatency.getMeanNanos())
+                * mWarmResolveLatency.getCount() / 1000) + "us");
+        writer.println("Resolve latency:");
+        mWarmResolveLatency.dump(writer);
+        mColdResolveLatency.dump(writer);
+        writer.println("Most frequent rules:");
+        for (String filter : mHitCounter.getMostFrequent(DUMP_HIT_COUNT)) {
+            writer.println("  " + filter + ": " + mHitCounter.getCount(filter));
+        }
+        mTransientClassifier.dump(writer);
+        writer.println("Recent decisions:");
+        mJournal.dump(writer);
+        final Runtime runtime = Runtime.getRuntime();
+        writer.println("Memory:");
+        writer.println("  deepest trim tier: " + mTrimTier);
+        writer.println("  rules trimmed: " + mRuleManager.isTrimmed());
+        writer.println("  profiles loaded: " + mRuleManager.getLoadedProfileCount());
+
+        final DecisionTable table = mRuleManager.getActiveTable();
+        final int ruleCount = table.getUnconditionalCount();
+        final int ruleBytes = table.getUnconditionalBytes();
+        writer.println("  compact rules: " + ruleCount + " rules, " + ruleBytes + " bytes"
+                + ((ruleCount > 0) ? (", " + (ruleBytes / ruleCount) + " per rule") : ""));
+        writer.println("  java heap used: "
+                + ((runtime.totalMemory() - runtime.freeMemory()) / 1024) + " KB");
+        final Debug.MemoryInfo memoryInfo = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(memoryInfo);
+        writer.println("  process pss: " + getTotalPss(memoryInfo) + " KB");
+
+        // Shows whether the main process is still resident alongside this one.
+        final int uiProcessPss = getUiProcessPss();
+        if (uiProcessPss >= 0) {
+            writer.println("  ui process pss: " + uiProcessPss + " KB");
+        } else {
+            writer.println("  ui process pss: not running");
+        }
+        mScheduler.dump(writer);
+        mGovernor.dump(writer);
+        mDiagnostics.dump(writer);
     }
 
     /**
-     * Handles changing the polling state when the screen state changes.
+     * @return The PSS of the main process, which hosts the dialog and rules
+     *         list, in kilobytes, or {@code -1} if it isn't running or can't
+     *         be measured.
+     */
+    private int getUiProcessPss() {
+        final ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        final List<RunningAppProcessInfo> processes = am.getRunningAppProcesses();
+        if (processes == null) {
+            return -1;
+        }
+
+        for (RunningAppProcessInfo process : processes) {
+            if (!getPackageName().equals(process.processName)) {
+                continue;
+            }
+
+            final Debug.MemoryInfo[] memoryInfo = (Debug.MemoryInfo[]) CompatUtils.invoke(
+                    am, null, METHOD_getProcessMemoryInfo, new int[] { process.pid });
+            if ((memoryInfo == null) || (memoryInfo.length == 0)) {
+                return -1;
+            }
+
+            return getTotalPss(memoryInfo[0]);
+        }
+
+        return -1;
+    }
+
+    private static int getTotalPss(Debug.MemoryInfo memoryInfo) {
+        return memoryInfo.dalvikPss + memoryInfo.nativePss + memoryInfo.otherPss;
+    }
+
+    /**
+     * Applies the current orientation to the ongoing notification.
+     */
+    private final CoalescingScheduler.Task mNotificationUpdater = new CoalescingScheduler.Task() {
+        @Override
+        protected void run() {
+            updateNotification();
+        }
+    };
+
+    /**
+     * Warms the decision state for the activities most likely to follow the
+     * current one: their rules enter the hot tier, and their manifest and
+     * transient classification are looked up or queued in the background.
+     * Runs once the switch has settled.
+     */
+    private final CoalescingScheduler.Task mPrewarmer = new CoalescingScheduler.Task() {
+        @Override
+        protected void run() {
+            if (mForegroundComponent == null) {
+                return;
+            }
+
+            final int state = mDeviceState.getState();
+            mPredictionCount = mTransitionModel.predict(mForegroundComponent, mPredictions);
+
+            for (int i = 0; i < mPredictionCount; i++) {
+                final ComponentName component = mPredictions[i];
+                mRuleManager.prewarm(component, state);
+                mManifestIndex.getDeclaredOrientation(component);
+                mTransientClassifier.isTransient(component);
+            }
+        }
+    };
+
+    /**
+     * Writes rule hit counts to storage in the background.
+     */
+    private final CoalescingScheduler.Task mHitFlusher = new CoalescingScheduler.Task() {
+        @Override
+        protected void run() {
+            mHitCounter.flush(getHitFilters());
+            mTransitionModel.flush();
+        }
+    };
+
+    /**
+     * Moves between screen states. Turning the screen on only reaches
+     * {@link #SCREEN_STATE_UNLOCKED} if the keyguard isn't showing; otherwise
+     * the service waits for {@link Intent#ACTION_USER_PRESENT}.
+     *
+     * @param state The new screen state, e.g. {@link #SCREEN_STATE_LOCKED}.
+     */
+    private void setScreenState(int state) {
+        if (state == mScreenState) {
+            return;
+        }
+
+        mScreenState = state;
+
+        if (state != SCREEN_STATE_UNLOCKED) {
+            applyLockScreenPolicy();
+            return;
+        }
+
+        if (mSmartActive && !mIdle) {
+            mSmartController.start();
+        }
+
+        // Pick up rule and device state changes deferred while locked.
+        mActivityPoller.reset();
+        updateIdleState();
+    }
+
+    /**
+     * Applies the lock screen policy: no user app can be in the foreground,
+     * so polling and the smart rotation controller stop and the orientation
+     * applied before the screen turned off is held. Lock screen wakeups such
+     * as notifications then never poll or resolve rules.
+     */
+    private void applyLockScreenPolicy() {
+        mActivityPoller.stopPolling();
+        mSmartController.stop();
+    }
+
+    private boolean isKeyguardShowing() {
+        final KeyguardManager keyguardManager =
+                (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
+        return keyguardManager.inKeyguardRestrictedInputMode();
+    }
+
+    /**
+     * Handles screen on/off and unlock, driving {@link #setScreenState}.
      */
     private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
 
-            if (Intent.ACTION_SCREEN_ON.equals(action)) {
-                requestPolling(true);
-            } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
-                requestPolling(false);
+            if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                setScreenState(SCREEN_STATE_OFF);
+            } else if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                setScreenState(isKeyguardShowing() ? SCREEN_STATE_LOCKED
+                        : SCREEN_STATE_UNLOCKED);
+            } else if (Intent.ACTION_USER_PRESENT.equals(action)) {
+                setScreenState(SCREEN_STATE_UNLOCKED);
             }
         }
     };
@@ -251,29 +1273,194 @@ public class OrientationService extends Service {
         @Override
         public void onRulesChanged() {
             mActivityPoller.reset();
-            mActivityPoller.startPolling();
+            updateIdleState();
+
+            if (!mIdle && (mCurrentOrientation != null)) {
+                // The foreground app may have been pinned or unpinned.
+                mScheduler.schedule(mNotificationUpdater, 0, NOTIFICATION_TOLERANCE);
+            }
+
+            updateScheduleAlarm();
+        }
+
+        @Override
+        public void onProfileChanged(String profile) {
+            updateIdleState();
+
+            if (!mIdle && (mScreenState == SCREEN_STATE_UNLOCKED)
+                    && (mForegroundComponent != null)) {
+                onActivityChanged(mForegroundComponent);
+            }
+
+            updateScheduleAlarm();
         }
     };
 
     /**
-     * Polls for the current top-level activity.
+     * Refreshes only the rules or settings that changed in the rule store.
+     * Prior to API 16, the changed URI is not available and everything is
+     * refreshed.
      */
-    private static class ActivityPoller extends WeakReferenceHandler<OrientationService> {
-        private static final int POLL_FOREGROUND = 1;
-        private static final long POLL_INTERVAL = 250;
+    private final ContentObserver mRuleStoreObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
 
-        /** The parent's package name, used to prevent self-checking. */
-        private final String mParentPackage;
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            final int match = (uri != null) ? RuleStore.match(uri) : UriMatcher.NO_MATCH;
+            final ContentResolver resolver = getContentResolver();
+            final long start = mDiagnostics.startBlockingCall();
+
+            if (match == RuleStore.MATCH_RULE) {
+                final String name = RuleStore.getRuleProfile(uri);
+                final String key = uri.getLastPathSegment();
+                if (!mRuleManager.refreshRule(
+                        name, key, RuleStore.queryRule(resolver, name, key))) {
+                    mRuleManager.refreshProfile(name, RuleStore.queryProfile(resolver, name));
+                }
+            } else if (match == RuleStore.MATCH_PROFILE) {
+                final String name = uri.getLastPathSegment();
+                mRuleManager.refreshProfile(name, RuleStore.queryProfile(resolver, name));
+            } else if ((match == RuleStore.MATCH_DEFAULT_RULES)
+                    || (match == RuleStore.MATCH_DEFAULT_RULE)) {
+                refreshDefaultRule(mRuleManager.getActiveProfile());
+                mActivityPoller.reset();
+                updateIdleState();
+            } else {
+                final String active = RuleStore.queryActiveProfile(resolver);
+                if (active == null) {
+                    return;
+                }
+
+                if (match == UriMatcher.NO_MATCH) {
+                    // Without the changed URI, assume the active rules changed.
+                    mRuleManager.refreshProfile(active, RuleStore.queryProfile(resolver, active));
+                }
+
+                // Resolve the new default before the profile listener fires.
+                refreshDefaultRule(active);
+                mRuleManager.refreshActiveProfile(active);
+            }
+
+            mDiagnostics.endBlockingCall("rule store refresh", start);
+        }
+    };
+
+    /**
+     * Keeps the manifest index current while the service runs. The index
+     * catches up on missed changes when the service starts.
+     */
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Uri data = intent.getData();
+            if (data == null) {
+                return;
+            }
+
+            final String packageName = data.getSchemeSpecificPart();
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
+                if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                    mManifestIndex.removePackage(packageName);
+                }
+            } else {
+                mManifestIndex.updatePackage(packageName);
+            }
+        }
+    };
+
+    /**
+     * Handles changes in time or time zone. Re-evaluates every scheduled rule
+     * and re-resolves the foreground activity.
+     */
+    private final BroadcastReceiver mTimeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mRuleManager.rebuildSchedule();
+            mActivityPoller.reset();
+            updateScheduleAlarm();
+        }
+    };
 
-        /** The component for the most recent foreground activity. */
-        private ComponentName mPreviousComponent = null;
+    /**
+     * Handles changes in declared orientations. Forces the activity poller to
+     * re-resolve the foreground activity if its package changed.
+     */
+    private final IndexListener mIndexListener = new IndexListener() {
+        @Override
+        public void onIndexChanged(String packageName) {
+            // Installed packages changed, so themes may have changed too.
+            mTransientClassifier.clear();
+
+            if ((mForegroundComponent == null) || ((packageName != null)
+                    && !packageName.equals(mForegroundComponent.getPackageName()))) {
+                return;
+            }
+
+            mActivityPoller.reset();
+        }
+    };
 
-        /** Whether this poller is currently active. */
-        private boolean mPolling = false;
+    /**
+     * Handles orientation changes detected by the smart rotation controller.
+     */
+    private final SmartRotationListener mSmartListener = new SmartRotationListener() {
+        @Override
+        public void onSmartOrientationChanged(ScreenOrientation orientation) {
+            if (mSmartActive) {
+                mJournal.record(mForegroundComponent, orientation, DecisionJournal.ORIGIN_SMART);
+                setOrientation(orientation);
+            }
+        }
+    };
 
-        public ActivityPoller(OrientationService parent) {
-            super(parent);
+    /**
+     * Handles changes in device state. Re-resolves the foreground activity
+     * immediately if any rules depend on the device state.
+     */
+    private final StateListener mStateListener = new StateListener() {
+        @Override
+        public void onDeviceStateChanged(int oldState, int newState) {
+            if ((mForegroundComponent == null) || (mScreenState != SCREEN_STATE_UNLOCKED)
+                    || !mRuleManager.hasConditionalRules()) {
+                return;
+            }
 
+            onActivityChanged(mForegroundComponent);
+        }
+    };
+
+    private final BudgetListener mBudgetListener = new BudgetListener() {
+        @Override
+        public void onBudgetChanged(int powerState) {
+            mActivityPoller.onBudgetChanged();
+        }
+    };
+
+    /**
+     * Polls for the current top-level activity at the rate and with the
+     * foreground source set by the detection governor.
+     */
+    private static class ActivityPoller extends CoalescingScheduler.Task {
+        private final OrientationService mParent;
+        private final CoalescingScheduler mScheduler;
+        private final DetectionGovernor mGovernor;
+        private final Diagnostics mDiagnostics;
+
+        /** The parent's package name, used to prevent self-checking. */
+        private final String mParentPackage;
+
+        /** The most recent snapshot of visible tasks. */
+        private ForegroundSnapshot mPreviousSnapshot = null;
+
+        public ActivityPoller(OrientationService parent, CoalescingScheduler scheduler,
+                DetectionGovernor governor) {
+            mParent = parent;
+            mScheduler = scheduler;
+            mGovernor = governor;
+            mDiagnostics = Diagnostics.getInstance(parent);
             mParentPackage = parent.getPackageName();
         }
 
@@ -281,69 +1468,66 @@ public class OrientationService extends Service {
          * Start polling. No-op if already polling.
          */
         public void startPolling() {
-            if (mPolling) {
+            if (isScheduled()) {
                 return;
             }
 
-            mPolling = true;
-
-            removeMessages(POLL_FOREGROUND);
-            sendEmptyMessage(POLL_FOREGROUND);
+            mScheduler.schedulePeriodic(
+                    this, 0, mGovernor.getPollInterval(), mGovernor.getPollTolerance());
         }
 
         /**
-         * Stop polling. No-op if not currently polling.
+         * Reschedules polling at the governor's new rate. No-op if not
+         * currently polling. The next poll runs after the new interval, so a
+         * change in budget never causes an extra wakeup.
          */
-        public void stopPolling() {
-            if (!mPolling) {
+        public void onBudgetChanged() {
+            if (!isScheduled()) {
                 return;
             }
 
-            mPolling = false;
+            final long interval = mGovernor.getPollInterval();
+            mScheduler.schedulePeriodic(
+                    this, interval, interval, mGovernor.getPollTolerance());
+        }
 
-            removeMessages(POLL_FOREGROUND);
+        /**
+         * Stop polling. No-op if not currently polling.
+         */
+        public void stopPolling() {
+            mScheduler.cancel(this);
         }
 
         /**
-         * Resets the previous component. If the poller is active, this will
-         * trigger a call to {@link OrientationService#onActivityChanged} on the
+         * Resets the previous snapshot. If the poller is active, this will
+         * trigger a call to {@link OrientationService#onSnapshotChanged} on the
          * next poll event.
          */
         public void reset() {
-            mPreviousComponent = null;
-        }
-
-        @Override
-        protected void handleMessage(Message msg, OrientationService parent) {
-            switch (msg.what) {
-                case POLL_FOREGROUND:
-                    poll(parent);
-                    break;
-            }
+            mPreviousSnapshot = null;
         }
 
         /**
-         * Polls for changes in the foreground activity and calls
-         * {@link OrientationService#onActivityChanged} if necessary.
-         *
-         * @param parent The parent service.
+         * Polls for changes in the visible tasks and calls
+         * {@link OrientationService#onSnapshotChanged} if necessary.
          */
-        private void poll(OrientationService parent) {
-            if (!mPolling) {
-                return;
-            }
-
-            final ActivityManager am = (ActivityManager) parent.getSystemService(ACTIVITY_SERVICE);
-            final ComponentName cmp = OrientationUtils.getForegroundActivity(am, 0);
+        @Override
+        protected void run() {
+            final int allocations = mDiagnostics.startAllocations();
+            final ActivityManager am = (ActivityManager) mParent.getSystemService(ACTIVITY_SERVICE);
 
+            final long getTasksStart = mDiagnostics.startBlockingCall();
             // Don't consider any activities within the parent package.
-            if (!mParentPackage.equals(cmp.getPackageName())
-                    && !OrientationUtils.equals(mPreviousComponent, cmp)) {
-                parent.onActivityChanged(cmp);
-                mPreviousComponent = cmp;
+            final ForegroundSnapshot snapshot =
+                    ForegroundSnapshot.capture(am, mParentPackage, mGovernor.isFocusedOnly());
+            mDiagnostics.endBlockingCall("getRunningTasks", getTasksStart);
+
+            if (!snapshot.hasSameVisible(mPreviousSnapshot)) {
+                mParent.onSnapshotChanged(snapshot);
+                mPreviousSnapshot = snapshot;
             }
 
-            sendEmptyMessageDelayed(1, POLL_INTERVAL);
+            mDiagnostics.endAllocations(Diagnostics.SCOPE_POLL_TICK, allocations);
         }
     }
 }
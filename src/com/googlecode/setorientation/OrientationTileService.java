@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.annotation.TargetApi;
+import android.content.Intent;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+
+/**
+ * Quick Settings tile that toggles between portrait and landscape by sending
+ * {@link OrientationService#ACTION_CYCLE_ORIENTATION} straight to the
+ * service, without starting an activity. Only bound on API 24 and above.
+ */
+@TargetApi(24)
+public class OrientationTileService extends TileService {
+    @Override
+    public void onStartListening() {
+        super.onStartListening();
+
+        final Tile tile = getQsTile();
+        if (tile == null) {
+            return;
+        }
+
+        final OrientationPrefsManager prefsManager = new OrientationPrefsManager(this);
+        tile.setState(prefsManager.getServiceEnabled() ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+        tile.updateTile();
+    }
+
+    @Override
+    public void onClick() {
+        super.onClick();
+
+        final OrientationPrefsManager prefsManager = new OrientationPrefsManager(this);
+        if (!prefsManager.getServiceEnabled()) {
+            // Let the user enable orientation control from the dialog.
+            final Intent dialog = new Intent(this, SetOrientationActivity.class);
+            dialog.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            startActivityAndCollapse(dialog);
+            return;
+        }
+
+        final Intent service = new Intent(this, OrientationService.class);
+        service.setAction(OrientationService.ACTION_CYCLE_ORIENTATION);
+        startService(service);
+    }
+}
@@ -16,82 +16,10 @@
 
 package com.googlecode.setorientation;
 
-import android.app.ActivityManager;
-import android.app.ActivityManager.RunningTaskInfo;
-import android.content.ComponentName;
-import android.content.pm.ActivityInfo;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-
-import java.util.List;
-
 /**
  * Utility methods for Set Orientation.
  */
 public class OrientationUtils {
-    /**
-     * Return the foreground activity at the specified {@code index}, or
-     * {@code null} if none.
-     * <p>
-     * This method may not be accurate on devices that can show more than one
-     * foreground window, e.g. the Samsung Galaxy Note 2.
-     *
-     * @param am An instance of the activity manager.
-     * @param index The index of the task to return. The top-level activity is
-     *            index {@code 0}, the activity below that is index {@code 1}.
-     * @return The activity at the specified index, or {@code null} if none.
-     */
-    public static ComponentName getForegroundActivity(ActivityManager am, int index) {
-        final List<RunningTaskInfo> tasks = am.getRunningTasks(index + 1);
-        if (tasks.size() < (index + 1)) {
-            return null;
-        }
-
-        return tasks.get(index).topActivity;
-    }
-
-    /**
-     * Return the activity name for a component, or {@code null} on error.
-     *
-     * @param pm An instance of the package manager.
-     * @param component The component to return the activity name for.
-     * @return The name of the component's activity, or {@code null} on error.
-     */
-    public static CharSequence getActivityName(PackageManager pm, ComponentName component) {
-        final ActivityInfo activity;
-
-        try {
-            activity = pm.getActivityInfo(component, 0);
-        } catch (NameNotFoundException e) {
-            e.printStackTrace();
-            return null;
-        }
-
-        return activity.loadLabel(pm);
-    }
-
-    /**
-     * Return the app name for a component, or {@code null} on error.
-     *
-     * @param pm An instance of the package manager.
-     * @param component The component to return the app name for.
-     * @return The name of the component's app, or {@code null} on error.
-     */
-    public static CharSequence getApplicationName(PackageManager pm, ComponentName component) {
-        final ApplicationInfo application;
-
-        try {
-            final String packageName = component.getPackageName();
-            application = pm.getApplicationInfo(packageName, 0);
-        } catch (NameNotFoundException e) {
-            e.printStackTrace();
-            return null;
-        }
-
-        return application.loadLabel(pm);
-    }
-
     /**
      * Returns {@code true} if two {@link Object}s are equal using either
      * {@code ==} comparison or {@code Object#equals(Object)} comparison from
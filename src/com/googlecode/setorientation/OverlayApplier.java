@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.view.View;
+import android.view.WindowManager;
+import android.view.WindowManager.LayoutParams;
+
+/**
+ * Forces an orientation by adding an invisible system window that requests
+ * it. Overrides whatever the foreground activity requests, but every change
+ * costs a window relayout.
+ */
+public class OverlayApplier implements OrientationApplier {
+    private final Context mContext;
+    private final WindowManager mWindowManager;
+    private final LayoutParams mLayoutParams;
+
+    /** The overlay view, created when first applied. */
+    private View mOverlayView;
+
+    /** Whether the overlay view has been added to the window manager. */
+    private boolean mViewAdded;
+
+    @SuppressLint("InlinedApi")
+    public OverlayApplier(Context context) {
+        mContext = context;
+        mWindowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+
+        mLayoutParams = new LayoutParams();
+        mLayoutParams.type = LayoutParams.TYPE_SYSTEM_ERROR;
+        mLayoutParams.width = 0;
+        mLayoutParams.height = 0;
+        mLayoutParams.flags |= LayoutParams.FLAG_HARDWARE_ACCELERATED;
+        mLayoutParams.flags |= LayoutParams.FLAG_NOT_FOCUSABLE;
+        mLayoutParams.flags |= LayoutParams.FLAG_NOT_TOUCHABLE;
+        mLayoutParams.flags &= ~LayoutParams.FLAG_TURN_SCREEN_ON;
+        mLayoutParams.flags &= ~LayoutParams.FLAG_KEEP_SCREEN_ON;
+    }
+
+    @Override
+    public String getName() {
+        return "overlay";
+    }
+
+    @Override
+    public int getCost() {
+        return 2;
+    }
+
+    @Override
+    public boolean canApply(ScreenOrientation orientation, boolean foregroundDeclaresOrientation) {
+        return true;
+    }
+
+    @Override
+    public void apply(ScreenOrientation orientation) {
+        mLayoutParams.screenOrientation = orientation.getCode();
+
+        if (mViewAdded) {
+            mWindowManager.updateViewLayout(mOverlayView, mLayoutParams);
+            return;
+        }
+
+        if (mOverlayView == null) {
+            mOverlayView = new View(mContext);
+        }
+
+        mWindowManager.addView(mOverlayView, mLayoutParams);
+        mViewAdded = true;
+    }
+
+    @Override
+    public void release() {
+        if (mViewAdded) {
+            mWindowManager.removeView(mOverlayView);
+            mViewAdded = false;
+        }
+
+        // The view is cheap to recreate, so don't hold it while unused.
+        mOverlayView = null;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+
+/**
+ * Catches package change events, invalidates any cached package data and
+ * prunes rules for removed packages. The manifest index lives in the service
+ * process, which tracks package changes itself.
+ */
+public class PackageChangeReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String action = intent.getAction();
+        final Uri data = intent.getData();
+        if (data == null) {
+            return;
+        }
+
+        final String packageName = data.getSchemeSpecificPart();
+
+        if (Intent.ACTION_PACKAGE_CHANGED.equals(action)
+                || Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
+            AppLabelCache.getInstance(context).invalidatePackage(packageName);
+        } else if (Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(action)) {
+            AppLabelCache.getInstance(context).invalidatePackage(packageName);
+            pruneRules(context, packageName);
+        } else if (Intent.ACTION_PACKAGE_REMOVED.equals(action)
+                && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+            AppLabelCache.getInstance(context).invalidatePackage(packageName);
+
+            // PACKAGE_FULLY_REMOVED is only sent on API 14 and above. There,
+            // PACKAGE_REMOVED alone may mean the package's data was kept.
+            if (Build.VERSION.SDK_INT < 14) {
+                pruneRules(context, packageName);
+            }
+        }
+    }
+
+    /**
+     * Removes the rules for a package that has been uninstalled.
+     */
+    private void pruneRules(Context context, String packageName) {
+        final CustomRuleManager ruleManager = new CustomRuleManager(context);
+        final int bytesBefore = ruleManager.getStorageSize();
+        final int removed = ruleManager.removeRulesForPackage(packageName);
+        if (removed == 0) {
+            return;
+        }
+
+        final int bytesReclaimed = bytesBefore - ruleManager.getStorageSize();
+        new OrientationPrefsManager(context).addReclaimed(removed, bytesReclaimed, false);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * An immutable index that maps token prefixes to entry identifiers. Tokens are
+ * stored in a single sorted array, so a prefix query is a binary search
+ * followed by a scan over the matching range.
+ * <p>
+ * Queries are incremental: when a query extends the previous query, only the
+ * range matched by the previous query is searched. Instances are not safe for
+ * concurrent queries.
+ */
+public class PrefixIndex {
+    private final String[] mTokens;
+    private final int[] mEntryIds;
+
+    /** Per-entry stamp used to de-duplicate entries without allocating. */
+    private final int[] mStamps;
+    private int mStamp;
+
+    /** The most recent query and the token range it matched. */
+    private String mLastQuery;
+    private int mLastStart;
+    private int mLastEnd;
+
+    private PrefixIndex(String[] tokens, int[] entryIds, int entryCount) {
+        mTokens = tokens;
+        mEntryIds = entryIds;
+        mStamps = new int[entryCount];
+    }
+
+    /**
+     * Returns a new index holding the tokens of this index and of the
+     * specified builder. Only the builder's tokens are sorted, and they are
+     * merged with this index's tokens in a single pass, so appending pages of
+     * entries never re-sorts entries that were already indexed.
+     *
+     * @param builder The builder holding the tokens to append.
+     * @return A new index.
+     */
+    public PrefixIndex append(Builder builder) {
+        final PrefixIndex added = builder.build();
+        final int count = mTokens.length + added.mTokens.length;
+        final String[] tokens = new String[count];
+        final int[] entryIds = new int[count];
+
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < count; k++) {
+            if ((j >= added.mTokens.length)
+                    || ((i < mTokens.length) && (mTokens[i].compareTo(added.mTokens[j]) <= 0))) {
+                tokens[k] = mTokens[i];
+                entryIds[k] = mEntryIds[i++];
+            } else {
+                tokens[k] = added.mTokens[j];
+                entryIds[k] = added.mEntryIds[j++];
+            }
+        }
+
+        return new PrefixIndex(
+                tokens, entryIds, Math.max(mStamps.length, added.mStamps.length));
+    }
+
+    /**
+     * @return The number of tokens in this index.
+     */
+    public int getTokenCount() {
+        return mTokens.length;
+    }
+
+    /**
+     * Returns the identifiers of all entries with at least one token that
+     * starts with the specified query, in ascending order.
+     *
+     * @param query The query, compared case-insensitively.
+     * @return The identifiers of all matching entries.
+     */
+    public int[] query(String query) {
+        final String prefix = normalize(query);
+
+        int start = 0;
+        int end = mTokens.length;
+
+        // Narrow the search to the previous range if this query extends it.
+        if ((mLastQuery != null) && prefix.startsWith(mLastQuery)) {
+            start = mLastStart;
+            end = mLastEnd;
+        }
+
+        start = lowerBound(prefix, start, end);
+
+        int last = start;
+        while ((last < end) && mTokens[last].startsWith(prefix)) {
+            last++;
+        }
+
+        mLastQuery = prefix;
+        mLastStart = start;
+        mLastEnd = last;
+
+        return collect(start, last);
+    }
+
+    private int[] collect(int start, int end) {
+        if (++mStamp == 0) {
+            Arrays.fill(mStamps, 0);
+            mStamp = 1;
+        }
+
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            final int entryId = mEntryIds[i];
+            if (mStamps[entryId] != mStamp) {
+                mStamps[entryId] = mStamp;
+                count++;
+            }
+        }
+
+        // Entries are stamped, so a single pass over the stamps yields sorted
+        // output without sorting.
+        final int[] result = new int[count];
+        if (count == 0) {
+            return result;
+        }
+
+        int index = 0;
+        for (int i = 0; i < mStamps.length; i++) {
+            if (mStamps[i] == mStamp) {
+                result[index++] = i;
+            }
+        }
+
+        return result;
+    }
+
+    private int lowerBound(String prefix, int start, int end) {
+        int low = start;
+        int high = end;
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mTokens[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private static String normalize(String text) {
+        return text.trim().toLowerCase(Locale.getDefault());
+    }
+
+    /**
+     * Builds a {@link PrefixIndex}. Entry identifiers must be dense,
+     * starting at zero.
+     */
+    public static class Builder {
+        private final ArrayList<String> mTokens = new ArrayList<String>();
+        private final ArrayList<Integer> mEntryIds = new ArrayList<Integer>();
+        private int mEntryCount;
+
+        /**
+         * Adds a searchable text for an entry. The full text, each word and
+         * each dot-separated segment are added as tokens.
+         *
+         * @param entryId The entry identifier.
+         * @param text The searchable text.
+         * @return This builder.
+         */
+        public Builder add(int entryId, CharSequence text) {
+            if (text == null) {
+                return this;
+            }
+
+            final String normalized = normalize(text.toString());
+            if (normalized.length() == 0) {
+                return this;
+            }
+
+            mEntryCount = Math.max(mEntryCount, entryId + 1);
+            addToken(entryId, normalized);
+
+            for (String word : normalized.split("[\\s./_$]+")) {
+                if ((word.length() > 0) && !word.equals(normalized)) {
+                    addToken(entryId, word);
+                }
+            }
+
+            return this;
+        }
+
+        private void addToken(int entryId, String token) {
+            mTokens.add(token);
+            mEntryIds.add(entryId);
+        }
+
+        /**
+         * @return A new index containing all added tokens.
+         */
+        public PrefixIndex build() {
+            final int count = mTokens.size();
+            final String[] unsortedTokens = mTokens.toArray(new String[count]);
+            final int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+
+            sort(order, new int[count], 0, count, unsortedTokens);
+
+            final String[] tokens = new String[count];
+            final int[] entryIds = new int[count];
+            for (int i = 0; i < count; i++) {
+                tokens[i] = unsortedTokens[order[i]];
+                entryIds[i] = mEntryIds.get(order[i]);
+            }
+
+            return new PrefixIndex(tokens, entryIds, mEntryCount);
+        }
+
+        /**
+         * Stable merge sort of token positions by token, without boxing.
+         */
+        private static void sort(int[] order, int[] scratch, int start, int end,
+                String[] tokens) {
+            if ((end - start) < 2) {
+                return;
+            }
+
+            final int mid = (start + end) >>> 1;
+            sort(order, scratch, start, mid, tokens);
+            sort(order, scratch, mid, end, tokens);
+
+            int i = start;
+            int j = mid;
+            for (int k = start; k < end; k++) {
+                if ((j >= end)
+                        || ((i < mid) && (tokens[order[i]].compareTo(tokens[order[j]]) <= 0))) {
+                    scratch[k] = order[i++];
+                } else {
+                    scratch[k] = order[j++];
+                }
+            }
+
+            System.arraycopy(scratch, start, order, start, end - start);
+        }
+    }
+}
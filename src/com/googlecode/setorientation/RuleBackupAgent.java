@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.app.backup.BackupAgentHelper;
+import android.app.backup.BackupDataInput;
+import android.app.backup.SharedPreferencesBackupHelper;
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+
+/**
+ * Backs up rules incrementally, one key per rule, along with the settings
+ * file. Registered in the manifest and only used on API 8 and above.
+ */
+public class RuleBackupAgent extends BackupAgentHelper {
+    /** Key prefix for the settings file. */
+    private static final String SETTINGS_KEY = "settings";
+
+    /** Key prefix for rules. */
+    private static final String RULES_KEY = "rules";
+
+    private RuleBackupHelper mRuleHelper;
+
+    @Override
+    public void onCreate() {
+        addHelper(SETTINGS_KEY,
+                new SharedPreferencesBackupHelper(this, OrientationPrefsManager.PREFS_FILE));
+
+        mRuleHelper = new RuleBackupHelper(this);
+        addHelper(RULES_KEY, mRuleHelper);
+    }
+
+    @Override
+    public void onRestore(BackupDataInput data, int appVersionCode, ParcelFileDescriptor newState)
+            throws IOException {
+        super.onRestore(data, appVersionCode, newState);
+
+        // Restored rules are collected per entity and written once.
+        mRuleHelper.commitRestoredRules();
+    }
+}
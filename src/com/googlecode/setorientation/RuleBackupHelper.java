@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.app.backup.BackupDataInputStream;
+import android.app.backup.BackupDataOutput;
+import android.app.backup.BackupHelper;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.ParcelFileDescriptor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Backs up each rule as its own key, so a backup pass only sends rules that
+ * were added, changed or removed since the previous pass.
+ * <p>
+ * Keys are the profile name and rule key separated by {@link #KEY_SEPARATOR}
+ * and values are orientation codes. The state written after each pass maps
+ * every key sent to its code, which is compared against the current rules
+ * to find the delta.
+ */
+public class RuleBackupHelper implements BackupHelper {
+    /** Version of the backup state format. Bump when the format changes. */
+    private static final int STATE_VERSION = 1;
+
+    /** Separator between the profile name and the rule key. */
+    private static final char KEY_SEPARATOR = ':';
+
+    private final Context mContext;
+
+    /** Rules read during a restore, keyed by profile and then rule key. */
+    private final HashMap<String, HashMap<String, ScreenOrientation>> mRestored =
+            new HashMap<String, HashMap<String, ScreenOrientation>>();
+
+    /** Whether each package seen during a restore is installed. */
+    private final HashMap<String, Boolean> mInstalled = new HashMap<String, Boolean>();
+
+    public RuleBackupHelper(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public void performBackup(ParcelFileDescriptor oldState, BackupDataOutput data,
+            ParcelFileDescriptor newState) {
+        final HashMap<String, Integer> previous = readState(oldState);
+        final HashMap<String, Integer> current = getCurrentEntries();
+
+        try {
+            for (Entry<String, Integer> entry : current.entrySet()) {
+                final Integer previousCode = previous.remove(entry.getKey());
+                if (entry.getValue().equals(previousCode)) {
+                    continue;
+                }
+
+                final byte[] value = toBytes(entry.getValue());
+                data.writeEntityHeader(entry.getKey(), value.length);
+                data.writeEntityData(value, value.length);
+            }
+
+            // Anything left over was removed since the previous pass.
+            for (String key : previous.keySet()) {
+                data.writeEntityHeader(key, -1);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        writeState(newState, current);
+    }
+
+    @Override
+    public void restoreEntity(BackupDataInputStream data) {
+        final String key = data.getKey();
+        final byte[] value = new byte[data.size()];
+
+        try {
+            int offset = 0;
+            while (offset < value.length) {
+                final int read = data.read(value, offset, value.length - offset);
+                if (read < 0) {
+                    return;
+                }
+
+                offset += read;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        final int separator = key.indexOf(KEY_SEPARATOR);
+        if ((separator < 0) || (value.length != 4)) {
+            return;
+        }
+
+        final String profile = key.substring(0, separator);
+        final String ruleKey = key.substring(separator + 1);
+        final ScreenOrientation orientation = ScreenOrientation.fromSupportedCode(fromBytes(value));
+        if (!CustomRuleManager.isValidProfileName(profile) || !DecisionTable.isValidKey(ruleKey)
+                || (orientation == null) || !isPackageInstalled(ruleKey)) {
+            return;
+        }
+
+        HashMap<String, ScreenOrientation> rules = mRestored.get(profile);
+        if (rules == null) {
+            rules = new HashMap<String, ScreenOrientation>();
+            mRestored.put(profile, rules);
+        }
+
+        rules.put(ruleKey, orientation);
+    }
+
+    @Override
+    public void writeNewStateDescription(ParcelFileDescriptor newState) {
+        // Only record what was restored, so that rules skipped because their
+        // package is missing are never deleted from the backup.
+        final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+        for (Entry<String, HashMap<String, ScreenOrientation>> profile : mRestored.entrySet()) {
+            for (Entry<String, ScreenOrientation> rule : profile.getValue().entrySet()) {
+                entries.put(getKey(profile.getKey(), rule.getKey()), rule.getValue().getCode());
+            }
+        }
+
+        writeState(newState, entries);
+    }
+
+    /**
+     * Writes every rule collected by {@link #restoreEntity} to the rule store
+     * in a single batch.
+     *
+     * @return The number of rules restored.
+     */
+    public int commitRestoredRules() {
+        int count = 0;
+        for (HashMap<String, ScreenOrientation> rules : mRestored.values()) {
+            count += rules.size();
+        }
+
+        if (count > 0) {
+            CustomRuleManager.createDetached(mContext).mergeRules(mRestored);
+        }
+
+        mRestored.clear();
+        mInstalled.clear();
+
+        return count;
+    }
+
+    /**
+     * Returns every current rule in every profile, keyed like the backup.
+     */
+    private HashMap<String, Integer> getCurrentEntries() {
+        final CustomRuleManager ruleManager = CustomRuleManager.createDetached(mContext);
+        final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+
+        for (String profile : ruleManager.getProfileNames()) {
+            final Map<String, ScreenOrientation> rules = ruleManager.getRules(profile);
+            for (Entry<String, ScreenOrientation> rule : rules.entrySet()) {
+                entries.put(getKey(profile, rule.getKey()), rule.getValue().getCode());
+            }
+        }
+
+        return entries;
+    }
+
+    private boolean isPackageInstalled(String ruleKey) {
+        final String filter = DecisionTable.getFilter(ruleKey);
+        final ComponentName component = ComponentName.unflattenFromString(filter);
+        final String packageName = (component != null) ? component.getPackageName() : filter;
+
+        Boolean installed = mInstalled.get(packageName);
+        if (installed == null) {
+            installed = isPackageInstalled(mContext.getPackageManager(), packageName);
+            mInstalled.put(packageName, installed);
+        }
+
+        return installed;
+    }
+
+    private static boolean isPackageInstalled(PackageManager pm, String packageName) {
+        try {
+            pm.getPackageInfo(packageName, 0);
+            return true;
+        } catch (NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static String getKey(String profile, String ruleKey) {
+        return profile + KEY_SEPARATOR + ruleKey;
+    }
+
+    private static HashMap<String, Integer> readState(ParcelFileDescriptor oldState) {
+        final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+        if (oldState == null) {
+            return entries;
+        }
+
+        // The descriptor is owned by the backup manager, so don't close it.
+        final DataInputStream in = new DataInputStream(
+                new FileInputStream(oldState.getFileDescriptor()));
+
+        try {
+            if (in.readInt() != STATE_VERSION) {
+                return entries;
+            }
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                entries.put(key, in.readInt());
+            }
+        } catch (IOException e) {
+            // No state or unreadable state, so send everything.
+            entries.clear();
+        }
+
+        return entries;
+    }
+
+    private static void writeState(ParcelFileDescriptor newState, Map<String, Integer> entries) {
+        final DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(newState.getFileDescriptor()));
+
+        try {
+            out.writeInt(STATE_VERSION);
+            out.writeInt(entries.size());
+            for (Entry<String, Integer> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] toBytes(int code) {
+        return new byte[] {
+                (byte) (code >>> 24), (byte) (code >>> 16), (byte) (code >>> 8), (byte) code };
+    }
+
+    private static int fromBytes(byte[] value) {
+        return ((value[0] & 0xff) << 24) | ((value[1] & 0xff) << 16) | ((value[2] & 0xff) << 8)
+                | (value[3] & 0xff);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Removes custom rules that point at packages or activities that no longer
+ * exist. Compaction runs roughly once a day at low priority, see
+ * {@link #schedule(Context)}. Rules for a single package are also pruned as
+ * soon as the package is removed, see {@link PackageChangeReceiver}.
+ */
+public class RuleCompactor {
+    /** Action sent by the compaction alarm. */
+    public static final String ACTION_COMPACT =
+            "com.googlecode.eyesfree.setorientation.action.COMPACT_RULES";
+
+    /**
+     * Schedules daily compaction. The alarm is inexact and does not wake the
+     * device. Calling this again replaces the existing alarm.
+     *
+     * @param context The parent context.
+     */
+    public static void schedule(Context context) {
+        final AlarmManager alarmManager =
+                (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        final Intent intent = new Intent(ACTION_COMPACT);
+        intent.setClass(context, CompactionReceiver.class);
+        final PendingIntent operation = PendingIntent.getBroadcast(
+                context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_DAY,
+                AlarmManager.INTERVAL_DAY, operation);
+    }
+
+    /**
+     * Starts compaction on a low-priority background thread.
+     *
+     * @param context The parent context.
+     */
+    public static void compactInBackground(Context context) {
+        final Context appContext = context.getApplicationContext();
+
+        new Thread("RuleCompactor") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                compact(appContext);
+            }
+        }.start();
+    }
+
+    /**
+     * Removes rules for missing packages and activities from every profile
+     * with a single write and records the reclaimed space. Must not be called
+     * on the main thread.
+     *
+     * @param context The parent context.
+     * @return The compaction result.
+     */
+    public static Result compact(Context context) {
+        final PackageManager pm = context.getPackageManager();
+        final CustomRuleManager ruleManager = CustomRuleManager.createDetached(context);
+        final HashSet<String> missing = new HashSet<String>();
+        final HashMap<String, Boolean> installed = new HashMap<String, Boolean>();
+
+        // Check the filters of every profile, not just the active one, so
+        // inactive profiles do not keep rules for removed apps forever.
+        for (String filter : ruleManager.getAllFilters()) {
+            final ComponentName component = ComponentName.unflattenFromString(filter);
+            final String packageName = (component != null) ? component.getPackageName() : filter;
+
+            Boolean isInstalled = installed.get(packageName);
+            if (isInstalled == null) {
+                isInstalled = isPackageInstalled(pm, packageName);
+                installed.put(packageName, isInstalled);
+            }
+
+            if (!isInstalled || ((component != null) && !isActivityInstalled(pm, component))) {
+                missing.add(filter);
+            }
+        }
+
+        final int rulesBefore = ruleManager.getTotalRuleCount();
+        final int bytesBefore = ruleManager.getStorageSize();
+        final int rulesRemoved =
+                missing.isEmpty() ? 0 : ruleManager.removeRulesForFilters(missing);
+
+        final int bytesAfter = ruleManager.getStorageSize();
+        final Result result = new Result(rulesBefore, rulesRemoved, bytesBefore - bytesAfter);
+
+        new OrientationPrefsManager(context).addReclaimed(
+                result.rulesRemoved, result.bytesReclaimed, true);
+
+        return result;
+    }
+
+    private static boolean isPackageInstalled(PackageManager pm, String packageName) {
+        try {
+            pm.getPackageInfo(packageName, 0);
+            return true;
+        } catch (NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static boolean isActivityInstalled(PackageManager pm, ComponentName component) {
+        try {
+            pm.getActivityInfo(component, 0);
+            return true;
+        } catch (NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The result of a single compaction.
+     */
+    public static class Result {
+        /** The number of rules before compaction. */
+        public final int rulesBefore;
+
+        /** The number of rules removed. */
+        public final int rulesRemoved;
+
+        /** The number of storage bytes reclaimed. */
+        public final int bytesReclaimed;
+
+        public Result(int rulesBefore, int rulesRemoved, int bytesReclaimed) {
+            this.rulesBefore = rulesBefore;
+            this.rulesRemoved = rulesRemoved;
+            this.bytesReclaimed = bytesReclaimed;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Counts how often each rule filter is used to resolve an orientation.
+ * <p>
+ * Counters are plain fields that are only touched on the owning thread, so
+ * recording a hit never contends or synchronizes. Changed counters are
+ * written to preferences on a background thread when {@link #flush} is
+ * called.
+ */
+public class RuleHitCounter {
+    /** The preferences file in which to store hit counts. */
+    private static final String PREFS_FILE = "com.googlecode.eyesfree.setorientation_rulehits";
+
+    /** The preference key in which to store the day counting started. */
+    private static final String PREF_TRACKING_START = ":tracking_start";
+
+    /** The filter used to count resolutions that fell through to the default. */
+    public static final String DEFAULT_FILTER = ":default";
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private final SharedPreferences mPrefs;
+    private final HashMap<String, Hits> mHits = new HashMap<String, Hits>();
+    private final long mTrackingStartDay;
+
+    /** Writes counts in the background, created on the first flush. */
+    private ExecutorService mExecutor;
+
+    /** The current day, cached so recording a hit doesn't read the clock. */
+    private long mToday;
+
+    /** Whether any counter changed since the last flush. */
+    private boolean mDirty;
+
+    /**
+     * Constructs a new hit counter and loads persisted counts.
+     *
+     * @param context The parent context.
+     */
+    @SuppressWarnings("deprecation")
+    public RuleHitCounter(Context context) {
+        // Counts are written by the service process and read by the UI, and
+        // unlike rules they have no provider, so the UI must reread them.
+        mPrefs = context.getSharedPreferences(PREFS_FILE, Context.MODE_MULTI_PROCESS);
+        mToday = getDay(System.currentTimeMillis());
+
+        if (!mPrefs.contains(PREF_TRACKING_START)) {
+            mPrefs.edit().putLong(PREF_TRACKING_START, mToday).commit();
+        }
+
+        mTrackingStartDay = mPrefs.getLong(PREF_TRACKING_START, mToday);
+
+        for (Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+
+            final Hits hits = Hits.parse((String) entry.getValue());
+            if (hits != null) {
+                mHits.put(entry.getKey(), hits);
+            }
+        }
+    }
+
+    /**
+     * Records a hit for a rule filter. Must be called on the owning thread.
+     *
+     * @param filter The filter that resolved the orientation, or
+     *            {@link #DEFAULT_FILTER}.
+     */
+    public void recordHit(String filter) {
+        Hits hits = mHits.get(filter);
+        if (hits == null) {
+            hits = new Hits();
+            mHits.put(filter, hits);
+        }
+
+        hits.count++;
+        hits.lastDay = mToday;
+        hits.dirty = true;
+        mDirty = true;
+    }
+
+    /**
+     * Returns the number of hits recorded for a rule filter.
+     *
+     * @param filter The rule filter.
+     * @return The number of hits.
+     */
+    public int getCount(String filter) {
+        final Hits hits = mHits.get(filter);
+        return (hits != null) ? hits.count : 0;
+    }
+
+    /**
+     * Returns rule keys whose filters have not been hit in the specified
+     * number of days, ordered by key. Rules are only reported once counting
+     * has run for at least that long.
+     *
+     * @param keys The rule keys to check.
+     * @param days The number of days.
+     * @return The unused rule keys.
+     */
+    public List<String> getUnusedRules(Collection<String> keys, int days) {
+        final ArrayList<String> unused = new ArrayList<String>();
+        final long today = getDay(System.currentTimeMillis());
+        final long cutoff = today - days;
+
+        if (mTrackingStartDay > cutoff) {
+            return unused;
+        }
+
+        for (String key : keys) {
+            final Hits hits = mHits.get(DecisionTable.getFilter(key));
+            if ((hits == null) || (hits.lastDay <= cutoff)) {
+                unused.add(key);
+            }
+        }
+
+        Collections.sort(unused);
+        return unused;
+    }
+
+    /**
+     * Writes changed counters to preferences on a background thread and drops
+     * counters for filters that no longer have rules.
+     *
+     * @param filters The filters of all current rules, used to drop counts
+     *            for deleted rules, or {@code null} to keep all counts.
+     */
+    public void flush(Collection<String> filters) {
+        mToday = getDay(System.currentTimeMillis());
+
+        final ArrayList<String> removed = new ArrayList<String>();
+        if (filters != null) {
+            for (String filter : mHits.keySet()) {
+                if (!DEFAULT_FILTER.equals(filter) && !filters.contains(filter)) {
+                    removed.add(filter);
+                }
+            }
+
+            for (String filter : removed) {
+                mHits.remove(filter);
+            }
+        }
+
+        if (!mDirty && removed.isEmpty()) {
+            return;
+        }
+
+        final HashMap<String, String> changed = new HashMap<String, String>();
+        for (Entry<String, Hits> entry : mHits.entrySet()) {
+            final Hits hits = entry.getValue();
+            if (hits.dirty) {
+                changed.put(entry.getKey(), hits.toString());
+                hits.dirty = false;
+            }
+        }
+
+        mDirty = false;
+
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "RuleHitCounter");
+                }
+            });
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Editor editor = mPrefs.edit();
+                for (String filter : removed) {
+                    editor.remove(filter);
+                }
+
+                for (Entry<String, String> entry : changed.entrySet()) {
+                    editor.putString(entry.getKey(), entry.getValue());
+                }
+
+                editor.commit();
+            }
+        });
+    }
+
+    /**
+     * Returns the most frequently hit filters, most frequent first.
+     *
+     * @param limit The maximum number of filters to return.
+     * @return The most frequently hit filters.
+     */
+    public List<String> getMostFrequent(int limit) {
+        final ArrayList<Map.Entry<String, Hits>> entries =
+                new ArrayList<Map.Entry<String, Hits>>(mHits.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Hits>>() {
+            @Override
+            public int compare(Entry<String, Hits> lhs, Entry<String, Hits> rhs) {
+                return rhs.getValue().count - lhs.getValue().count;
+            }
+        });
+
+        final int count = Math.min(limit, entries.size());
+        final ArrayList<String> filters = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            filters.add(entries.get(i).getKey());
+        }
+
+        return filters;
+    }
+
+    private static long getDay(long timeMillis) {
+        return (timeMillis / DAY_MILLIS);
+    }
+
+    private static class Hits {
+        public int count;
+        public long lastDay;
+        public boolean dirty;
+
+        public static Hits parse(String value) {
+            final int separator = value.indexOf(',');
+            if (separator < 0) {
+                return null;
+            }
+
+            final Hits hits = new Hits();
+
+            try {
+                hits.count = Integer.parseInt(value.substring(0, separator));
+                hits.lastDay = Long.parseLong(value.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            return hits;
+        }
+
+        @Override
+        public String toString() {
+            return count + "," + lastDay;
+        }
+    }
+}
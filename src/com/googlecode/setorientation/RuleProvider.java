@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+/**
+ * Exposes rules and default rules to {@link OrientationService}, which runs
+ * in its own process where preference change listeners never fire.
+ * <p>
+ * The provider runs in the main process, where every rule and setting is
+ * written. It listens for preference changes there and notifies the
+ * matching {@link RuleStore} URI, so observers in other processes refresh
+ * only the affected rules. Queries read preferences directly, which is safe
+ * from binder threads.
+ */
+public class RuleProvider extends ContentProvider {
+    private static final String[] RULE_COLUMNS = {
+            RuleStore.COLUMN_KEY, RuleStore.COLUMN_ORIENTATION };
+    private static final String[] NAME_COLUMNS = { RuleStore.COLUMN_NAME };
+    private static final String[] ORIENTATION_COLUMNS = { RuleStore.COLUMN_ORIENTATION };
+
+    /**
+     * The most rules that are notified individually. Larger changes, such as
+     * a restore or compaction, notify the whole profile instead.
+     */
+    private static final int MAX_RULE_NOTIFICATIONS = 16;
+
+    private SharedPreferences mRulePrefs;
+    private OrientationPrefsManager mPrefsManager;
+
+    /**
+     * The last seen preference value of each profile, keyed by name, used to
+     * find which rules changed. The values are shared with the preferences,
+     * so this costs little more than the map. Only used on the main thread.
+     */
+    private final HashMap<String, String> mRulePrefValues = new HashMap<String, String>();
+
+    @Override
+    public boolean onCreate() {
+        final Context context = getContext();
+
+        mRulePrefs = context.getSharedPreferences(
+                CustomRuleManager.PREFS_FILE, Context.MODE_PRIVATE);
+        mRulePrefs.registerOnSharedPreferenceChangeListener(mRulePrefsListener);
+
+        for (Entry<String, ?> entry : mRulePrefs.getAll().entrySet()) {
+            final String name = CustomRuleManager.getProfileName(entry.getKey());
+            if ((name != null) && (entry.getValue() instanceof String)) {
+                mRulePrefValues.put(name, (String) entry.getValue());
+            }
+        }
+
+        mPrefsManager = new OrientationPrefsManager(context);
+        context.getSharedPreferences(OrientationPrefsManager.PREFS_FILE, Context.MODE_PRIVATE)
+                .registerOnSharedPreferenceChangeListener(mSettingsListener);
+
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        switch (RuleStore.match(uri)) {
+            case RuleStore.MATCH_PROFILE: {
+                final String rulePref = mRulePrefs.getString(
+                        CustomRuleManager.getProfileKey(uri.getLastPathSegment()), null);
+                if (rulePref == null) {
+                    // No cursor at all tells a missing profile from an empty one.
+                    return null;
+                }
+
+                final MatrixCursor cursor = new MatrixCursor(RULE_COLUMNS);
+                final HashMap<String, ScreenOrientation> rules =
+                        CustomRuleManager.parseRules(rulePref);
+                if (rules != null) {
+                    for (Entry<String, ScreenOrientation> rule : rules.entrySet()) {
+                        cursor.addRow(new Object[] {
+                                rule.getKey(), rule.getValue().getCode() });
+                    }
+                }
+
+                return cursor;
+            }
+            case RuleStore.MATCH_PROFILES: {
+                final MatrixCursor cursor = new MatrixCursor(NAME_COLUMNS);
+                for (String key : mRulePrefs.getAll().keySet()) {
+                    final String name = CustomRuleManager.getProfileName(key);
+                    if (name != null) {
+                        cursor.addRow(new Object[] { name });
+                    }
+                }
+
+                return cursor;
+            }
+            case RuleStore.MATCH_RULE: {
+                final String rulePref = mRulePrefs.getString(
+                        CustomRuleManager.getProfileKey(RuleStore.getRuleProfile(uri)), null);
+                final HashMap<String, ScreenOrientation> rules = (rulePref != null)
+                        ? CustomRuleManager.parseRules(rulePref) : null;
+                final String key = uri.getLastPathSegment();
+
+                final MatrixCursor cursor = new MatrixCursor(RULE_COLUMNS);
+                final ScreenOrientation orientation = (rules != null) ? rules.get(key) : null;
+                if (orientation != null) {
+                    cursor.addRow(new Object[] { key, orientation.getCode() });
+                }
+
+                return cursor;
+            }
+            case RuleStore.MATCH_ACTIVE_PROFILE: {
+                final MatrixCursor cursor = new MatrixCursor(NAME_COLUMNS);
+                final String name = mRulePrefs.getString(
+                        CustomRuleManager.PREF_ACTIVE_PROFILE, CustomRuleManager.DEFAULT_PROFILE);
+                cursor.addRow(new Object[] { name });
+                return cursor;
+            }
+            case RuleStore.MATCH_DEFAULT_RULE: {
+                final MatrixCursor cursor = new MatrixCursor(ORIENTATION_COLUMNS);
+                cursor.addRow(new Object[] {
+                        mPrefsManager.getDefaultRule(uri.getLastPathSegment()).getCode() });
+                return cursor;
+            }
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        switch (RuleStore.match(uri)) {
+            case RuleStore.MATCH_ACTIVE_PROFILE: {
+                final String name = values.getAsString(RuleStore.COLUMN_NAME);
+                if (!CustomRuleManager.isValidProfileName(name)) {
+                    return 0;
+                }
+
+                // Rule managers in this process switch through their own
+                // listeners.
+                mRulePrefs.edit().putString(CustomRuleManager.PREF_ACTIVE_PROFILE, name).commit();
+                return 1;
+            }
+            case RuleStore.MATCH_PROFILE: {
+                final String key = values.getAsString(RuleStore.COLUMN_KEY);
+                final Integer code = values.getAsInteger(RuleStore.COLUMN_ORIENTATION);
+                if ((key == null)
+                        || !CustomRuleManager.isValidProfileName(uri.getLastPathSegment())) {
+                    return 0;
+                }
+
+                updateRule(uri.getLastPathSegment(), key,
+                        (code != null) ? ScreenOrientation.fromCode(code) : null);
+                return 1;
+            }
+            case RuleStore.MATCH_DEFAULT_RULE: {
+                final Integer code = values.getAsInteger(RuleStore.COLUMN_ORIENTATION);
+                if ((code == null)
+                        || !CustomRuleManager.isValidProfileName(uri.getLastPathSegment())) {
+                    return 0;
+                }
+
+                mPrefsManager.setDefaultRule(
+                        uri.getLastPathSegment(), ScreenOrientation.fromCode(code));
+                return 1;
+            }
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Sets or removes a single rule by rewriting the profile's preference.
+     * Rule managers in this process pick the change up through their own
+     * listeners. Synchronized, since updates arrive on binder threads.
+     */
+    private synchronized void updateRule(String name, String key, ScreenOrientation orientation) {
+        final String profileKey = CustomRuleManager.getProfileKey(name);
+        final String rulePref = mRulePrefs.getString(profileKey, null);
+        final HashMap<String, ScreenOrientation> rules = (rulePref != null)
+                ? CustomRuleManager.parseRules(rulePref)
+                : new HashMap<String, ScreenOrientation>();
+
+        if (orientation != null) {
+            rules.put(key, orientation);
+        } else {
+            rules.remove(key);
+        }
+
+        mRulePrefs.edit().putString(profileKey, CustomRuleManager.serialize(rules)).commit();
+        CustomRuleManager.requestBackup(getContext().getPackageName());
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    /**
+     * Notifies the URI of each rule that changed in a profile, or the
+     * profile's URI if it was created or deleted or too many rules changed.
+     *
+     * @param name The profile name.
+     * @param rulePref The profile's new preference value, or {@code null} if
+     *            it was deleted.
+     */
+    private void notifyProfileChanged(String name, String rulePref) {
+        final String previousPref = (rulePref != null)
+                ? mRulePrefValues.put(name, rulePref) : mRulePrefValues.remove(name);
+        final HashMap<String, ScreenOrientation> previous = (previousPref != null)
+                ? CustomRuleManager.parseRules(previousPref) : null;
+        final HashMap<String, ScreenOrientation> current = (rulePref != null)
+                ? CustomRuleManager.parseRules(rulePref) : null;
+
+        final ArrayList<String> changedKeys = new ArrayList<String>();
+        if ((previous != null) && (current != null)) {
+            // Rules that were removed or changed, then rules that were added.
+            for (Entry<String, ScreenOrientation> entry : previous.entrySet()) {
+                if (current.get(entry.getKey()) != entry.getValue()) {
+                    changedKeys.add(entry.getKey());
+                }
+            }
+
+            for (String key : current.keySet()) {
+                if (!previous.containsKey(key)) {
+                    changedKeys.add(key);
+                }
+            }
+        }
+
+        final ContentResolver resolver = getContext().getContentResolver();
+        if ((previous == null) || (current == null)
+                || (changedKeys.size() > MAX_RULE_NOTIFICATIONS)) {
+            resolver.notifyChange(RuleStore.getProfileUri(name), null);
+            return;
+        }
+
+        for (String key : changedKeys) {
+            resolver.notifyChange(RuleStore.getRuleUri(name, key), null);
+        }
+    }
+
+    /**
+     * Notifies the URI that matches a changed rule preference.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mRulePrefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (CustomRuleManager.PREF_ACTIVE_PROFILE.equals(key)) {
+                        getContext().getContentResolver().notifyChange(
+                                RuleStore.ACTIVE_PROFILE_URI, null);
+                        return;
+                    }
+
+                    final String name = CustomRuleManager.getProfileName(key);
+                    if (name != null) {
+                        notifyProfileChanged(name, prefs.getString(key, null));
+                    }
+                }
+            };
+
+    /**
+     * Notifies the URI that matches a changed default rule preference.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (OrientationPrefsManager.isDefaultRuleKey(key)) {
+                        getContext().getContentResolver().notifyChange(
+                                RuleStore.getDefaultRuleUri(null), null);
+                    }
+                }
+            };
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Contract for {@link RuleProvider}, along with helpers used by other
+ * processes to read and write rules and settings through it.
+ * <p>
+ * Each profile's rules have their own URI, and so does each rule within a
+ * profile. When a few rules change, the provider notifies the URI of each
+ * changed rule, so observers only refresh those rules. When a profile is
+ * created or deleted, or many of its rules change at once, the provider
+ * notifies the profile's URI instead.
+ */
+public class RuleStore {
+    public static final String AUTHORITY = "com.googlecode.eyesfree.setorientation.rules";
+
+    /** Base URI. Observe it with descendants to receive every change. */
+    public static final Uri BASE_URI = Uri.parse("content://" + AUTHORITY);
+
+    /** The names of all profiles, one row per profile. Supports query. */
+    public static final Uri PROFILES_URI = Uri.withAppendedPath(BASE_URI, "profiles");
+
+    /** The name of the active profile. Supports query and update. */
+    public static final Uri ACTIVE_PROFILE_URI = Uri.withAppendedPath(BASE_URI, "active");
+
+    /** Column holding a profile name. */
+    public static final String COLUMN_NAME = "name";
+
+    /** Column holding a rule key. */
+    public static final String COLUMN_KEY = "key";
+
+    /** Column holding an orientation code. */
+    public static final String COLUMN_ORIENTATION = "orientation";
+
+    static final int MATCH_PROFILE = 1;
+    static final int MATCH_ACTIVE_PROFILE = 2;
+    static final int MATCH_DEFAULT_RULES = 3;
+    static final int MATCH_DEFAULT_RULE = 4;
+    static final int MATCH_RULE = 5;
+    static final int MATCH_PROFILES = 6;
+
+    private static final String PATH_PROFILES = "profiles";
+    private static final String PATH_DEFAULTS = "defaults";
+
+    private static final UriMatcher sMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        sMatcher.addURI(AUTHORITY, PATH_PROFILES, MATCH_PROFILES);
+        sMatcher.addURI(AUTHORITY, PATH_PROFILES + "/*", MATCH_PROFILE);
+        sMatcher.addURI(AUTHORITY, PATH_PROFILES + "/*/*", MATCH_RULE);
+        sMatcher.addURI(AUTHORITY, "active", MATCH_ACTIVE_PROFILE);
+        sMatcher.addURI(AUTHORITY, PATH_DEFAULTS, MATCH_DEFAULT_RULES);
+        sMatcher.addURI(AUTHORITY, PATH_DEFAULTS + "/*", MATCH_DEFAULT_RULE);
+    }
+
+    /**
+     * @param name The profile name.
+     * @return The URI of a profile's rules, one row per rule. Updating it
+     *         sets or removes a single rule.
+     */
+    public static Uri getProfileUri(String name) {
+        return BASE_URI.buildUpon().appendPath(PATH_PROFILES).appendPath(name).build();
+    }
+
+    /**
+     * @param name The profile name.
+     * @param key The rule key, e.g. a package filter.
+     * @return The URI of a single rule, with one row if the rule exists.
+     */
+    public static Uri getRuleUri(String name, String key) {
+        return getProfileUri(name).buildUpon().appendPath(key).build();
+    }
+
+    /**
+     * @param uri A URI matching {@link #MATCH_RULE}.
+     * @return The name of the profile containing the rule.
+     */
+    static String getRuleProfile(Uri uri) {
+        return uri.getPathSegments().get(1);
+    }
+
+    /**
+     * Returns the URI of a profile's default rule. Any change notifies the
+     * URI for every profile, since the default profile's value is the
+     * fallback for all of them.
+     *
+     * @param name The profile name, or {@code null} for every profile.
+     * @return The URI of the default rule.
+     */
+    public static Uri getDefaultRuleUri(String name) {
+        final Uri.Builder builder = BASE_URI.buildUpon().appendPath(PATH_DEFAULTS);
+        if (name != null) {
+            builder.appendPath(name);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @param uri A URI from this contract.
+     * @return The kind of URI, e.g. {@link #MATCH_PROFILE}, or
+     *         {@link UriMatcher#NO_MATCH}.
+     */
+    static int match(Uri uri) {
+        return sMatcher.match(uri);
+    }
+
+    /**
+     * Reads a profile's rules.
+     *
+     * @param resolver The content resolver.
+     * @param name The profile name.
+     * @return The rules keyed by filter, which are empty if the profile
+     *         exists but has no rules, or {@code null} if the profile does
+     *         not exist or the provider is unavailable.
+     */
+    public static HashMap<String, ScreenOrientation> queryProfile(
+            ContentResolver resolver, String name) {
+        final Cursor cursor = resolver.query(getProfileUri(name), null, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            final HashMap<String, ScreenOrientation> rules =
+                    new HashMap<String, ScreenOrientation>();
+            final int keyColumn = cursor.getColumnIndex(COLUMN_KEY);
+            final int orientationColumn = cursor.getColumnIndex(COLUMN_ORIENTATION);
+
+            while (cursor.moveToNext()) {
+                final String key = cursor.getString(keyColumn);
+                if (key != null) {
+                    rules.put(key, ScreenOrientation.fromCode(cursor.getInt(orientationColumn)));
+                }
+            }
+
+            return rules;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param resolver The content resolver.
+     * @return The names of all profiles, or {@code null} if the provider is
+     *         unavailable.
+     */
+    public static ArrayList<String> queryProfileNames(ContentResolver resolver) {
+        final Cursor cursor = resolver.query(PROFILES_URI, null, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            final ArrayList<String> names = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads a single rule.
+     *
+     * @param resolver The content resolver.
+     * @param name The profile name.
+     * @param key The rule key.
+     * @return The rule, or {@code null} if there is none or the provider is
+     *         unavailable.
+     */
+    public static ScreenOrientation queryRule(ContentResolver resolver, String name, String key) {
+        final Cursor cursor = resolver.query(getRuleUri(name, key), null, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            return cursor.moveToFirst()
+                    ? ScreenOrientation.fromCode(cursor.getInt(
+                            cursor.getColumnIndex(COLUMN_ORIENTATION)))
+                    : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param resolver The content resolver.
+     * @return The name of the active profile, or {@code null} if the
+     *         provider is unavailable.
+     */
+    public static String queryActiveProfile(ContentResolver resolver) {
+        final Cursor cursor = resolver.query(ACTIVE_PROFILE_URI, null, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param resolver The content resolver.
+     * @param name The profile name.
+     * @return The profile's default rule, or {@code null} if the provider is
+     *         unavailable.
+     */
+    public static ScreenOrientation queryDefaultRule(ContentResolver resolver, String name) {
+        final Cursor cursor = resolver.query(getDefaultRuleUri(name), null, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            return cursor.moveToFirst() ? ScreenOrientation.fromCode(cursor.getInt(0)) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Switches the active profile. Observers are notified once the change is
+     * committed.
+     *
+     * @param resolver The content resolver.
+     * @param name The name of the profile to activate.
+     * @return Whether the name was valid.
+     */
+    public static boolean setActiveProfile(ContentResolver resolver, String name) {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, name);
+        return (resolver.update(ACTIVE_PROFILE_URI, values, null, null) > 0);
+    }
+
+    /**
+     * Sets or removes a single rule in a profile. Observers are notified once
+     * the change is committed.
+     *
+     * @param resolver The content resolver.
+     * @param name The profile name.
+     * @param key The rule key, e.g. a package filter.
+     * @param orientation The rule to set, or {@code null} to remove it.
+     * @return Whether the rule was written.
+     */
+    public static boolean setRule(ContentResolver resolver, String name, String key,
+            ScreenOrientation orientation) {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_KEY, key);
+        if (orientation != null) {
+            values.put(COLUMN_ORIENTATION, orientation.getCode());
+        } else {
+            values.putNull(COLUMN_ORIENTATION);
+        }
+
+        return (resolver.update(getProfileUri(name), values, null, null) > 0);
+    }
+
+    /**
+     * Sets a profile's default rule. Observers are notified once the change
+     * is committed.
+     *
+     * @param resolver The content resolver.
+     * @param name The profile name.
+     * @param orientation The default rule to set.
+     * @return Whether the rule was written.
+     */
+    public static boolean setDefaultRule(ContentResolver resolver, String name,
+            ScreenOrientation orientation) {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_ORIENTATION, orientation.getCode());
+        return (resolver.update(getDefaultRuleUri(name), values, null, null) > 0);
+    }
+
+    private RuleStore() {
+        // This class is non-instantiable.
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.ComponentName;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports and exports custom rules as text.
+ * <p>
+ * The format has one rule per line, consisting of a component filter and an
+ * orientation code separated by a comma:
+ *
+ * <pre>
+ * # Comments and blank lines are ignored.
+ * com.example.kiosk,0
+ * com.example.reader/.ReaderActivity,1
+ * com.example.reader/.ReaderActivity;when=docked,0
+ * </pre>
+ *
+ * The filter is either a package name or a component name in the form
+ * returned by {@link ComponentName#flattenToShortString()}, optionally
+ * followed by a device state condition, see {@link DecisionTable}. The code is one of
+ * the {@code ActivityInfo.SCREEN_ORIENTATION_*} constants that is supported on
+ * the device, see {@link ScreenOrientation}. This is the same format used to
+ * persist rules, so an exported file can be imported as-is.
+ * <p>
+ * Both directions stream: export writes one rule at a time and import reads
+ * one line at a time, validating lines in parallel as they are read.
+ */
+public class RuleTransfer {
+    /** Prefix for comment lines. */
+    private static final String COMMENT_PREFIX = "#";
+
+    /** The number of threads used to validate lines. */
+    private static final int VALIDATION_THREADS = 4;
+
+    /** The maximum number of lines awaiting validation at any time. */
+    private static final int MAX_PENDING_LINES = 256;
+
+    /**
+     * Writes all custom rules to the specified writer.
+     *
+     * @param ruleManager The rule manager to export from.
+     * @param writer The writer to export to. Not closed by this method.
+     * @return The number of rules written.
+     * @throws IOException If the writer fails.
+     */
+    public static int exportRules(CustomRuleManager ruleManager, Writer writer)
+            throws IOException {
+        int count = 0;
+
+        for (Entry<String, ScreenOrientation> rule : ruleManager.getRules().entrySet()) {
+            writer.write(rule.getKey());
+            writer.write(',');
+            writer.write(Integer.toString(rule.getValue().getCode()));
+            writer.write('\n');
+            count++;
+        }
+
+        writer.flush();
+
+        return count;
+    }
+
+    /**
+     * Reads rules from the specified reader and validates them against the
+     * installed packages. If every line is valid, all rules are committed in
+     * a single write. Otherwise nothing is committed.
+     *
+     * @param pm The package manager used to validate filters.
+     * @param ruleManager The rule manager to import into.
+     * @param reader The reader to import from. Not closed by this method.
+     * @param allowUninstalled Whether to accept rules for packages that are
+     *            not installed.
+     * @return The result of the import.
+     * @throws IOException If the reader fails.
+     */
+    public static ImportResult importRules(final PackageManager pm,
+            CustomRuleManager ruleManager, Reader reader, final boolean allowUninstalled)
+            throws IOException {
+        final BufferedReader lineReader = new BufferedReader(reader);
+        final ExecutorService executor = Executors.newFixedThreadPool(VALIDATION_THREADS);
+        final LinkedList<Future<ParsedLine>> pending = new LinkedList<Future<ParsedLine>>();
+        final HashMap<String, ScreenOrientation> rules = new HashMap<String, ScreenOrientation>();
+        final ArrayList<ImportError> errors = new ArrayList<ImportError>();
+
+        try {
+            String line;
+            int lineNumber = 0;
+
+            while ((line = lineReader.readLine()) != null) {
+                lineNumber++;
+
+                final String trimmed = line.trim();
+                if ((trimmed.length() == 0) || trimmed.startsWith(COMMENT_PREFIX)) {
+                    continue;
+                }
+
+                final int number = lineNumber;
+                pending.add(executor.submit(new Callable<ParsedLine>() {
+                    @Override
+                    public ParsedLine call() {
+                        return parseLine(pm, number, trimmed, allowUninstalled);
+                    }
+                }));
+
+                // Keep memory bounded by collecting the oldest results.
+                if (pending.size() >= MAX_PENDING_LINES) {
+                    collect(pending.removeFirst(), rules, errors);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                collect(pending.removeFirst(), rules, errors);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (errors.isEmpty() && !rules.isEmpty()) {
+            ruleManager.setRules(rules);
+        }
+
+        return new ImportResult(errors.isEmpty() ? rules.size() : 0, errors);
+    }
+
+    private static void collect(Future<ParsedLine> future,
+            HashMap<String, ScreenOrientation> rules, List<ImportError> errors) {
+        final ParsedLine parsed;
+
+        try {
+            parsed = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (parsed.error != null) {
+            errors.add(parsed.error);
+        } else {
+            // Later lines override earlier lines, matching storeRule().
+            rules.put(parsed.filter, parsed.orientation);
+        }
+    }
+
+    /**
+     * Parses and validates a single non-empty, non-comment line. Called on a
+     * validation thread.
+     */
+    private static ParsedLine parseLine(
+            PackageManager pm, int lineNumber, String line, boolean allowUninstalled) {
+        final int separator = line.lastIndexOf(',');
+        if (separator <= 0) {
+            return ParsedLine.error(lineNumber, "Expected <filter>,<orientation>");
+        }
+
+        final String filter = line.substring(0, separator).trim();
+        if (!DecisionTable.isValidKey(filter)) {
+            return ParsedLine.error(lineNumber, "Invalid condition: " + filter);
+        }
+
+        final String codeString = line.substring(separator + 1).trim();
+        final int code;
+
+        try {
+            code = Integer.parseInt(codeString);
+        } catch (NumberFormatException e) {
+            return ParsedLine.error(lineNumber, "Invalid orientation code: " + codeString);
+        }
+
+        final ScreenOrientation orientation = ScreenOrientation.fromSupportedCode(code);
+        if (orientation == null) {
+            return ParsedLine.error(lineNumber, "Unsupported orientation code: " + code);
+        }
+
+        final String componentFilter = DecisionTable.getFilter(filter);
+        final ComponentName component = ComponentName.unflattenFromString(componentFilter);
+
+        try {
+            if (component != null) {
+                pm.getActivityInfo(component, 0);
+            } else {
+                pm.getPackageInfo(componentFilter, 0);
+            }
+        } catch (NameNotFoundException e) {
+            if (!allowUninstalled) {
+                return new ParsedLine(null, null,
+                        new ImportError(lineNumber, "Not installed: " + filter, true));
+            }
+        }
+
+        return new ParsedLine(filter, orientation, null);
+    }
+
+    private static class ParsedLine {
+        final String filter;
+        final ScreenOrientation orientation;
+        final ImportError error;
+
+        public ParsedLine(String filter, ScreenOrientation orientation, ImportError error) {
+            this.filter = filter;
+            this.orientation = orientation;
+            this.error = error;
+        }
+
+        public static ParsedLine error(int lineNumber, String message) {
+            return new ParsedLine(null, null, new ImportError(lineNumber, message));
+        }
+    }
+
+    /**
+     * An error found on a single line during import.
+     */
+    public static class ImportError {
+        /** The one-based line number. */
+        public final int lineNumber;
+
+        /** A description of the error. */
+        public final String message;
+
+        /** Whether the line is valid but its package or activity is missing. */
+        public final boolean notInstalled;
+
+        public ImportError(int lineNumber, String message) {
+            this(lineNumber, message, false);
+        }
+
+        public ImportError(int lineNumber, String message, boolean notInstalled) {
+            this.lineNumber = lineNumber;
+            this.message = message;
+            this.notInstalled = notInstalled;
+        }
+
+        @Override
+        public String toString() {
+            return lineNumber + ": " + message;
+        }
+    }
+
+    /**
+     * The result of an import.
+     */
+    public static class ImportResult {
+        /** The number of rules committed. */
+        public final int committedCount;
+
+        /** Errors found during import, in line order. */
+        public final List<ImportError> errors;
+
+        public ImportResult(int committedCount, List<ImportError> errors) {
+            this.committedCount = committedCount;
+            this.errors = errors;
+        }
+
+        /**
+         * @return Whether the import failed only because of rules for
+         *         packages or activities that are not installed, so that it
+         *         would succeed if those were allowed.
+         */
+        public boolean isRejectedOnlyForMissing() {
+            if (errors.isEmpty()) {
+                return false;
+            }
+
+            for (ImportError error : errors) {
+                if (!error.notInstalled) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
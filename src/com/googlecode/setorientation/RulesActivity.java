@@ -0,0 +1,756 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Environment;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.googlecode.eyesfree.setorientation.R;
+import com.googlecode.setorientation.AppLabelCache.OnLabelLoadedListener;
+import com.googlecode.setorientation.CustomRuleManager.RuleListener;
+import com.googlecode.setorientation.RuleTransfer.ImportResult;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Lists every installed package and activity along with its custom rule.
+ * Packages are loaded in pages on a background thread and indexed by label,
+ * package name and class name for search-as-you-type.
+ */
+public class RulesActivity extends Activity {
+    /** The number of packages loaded before the list is updated. */
+    private static final int PAGE_SIZE = 50;
+
+    /** The name of the file, relative to external storage, used for transfer. */
+    private static final String TRANSFER_FILE_NAME = "set_orientation_rules.txt";
+
+    /** The maximum number of import errors to show. */
+    private static final int MAX_SHOWN_ERRORS = 20;
+
+    /** Rules not used in this many days are reported as unused. */
+    private static final int UNUSED_RULE_DAYS = 30;
+
+    private CustomRuleManager mRuleManager;
+    private AppLabelCache mLabelCache;
+    private RuleListAdapter mAdapter;
+    private EditText mSearch;
+    private PageLoader mPageLoader;
+
+    /** All loaded entries, replaced after each page. */
+    private RuleEntry[] mEntries = new RuleEntry[0];
+
+    /** Index over {@link #mEntries}, replaced after each page. */
+    private PrefixIndex mIndex;
+
+    /** Entries matching the current query, or {@code null} to show all. */
+    private int[] mFilteredEntries;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.rules_activity);
+
+        mRuleManager = new CustomRuleManager(this);
+        mRuleManager.setListener(mRuleListener);
+        updateTitle();
+        mLabelCache = AppLabelCache.getInstance(this);
+        mAdapter = new RuleListAdapter(this);
+
+        final ListView list = (ListView) findViewById(android.R.id.list);
+        list.setEmptyView(findViewById(android.R.id.empty));
+        list.setAdapter(mAdapter);
+        list.setOnItemClickListener(mOnItemClickListener);
+
+        mSearch = (EditText) findViewById(R.id.search);
+        mSearch.addTextChangedListener(mSearchWatcher);
+
+        mPageLoader = new PageLoader(this);
+        mPageLoader.execute();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        mPageLoader.cancel(false);
+        mRuleManager.setListener(null);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.rules_activity, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.apply_to_shown:
+                showRuleDialog(getShownEntries());
+                return true;
+            case R.id.import_rules:
+                new TransferTask(this, true, false).execute();
+                return true;
+            case R.id.export_rules:
+                new TransferTask(this, false, false).execute();
+                return true;
+            case R.id.compact_rules:
+                new CompactTask(this).execute();
+                return true;
+            case R.id.profiles:
+                showProfileDialog();
+                return true;
+            case R.id.unused_rules:
+                showUnusedRulesDialog();
+                return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Replaces the loaded entries and index with a newly loaded page.
+     */
+    private void onPageLoaded(RuleEntry[] entries, PrefixIndex index) {
+        mEntries = entries;
+        mIndex = index;
+
+        updateFilter();
+    }
+
+    private void updateFilter() {
+        final String query = mSearch.getText().toString();
+        if ((query.trim().length() == 0) || (mIndex == null)) {
+            mFilteredEntries = null;
+        } else {
+            mFilteredEntries = mIndex.query(query);
+        }
+
+        mAdapter.notifyDataSetChanged();
+    }
+
+    private List<RuleEntry> getShownEntries() {
+        final int count = mAdapter.getCount();
+        final List<RuleEntry> entries = new ArrayList<RuleEntry>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(mAdapter.getItem(i));
+        }
+
+        return entries;
+    }
+
+    /**
+     * Shows a dialog that applies the selected rule to all of the specified
+     * entries with a single write.
+     */
+    private void showRuleDialog(final List<RuleEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        final List<ScreenOrientation> values = ScreenOrientation.supportedValues();
+        final CharSequence[] labels = new CharSequence[values.size() + 1];
+        labels[0] = getString(R.string.rule_none);
+        for (int i = 0; i < values.size(); i++) {
+            labels[i + 1] = values.get(i).getString(this);
+        }
+
+        final CharSequence title;
+        if (entries.size() == 1) {
+            title = entries.get(0).getTitle(mLabelCache);
+        } else {
+            title = getString(R.string.title_apply_to_count, entries.size());
+        }
+
+        new AlertDialog.Builder(this).setTitle(title)
+                .setItems(labels, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final ScreenOrientation orientation =
+                                (which == 0) ? null : values.get(which - 1);
+                        final HashMap<String, ScreenOrientation> rules =
+                                new HashMap<String, ScreenOrientation>();
+
+                        for (RuleEntry entry : entries) {
+                            rules.put(entry.filter, orientation);
+                        }
+
+                        mRuleManager.setRules(rules);
+                    }
+                }).show();
+    }
+
+    /**
+     * Shows a dialog that switches the active profile or creates a new one.
+     */
+    private void showProfileDialog() {
+        final List<String> names = mRuleManager.getProfileNames();
+        final CharSequence[] labels = names.toArray(new CharSequence[names.size()]);
+        final int checked = names.indexOf(mRuleManager.getActiveProfile());
+
+        new AlertDialog.Builder(this).setTitle(R.string.title_profiles)
+                .setSingleChoiceItems(labels, checked, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mRuleManager.setActiveProfile(names.get(which));
+                        dialog.dismiss();
+                    }
+                })
+                .setPositiveButton(R.string.new_profile, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showNewProfileDialog();
+                    }
+                }).show();
+    }
+
+    private void showNewProfileDialog() {
+        final EditText name = new EditText(this);
+        name.setHint(R.string.hint_profile_name);
+        name.setSingleLine();
+
+        new AlertDialog.Builder(this).setTitle(R.string.new_profile).setView(name)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (!mRuleManager.setActiveProfile(name.getText().toString().trim())) {
+                            showResultDialog(getString(R.string.invalid_profile_name));
+                        }
+                    }
+                }).setNegativeButton(android.R.string.cancel, null).show();
+    }
+
+    /**
+     * Shows rules in the active profile that have not resolved an orientation
+     * recently, with an option to remove them.
+     */
+    private void showUnusedRulesDialog() {
+        final List<String> unused = new RuleHitCounter(this).getUnusedRules(
+                mRuleManager.getRules().keySet(), UNUSED_RULE_DAYS);
+        if (unused.isEmpty()) {
+            showResultDialog(getString(R.string.no_unused_rules, UNUSED_RULE_DAYS));
+            return;
+        }
+
+        final CharSequence[] labels = unused.toArray(new CharSequence[unused.size()]);
+
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.title_unused_rules, UNUSED_RULE_DAYS))
+                .setItems(labels, null)
+                .setPositiveButton(R.string.remove_unused_rules,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                final HashMap<String, ScreenOrientation> removals =
+                                        new HashMap<String, ScreenOrientation>();
+                                for (String key : unused) {
+                                    removals.put(key, null);
+                                }
+
+                                mRuleManager.setRules(removals);
+                            }
+                        }).setNegativeButton(android.R.string.cancel, null).show();
+    }
+
+    private void updateTitle() {
+        final String profile = mRuleManager.getActiveProfile();
+        if (CustomRuleManager.DEFAULT_PROFILE.equals(profile)) {
+            setTitle(R.string.title_rules);
+        } else {
+            setTitle(getString(R.string.title_rules_profile, profile));
+        }
+    }
+
+    /**
+     * @return The file used to import and export rules.
+     */
+    private static File getTransferFile() {
+        return new File(Environment.getExternalStorageDirectory(), TRANSFER_FILE_NAME);
+    }
+
+    private void showResultDialog(CharSequence message) {
+        new AlertDialog.Builder(this).setMessage(message)
+                .setPositiveButton(android.R.string.ok, null).show();
+    }
+
+    private final OnItemClickListener mOnItemClickListener = new OnItemClickListener() {
+        @Override
+        public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            showRuleDialog(Collections.singletonList(mAdapter.getItem(position)));
+        }
+    };
+
+    private final TextWatcher mSearchWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            // Do nothing.
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            updateFilter();
+        }
+    };
+
+    private final RuleListener mRuleListener = new RuleListener() {
+        @Override
+        public void onRulesChanged() {
+            mAdapter.notifyDataSetChanged();
+        }
+
+        @Override
+        public void onProfileChanged(String profile) {
+            updateTitle();
+            mAdapter.notifyDataSetChanged();
+        }
+    };
+
+    /**
+     * A package or activity shown in the list.
+     */
+    private static class RuleEntry {
+        final ComponentName component;
+        final boolean isPackage;
+        final String filter;
+        final CharSequence label;
+
+        public RuleEntry(ComponentName component, boolean isPackage, CharSequence label) {
+            this.component = component;
+            this.isPackage = isPackage;
+            this.label = label;
+
+            if (isPackage) {
+                filter = CustomRuleManager.getPackageFilter(component.getPackageName());
+            } else {
+                filter = CustomRuleManager.getComponentFilter(component);
+            }
+        }
+
+        public CharSequence getTitle(AppLabelCache labelCache) {
+            if (isPackage) {
+                return label;
+            }
+
+            final CharSequence activityLabel = labelCache.peekActivityLabel(component);
+            if (activityLabel != null) {
+                return activityLabel;
+            }
+
+            return component.getShortClassName();
+        }
+
+        public CharSequence getSubtitle() {
+            if (isPackage) {
+                return component.getPackageName();
+            }
+
+            return component.getShortClassName();
+        }
+    }
+
+    /**
+     * Loads installed packages and their activities in pages, publishing a
+     * new entry array and index after each page.
+     */
+    private static class PageLoader extends AsyncTask<Void, Object, Void> {
+        private final PackageManager mPackageManager;
+        private final AppLabelCache mLabelCache;
+
+        /** The activity to publish to, cleared when the task is cancelled. */
+        private RulesActivity mActivity;
+
+        public PageLoader(RulesActivity activity) {
+            mActivity = activity;
+            mPackageManager = activity.getPackageManager();
+            mLabelCache = AppLabelCache.getInstance(activity);
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            final List<ApplicationInfo> applications =
+                    mPackageManager.getInstalledApplications(0);
+            Collections.sort(applications, new Comparator<ApplicationInfo>() {
+                @Override
+                public int compare(ApplicationInfo lhs, ApplicationInfo rhs) {
+                    return lhs.packageName.compareTo(rhs.packageName);
+                }
+            });
+
+            final ArrayList<RuleEntry> entries = new ArrayList<RuleEntry>();
+            final int count = applications.size();
+            PrefixIndex index = new PrefixIndex.Builder().build();
+
+            for (int page = 0; page < count; page += PAGE_SIZE) {
+                final int pageEnd = Math.min(count, page + PAGE_SIZE);
+                final int firstEntry = entries.size();
+
+                for (int i = page; i < pageEnd; i++) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+
+                    addPackage(entries, applications.get(i).packageName);
+                }
+
+                final RuleEntry[] snapshot = entries.toArray(new RuleEntry[entries.size()]);
+                index = index.append(indexPage(snapshot, firstEntry));
+                publishProgress(snapshot, index);
+            }
+
+            return null;
+        }
+
+        private void addPackage(List<RuleEntry> entries, String packageName) {
+            final ComponentName packageComponent = new ComponentName(packageName, "");
+            final CharSequence label = mLabelCache.getApplicationLabelBlocking(packageComponent);
+            entries.add(new RuleEntry(
+                    packageComponent, true, (label != null) ? label : packageName));
+
+            final PackageInfo packageInfo;
+
+            try {
+                packageInfo = mPackageManager.getPackageInfo(
+                        packageName, PackageManager.GET_ACTIVITIES);
+            } catch (NameNotFoundException e) {
+                return;
+            }
+
+            if (packageInfo.activities == null) {
+                return;
+            }
+
+            for (ActivityInfo activity : packageInfo.activities) {
+                final ComponentName component = new ComponentName(packageName, activity.name);
+                entries.add(new RuleEntry(component, false, null));
+            }
+        }
+
+        /**
+         * Returns a builder holding the tokens of the entries added since
+         * the previous page.
+         */
+        private static PrefixIndex.Builder indexPage(RuleEntry[] entries, int firstEntry) {
+            final PrefixIndex.Builder builder = new PrefixIndex.Builder();
+
+            for (int i = firstEntry; i < entries.length; i++) {
+                final RuleEntry entry = entries[i];
+                builder.add(i, entry.component.getPackageName());
+
+                if (entry.isPackage) {
+                    builder.add(i, entry.label);
+                } else {
+                    builder.add(i, entry.component.getShortClassName());
+                }
+            }
+
+            return builder;
+        }
+
+        @Override
+        protected void onProgressUpdate(Object... values) {
+            if (mActivity != null) {
+                mActivity.onPageLoaded((RuleEntry[]) values[0], (PrefixIndex) values[1]);
+            }
+        }
+
+        @Override
+        protected void onCancelled() {
+            mActivity = null;
+        }
+    }
+
+    /**
+     * Imports or exports rules on a background thread.
+     */
+    private static class TransferTask extends AsyncTask<Void, Void, CharSequence> {
+        private final RulesActivity mActivity;
+        private final PackageManager mPackageManager;
+        private final boolean mImport;
+
+        /** Whether to import rules for packages that are not installed. */
+        private final boolean mAllowUninstalled;
+
+        /** A rule manager owned by the background thread. */
+        private CustomRuleManager mRuleManager;
+
+        /** Whether the import was rejected only for missing packages. */
+        private boolean mRejectedOnlyForMissing;
+
+        public TransferTask(RulesActivity activity, boolean isImport, boolean allowUninstalled) {
+            mActivity = activity;
+            mPackageManager = activity.getPackageManager();
+            mImport = isImport;
+            mAllowUninstalled = allowUninstalled;
+        }
+
+        @Override
+        protected CharSequence doInBackground(Void... params) {
+            final File file = getTransferFile();
+
+            // The activity's rule manager is only safe to use on the main
+            // thread. Its listener picks up the committed rules.
+            mRuleManager = CustomRuleManager.createDetached(mActivity);
+
+            try {
+                if (mImport) {
+                    return importFrom(file);
+                } else {
+                    return exportTo(file);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return mActivity.getString(R.string.transfer_failed, file, e.getMessage());
+            }
+        }
+
+        private CharSequence importFrom(File file) throws IOException {
+            final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            final ImportResult result;
+
+            try {
+                result = RuleTransfer.importRules(
+                        mPackageManager, mRuleManager, reader, mAllowUninstalled);
+            } finally {
+                reader.close();
+            }
+
+            mRejectedOnlyForMissing = result.isRejectedOnlyForMissing();
+
+            if (result.errors.isEmpty()) {
+                return mActivity.getString(R.string.import_succeeded, result.committedCount, file);
+            }
+
+            final StringBuilder message = new StringBuilder(
+                    mActivity.getString(R.string.import_failed, result.errors.size(), file));
+            final int shownErrors = Math.min(MAX_SHOWN_ERRORS, result.errors.size());
+            for (int i = 0; i < shownErrors; i++) {
+                message.append('\n').append(result.errors.get(i));
+            }
+
+            return message;
+        }
+
+        private CharSequence exportTo(File file) throws IOException {
+            final Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            final int count;
+
+            try {
+                count = RuleTransfer.exportRules(mRuleManager, writer);
+            } finally {
+                writer.close();
+            }
+
+            return mActivity.getString(R.string.export_succeeded, count, file);
+        }
+
+        @Override
+        protected void onPostExecute(CharSequence result) {
+            if (mActivity.isFinishing()) {
+                return;
+            }
+
+            if (!mRejectedOnlyForMissing) {
+                mActivity.showResultDialog(result);
+                return;
+            }
+
+            // Let the user keep rules for apps they haven't installed yet.
+            new AlertDialog.Builder(mActivity).setMessage(result)
+                    .setPositiveButton(R.string.import_anyway,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialog, int which) {
+                                    new TransferTask(mActivity, true, true).execute();
+                                }
+                            }).setNegativeButton(android.R.string.cancel, null).show();
+        }
+    }
+
+    /**
+     * Removes stale rules on a background thread and shows the reclaimed
+     * space.
+     */
+    private static class CompactTask extends AsyncTask<Void, Void, RuleCompactor.Result> {
+        private final RulesActivity mActivity;
+
+        public CompactTask(RulesActivity activity) {
+            mActivity = activity;
+        }
+
+        @Override
+        protected RuleCompactor.Result doInBackground(Void... params) {
+            return RuleCompactor.compact(mActivity);
+        }
+
+        @Override
+        protected void onPostExecute(RuleCompactor.Result result) {
+            if (mActivity.isFinishing()) {
+                return;
+            }
+
+            final OrientationPrefsManager prefsManager = new OrientationPrefsManager(mActivity);
+            mActivity.showResultDialog(mActivity.getString(R.string.compaction_result,
+                    result.rulesRemoved, result.rulesBefore, result.bytesReclaimed,
+                    prefsManager.getReclaimedRuleCount(), prefsManager.getReclaimedBytes()));
+        }
+    }
+
+    /**
+     * Adapter that recycles row views and loads labels and icons from the
+     * shared {@link AppLabelCache}.
+     */
+    private class RuleListAdapter extends BaseAdapter {
+        private final LayoutInflater mInflater;
+
+        public RuleListAdapter(Context context) {
+            mInflater = LayoutInflater.from(context);
+        }
+
+        @Override
+        public int getCount() {
+            return (mFilteredEntries != null) ? mFilteredEntries.length : mEntries.length;
+        }
+
+        @Override
+        public RuleEntry getItem(int position) {
+            if (mFilteredEntries != null) {
+                return mEntries[mFilteredEntries[position]];
+            }
+
+            return mEntries[position];
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final ViewHolder holder;
+
+            if (convertView == null) {
+                convertView = mInflater.inflate(R.layout.rules_list_item, parent, false);
+                holder = new ViewHolder(convertView);
+                convertView.setTag(holder);
+            } else {
+                holder = (ViewHolder) convertView.getTag();
+            }
+
+            holder.bind(getItem(position));
+
+            return convertView;
+        }
+    }
+
+    private class ViewHolder implements OnLabelLoadedListener {
+        private final ImageView mIcon;
+        private final TextView mTitle;
+        private final TextView mSubtitle;
+        private final TextView mRule;
+        private final int mActivityPadding;
+
+        private RuleEntry mEntry;
+
+        public ViewHolder(View view) {
+            mIcon = (ImageView) view.findViewById(android.R.id.icon);
+            mTitle = (TextView) view.findViewById(android.R.id.text1);
+            mSubtitle = (TextView) view.findViewById(android.R.id.text2);
+            mRule = (TextView) view.findViewById(R.id.rule);
+            mActivityPadding = view.getResources().getDimensionPixelSize(
+                    R.dimen.rules_activity_indent);
+        }
+
+        public void bind(RuleEntry entry) {
+            mEntry = entry;
+            mIcon.setImageDrawable(null);
+
+            // Cached labels and icons are delivered inline, others arrive later.
+            final ScreenOrientation rule;
+            if (entry.isPackage) {
+                rule = mRuleManager.getRuleForPackage(entry.component.getPackageName());
+                mLabelCache.loadApplicationLabel(entry.component, this);
+            } else {
+                rule = mRuleManager.getRuleForActivity(entry.component);
+                mLabelCache.loadActivityLabel(entry.component, this);
+            }
+
+            mTitle.setText(entry.getTitle(mLabelCache));
+            mTitle.setPadding(entry.isPackage ? 0 : mActivityPadding, 0, 0, 0);
+            mSubtitle.setText(entry.getSubtitle());
+            mSubtitle.setPadding(entry.isPackage ? 0 : mActivityPadding, 0, 0, 0);
+            mRule.setText((rule != null) ? rule.getString(RulesActivity.this) : null);
+        }
+
+        @Override
+        public void onLabelLoaded(ComponentName component, CharSequence label, Bitmap icon) {
+            // The holder may have been recycled for another entry.
+            if ((mEntry == null) || !mEntry.component.equals(component)) {
+                return;
+            }
+
+            mIcon.setImageBitmap(icon);
+            mTitle.setText(mEntry.getTitle(mLabelCache));
+        }
+    }
+}
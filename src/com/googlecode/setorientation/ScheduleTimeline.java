@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+
+/**
+ * Tracks which scheduled rules are active and when the next one changes.
+ * <p>
+ * A scheduled rule key contains {@code days=} and/or {@code time=} qualifiers,
+ * for example {@code com.example.kiosk;days=mon+tue+wed+thu+fri;time=0800-1800}.
+ * Days are three-letter English abbreviations. Times are local {@code HHMM}
+ * and the end is exclusive; a window whose end precedes its start runs past
+ * midnight. A missing qualifier matches every day or the whole day.
+ * <p>
+ * Each scheduled rule's next transition is kept in a priority queue, so
+ * finding the next transition is constant time and handling one is
+ * logarithmic in the number of scheduled rules. Not thread-safe.
+ */
+public class ScheduleTimeline {
+    private static final String QUALIFIER_DAYS = "days=";
+    private static final String QUALIFIER_TIME = "time=";
+
+    private static final String[] DAY_NAMES = { "sun", "mon", "tue", "wed", "thu", "fri", "sat" };
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+    /** The system clock in the default time zone. */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return TimeZone.getDefault();
+        }
+    };
+
+    private final Clock mClock;
+    private PriorityQueue<Transition> mQueue = new PriorityQueue<Transition>();
+    private final HashSet<String> mActiveKeys = new HashSet<String>();
+
+    /**
+     * Constructs a new timeline using the specified clock.
+     *
+     * @param clock The clock used to evaluate schedules.
+     */
+    public ScheduleTimeline(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Returns whether a rule key contains schedule qualifiers.
+     *
+     * @param key A rule key.
+     * @return Whether the key is scheduled.
+     */
+    public static boolean isScheduled(String key) {
+        return (key.indexOf(DecisionTable.QUALIFIER_SEPARATOR + QUALIFIER_DAYS) >= 0)
+                || (key.indexOf(DecisionTable.QUALIFIER_SEPARATOR + QUALIFIER_TIME) >= 0);
+    }
+
+    /**
+     * Returns whether a single qualifier is a valid schedule qualifier.
+     *
+     * @param qualifier A qualifier, such as {@code time=0800-1800}.
+     * @return Whether the qualifier is a valid schedule qualifier.
+     */
+    public static boolean isValidQualifier(String qualifier) {
+        if (qualifier.startsWith(QUALIFIER_DAYS)) {
+            return (parseDays(qualifier.substring(QUALIFIER_DAYS.length())) != 0);
+        } else if (qualifier.startsWith(QUALIFIER_TIME)) {
+            return (parseTime(qualifier.substring(QUALIFIER_TIME.length())) != null);
+        }
+
+        return false;
+    }
+
+    /**
+     * Rebuilds the timeline from a set of rule keys. Keys without valid
+     * schedule qualifiers are ignored.
+     *
+     * @param keys The rule keys.
+     */
+    public void rebuild(Collection<String> keys) {
+        final Calendar now = getCalendar();
+        final int minuteOfWeek = getMinuteOfWeek(now);
+        final ArrayList<Transition> transitions = new ArrayList<Transition>();
+
+        mActiveKeys.clear();
+
+        for (String key : keys) {
+            if (!isScheduled(key)) {
+                continue;
+            }
+
+            final Schedule schedule = Schedule.parse(key);
+            if (schedule == null) {
+                continue;
+            }
+
+            if (schedule.isActiveAt(minuteOfWeek)) {
+                mActiveKeys.add(key);
+            }
+
+            final Transition transition = new Transition(key, schedule);
+            if (updateTransition(transition, now, minuteOfWeek)) {
+                transitions.add(transition);
+            }
+        }
+
+        // The collection constructor heapifies in linear time, whereas
+        // addAll() would insert the transitions one at a time.
+        mQueue = new PriorityQueue<Transition>(transitions);
+    }
+
+    /**
+     * Returns whether the scheduled rule with the specified key is currently
+     * active. Keys without schedule qualifiers are always active.
+     *
+     * @param key A rule key.
+     * @return Whether the rule is active.
+     */
+    public boolean isActive(String key) {
+        return !isScheduled(key) || mActiveKeys.contains(key);
+    }
+
+    /**
+     * @return The wall clock time of the next transition, or {@code -1} if
+     *         no scheduled rule will ever change state.
+     */
+    public long getNextTransitionTime() {
+        final Transition next = mQueue.peek();
+        return (next != null) ? next.time : -1;
+    }
+
+    /**
+     * Applies every transition that is due and returns the keys of rules
+     * whose active state changed.
+     *
+     * @return The keys of rules whose active state changed.
+     */
+    public List<String> advance() {
+        final ArrayList<String> changed = new ArrayList<String>();
+        final long nowMillis = mClock.currentTimeMillis();
+
+        if ((mQueue.peek() == null) || (mQueue.peek().time > nowMillis)) {
+            return changed;
+        }
+
+        final Calendar now = getCalendar();
+        final int minuteOfWeek = getMinuteOfWeek(now);
+        final ArrayList<Transition> due = new ArrayList<Transition>();
+
+        while ((mQueue.peek() != null) && (mQueue.peek().time <= nowMillis)) {
+            due.add(mQueue.poll());
+        }
+
+        for (Transition transition : due) {
+            final boolean active = transition.schedule.isActiveAt(minuteOfWeek);
+            final boolean changedState = active ? mActiveKeys.add(transition.key)
+                    : mActiveKeys.remove(transition.key);
+            if (changedState) {
+                changed.add(transition.key);
+            }
+
+            if (updateTransition(transition, now, minuteOfWeek)) {
+                mQueue.add(transition);
+            }
+        }
+
+        return changed;
+    }
+
+    private Calendar getCalendar() {
+        final Calendar calendar = Calendar.getInstance(mClock.getTimeZone());
+        calendar.setTimeInMillis(mClock.currentTimeMillis());
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar;
+    }
+
+    private static int getMinuteOfWeek(Calendar calendar) {
+        return ((calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * MINUTES_PER_DAY)
+                + (calendar.get(Calendar.HOUR_OF_DAY) * 60) + calendar.get(Calendar.MINUTE);
+    }
+
+    /**
+     * Computes the next transition time for a schedule.
+     *
+     * @return Whether the schedule has a future transition.
+     */
+    private boolean updateTransition(Transition transition, Calendar now, int minuteOfWeek) {
+        final int delta = transition.schedule.getMinutesUntilTransition(minuteOfWeek);
+        if (delta < 0) {
+            return false;
+        }
+
+        final long minuteStart = now.getTimeInMillis();
+        final long time = minuteStart + (delta * MILLIS_PER_MINUTE);
+
+        // Correct for daylight saving changes between now and the transition.
+        final TimeZone timeZone = now.getTimeZone();
+        transition.time = time - (timeZone.getOffset(time) - timeZone.getOffset(minuteStart));
+        return true;
+    }
+
+    /**
+     * Parses a {@code +}-separated list of day names into a bit mask indexed
+     * from Sunday, or returns {@code 0} if invalid.
+     */
+    private static int parseDays(String value) {
+        int days = 0;
+
+        for (String name : value.split("\\+")) {
+            int day = -1;
+            for (int i = 0; i < DAY_NAMES.length; i++) {
+                if (DAY_NAMES[i].equals(name)) {
+                    day = i;
+                    break;
+                }
+            }
+
+            if (day < 0) {
+                return 0;
+            }
+
+            days |= (1 << day);
+        }
+
+        return days;
+    }
+
+    /**
+     * Parses an {@code HHMM-HHMM} window into start and end minutes of the
+     * day, or returns {@code null} if invalid.
+     */
+    private static int[] parseTime(String value) {
+        if ((value.length() != 9) || (value.charAt(4) != '-')) {
+            return null;
+        }
+
+        final int start = parseMinuteOfDay(value.substring(0, 4));
+        final int end = parseMinuteOfDay(value.substring(5));
+        if ((start < 0) || (end < 0) || (start == end) || (start == MINUTES_PER_DAY)) {
+            return null;
+        }
+
+        return new int[] { start, end };
+    }
+
+    private static int parseMinuteOfDay(String value) {
+        final int hhmm;
+
+        try {
+            hhmm = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        final int hours = hhmm / 100;
+        final int minutes = hhmm % 100;
+        if ((hhmm < 0) || (hours > 24) || (minutes >= 60) || ((hours == 24) && (minutes > 0))) {
+            return -1;
+        }
+
+        return (hours * 60) + minutes;
+    }
+
+    /**
+     * A weekly schedule: a set of days and a window within each day.
+     */
+    private static class Schedule {
+        private final int mDays;
+        private final int mStart;
+        private final int mEnd;
+
+        private Schedule(int days, int start, int end) {
+            mDays = days;
+            mStart = start;
+            mEnd = end;
+        }
+
+        public static Schedule parse(String key) {
+            final String[] qualifiers = key.split(
+                    String.valueOf(DecisionTable.QUALIFIER_SEPARATOR));
+            int days = (1 << DAY_NAMES.length) - 1;
+            int start = 0;
+            int end = MINUTES_PER_DAY;
+
+            // The first element is the component filter.
+            for (int i = 1; i < qualifiers.length; i++) {
+                final String qualifier = qualifiers[i];
+                if (qualifier.startsWith(QUALIFIER_DAYS)) {
+                    days = parseDays(qualifier.substring(QUALIFIER_DAYS.length()));
+                    if (days == 0) {
+                        return null;
+                    }
+                } else if (qualifier.startsWith(QUALIFIER_TIME)) {
+                    final int[] window = parseTime(qualifier.substring(QUALIFIER_TIME.length()));
+                    if (window == null) {
+                        return null;
+                    }
+
+                    start = window[0];
+                    end = window[1];
+                }
+            }
+
+            return new Schedule(days, start, end);
+        }
+
+        public boolean isActiveAt(int minuteOfWeek) {
+            final int day = minuteOfWeek / MINUTES_PER_DAY;
+            final int minute = minuteOfWeek % MINUTES_PER_DAY;
+
+            if (mStart < mEnd) {
+                return hasDay(day) && (minute >= mStart) && (minute < mEnd);
+            }
+
+            // The window runs past midnight into the following day.
+            return (hasDay(day) && (minute >= mStart))
+                    || (hasDay((day + 6) % 7) && (minute < mEnd));
+        }
+
+        /**
+         * Returns the number of minutes until the active state next changes,
+         * or {@code -1} if it never changes.
+         */
+        public int getMinutesUntilTransition(int minuteOfWeek) {
+            final boolean active = isActiveAt(minuteOfWeek);
+            final int dayStart = minuteOfWeek - (minuteOfWeek % MINUTES_PER_DAY);
+            final int endOffset = (mStart < mEnd) ? mEnd : (mEnd + MINUTES_PER_DAY);
+
+            // The state only changes at window boundaries, so check those in
+            // order across a little more than one week.
+            for (int day = -1; day <= 7; day++) {
+                final int windowStart = dayStart + (day * MINUTES_PER_DAY) + mStart;
+                final int windowEnd = dayStart + (day * MINUTES_PER_DAY) + endOffset;
+
+                if ((windowStart > minuteOfWeek)
+                        && (isActiveAt(windowStart % MINUTES_PER_WEEK) != active)) {
+                    return (windowStart - minuteOfWeek);
+                }
+
+                if ((windowEnd > minuteOfWeek)
+                        && (isActiveAt(windowEnd % MINUTES_PER_WEEK) != active)) {
+                    return (windowEnd - minuteOfWeek);
+                }
+            }
+
+            return -1;
+        }
+
+        private boolean hasDay(int day) {
+            return ((mDays & (1 << day)) != 0);
+        }
+    }
+
+    private static class Transition implements Comparable<Transition> {
+        public final String key;
+        public final Schedule schedule;
+        public long time;
+
+        public Transition(String key, Schedule schedule) {
+            this.key = key;
+            this.schedule = schedule;
+        }
+
+        @Override
+        public int compareTo(Transition another) {
+            return (time < another.time) ? -1 : ((time == another.time) ? 0 : 1);
+        }
+    }
+
+    /**
+     * Source of the current time, injectable for testing.
+     */
+    public interface Clock {
+        /**
+         * @return The current wall clock time in milliseconds.
+         */
+        public long currentTimeMillis();
+
+        /**
+         * @return The time zone in which schedules are evaluated.
+         */
+        public TimeZone getTimeZone();
+    }
+}
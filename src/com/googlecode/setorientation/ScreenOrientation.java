@@ -38,7 +38,21 @@ public enum ScreenOrientation {
     PORTRAIT(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT, R.string.portrait, 1),
     PORTRAIT_REVERSE(
             ActivityInfo.SCREEN_ORIENTATION_REVERSE_PORTRAIT, R.string.portrait_reverse, 9),
-    PORTRAIT_SENSOR(ActivityInfo.SCREEN_ORIENTATION_SENSOR_PORTRAIT, R.string.portrait_sensor, 9);
+    PORTRAIT_SENSOR(ActivityInfo.SCREEN_ORIENTATION_SENSOR_PORTRAIT, R.string.portrait_sensor, 9),
+    DECLARED(ScreenOrientation.CODE_DECLARED, R.string.declared, 1, true),
+    SMART(ScreenOrientation.CODE_SMART, R.string.smart, 3, true);
+
+    /**
+     * Code for {@link #DECLARED}, which defers to the orientation declared in
+     * the foreground activity's manifest. Not a valid window orientation.
+     */
+    public static final int CODE_DECLARED = -100;
+
+    /**
+     * Code for {@link #SMART}, which follows the accelerometer with this
+     * application's own hysteresis. Not a valid window orientation.
+     */
+    public static final int CODE_SMART = -101;
 
     static {
         final ScreenOrientation[] values = values();
@@ -58,11 +72,17 @@ public enum ScreenOrientation {
     private final int mCode;
     private final int mResId;
     private final int mMinimumSdk;
+    private final boolean mVirtual;
 
     private ScreenOrientation(int code, int resId, int minimumSdk) {
+        this(code, resId, minimumSdk, false);
+    }
+
+    private ScreenOrientation(int code, int resId, int minimumSdk, boolean virtual) {
         mCode = code;
         mResId = resId;
         mMinimumSdk = minimumSdk;
+        mVirtual = virtual;
     }
 
     public static ScreenOrientation fromCode(int orientation) {
@@ -75,10 +95,37 @@ public enum ScreenOrientation {
         return UNSPECIFIED;
     }
 
+    /**
+     * Returns the orientation for the specified code if it is supported on
+     * this device, or {@code null} otherwise.
+     *
+     * @param orientation An orientation code.
+     * @return The supported orientation, or {@code null}.
+     */
+    public static ScreenOrientation fromSupportedCode(int orientation) {
+        for (ScreenOrientation value : sSupportedValues) {
+            if (value.mCode == orientation) {
+                return value;
+            }
+        }
+
+        return null;
+    }
+
     public static List<ScreenOrientation> supportedValues() {
         return sSupportedValues;
     }
 
+    /**
+     * Returns whether this is a rule mode that must be resolved against the
+     * foreground activity before it can be applied to a window.
+     *
+     * @return Whether this orientation is virtual.
+     */
+    public boolean isVirtual() {
+        return mVirtual;
+    }
+
     public int getCode() {
         return mCode;
     }
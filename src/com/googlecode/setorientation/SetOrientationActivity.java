@@ -21,9 +21,10 @@ import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.view.View;
+import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
@@ -35,6 +36,10 @@ import android.widget.Spinner;
 import android.widget.TextView;
 
 import com.googlecode.eyesfree.setorientation.R;
+import com.googlecode.setorientation.AppLabelCache.OnLabelLoadedListener;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public class SetOrientationActivity extends Activity {
     private OrientationPrefsManager mPrefsManager;
@@ -44,50 +49,88 @@ public class SetOrientationActivity extends Activity {
     private CompoundButton mServiceEnabled;
     private CheckBox mApplyToApp;
     private ComponentName mForegroundActivity;
+    private Diagnostics mDiagnostics;
+
+    /** How long {@link #onCreate} took, reported with the chosen orientation. */
+    private long mSetupNanos;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        final long startNanos = System.nanoTime();
+        mDiagnostics = Diagnostics.getInstance(this);
+        final int allocations = mDiagnostics.startAllocations();
+
         setContentView(R.layout.set_orientation_dialog);
 
         mPrefsManager = new OrientationPrefsManager(this);
         mRuleManager = new CustomRuleManager(this);
         mAdapter = new ScreenOrientationAdapter(this, android.R.layout.simple_dropdown_item_1line);
 
-        final PackageManager pm = getPackageManager();
         final ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
-        mForegroundActivity = OrientationUtils.getForegroundActivity(am, 1);
+        final long getTasksStart = mDiagnostics.startBlockingCall();
+        // The activity beneath this dialog, skipping any of our own.
+        mForegroundActivity = ForegroundSnapshot.capture(am, getPackageName()).getFocused();
+        mDiagnostics.endBlockingCall("getRunningTasks", getTasksStart);
+
+        if (mForegroundActivity == null) {
+            // Nothing of another app is visible, so there is nothing to set.
+            mDiagnostics.endAllocations(Diagnostics.SCOPE_DIALOG_OPEN, allocations);
+            finish();
+            return;
+        }
 
         final boolean hasCustomRule = mRuleManager.hasRuleForComponent(mForegroundActivity);
         final ScreenOrientation orientation;
         if (hasCustomRule) {
             orientation = mRuleManager.getRuleForComponent(mForegroundActivity);
         } else {
-            orientation = mPrefsManager.getDefaultRule();
+            orientation = mPrefsManager.getDefaultRule(mRuleManager.getActiveProfile());
         }
 
         mServiceEnabled = (CompoundButton) findViewById(R.id.service_enabled);
         mServiceEnabled.setChecked(mPrefsManager.getServiceEnabled());
         mServiceEnabled.setOnCheckedChangeListener(mOnCheckedChangeListener);
 
-        final CharSequence appName = OrientationUtils.getApplicationName(pm, mForegroundActivity);
         mApplyToApp = (CheckBox) findViewById(R.id.scope_app);
-        mApplyToApp.setText(getString(R.string.label_scope_app, appName));
+        mApplyToApp.setText(getString(
+                R.string.label_scope_app, mForegroundActivity.getPackageName()));
         mApplyToApp.setChecked(hasCustomRule);
 
+        AppLabelCache.getInstance(this).loadApplicationLabel(
+                mForegroundActivity, mOnLabelLoadedListener);
+
         final int spinnerPosition = mAdapter.getPosition(orientation);
         mSpinner = (Spinner) findViewById(android.R.id.list);
         mSpinner.setAdapter(mAdapter);
         mSpinner.setSelection(spinnerPosition);
         mSpinner.setOnItemSelectedListener(mOnItemSelectedListener);
+
+        findViewById(R.id.manage_rules).setOnClickListener(mOnManageRulesClickListener);
+
+        mDiagnostics.endAllocations(Diagnostics.SCOPE_DIALOG_OPEN, allocations);
+        mSetupNanos = System.nanoTime() - startNanos;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
 
+        if (mForegroundActivity == null) {
+            return;
+        }
+
+        final long saveStart = mDiagnostics.startBlockingCall();
         saveSelectedOrientation();
+        mDiagnostics.endBlockingCall("saveSelectedOrientation", saveStart);
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+
+        mDiagnostics.dump(writer);
     }
 
     private void applySelectedOrientation() {
@@ -105,6 +148,7 @@ public class SetOrientationActivity extends Activity {
         }
 
         service.putExtra(OrientationService.EXTRA_ORIENTATION, selection.getCode());
+        service.putExtra(OrientationService.EXTRA_SETUP_NANOS, mSetupNanos);
         startService(service);
     }
 
@@ -123,10 +167,29 @@ public class SetOrientationActivity extends Activity {
             mRuleManager.setRuleForPackage(component, selection);
         } else {
             mRuleManager.setRuleForPackage(component, null);
-            mPrefsManager.setDefaultRule(selection);
+            mPrefsManager.setDefaultRule(mRuleManager.getActiveProfile(), selection);
         }
     }
 
+    private final OnClickListener mOnManageRulesClickListener = new OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            startActivity(new Intent(SetOrientationActivity.this, RulesActivity.class));
+            finish();
+        }
+    };
+
+    private final OnLabelLoadedListener mOnLabelLoadedListener = new OnLabelLoadedListener() {
+        @Override
+        public void onLabelLoaded(ComponentName component, CharSequence label, Bitmap icon) {
+            if ((label == null) || isFinishing()) {
+                return;
+            }
+
+            mApplyToApp.setText(getString(R.string.label_scope_app, label));
+        }
+    };
+
     private final OnCheckedChangeListener mOnCheckedChangeListener = new OnCheckedChangeListener() {
         @Override
         public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
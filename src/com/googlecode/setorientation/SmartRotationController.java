@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.view.Surface;
+
+import com.googlecode.eyesfree.compat.CompatUtils;
+
+import java.lang.reflect.Method;
+
+/**
+ * Drives {@link ScreenOrientation#SMART} by classifying accelerometer samples
+ * with an {@link OrientationClassifier}.
+ * <p>
+ * The accelerometer is sampled at a low rate and, where the hardware supports
+ * it, batched so the application processor is only woken once per report
+ * latency. Callbacks are delivered on the main thread.
+ */
+public class SmartRotationController implements SensorEventListener {
+    /** Sampling period in microseconds. */
+    private static final int SAMPLING_PERIOD_US = 200 * 1000;
+
+    /** Maximum batching latency in microseconds. */
+    private static final int MAX_REPORT_LATENCY_US = 500 * 1000;
+
+    /** Batched registration, available on API 19 and above. */
+    private static final Method METHOD_registerListener = CompatUtils.getMethod(
+            SensorManager.class, "registerListener", SensorEventListener.class, Sensor.class,
+            int.class, int.class);
+
+    private final SensorManager mSensorManager;
+    private final Sensor mAccelerometer;
+    private final OrientationClassifier mClassifier = new OrientationClassifier();
+    private final boolean mNaturalPortrait;
+
+    private SmartRotationListener mListener;
+    private boolean mStarted;
+    private int mRotation = OrientationClassifier.ROTATION_UNKNOWN;
+
+    public SmartRotationController(Context context) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        mNaturalPortrait = SystemSettingsApplier.isNaturalPortrait(context);
+
+        // Match the platform's sensor mode, which never turns upside down.
+        mClassifier.setAllowUpsideDown(false);
+    }
+
+    /**
+     * Sets a listener to receive orientation changes.
+     *
+     * @param listener The listener to set.
+     */
+    public void setListener(SmartRotationListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return The classifier, so that its thresholds may be tuned.
+     */
+    public OrientationClassifier getClassifier() {
+        return mClassifier;
+    }
+
+    /**
+     * @return Whether this device has an accelerometer.
+     */
+    public boolean isAvailable() {
+        return (mAccelerometer != null);
+    }
+
+    /**
+     * @return Whether the accelerometer is registered.
+     */
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Starts sampling the accelerometer. No-op if already started or if the
+     * device has no accelerometer.
+     */
+    public void start() {
+        if (mStarted || (mAccelerometer == null)) {
+            return;
+        }
+
+        mStarted = true;
+        mClassifier.reset();
+        mRotation = OrientationClassifier.ROTATION_UNKNOWN;
+
+        if (Build.VERSION.SDK_INT >= 19) {
+            CompatUtils.invoke(mSensorManager, null, METHOD_registerListener, this,
+                    mAccelerometer, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US);
+        } else {
+            // Prior to API 9, the rate must be one of the SENSOR_DELAY values.
+            final int rate = (Build.VERSION.SDK_INT >= 9) ? SAMPLING_PERIOD_US
+                    : SensorManager.SENSOR_DELAY_NORMAL;
+            mSensorManager.registerListener(this, mAccelerometer, rate);
+        }
+    }
+
+    /**
+     * Stops sampling the accelerometer.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+
+        mStarted = false;
+        mSensorManager.unregisterListener(this);
+    }
+
+    /**
+     * @return The orientation for the most recently classified rotation, or
+     *         {@link ScreenOrientation#UNSPECIFIED} if none.
+     */
+    public ScreenOrientation getOrientation() {
+        switch (mRotation) {
+            case Surface.ROTATION_0:
+                return mNaturalPortrait ? ScreenOrientation.PORTRAIT
+                        : ScreenOrientation.LANDSCAPE;
+            case Surface.ROTATION_90:
+                return mNaturalPortrait ? ScreenOrientation.LANDSCAPE
+                        : getSupported(ScreenOrientation.PORTRAIT_REVERSE);
+            case Surface.ROTATION_180:
+                return mNaturalPortrait ? getSupported(ScreenOrientation.PORTRAIT_REVERSE)
+                        : getSupported(ScreenOrientation.LANDSCAPE_REVERSE);
+            case Surface.ROTATION_270:
+                return mNaturalPortrait ? getSupported(ScreenOrientation.LANDSCAPE_REVERSE)
+                        : ScreenOrientation.PORTRAIT;
+            default:
+                return ScreenOrientation.UNSPECIFIED;
+        }
+    }
+
+    /**
+     * Returns the specified orientation if it is supported on this device,
+     * or {@link ScreenOrientation#UNSPECIFIED} otherwise.
+     */
+    private static ScreenOrientation getSupported(ScreenOrientation orientation) {
+        if (ScreenOrientation.fromSupportedCode(orientation.getCode()) == null) {
+            return ScreenOrientation.UNSPECIFIED;
+        }
+
+        return orientation;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        final float[] values = event.values;
+        final int rotation = mClassifier.addSample(
+                values[0], values[1], values[2], event.timestamp);
+        if (rotation == mRotation) {
+            return;
+        }
+
+        mRotation = rotation;
+
+        if (mListener != null) {
+            mListener.onSmartOrientationChanged(getOrientation());
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // Do nothing.
+    }
+
+    /**
+     * Listener for orientation changes detected by the controller.
+     */
+    public interface SmartRotationListener {
+        /**
+         * Called on the main thread when the classified orientation changes.
+         *
+         * @param orientation The new orientation.
+         */
+        public void onSmartOrientationChanged(ScreenOrientation orientation);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.provider.Settings;
+import android.view.Surface;
+import android.view.WindowManager;
+
+import com.googlecode.eyesfree.compat.CompatUtils;
+
+import java.lang.reflect.Method;
+
+/**
+ * Applies an orientation through the system auto-rotate and user rotation
+ * settings. No window is needed, but the settings only take effect while the
+ * foreground activity doesn't request an orientation of its own. Requires the
+ * {@code WRITE_SETTINGS} permission. The original settings are restored on
+ * release.
+ */
+public class SystemSettingsApplier implements OrientationApplier {
+    private static final Method METHOD_canWrite = CompatUtils.getMethod(
+            Settings.System.class, "canWrite", Context.class);
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+
+    /** Whether the device's natural orientation is portrait. */
+    private final boolean mNaturalPortrait;
+
+    /** Whether the original settings have been saved. */
+    private boolean mSaved;
+    private int mSavedAccelerometerRotation;
+    private int mSavedUserRotation;
+
+    public SystemSettingsApplier(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mNaturalPortrait = isNaturalPortrait(context);
+    }
+
+    @Override
+    public String getName() {
+        return "settings";
+    }
+
+    @Override
+    public int getCost() {
+        return 1;
+    }
+
+    @Override
+    public boolean canApply(ScreenOrientation orientation, boolean foregroundDeclaresOrientation) {
+        if (foregroundDeclaresOrientation || !hasPermission()) {
+            return false;
+        }
+
+        if (orientation == ScreenOrientation.SENSOR) {
+            return true;
+        }
+
+        // USER_ROTATION is only available on API 11 and above.
+        return (Build.VERSION.SDK_INT >= 11) && (getRotation(orientation) >= 0);
+    }
+
+    @SuppressLint("InlinedApi")
+    @Override
+    public void apply(ScreenOrientation orientation) {
+        save();
+
+        if (orientation == ScreenOrientation.SENSOR) {
+            Settings.System.putInt(mResolver, Settings.System.ACCELEROMETER_ROTATION, 1);
+            return;
+        }
+
+        Settings.System.putInt(mResolver, Settings.System.ACCELEROMETER_ROTATION, 0);
+        Settings.System.putInt(mResolver, Settings.System.USER_ROTATION, getRotation(orientation));
+    }
+
+    @SuppressLint("InlinedApi")
+    @Override
+    public void release() {
+        if (!mSaved) {
+            return;
+        }
+
+        Settings.System.putInt(
+                mResolver, Settings.System.ACCELEROMETER_ROTATION, mSavedAccelerometerRotation);
+        if (Build.VERSION.SDK_INT >= 11) {
+            Settings.System.putInt(mResolver, Settings.System.USER_ROTATION, mSavedUserRotation);
+        }
+
+        mSaved = false;
+    }
+
+    @SuppressLint("InlinedApi")
+    private void save() {
+        if (mSaved) {
+            return;
+        }
+
+        mSavedAccelerometerRotation = Settings.System.getInt(
+                mResolver, Settings.System.ACCELEROMETER_ROTATION, 1);
+        if (Build.VERSION.SDK_INT >= 11) {
+            mSavedUserRotation = Settings.System.getInt(
+                    mResolver, Settings.System.USER_ROTATION, Surface.ROTATION_0);
+        }
+
+        mSaved = true;
+    }
+
+    private boolean hasPermission() {
+        if (mContext.checkCallingOrSelfPermission(Manifest.permission.WRITE_SETTINGS)
+                != PackageManager.PERMISSION_GRANTED) {
+            return false;
+        }
+
+        // On API 23 and above, the user must also grant the permission.
+        return (Boolean) CompatUtils.invoke(null, true, METHOD_canWrite, mContext);
+    }
+
+    /**
+     * Returns the display rotation for a fixed orientation, or {@code -1} if
+     * the orientation is not fixed. Matches the platform's default mapping for
+     * portrait and landscape devices.
+     */
+    private int getRotation(ScreenOrientation orientation) {
+        switch (orientation) {
+            case PORTRAIT:
+                return mNaturalPortrait ? Surface.ROTATION_0 : Surface.ROTATION_270;
+            case LANDSCAPE:
+                return mNaturalPortrait ? Surface.ROTATION_90 : Surface.ROTATION_0;
+            case PORTRAIT_REVERSE:
+                return mNaturalPortrait ? Surface.ROTATION_180 : Surface.ROTATION_90;
+            case LANDSCAPE_REVERSE:
+                return mNaturalPortrait ? Surface.ROTATION_270 : Surface.ROTATION_180;
+            default:
+                return -1;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    static boolean isNaturalPortrait(Context context) {
+        final WindowManager windowManager =
+                (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        final int rotation = windowManager.getDefaultDisplay().getOrientation();
+        final boolean rotated =
+                (rotation == Surface.ROTATION_90) || (rotation == Surface.ROTATION_270);
+        final boolean landscape = (context.getResources().getConfiguration().orientation
+                == Configuration.ORIENTATION_LANDSCAPE);
+
+        return (rotated == landscape);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import com.googlecode.eyesfree.setorientation.R;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Classifies foreground activities that only pass through, such as
+ * choosers, permission prompts and trampolines, so that the service can
+ * keep the previous orientation while they're on top.
+ * <p>
+ * An activity is transient if it matches the ignore list in
+ * {@code R.array.transient_activities}, follows the activity behind it, has a
+ * floating, translucent or invisible theme, or has repeatedly left the
+ * foreground within {@link #SHORT_DWELL_MILLIS}. Themes are inspected on a
+ * background thread the first time an activity is seen. Decisions are
+ * cached per component, so a lookup is a single map access. Must be used on
+ * the main thread.
+ */
+public class TransientActivityClassifier {
+    /** A visit at most this long counts as short. */
+    private static final long SHORT_DWELL_MILLIS = 1000;
+
+    /** A visit at least this long clears an activity's short visit count. */
+    private static final long LONG_DWELL_MILLIS = 5000;
+
+    /** The number of consecutive short visits that mark an activity. */
+    private static final int SHORT_VISITS_TRANSIENT = 2;
+
+    /** The maximum number of components for which state is kept. */
+    private static final int MAX_COMPONENTS = 256;
+
+    /** Theme attributes of windows that don't replace the activity behind. */
+    private static final int[] TRANSIENT_THEME_ATTRS = {
+            android.R.attr.windowIsFloating, android.R.attr.windowIsTranslucent,
+            android.R.attr.windowNoDisplay };
+
+    private final Context mContext;
+    private final ManifestOrientationIndex mManifestIndex;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Package and component filters that are always transient. */
+    private final HashSet<String> mIgnored = new HashSet<String>();
+
+    /** Cached decisions, keyed by component. */
+    private final LruCache<ComponentName, Boolean> mDecisions =
+            new LruCache<ComponentName, Boolean>(MAX_COMPONENTS);
+
+    /** Theme inspection results, keyed by component. */
+    private final LruCache<ComponentName, Boolean> mThemeHints =
+            new LruCache<ComponentName, Boolean>(MAX_COMPONENTS);
+
+    /** Consecutive short visits, keyed by component. */
+    private final LruCache<ComponentName, Integer> mShortVisits =
+            new LruCache<ComponentName, Integer>(MAX_COMPONENTS);
+
+    /** Components whose themes are being inspected. */
+    private final HashSet<ComponentName> mPendingThemes = new HashSet<ComponentName>();
+
+    /** Inspects themes in the background, created on first use. */
+    private ExecutorService mExecutor;
+
+    /** The component currently on top, used to measure dwell time. */
+    private ComponentName mTopComponent;
+
+    /** When {@link #mTopComponent} came to the top, in uptime millis. */
+    private long mTopSince;
+
+    /**
+     * Constructs a new classifier and loads the ignore list.
+     *
+     * @param context The parent context.
+     * @param manifestIndex The index used to find activities that follow
+     *            the orientation of the activity behind them.
+     */
+    public TransientActivityClassifier(Context context, ManifestOrientationIndex manifestIndex) {
+        mContext = context;
+        mManifestIndex = manifestIndex;
+        mIgnored.addAll(Arrays.asList(
+                context.getResources().getStringArray(R.array.transient_activities)));
+    }
+
+    /**
+     * Returns whether the specified activity is transient. Computes and
+     * caches the decision the first time each component is seen.
+     *
+     * @param component The foreground activity.
+     * @return Whether the activity is transient.
+     */
+    public boolean isTransient(ComponentName component) {
+        final Boolean cached = mDecisions.get(component);
+        if (cached != null) {
+            return cached;
+        }
+
+        final boolean isTransient = classify(component);
+        mDecisions.put(component, isTransient);
+        return isTransient;
+    }
+
+    /**
+     * Records that the foreground activity changed, which ends the previous
+     * activity's visit. Must be called for every change, including changes
+     * to transient activities.
+     *
+     * @param component The new foreground activity.
+     */
+    public void onForegroundChanged(ComponentName component) {
+        if (component.equals(mTopComponent)) {
+            // Polling was reset, but the same visit continues.
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+
+        if (mTopComponent != null) {
+            recordVisit(mTopComponent, now - mTopSince);
+        }
+
+        mTopComponent = component;
+        mTopSince = now;
+    }
+
+    /**
+     * Drops all cached decisions, e.g. after packages change.
+     */
+    public void clear() {
+        mDecisions.evictAll();
+        mThemeHints.evictAll();
+    }
+
+    /**
+     * Writes the components currently classified as transient.
+     *
+     * @param writer The writer to dump to.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Transient activities:");
+        for (Entry<ComponentName, Boolean> entry : mDecisions.snapshot().entrySet()) {
+            if (entry.getValue()) {
+                writer.println("  " + entry.getKey().flattenToShortString());
+            }
+        }
+    }
+
+    private boolean classify(ComponentName component) {
+        if (mIgnored.contains(CustomRuleManager.getComponentFilter(component))
+                || mIgnored.contains(CustomRuleManager.getPackageFilter(
+                        component.getPackageName()))) {
+            return true;
+        }
+
+        if (mManifestIndex.getDeclaredOrientation(component)
+                == ActivityInfo.SCREEN_ORIENTATION_BEHIND) {
+            return true;
+        }
+
+        final Integer shortVisits = mShortVisits.get(component);
+        if ((shortVisits != null) && (shortVisits >= SHORT_VISITS_TRANSIENT)) {
+            return true;
+        }
+
+        final Boolean themeHint = mThemeHints.get(component);
+        if (themeHint == null) {
+            inspectTheme(component);
+            return false;
+        }
+
+        return themeHint;
+    }
+
+    private void recordVisit(ComponentName component, long dwellMillis) {
+        final Integer shortVisits = mShortVisits.get(component);
+        final int count = (shortVisits != null) ? shortVisits : 0;
+
+        if (dwellMillis <= SHORT_DWELL_MILLIS) {
+            mShortVisits.put(component, count + 1);
+            if ((count + 1) == SHORT_VISITS_TRANSIENT) {
+                mDecisions.remove(component);
+            }
+        } else if ((dwellMillis >= LONG_DWELL_MILLIS) && (count > 0)) {
+            mShortVisits.remove(component);
+            mDecisions.remove(component);
+        }
+    }
+
+    /**
+     * Reads the activity's theme on a background thread and caches whether
+     * it is floating, translucent or invisible.
+     */
+    private void inspectTheme(final ComponentName component) {
+        if (!mPendingThemes.add(component)) {
+            return;
+        }
+
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "TransientActivityClassifier");
+                }
+            });
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                final boolean hint = hasTransientTheme(component);
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPendingThemes.remove(component);
+                        mThemeHints.put(component, hint);
+
+                        if (hint) {
+                            mDecisions.remove(component);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean hasTransientTheme(ComponentName component) {
+        final PackageManager packageManager = mContext.getPackageManager();
+
+        try {
+            final ActivityInfo info = packageManager.getActivityInfo(component, 0);
+            final int themeResource = info.getThemeResource();
+            if (themeResource == 0) {
+                return false;
+            }
+
+            final Context packageContext =
+                    mContext.createPackageContext(component.getPackageName(), 0);
+            final Resources.Theme theme = packageContext.getResources().newTheme();
+            theme.applyStyle(themeResource, true);
+
+            final TypedArray attrs = theme.obtainStyledAttributes(TRANSIENT_THEME_ATTRS);
+            try {
+                for (int i = 0; i < TRANSIENT_THEME_ATTRS.length; i++) {
+                    if (attrs.getBoolean(i, false)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            } finally {
+                attrs.recycle();
+            }
+        } catch (NameNotFoundException e) {
+            return false;
+        } catch (Resources.NotFoundException e) {
+            return false;
+        }
+    }
+}
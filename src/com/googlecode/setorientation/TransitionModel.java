@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * First-order Markov model of foreground activity transitions, used to
+ * predict which activities are likely to come next.
+ * <p>
+ * The model holds at most {@link #MAX_COMPONENTS} activities, evicting the
+ * least recently seen, and at most {@link #MAX_SUCCESSORS} successors per
+ * activity, replacing the least frequent. Counts are halved once any of an
+ * activity's counts reaches {@link #MAX_COUNT}, so old habits fade. All
+ * state is held in fixed-size arrays and written to storage on a background
+ * thread by {@link #flush}. Must be used on the main thread.
+ */
+public class TransitionModel {
+    /** The file, relative to the files directory, holding the model. */
+    static final String MODEL_FILE = "transition_model";
+
+    /** Version of the persisted format. Bump when the format changes. */
+    private static final int FILE_FORMAT_VERSION = 2;
+
+    /** The maximum number of activities tracked. */
+    private static final int MAX_COMPONENTS = 64;
+
+    /** The maximum number of successors tracked per activity. */
+    private static final int MAX_SUCCESSORS = 4;
+
+    /** The count at which an activity's counts are halved. */
+    private static final int MAX_COUNT = 256;
+
+    /** Marks an empty successor slot. */
+    private static final int NO_COMPONENT = -1;
+
+    private final File mModelFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Component ids, keyed by component. */
+    private final HashMap<ComponentName, Integer> mIds = new HashMap<ComponentName, Integer>();
+
+    /** Components, indexed by id. */
+    private final ComponentName[] mComponents = new ComponentName[MAX_COMPONENTS];
+
+    /** When each component was last seen, as a transition sequence number. */
+    private final long[] mLastSeen = new long[MAX_COMPONENTS];
+
+    /** Successor ids, {@link #MAX_SUCCESSORS} per component id. */
+    private final int[] mSuccessors = new int[MAX_COMPONENTS * MAX_SUCCESSORS];
+
+    /** Successor counts, parallel to {@link #mSuccessors}. */
+    private final int[] mCounts = new int[MAX_COMPONENTS * MAX_SUCCESSORS];
+
+    /** Writes the model in the background. */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "TransitionModel");
+                }
+            });
+
+    /** The number of transitions recorded, used to order components by recency. */
+    private long mSequence;
+
+    /** Whether the model changed since the last flush. */
+    private boolean mDirty;
+
+    /**
+     * Constructs an empty model and loads the persisted model in the
+     * background.
+     *
+     * @param context The parent context.
+     */
+    public TransitionModel(Context context) {
+        mModelFile = new File(context.getFilesDir(), MODEL_FILE);
+
+        for (int i = 0; i < mSuccessors.length; i++) {
+            mSuccessors[i] = NO_COMPONENT;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DataHolder loaded = readFromDisk();
+                if (loaded == null) {
+                    return;
+                }
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Keep anything learned while loading.
+                        if (mSequence == 0) {
+                            install(loaded);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Records a transition between two foreground activities.
+     *
+     * @param from The previous activity, or {@code null} if unknown.
+     * @param to The new activity.
+     */
+    public void record(ComponentName from, ComponentName to) {
+        mSequence++;
+
+        final int toId = getOrAddId(to);
+        if (from == null) {
+            return;
+        }
+
+        final Integer fromId = mIds.get(from);
+        if ((fromId == null) || (fromId == toId)) {
+            return;
+        }
+
+        final int base = fromId * MAX_SUCCESSORS;
+        int slot = -1;
+        int weakest = base;
+
+        for (int i = base; i < (base + MAX_SUCCESSORS); i++) {
+            if (mSuccessors[i] == toId) {
+                slot = i;
+                break;
+            }
+
+            if (mCounts[i] < mCounts[weakest]) {
+                weakest = i;
+            }
+        }
+
+        if (slot < 0) {
+            // Replace the least frequent successor, or an empty slot.
+            slot = weakest;
+            mSuccessors[slot] = toId;
+            mCounts[slot] = 0;
+        }
+
+        if (++mCounts[slot] >= MAX_COUNT) {
+            for (int i = base; i < (base + MAX_SUCCESSORS); i++) {
+                mCounts[i] /= 2;
+            }
+        }
+
+        mDirty = true;
+    }
+
+    /**
+     * Returns the most likely successors of an activity, most likely first.
+     *
+     * @param from The current activity.
+     * @param out An array to fill with predictions.
+     * @return The number of predictions written to {@code out}.
+     */
+    public int predict(ComponentName from, ComponentName[] out) {
+        final Integer fromId = mIds.get(from);
+        if (fromId == null) {
+            return 0;
+        }
+
+        final int base = fromId * MAX_SUCCESSORS;
+        final int limit = Math.min(out.length, MAX_SUCCESSORS);
+        int count = 0;
+        int lastCount = Integer.MAX_VALUE;
+        int lastSlot = -1;
+
+        // Selection by descending count, ties broken by slot order.
+        while (count < limit) {
+            int best = -1;
+            for (int i = base; i < (base + MAX_SUCCESSORS); i++) {
+                if ((mSuccessors[i] == NO_COMPONENT) || (mCounts[i] == 0)
+                        || (mComponents[mSuccessors[i]] == null)) {
+                    continue;
+                }
+
+                final boolean after = (mCounts[i] < lastCount)
+                        || ((mCounts[i] == lastCount) && (i > lastSlot));
+                if (after && ((best < 0) || (mCounts[i] > mCounts[best]))) {
+                    best = i;
+                }
+            }
+
+            if (best < 0) {
+                break;
+            }
+
+            out[count++] = mComponents[mSuccessors[best]];
+            lastCount = mCounts[best];
+            lastSlot = best;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The number of activities tracked.
+     */
+    public int size() {
+        return mIds.size();
+    }
+
+    /**
+     * Writes the model to storage on a background thread if it changed.
+     */
+    public void flush() {
+        if (!mDirty || mExecutor.isShutdown()) {
+            return;
+        }
+
+        mDirty = false;
+
+        final DataHolder data = new DataHolder();
+        data.components = mComponents.clone();
+        data.lastSeen = mLastSeen.clone();
+        data.successors = mSuccessors.clone();
+        data.counts = mCounts.clone();
+        data.sequence = mSequence;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeToDisk(data);
+            }
+        });
+    }
+
+    /**
+     * Stops the background thread once pending writes finish. Call
+     * {@link #flush} first to save the model. The model must not be used
+     * afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Returns the id for a component, evicting the least recently seen
+     * component if the model is full.
+     */
+    private int getOrAddId(ComponentName component) {
+        final Integer existing = mIds.get(component);
+        if (existing != null) {
+            mLastSeen[existing] = mSequence;
+            return existing;
+        }
+
+        int id = 0;
+        for (int i = 0; i < MAX_COMPONENTS; i++) {
+            if (mComponents[i] == null) {
+                id = i;
+                break;
+            }
+
+            if (mLastSeen[i] < mLastSeen[id]) {
+                id = i;
+            }
+        }
+
+        if (mComponents[id] != null) {
+            evict(id);
+        }
+
+        mComponents[id] = component;
+        mLastSeen[id] = mSequence;
+        mIds.put(component, id);
+        return id;
+    }
+
+    private void evict(int id) {
+        mIds.remove(mComponents[id]);
+        mComponents[id] = null;
+
+        final int base = id * MAX_SUCCESSORS;
+        for (int i = 0; i < mSuccessors.length; i++) {
+            if ((mSuccessors[i] == id) || ((i >= base) && (i < (base + MAX_SUCCESSORS)))) {
+                mSuccessors[i] = NO_COMPONENT;
+                mCounts[i] = 0;
+            }
+        }
+    }
+
+    private void install(DataHolder data) {
+        for (int i = 0; i < MAX_COMPONENTS; i++) {
+            mComponents[i] = data.components[i];
+            if (mComponents[i] != null) {
+                mIds.put(mComponents[i], i);
+            }
+        }
+
+        // Restore recency too, so eviction keeps the most recently seen
+        // components rather than whichever happen to have low ids.
+        System.arraycopy(data.lastSeen, 0, mLastSeen, 0, mLastSeen.length);
+        System.arraycopy(data.successors, 0, mSuccessors, 0, mSuccessors.length);
+        System.arraycopy(data.counts, 0, mCounts, 0, mCounts.length);
+        mSequence = data.sequence;
+    }
+
+    private DataHolder readFromDisk() {
+        if (!mModelFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mModelFile)));
+
+            if ((in.readInt() != FILE_FORMAT_VERSION) || (in.readInt() != MAX_COMPONENTS)
+                    || (in.readInt() != MAX_SUCCESSORS)) {
+                return null;
+            }
+
+            final DataHolder data = new DataHolder();
+            data.components = new ComponentName[MAX_COMPONENTS];
+            data.lastSeen = new long[MAX_COMPONENTS];
+            data.successors = new int[MAX_COMPONENTS * MAX_SUCCESSORS];
+            data.counts = new int[MAX_COMPONENTS * MAX_SUCCESSORS];
+            data.sequence = in.readLong();
+
+            for (int i = 0; i < MAX_COMPONENTS; i++) {
+                final String name = in.readUTF();
+                data.components[i] = (name.length() > 0)
+                        ? ComponentName.unflattenFromString(name) : null;
+                data.lastSeen[i] = in.readLong();
+            }
+
+            for (int i = 0; i < data.successors.length; i++) {
+                data.successors[i] = in.readByte();
+                data.counts[i] = in.readShort();
+            }
+
+            return data;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeToDisk(DataHolder data) {
+        final File tempFile = new File(mModelFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_FORMAT_VERSION);
+            out.writeInt(MAX_COMPONENTS);
+            out.writeInt(MAX_SUCCESSORS);
+
+            out.writeLong(data.sequence);
+
+            for (int i = 0; i < MAX_COMPONENTS; i++) {
+                final ComponentName component = data.components[i];
+                out.writeUTF((component != null) ? component.flattenToString() : "");
+                out.writeLong(data.lastSeen[i]);
+            }
+
+            // Ids fit in a byte and counts in a short.
+            for (int i = 0; i < data.successors.length; i++) {
+                out.writeByte(data.successors[i]);
+                out.writeShort(data.counts[i]);
+            }
+
+            out.close();
+            out = null;
+
+            // Replace the model atomically so a crash never leaves it torn.
+            if (!tempFile.renameTo(mModelFile)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Do nothing.
+        }
+    }
+
+    /**
+     * A copy of the model's arrays, passed between threads.
+     */
+    private static class DataHolder {
+        public ComponentName[] components;
+        public long[] lastSeen;
+        public int[] successors;
+        public int[] counts;
+        public long sequence;
+    }
+}
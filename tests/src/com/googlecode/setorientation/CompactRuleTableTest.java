@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Random;
+
+/**
+ * Tests {@link CompactRuleTable} and compares its footprint against the
+ * {@code HashMap<String, ScreenOrientation>} it replaced.
+ */
+public class CompactRuleTableTest extends TestCase {
+    private static final String TAG = CompactRuleTableTest.class.getSimpleName();
+
+    private static final ScreenOrientation[] ORIENTATIONS = ScreenOrientation.values();
+
+    public void testEmptyTable() {
+        assertEquals(0, CompactRuleTable.EMPTY.size());
+        assertNull(CompactRuleTable.EMPTY.get("com.example"));
+        assertNull(CompactRuleTable.EMPTY.get("com.example/.MainActivity"));
+    }
+
+    public void testPackageAndActivityRulesForSamePackage() {
+        final HashMap<String, ScreenOrientation> rules = new HashMap<String, ScreenOrientation>();
+        rules.put("com.example", ScreenOrientation.PORTRAIT);
+        rules.put("com.example/.MainActivity", ScreenOrientation.LANDSCAPE);
+        rules.put("com.example/.VideoActivity", ScreenOrientation.SENSOR);
+        rules.put("com.example.sub/.MainActivity", ScreenOrientation.PORTRAIT_REVERSE);
+
+        final CompactRuleTable table = assertRoundTrip(rules);
+
+        assertNull(table.get("com.example/.OtherActivity"));
+        assertNull(table.get("com.example/"));
+        assertNull(table.get("com.exampl"));
+        assertNull(table.get("com.example.sub"));
+        assertNull(table.get("com.example.sub/.VideoActivity"));
+    }
+
+    public void testEmptyClassSegmentIsNotPackageRule() {
+        final HashMap<String, ScreenOrientation> rules = new HashMap<String, ScreenOrientation>();
+        rules.put("com.example", ScreenOrientation.PORTRAIT);
+        rules.put("com.example/", ScreenOrientation.LANDSCAPE);
+
+        assertRoundTrip(rules);
+    }
+
+    public void testCollidingHashes() {
+        // "Aa" and "BB" have the same String hash code, as does any sequence
+        // built by concatenating them.
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+
+        final String[] segments = { "AaAa", "AaBB", "BBAa", "BBBB" };
+        final HashMap<String, ScreenOrientation> rules = new HashMap<String, ScreenOrientation>();
+        int i = 0;
+
+        for (String packageSegment : segments) {
+            final String packageName = "com." + packageSegment;
+            rules.put(packageName, ORIENTATIONS[i++ % ORIENTATIONS.length]);
+
+            for (String classSegment : segments) {
+                rules.put(packageName + "/." + classSegment,
+                        ORIENTATIONS[i++ % ORIENTATIONS.length]);
+            }
+        }
+
+        final CompactRuleTable table = assertRoundTrip(rules);
+
+        assertNull(table.get("com.AaAa/.AaAaAa"));
+        assertNull(table.get("com.BBBBBB"));
+    }
+
+    public void testRandomRoundTrip() {
+        final Random random = new Random(0);
+        final HashMap<String, ScreenOrientation> rules = createRules(random, 5000);
+        final CompactRuleTable table = assertRoundTrip(rules);
+
+        for (int i = 0; i < 5000; i++) {
+            final String filter = "com.missing" + random.nextInt(100) + "/.A" + i;
+            assertNull(filter, table.get(filter));
+        }
+    }
+
+    public void testUpdatesInPlace() {
+        final Random random = new Random(1);
+        final HashMap<String, ScreenOrientation> rules = createRules(random, 500);
+        final CompactRuleTable table = CompactRuleTable.compile(rules);
+        final Iterator<String> filters = rules.keySet().iterator();
+        final String removed = filters.next();
+        final String changed = filters.next();
+        final ScreenOrientation orientation =
+                ORIENTATIONS[(rules.get(changed).ordinal() + 1) % ORIENTATIONS.length];
+
+        assertSame(table, table.update("com.missing", null));
+        assertSame(table, table.update(removed, null));
+        assertSame(table, table.update(changed, orientation));
+        assertSame(table, table.update("com.added/.MainActivity", ScreenOrientation.SENSOR));
+
+        rules.remove(removed);
+        rules.put(changed, orientation);
+        rules.put("com.added/.MainActivity", ScreenOrientation.SENSOR);
+        assertSameRules(rules, table);
+        assertNull(table.get(removed));
+    }
+
+    public void testGrowsWhenFull() {
+        final Random random = new Random(2);
+        final HashMap<String, ScreenOrientation> rules = createRules(random, 100);
+        CompactRuleTable table = CompactRuleTable.compile(rules);
+        final CompactRuleTable original = table;
+
+        for (int i = 0; i < 200; i++) {
+            final String filter = "com.grown" + (i % 7) + "/.Activity" + i;
+            rules.put(filter, ScreenOrientation.SENSOR);
+            table = table.update(filter, ScreenOrientation.SENSOR);
+        }
+
+        assertNotSame(original, table);
+        assertSameRules(rules, table);
+    }
+
+    public void testRemovesAndAddsRepeatedly() {
+        final Random random = new Random(3);
+        final HashMap<String, ScreenOrientation> rules = createRules(random, 300);
+        final ArrayList<String> filters = new ArrayList<String>(rules.keySet());
+        CompactRuleTable table = CompactRuleTable.compile(rules);
+
+        for (int i = 0; i < 2000; i++) {
+            final int index = random.nextInt(filters.size());
+            final String filter = filters.get(index);
+            if (rules.containsKey(filter)) {
+                rules.remove(filter);
+                table = table.update(filter, null);
+            } else {
+                final ScreenOrientation orientation =
+                        ORIENTATIONS[random.nextInt(ORIENTATIONS.length)];
+                rules.put(filter, orientation);
+                table = table.update(filter, orientation);
+            }
+
+            assertEquals(filter, rules.get(filter), table.get(filter));
+        }
+
+        assertSameRules(rules, table);
+        for (String filter : filters) {
+            assertEquals(filter, rules.get(filter), table.get(filter));
+        }
+    }
+
+    private static void assertSameRules(
+            HashMap<String, ScreenOrientation> rules, CompactRuleTable table) {
+        assertEquals(rules.size(), table.size());
+        for (Entry<String, ScreenOrientation> entry : rules.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(), table.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Compares the heap retained by a compact table against a hash map with
+     * the same rules. Also logs both, so it doubles as a footprint benchmark.
+     */
+    public void testFootprint() {
+        final int[] counts = { 1000, 100000, 1000000 };
+
+        for (int count : counts) {
+            // A hash map and a table together need up to 250 bytes per rule,
+            // so skip sizes that don't fit comfortably in this device's heap.
+            if ((count * 500L) > Runtime.getRuntime().maxMemory()) {
+                Log.i(TAG, "Skipping footprint with " + count + " rules, heap too small");
+                continue;
+            }
+
+            final Random random = new Random(count);
+            final int packageCount = getPackageCount(count);
+            final long base = getUsedHeap();
+
+            final HashMap<String, ScreenOrientation> map = new HashMap<String, ScreenOrientation>();
+            for (int i = 0; i < count; i++) {
+                map.put(createFilter(random, i, packageCount),
+                        ORIENTATIONS[i % ORIENTATIONS.length]);
+            }
+
+            final long mapBytes = getUsedHeap() - base;
+            final CompactRuleTable table = CompactRuleTable.compile(map);
+            final long bothBytes = getUsedHeap() - base;
+            final long tableBytes = bothBytes - mapBytes;
+
+            Log.i(TAG, String.format("%d rules: HashMap %d KB, CompactRuleTable %d KB "
+                    + "(estimated %d KB)", count, mapBytes / 1024, tableBytes / 1024,
+                    table.getRetainedBytes() / 1024));
+
+            assertEquals(count, table.size());
+            // The table is about half the size of the map, or less without
+            // string compression. Require a third to leave room for noise.
+            assertTrue(count + " rules: table " + tableBytes + " bytes, map " + mapBytes,
+                    (tableBytes * 3) < (mapBytes * 2));
+
+            map.clear();
+        }
+    }
+
+    private static CompactRuleTable assertRoundTrip(HashMap<String, ScreenOrientation> rules) {
+        final CompactRuleTable table = CompactRuleTable.compile(rules);
+
+        assertEquals(rules.size(), table.size());
+
+        for (Entry<String, ScreenOrientation> entry : rules.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(), table.get(entry.getKey()));
+        }
+
+        return table;
+    }
+
+    /**
+     * Creates rules for a few hundred packages, mixing package rules with
+     * several activity rules per package.
+     */
+    private static HashMap<String, ScreenOrientation> createRules(Random random, int count) {
+        final String[] filters = createFilters(random, count);
+        final HashMap<String, ScreenOrientation> rules = new HashMap<String, ScreenOrientation>();
+
+        for (int i = 0; i < filters.length; i++) {
+            rules.put(filters[i], ORIENTATIONS[random.nextInt(ORIENTATIONS.length)]);
+        }
+
+        return rules;
+    }
+
+    private static String[] createFilters(Random random, int count) {
+        final String[] filters = new String[count];
+        final int packageCount = getPackageCount(count);
+
+        for (int i = 0; i < count; i++) {
+            filters[i] = createFilter(random, i, packageCount);
+        }
+
+        return filters;
+    }
+
+    /**
+     * Returns about one package for every eight rules.
+     */
+    private static int getPackageCount(int count) {
+        return Math.max(1, count / 8);
+    }
+
+    /**
+     * Returns a package rule for every eighth rule and an activity rule in a
+     * random package otherwise.
+     */
+    private static String createFilter(Random random, int index, int packageCount) {
+        final String packageName = "com.example.app" + random.nextInt(packageCount);
+        if ((index % 8) == 0) {
+            return packageName + "." + index;
+        }
+
+        return packageName + "/.ui.Activity" + index;
+    }
+
+    /**
+     * Returns the Java heap in use after collecting garbage.
+     */
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+
+        return (runtime.totalMemory() - runtime.freeMemory());
+    }
+}
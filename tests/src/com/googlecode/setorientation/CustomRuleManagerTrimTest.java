@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Measures how much heap {@link CustomRuleManager#trimMemory} releases with
+ * 10,000 rules per profile, and checks that lookups keep working without
+ * reloading rules.
+ */
+public class CustomRuleManagerTrimTest extends AndroidTestCase {
+    private static final String TAG = CustomRuleManagerTrimTest.class.getSimpleName();
+
+    private static final int RULE_COUNT = 10000;
+
+    /** A conservative lower bound on the heap held by one rule map entry. */
+    private static final int MIN_BYTES_PER_RULE = 48;
+
+    private TestContext mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mContext = new TestContext(getContext());
+        mContext.getSharedPreferences(CustomRuleManager.PREFS_FILE, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.clearSharedPreferences();
+
+        super.tearDown();
+    }
+
+    public void testTrimReleasesRules() {
+        final CustomRuleManager ruleManager = CustomRuleManager.createDetached(mContext);
+        final HashMap<String, HashMap<String, ScreenOrientation>> profiles =
+                new HashMap<String, HashMap<String, ScreenOrientation>>();
+        profiles.put(CustomRuleManager.DEFAULT_PROFILE, createRules(ScreenOrientation.LANDSCAPE));
+        profiles.put("work", createRules(ScreenOrientation.PORTRAIT));
+        ruleManager.mergeRules(profiles);
+        profiles.clear();
+
+        final long loaded = getUsedHeap();
+
+        ruleManager.trimMemory(false);
+        final long trimmed = getUsedHeap();
+
+        ruleManager.trimMemory(true);
+        final long minimal = getUsedHeap();
+
+        Log.i(TAG, String.format("%d rules per profile: loaded %d KB, trimmed %d KB, "
+                + "minimal %d KB", RULE_COUNT, loaded / 1024, trimmed / 1024, minimal / 1024));
+
+        // The inactive profile's rule map and table are released first, then
+        // the active profile's rule map.
+        assertTrue("Trim released " + (loaded - trimmed) + " bytes",
+                (loaded - trimmed) >= (RULE_COUNT * MIN_BYTES_PER_RULE));
+        assertTrue("Minimal trim released " + (trimmed - minimal) + " bytes",
+                (trimmed - minimal) >= (RULE_COUNT * MIN_BYTES_PER_RULE));
+
+        // Lookups resolve from the compiled table without reloading.
+        final ComponentName component = new ComponentName("com.example.app42", ".Activity42");
+        assertEquals(ScreenOrientation.LANDSCAPE, ruleManager.getRuleForComponent(component, 0));
+        assertTrue(ruleManager.isTrimmed());
+        assertEquals(1, ruleManager.getLoadedProfileCount());
+
+        // Anything that needs the rule maps reloads every profile.
+        assertEquals(RULE_COUNT, ruleManager.getRules("work").size());
+        assertFalse(ruleManager.isTrimmed());
+        assertEquals(ScreenOrientation.LANDSCAPE, ruleManager.getRuleForActivity(component));
+    }
+
+    private static HashMap<String, ScreenOrientation> createRules(ScreenOrientation orientation) {
+        final HashMap<String, ScreenOrientation> rules =
+                new HashMap<String, ScreenOrientation>();
+
+        for (int i = 0; i < RULE_COUNT; i++) {
+            final ComponentName component =
+                    new ComponentName("com.example.app" + i, ".Activity" + i);
+            rules.put(CustomRuleManager.getComponentFilter(component), orientation);
+        }
+
+        return rules;
+    }
+
+    /**
+     * Returns the Java heap in use after collecting garbage.
+     */
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+
+        return (runtime.totalMemory() - runtime.freeMemory());
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import junit.framework.TestCase;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * Tests rule key parsing and lookups in {@link DecisionTable}.
+ */
+public class DecisionTableTest extends TestCase {
+    private static final String PACKAGE = "com.example";
+    private static final String ACTIVITY = "com.example/.MainActivity";
+
+    private static final int DOCKED = DeviceStateTracker.STATE_DOCKED;
+    private static final int CHARGING = DeviceStateTracker.STATE_CHARGING;
+
+    private HashMap<String, ScreenOrientation> mRules;
+    private ScheduleTimeline mTimeline;
+    private long mTime;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mRules = new HashMap<String, ScreenOrientation>();
+
+        // Monday 2013-07-01 09:00 UTC.
+        final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(2013, Calendar.JULY, 1, 9, 0);
+        mTime = calendar.getTimeInMillis();
+
+        mTimeline = new ScheduleTimeline(new ScheduleTimeline.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return mTime;
+            }
+
+            @Override
+            public TimeZone getTimeZone() {
+                return TimeZone.getTimeZone("UTC");
+            }
+        });
+    }
+
+    public void testGetFilter() {
+        assertEquals(PACKAGE, DecisionTable.getFilter(PACKAGE));
+        assertEquals(ACTIVITY, DecisionTable.getFilter(ACTIVITY + ";when=docked"));
+        assertEquals(PACKAGE, DecisionTable.getFilter(PACKAGE + ";when=docked;time=0800-1800"));
+    }
+
+    public void testValidKeys() {
+        assertTrue(DecisionTable.isValidKey(PACKAGE));
+        assertTrue(DecisionTable.isValidKey(ACTIVITY));
+        assertTrue(DecisionTable.isValidKey(PACKAGE + ";when=docked"));
+        assertTrue(DecisionTable.isValidKey(PACKAGE + ";when=docked+!charging+keyboard"));
+        assertTrue(DecisionTable.isValidKey(PACKAGE + ";days=sat+sun"));
+        assertTrue(DecisionTable.isValidKey(PACKAGE + ";when=headset;time=2200-0600"));
+    }
+
+    public void testInvalidKeys() {
+        assertFalse(DecisionTable.isValidKey(PACKAGE + ";when="));
+        assertFalse(DecisionTable.isValidKey(PACKAGE + ";when=flying"));
+        assertFalse(DecisionTable.isValidKey(PACKAGE + ";when=docked+docked"));
+        assertFalse(DecisionTable.isValidKey(PACKAGE + ";when=docked+!docked"));
+        assertFalse(DecisionTable.isValidKey(PACKAGE + ";when=docked;when=charging"));
+        assertFalse(DecisionTable.isValidKey(PACKAGE + ";where=home"));
+        assertFalse(DecisionTable.isValidKey(PACKAGE + ";days=someday"));
+    }
+
+    public void testUnconditionalRules() {
+        mRules.put(PACKAGE, ScreenOrientation.PORTRAIT);
+        mRules.put(ACTIVITY, ScreenOrientation.LANDSCAPE);
+
+        final DecisionTable table = compile();
+
+        assertFalse(table.hasConditionalRules());
+        assertEquals(2, table.getUnconditionalCount());
+        assertEquals(ScreenOrientation.PORTRAIT, table.get(PACKAGE, 0));
+        assertEquals(ScreenOrientation.LANDSCAPE, table.get(ACTIVITY, DOCKED));
+        assertNull(table.get("com.example.other", 0));
+    }
+
+    public void testConditionFallsBackToUnconditionalRule() {
+        mRules.put(PACKAGE, ScreenOrientation.PORTRAIT);
+        mRules.put(PACKAGE + ";when=docked", ScreenOrientation.LANDSCAPE);
+
+        final DecisionTable table = compile();
+
+        assertTrue(table.hasConditionalRules());
+        assertEquals(ScreenOrientation.PORTRAIT, table.get(PACKAGE, 0));
+        assertEquals(ScreenOrientation.LANDSCAPE, table.get(PACKAGE, DOCKED));
+        assertEquals(ScreenOrientation.LANDSCAPE, table.get(PACKAGE, DOCKED | CHARGING));
+    }
+
+    public void testConditionWithoutUnconditionalRule() {
+        mRules.put(PACKAGE + ";when=docked", ScreenOrientation.LANDSCAPE);
+
+        final DecisionTable table = compile();
+
+        assertNull(table.get(PACKAGE, 0));
+        assertEquals(ScreenOrientation.LANDSCAPE, table.get(PACKAGE, DOCKED));
+    }
+
+    public void testMostSpecificConditionWins() {
+        mRules.put(PACKAGE + ";when=docked", ScreenOrientation.LANDSCAPE);
+        mRules.put(PACKAGE + ";when=docked+!charging", ScreenOrientation.PORTRAIT);
+
+        final DecisionTable table = compile();
+
+        assertEquals(ScreenOrientation.PORTRAIT, table.get(PACKAGE, DOCKED));
+        assertEquals(ScreenOrientation.LANDSCAPE, table.get(PACKAGE, DOCKED | CHARGING));
+        assertNull(table.get(PACKAGE, CHARGING));
+    }
+
+    public void testInvalidConditionsAreIgnored() {
+        mRules.put(PACKAGE, ScreenOrientation.PORTRAIT);
+        mRules.put(PACKAGE + ";when=flying", ScreenOrientation.LANDSCAPE);
+
+        final DecisionTable table = compile();
+
+        assertFalse(table.hasConditionalRules());
+        assertEquals(ScreenOrientation.PORTRAIT, table.get(PACKAGE, DOCKED));
+    }
+
+    public void testScheduledRules() {
+        final String workHours = PACKAGE + ";time=0800-1800";
+        final String weekends = PACKAGE + ";days=sat+sun";
+        mRules.put(PACKAGE, ScreenOrientation.PORTRAIT);
+        mRules.put(workHours, ScreenOrientation.LANDSCAPE);
+        mRules.put(weekends, ScreenOrientation.SENSOR);
+
+        DecisionTable table = compile();
+        assertEquals(ScreenOrientation.LANDSCAPE, table.get(PACKAGE, 0));
+
+        // Move to 18:00, when the work hours rule ends.
+        mTime += 9 * 60 * 60 * 1000L;
+        assertEquals(Collections.singletonList(workHours), mTimeline.advance());
+
+        table = table.recompile(Collections.singleton(PACKAGE), mTimeline);
+        assertEquals(ScreenOrientation.PORTRAIT, table.get(PACKAGE, 0));
+    }
+
+    public void testRecompileKeepsOtherFilters() {
+        mRules.put(PACKAGE + ";time=0800-1800", ScreenOrientation.LANDSCAPE);
+        mRules.put(ACTIVITY + ";when=docked", ScreenOrientation.PORTRAIT);
+        mRules.put("com.example.other", ScreenOrientation.SENSOR);
+
+        final DecisionTable table = compile()
+                .recompile(Collections.singleton(PACKAGE), mTimeline);
+
+        assertEquals(ScreenOrientation.LANDSCAPE, table.get(PACKAGE, 0));
+        assertEquals(ScreenOrientation.PORTRAIT, table.get(ACTIVITY, DOCKED));
+        assertEquals(ScreenOrientation.SENSOR, table.get("com.example.other", DOCKED));
+    }
+
+    public void testUpdateMatchesFullCompile() {
+        mRules.put(PACKAGE, ScreenOrientation.PORTRAIT);
+        mRules.put(ACTIVITY + ";when=docked", ScreenOrientation.PORTRAIT);
+        mRules.put("com.example.other", ScreenOrientation.SENSOR);
+        DecisionTable table = compile();
+
+        table = table.update(ACTIVITY, ScreenOrientation.LANDSCAPE, mTimeline);
+        table = table.update(PACKAGE + ";when=docked", ScreenOrientation.SENSOR, mTimeline);
+        table = table.update("com.example.other", null, mTimeline);
+        mRules.put(ACTIVITY, ScreenOrientation.LANDSCAPE);
+        mRules.put(PACKAGE + ";when=docked", ScreenOrientation.SENSOR);
+        mRules.remove("com.example.other");
+
+        assertSameRules(compile(), table);
+    }
+
+    public void testUpdateRemovesLastCondition() {
+        mRules.put(PACKAGE, ScreenOrientation.PORTRAIT);
+        mRules.put(PACKAGE + ";when=docked", ScreenOrientation.LANDSCAPE);
+
+        final DecisionTable table = compile().update(PACKAGE + ";when=docked", null, mTimeline);
+
+        assertFalse(table.hasConditionalRules());
+        assertEquals(ScreenOrientation.PORTRAIT, table.get(PACKAGE, DOCKED));
+    }
+
+    public void testUpdateIgnoresInvalidConditions() {
+        mRules.put(PACKAGE, ScreenOrientation.PORTRAIT);
+        final DecisionTable table = compile();
+
+        assertSame(table, table.update(PACKAGE + ";when=flying", ScreenOrientation.LANDSCAPE,
+                mTimeline));
+    }
+
+    private static void assertSameRules(DecisionTable expected, DecisionTable actual) {
+        final String[] filters = { PACKAGE, ACTIVITY, "com.example.other" };
+        for (String filter : filters) {
+            for (int state = 0; state <= (DOCKED | CHARGING); state++) {
+                assertEquals(filter + " in state " + state,
+                        expected.get(filter, state), actual.get(filter, state));
+            }
+        }
+    }
+
+    private DecisionTable compile() {
+        mTimeline.rebuild(mRules.keySet());
+        return DecisionTable.compile(mRules, mTimeline);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import java.util.Random;
+
+/**
+ * Measures the cost of {@link OrientationClassifier#addSample} on a desktop
+ * JVM. The classifier has no Android dependencies, so this runs without a
+ * device:
+ *
+ * <pre>
+ * javac -d out src/com/googlecode/setorientation/OrientationClassifier.java \
+ *     tests/src/com/googlecode/setorientation/OrientationClassifierBenchmark.java
+ * java -cp out com.googlecode.setorientation.OrientationClassifierBenchmark
+ * </pre>
+ */
+public class OrientationClassifierBenchmark {
+    private static final int SAMPLE_COUNT = 1 << 16;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 50;
+
+    public static void main(String[] args) {
+        final float[] samples = createTrace(new Random(0));
+        final OrientationClassifier classifier = new OrientationClassifier();
+        long sink = 0;
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += run(classifier, samples);
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            final long start = System.nanoTime();
+            sink += run(classifier, samples);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format("addSample: %.1f ns/sample (best of %d, checksum %d)",
+                (double) best / SAMPLE_COUNT, MEASURED_ROUNDS, sink));
+    }
+
+    private static long run(OrientationClassifier classifier, float[] samples) {
+        long sum = 0;
+        long time = 0;
+
+        classifier.reset();
+
+        for (int i = 0; i < samples.length; i += 3) {
+            sum += classifier.addSample(samples[i], samples[i + 1], samples[i + 2], time);
+            time += 20 * 1000000L;
+        }
+
+        return sum;
+    }
+
+    /**
+     * Creates a trace that turns slowly through every rotation with noise,
+     * so every branch of the classifier is exercised.
+     */
+    private static float[] createTrace(Random random) {
+        final float[] samples = new float[SAMPLE_COUNT * 3];
+        final float gravity = 9.80665f;
+
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            final double angle = Math.toRadians((i * 0.05) % 360);
+            final double tilt = Math.toRadians(60 * Math.sin(i * 0.001));
+            final double upright = gravity * Math.cos(tilt);
+
+            samples[i * 3] = (float) (-upright * Math.sin(angle) + 0.5 * random.nextGaussian());
+            samples[i * 3 + 1] = (float) (upright * Math.cos(angle) + 0.5 * random.nextGaussian());
+            samples[i * 3 + 2] = (float) (gravity * Math.sin(tilt) + 0.5 * random.nextGaussian());
+        }
+
+        return samples;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Tests {@link OrientationClassifier} against synthetic accelerometer traces.
+ */
+public class OrientationClassifierTest extends TestCase {
+    private static final float GRAVITY = 9.80665f;
+
+    /** Sample period of {@code SENSOR_DELAY_GAME}, roughly 50 Hz. */
+    private static final long PERIOD_NANOS = 20 * 1000000L;
+
+    /** Rotations the classifier may report with upside-down disabled. */
+    private static final int[] ROTATIONS = { 0, 1, 3 };
+
+    private OrientationClassifier mClassifier;
+    private Random mRandom;
+    private long mTime;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mClassifier = new OrientationClassifier();
+        mRandom = new Random(0);
+        mTime = 0;
+    }
+
+    public void testFirstSampleIsReportedImmediately() {
+        assertEquals(OrientationClassifier.ROTATION_UNKNOWN, mClassifier.getRotation());
+        assertEquals(1, hold(90, 0, 0, 1));
+    }
+
+    public void testHysteresis() {
+        hold(0, 0, 0, 1000);
+
+        // The boundary is at 45 degrees and the default hysteresis is 15.
+        assertEquals(0, hold(55, 0, 0, 2000));
+        assertEquals(1, hold(65, 0, 0, 2000));
+        assertEquals(1, hold(35, 0, 0, 2000));
+        assertEquals(0, hold(25, 0, 0, 2000));
+    }
+
+    public void testSettleTime() {
+        hold(0, 0, 0, 1000);
+
+        assertEquals(0, hold(90, 0, 0, 200));
+        assertEquals(1, hold(90, 0, 0, 800));
+    }
+
+    public void testBriefTurnIsIgnored() {
+        hold(0, 0, 0, 1000);
+        hold(90, 0, 0, 150);
+
+        assertEquals(0, hold(0, 0, 0, 1000));
+    }
+
+    public void testFlatSamplesAreIgnored() {
+        hold(0, 0, 0, 1000);
+
+        // Lying on a bed in landscape should not rotate the screen.
+        assertEquals(0, hold(90, 80, 0, 2000));
+        assertEquals(1, hold(90, 30, 0, 2000));
+    }
+
+    public void testAcceleratingSamplesAreIgnored() {
+        hold(0, 0, 0, 1000);
+
+        // Swinging the device, then dropping it, should not rotate the screen.
+        assertEquals(0, holdScaled(90, 1.5f, 1000));
+        assertEquals(0, holdScaled(90, 0.2f, 1000));
+    }
+
+    public void testUpsideDown() {
+        hold(0, 0, 0, 1000);
+        assertEquals(0, hold(180, 0, 0, 2000));
+
+        mClassifier.setAllowUpsideDown(true);
+        assertEquals(2, hold(180, 0, 0, 2000));
+    }
+
+    public void testReset() {
+        hold(90, 0, 0, 1000);
+        mClassifier.reset();
+
+        assertEquals(OrientationClassifier.ROTATION_UNKNOWN, mClassifier.getRotation());
+        assertEquals(3, hold(270, 0, 0, 1));
+    }
+
+    /**
+     * Moves between random rotations with a random offset from the center of
+     * each quadrant, random tilt and sensor noise, and checks that the
+     * classifier settles on the intended rotation without flickering.
+     */
+    public void testAccuracy() {
+        final int trials = 1000;
+        int correct = 0;
+        int flickers = 0;
+
+        hold(0, 0, 0, 1000);
+
+        for (int i = 0; i < trials; i++) {
+            final int target = ROTATIONS[mRandom.nextInt(ROTATIONS.length)];
+            final float angle = (target * 90) + ((mRandom.nextFloat() * 50) - 25);
+            final float tilt = (mRandom.nextFloat() * 80) - 40;
+            int previous = mClassifier.getRotation();
+            int changes = 0;
+
+            for (long elapsed = 0; elapsed < 1500; elapsed += PERIOD_NANOS / 1000000) {
+                final int rotation = addNoisySample(angle, tilt, 0.5f);
+                if (rotation != previous) {
+                    changes++;
+                    previous = rotation;
+                }
+            }
+
+            if (mClassifier.getRotation() == target) {
+                correct++;
+            }
+
+            if (changes > 1) {
+                flickers++;
+            }
+        }
+
+        assertTrue("Accuracy " + correct + "/" + trials, correct >= (trials * 99 / 100));
+        assertEquals(0, flickers);
+    }
+
+    /**
+     * Holds the device at an angle for a duration without noise and returns
+     * the resulting rotation.
+     */
+    private int hold(float angle, float tilt, float noise, long millis) {
+        int rotation = mClassifier.getRotation();
+
+        for (long elapsed = 0; elapsed < millis; elapsed += PERIOD_NANOS / 1000000) {
+            rotation = addNoisySample(angle, tilt, noise);
+        }
+
+        return rotation;
+    }
+
+    /**
+     * Holds the device at an angle while scaling the measured acceleration,
+     * as when it is accelerating or in free fall.
+     */
+    private int holdScaled(float angle, float scale, long millis) {
+        for (long elapsed = 0; elapsed < millis; elapsed += PERIOD_NANOS / 1000000) {
+            final float[] sample = sample(angle, 0, 0);
+            mClassifier.addSample(sample[0] * scale, sample[1] * scale, sample[2] * scale, mTime);
+            mTime += PERIOD_NANOS;
+        }
+
+        return mClassifier.getRotation();
+    }
+
+    private int addNoisySample(float angle, float tilt, float noise) {
+        final float[] sample = sample(angle, tilt, noise);
+        final int rotation = mClassifier.addSample(sample[0], sample[1], sample[2], mTime);
+        mTime += PERIOD_NANOS;
+        return rotation;
+    }
+
+    /**
+     * Returns a gravity vector for a device rotated clockwise by
+     * {@code angle} degrees from upright and tilted back by {@code tilt}
+     * degrees, with Gaussian noise added to each axis.
+     */
+    private float[] sample(float angle, float tilt, float noise) {
+        final double a = Math.toRadians(angle);
+        final double t = Math.toRadians(tilt);
+        final float upright = (float) (GRAVITY * Math.cos(t));
+
+        return new float[] {
+                (float) (-upright * Math.sin(a) + noise * mRandom.nextGaussian()),
+                (float) (upright * Math.cos(a) + noise * mRandom.nextGaussian()),
+                (float) (GRAVITY * Math.sin(t) + noise * mRandom.nextGaussian()) };
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.ServiceTestCase;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link OrientationService} neither wakes up nor holds windows
+ * while idle. Wakeups and idle state are read from the service's dump, and
+ * windows are counted by a {@link TestContext}.
+ */
+public class OrientationServiceIdleTest extends ServiceTestCase<OrientationService> {
+    /** How long to watch an idle service for wakeups. */
+    private static final long IDLE_WATCH_MILLIS = 3000;
+
+    /** How long to wait for the overlay window to attach. */
+    private static final long WINDOW_TIMEOUT_MILLIS = 5000;
+
+    /** How long to wait for the transition model to be written and read. */
+    private static final long MODEL_TIMEOUT_MILLIS = 5000;
+
+    private static final String RULE_FILTER = "com.example.idle";
+
+    private TestContext mContext;
+
+    public OrientationServiceIdleTest() {
+        super(OrientationService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mContext = new TestContext(getContext());
+        setContext(mContext);
+
+        // Start from a new installation, with the built-in rules and an
+        // unspecified default rule.
+        mContext.getSharedPreferences(OrientationPrefsManager.PREFS_FILE, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        mContext.getSharedPreferences(CustomRuleManager.PREFS_FILE, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+
+        new File(mContext.getFilesDir(), TransitionModel.MODEL_FILE).delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                shutdownService();
+            }
+        });
+
+        mContext.clearSharedPreferences();
+
+        super.tearDown();
+    }
+
+    public void testIdleWithBuiltInRules() throws Exception {
+        startServiceOnMain();
+
+        // The built-in rules defer to the app, which can't change the outcome
+        // of an unspecified default rule.
+        final CustomRuleManager ruleManager = CustomRuleManager.createDetached(mContext);
+        assertFalse(ruleManager.getRules(CustomRuleManager.DEFAULT_PROFILE).isEmpty());
+
+        assertEquals("true", getDumpValue("idle"));
+        assertEquals("0", getDumpValue("pending tasks"));
+
+        final String wakeups = getDumpValue("wakeups");
+        Thread.sleep(IDLE_WATCH_MILLIS);
+
+        assertEquals(wakeups, getDumpValue("wakeups"));
+        assertEquals(0, mContext.getAttachCount());
+    }
+
+    public void testLeavesAndReentersIdle() throws Exception {
+        startServiceOnMain();
+        assertEquals("true", getDumpValue("idle"));
+
+        // Only the overlay can apply a sensor landscape rule, so a rule for
+        // the focused app attaches its window.
+        final ActivityManager am =
+                (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        final ComponentName focused =
+                ForegroundSnapshot.capture(am, mContext.getPackageName()).getFocused();
+        assertNotNull("No other activity is focused", focused);
+        final String filter = CustomRuleManager.getPackageFilter(focused.getPackageName());
+
+        // The service's rule manager hears about the change through the
+        // shared preference listener, on the main thread.
+        final CustomRuleManager ruleManager = CustomRuleManager.createDetached(mContext);
+        ruleManager.setRules(
+                Collections.singletonMap(filter, ScreenOrientation.LANDSCAPE_SENSOR));
+
+        assertEquals("false", getDumpValue("idle"));
+        assertFalse("0".equals(getDumpValue("pending tasks")));
+        waitForAttachedWindows(1);
+
+        ruleManager.setRules(Collections.singletonMap(filter, (ScreenOrientation) null));
+
+        assertEquals("true", getDumpValue("idle"));
+        assertEquals("0", getDumpValue("pending tasks"));
+        assertEquals(0, mContext.getAttachedWindowCount());
+
+        final String wakeups = getDumpValue("wakeups");
+        Thread.sleep(IDLE_WATCH_MILLIS);
+
+        assertEquals(wakeups, getDumpValue("wakeups"));
+        assertEquals(0, mContext.getAttachedWindowCount());
+    }
+
+    public void testSavesTransitionsAfterIdle() throws Exception {
+        startServiceOnMain();
+        assertEquals("true", getDumpValue("idle"));
+
+        final CustomRuleManager ruleManager = CustomRuleManager.createDetached(mContext);
+        ruleManager.setRules(Collections.singletonMap(RULE_FILTER, ScreenOrientation.PORTRAIT));
+        assertEquals("false", getDumpValue("idle"));
+        ruleManager.setRules(Collections.singletonMap(RULE_FILTER, (ScreenOrientation) null));
+        assertEquals("true", getDumpValue("idle"));
+        ruleManager.setRules(Collections.singletonMap(RULE_FILTER, ScreenOrientation.PORTRAIT));
+        assertEquals("false", getDumpValue("idle"));
+
+        final ComponentName from = new ComponentName(RULE_FILTER, RULE_FILTER + ".From");
+        final ComponentName to = new ComponentName(RULE_FILTER, RULE_FILTER + ".To");
+        final TransitionModel serviceModel = getServiceModel();
+
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                serviceModel.record(null, from);
+                serviceModel.record(from, to);
+                serviceModel.flush();
+            }
+        });
+
+        // The write and the read are both asynchronous, so reload until the
+        // saved transition shows up.
+        final ComponentName[] predictions = new ComponentName[1];
+        final long deadline = System.currentTimeMillis() + MODEL_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            final TransitionModel[] loaded = new TransitionModel[1];
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    loaded[0] = new TransitionModel(mContext);
+                }
+            });
+
+            Thread.sleep(200);
+
+            final int[] count = new int[1];
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    count[0] = loaded[0].predict(from, predictions);
+                    loaded[0].shutdown();
+                }
+            });
+
+            if (count[0] > 0) {
+                assertEquals(to, predictions[0]);
+                return;
+            }
+        }
+
+        fail("The transition was not saved after leaving idle mode");
+    }
+
+    /**
+     * Waits for the service to attach the specified number of windows. The
+     * foreground activity is polled, so this may take a few polls.
+     */
+    private void waitForAttachedWindows(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WINDOW_TIMEOUT_MILLIS;
+        while ((mContext.getAttachedWindowCount() != count)
+                && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(100);
+        }
+
+        assertEquals(count, mContext.getAttachedWindowCount());
+    }
+
+    /**
+     * Returns the service's transition model, which has no accessor since
+     * nothing else needs one.
+     */
+    private TransitionModel getServiceModel() throws Exception {
+        final Field field = OrientationService.class.getDeclaredField("mTransitionModel");
+        field.setAccessible(true);
+        return (TransitionModel) field.get(getService());
+    }
+
+    /**
+     * Starts the service on the main thread, where it normally runs, so it
+     * never races with its own scheduler.
+     */
+    private void startServiceOnMain() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                startService(new Intent(mContext, OrientationService.class));
+            }
+        });
+    }
+
+    /**
+     * Returns the value of the first line of the service dump labeled with
+     * the specified name. The dump runs on the main thread after any pending
+     * callbacks.
+     */
+    private String getDumpValue(String label) {
+        final StringWriter output = new StringWriter();
+
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final PrintWriter writer = new PrintWriter(output);
+                getService().dump(null, writer, new String[0]);
+                writer.flush();
+            }
+        });
+
+        final String prefix = label + ": ";
+        for (String line : output.toString().split("\n")) {
+            final String trimmed = line.trim();
+            if (trimmed.startsWith(prefix)) {
+                return trimmed.substring(prefix.length());
+            }
+        }
+
+        fail("No \"" + label + "\" in dump:\n" + output);
+        return null;
+    }
+
+    private static void runOnMainSync(final Runnable runnable) {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            fail("Interrupted");
+        }
+    }
+}
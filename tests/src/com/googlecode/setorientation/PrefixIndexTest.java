@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests {@link PrefixIndex}.
+ */
+public class PrefixIndexTest extends TestCase {
+    private static final String[] LABELS = {
+            "Maps", "com.google.android.apps.maps", "Camera", "com.android.camera",
+            "Calculator", "com.android.calculator2", "Mail", "com.example.mail_client" };
+
+    private PrefixIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        final PrefixIndex.Builder builder = new PrefixIndex.Builder();
+        for (int i = 0; i < LABELS.length; i += 2) {
+            builder.add(i / 2, LABELS[i]).add(i / 2, LABELS[i + 1]);
+        }
+
+        mIndex = builder.build();
+    }
+
+    public void testQueryMatchesWordPrefixes() {
+        assertMatches(mIndex.query("ca"), 1, 2);
+        assertMatches(mIndex.query("calc"), 2);
+        assertMatches(mIndex.query("maps"), 0);
+        assertMatches(mIndex.query("client"), 3);
+        assertMatches(mIndex.query("com.android"), 1, 2);
+    }
+
+    public void testQueryIsCaseInsensitive() {
+        assertMatches(mIndex.query("CAMERA"), 1);
+        assertMatches(mIndex.query("  Mail "), 3);
+    }
+
+    public void testEmptyQueryMatchesEverything() {
+        assertMatches(mIndex.query(""), 0, 1, 2, 3);
+    }
+
+    public void testQueryWithoutMatches() {
+        assertMatches(mIndex.query("zzz"));
+        assertMatches(mIndex.query("zzzz"));
+        assertMatches(mIndex.query("m"), 0, 3);
+    }
+
+    public void testNarrowingAndWideningQueries() {
+        assertMatches(mIndex.query("c"), 0, 1, 2, 3);
+        assertMatches(mIndex.query("ca"), 1, 2);
+        assertMatches(mIndex.query("cam"), 1);
+        assertMatches(mIndex.query("ca"), 1, 2);
+        assertMatches(mIndex.query("mail"), 3);
+    }
+
+    public void testEntriesAreReportedOnce() {
+        final PrefixIndex index = new PrefixIndex.Builder()
+                .add(0, "settings settings").add(0, "com.android.settings").build();
+
+        assertMatches(index.query("set"), 0);
+    }
+
+    public void testNullAndBlankTextAreIgnored() {
+        final PrefixIndex index = new PrefixIndex.Builder().add(0, null).add(1, " ").build();
+
+        assertEquals(0, index.getTokenCount());
+        assertMatches(index.query("a"));
+    }
+
+    public void testAppendMatchesSingleBuild() {
+        final Random random = new Random(0);
+        final String[] texts = new String[500];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = randomText(random);
+        }
+
+        final PrefixIndex.Builder whole = new PrefixIndex.Builder();
+        for (int i = 0; i < texts.length; i++) {
+            whole.add(i, texts[i]);
+        }
+
+        // Append in uneven pages, as the rules screen does while loading.
+        PrefixIndex appended = new PrefixIndex.Builder().build();
+        for (int start = 0; start < texts.length; start += 37) {
+            final PrefixIndex.Builder page = new PrefixIndex.Builder();
+            for (int i = start; i < Math.min(start + 37, texts.length); i++) {
+                page.add(i, texts[i]);
+            }
+
+            appended = appended.append(page);
+        }
+
+        final PrefixIndex built = whole.build();
+        assertEquals(built.getTokenCount(), appended.getTokenCount());
+
+        for (int i = 0; i < 200; i++) {
+            final String text = randomText(random);
+            final String query = text.substring(0, Math.min(text.length(), 1 + random.nextInt(3)));
+            assertTrue(query, Arrays.equals(built.query(query), appended.query(query)));
+        }
+    }
+
+    public void testIncrementalQueriesMatchBruteForce() {
+        final Random random = new Random(1);
+        final String[] texts = new String[300];
+        final PrefixIndex.Builder builder = new PrefixIndex.Builder();
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = randomText(random);
+            builder.add(i, texts[i]);
+        }
+
+        final PrefixIndex index = builder.build();
+
+        // Type and delete characters, as a user does in the search box.
+        final StringBuilder query = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            if ((query.length() > 0) && (random.nextInt(3) == 0)) {
+                query.setLength(query.length() - 1);
+            } else if (query.length() < 4) {
+                query.append((char) ('a' + random.nextInt(4)));
+            }
+
+            final String prefix = query.toString();
+            assertTrue(prefix, Arrays.equals(bruteForce(texts, prefix), index.query(prefix)));
+        }
+    }
+
+    private static int[] bruteForce(String[] texts, String prefix) {
+        final int[] matches = new int[texts.length];
+        int count = 0;
+
+        for (int i = 0; i < texts.length; i++) {
+            final String text = texts[i];
+            boolean matched = text.startsWith(prefix);
+            for (String word : text.split("[\\s./_$]+")) {
+                matched |= word.startsWith(prefix);
+            }
+
+            if (matched) {
+                matches[count++] = i;
+            }
+        }
+
+        final int[] result = new int[count];
+        System.arraycopy(matches, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Returns lowercase text of one to three words over a small alphabet, so
+     * random queries match often.
+     */
+    private static String randomText(Random random) {
+        final StringBuilder text = new StringBuilder();
+        final int words = 1 + random.nextInt(3);
+
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append((random.nextBoolean()) ? ' ' : '.');
+            }
+
+            final int length = 1 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                text.append((char) ('a' + random.nextInt(4)));
+            }
+        }
+
+        return text.toString();
+    }
+
+    private static void assertMatches(int[] actual, int... expected) {
+        assertTrue("Expected " + Arrays.toString(expected) + " but was "
+                + Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
+}
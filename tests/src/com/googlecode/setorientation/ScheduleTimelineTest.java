@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Tests {@link ScheduleTimeline} against a fake clock.
+ */
+public class ScheduleTimelineTest extends TestCase {
+    private static final String WEEKDAYS =
+            "com.example.kiosk;days=mon+tue+wed+thu+fri;time=0800-1800";
+    private static final String OVERNIGHT = "com.example.reader;time=2200-0600";
+    private static final String ALL_DAY = "com.example.maps;time=0000-2400";
+
+    private FakeClock mClock;
+    private ScheduleTimeline mTimeline;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mClock = new FakeClock(TimeZone.getTimeZone("UTC"));
+        mTimeline = new ScheduleTimeline(mClock);
+    }
+
+    public void testIsScheduled() {
+        assertTrue(ScheduleTimeline.isScheduled(WEEKDAYS));
+        assertTrue(ScheduleTimeline.isScheduled("com.example;days=sat"));
+        assertFalse(ScheduleTimeline.isScheduled("com.example"));
+        assertFalse(ScheduleTimeline.isScheduled("com.example/.Main"));
+    }
+
+    public void testIsValidQualifier() {
+        assertTrue(ScheduleTimeline.isValidQualifier("days=mon+sun"));
+        assertTrue(ScheduleTimeline.isValidQualifier("time=2200-0600"));
+        assertTrue(ScheduleTimeline.isValidQualifier("time=0000-2400"));
+
+        assertFalse(ScheduleTimeline.isValidQualifier("days=monday"));
+        assertFalse(ScheduleTimeline.isValidQualifier("days="));
+        assertFalse(ScheduleTimeline.isValidQualifier("time=0800-0800"));
+        assertFalse(ScheduleTimeline.isValidQualifier("time=2400-0100"));
+        assertFalse(ScheduleTimeline.isValidQualifier("time=0860-0900"));
+        assertFalse(ScheduleTimeline.isValidQualifier("time=800-1800"));
+        assertFalse(ScheduleTimeline.isValidQualifier("hour=0800-1800"));
+    }
+
+    public void testUnscheduledKeysAreAlwaysActive() {
+        mClock.set(2013, Calendar.JULY, 6, 12, 0);
+        mTimeline.rebuild(Arrays.asList("com.example", WEEKDAYS));
+
+        assertTrue(mTimeline.isActive("com.example"));
+        assertFalse(mTimeline.isActive(WEEKDAYS));
+    }
+
+    public void testWeekdayWindow() {
+        // 2013-07-01 is a Monday.
+        mClock.set(2013, Calendar.JULY, 1, 9, 0);
+        mTimeline.rebuild(Collections.singletonList(WEEKDAYS));
+
+        assertTrue(mTimeline.isActive(WEEKDAYS));
+        assertEquals(mClock.at(2013, Calendar.JULY, 1, 18, 0), mTimeline.getNextTransitionTime());
+
+        mClock.set(2013, Calendar.JULY, 1, 17, 59);
+        assertTrue(mTimeline.advance().isEmpty());
+
+        mClock.set(2013, Calendar.JULY, 1, 18, 0);
+        assertEquals(Collections.singletonList(WEEKDAYS), mTimeline.advance());
+        assertFalse(mTimeline.isActive(WEEKDAYS));
+        assertEquals(mClock.at(2013, Calendar.JULY, 2, 8, 0), mTimeline.getNextTransitionTime());
+    }
+
+    public void testWeekdayWindowSkipsWeekend() {
+        mClock.set(2013, Calendar.JULY, 5, 18, 0);
+        mTimeline.rebuild(Collections.singletonList(WEEKDAYS));
+
+        assertFalse(mTimeline.isActive(WEEKDAYS));
+        assertEquals(mClock.at(2013, Calendar.JULY, 8, 8, 0), mTimeline.getNextTransitionTime());
+    }
+
+    public void testOvernightWindow() {
+        mClock.set(2013, Calendar.JULY, 1, 23, 30);
+        mTimeline.rebuild(Collections.singletonList(OVERNIGHT));
+
+        assertTrue(mTimeline.isActive(OVERNIGHT));
+        assertEquals(mClock.at(2013, Calendar.JULY, 2, 6, 0), mTimeline.getNextTransitionTime());
+
+        mClock.set(2013, Calendar.JULY, 2, 6, 0);
+        assertEquals(Collections.singletonList(OVERNIGHT), mTimeline.advance());
+        assertFalse(mTimeline.isActive(OVERNIGHT));
+        assertEquals(mClock.at(2013, Calendar.JULY, 2, 22, 0), mTimeline.getNextTransitionTime());
+    }
+
+    public void testOvernightWindowActiveAfterMidnight() {
+        mClock.set(2013, Calendar.JULY, 2, 3, 0);
+        mTimeline.rebuild(Collections.singletonList(OVERNIGHT));
+
+        assertTrue(mTimeline.isActive(OVERNIGHT));
+    }
+
+    public void testAlwaysActiveScheduleHasNoTransition() {
+        mClock.set(2013, Calendar.JULY, 1, 12, 0);
+        mTimeline.rebuild(Collections.singletonList(ALL_DAY));
+
+        assertTrue(mTimeline.isActive(ALL_DAY));
+        assertEquals(-1, mTimeline.getNextTransitionTime());
+        assertTrue(mTimeline.advance().isEmpty());
+    }
+
+    public void testInvalidScheduleIsIgnored() {
+        final String invalid = "com.example;days=someday";
+
+        mClock.set(2013, Calendar.JULY, 1, 12, 0);
+        mTimeline.rebuild(Collections.singletonList(invalid));
+
+        assertFalse(mTimeline.isActive(invalid));
+        assertEquals(-1, mTimeline.getNextTransitionTime());
+    }
+
+    public void testAdvanceAppliesEveryDueTransition() {
+        mClock.set(2013, Calendar.JULY, 1, 21, 0);
+        mTimeline.rebuild(Arrays.asList(WEEKDAYS, OVERNIGHT));
+
+        // Jump past both the overnight start and the weekday start.
+        mClock.set(2013, Calendar.JULY, 2, 9, 0);
+        final List<String> changed = mTimeline.advance();
+
+        assertEquals(1, changed.size());
+        assertEquals(WEEKDAYS, changed.get(0));
+        assertTrue(mTimeline.isActive(WEEKDAYS));
+        assertFalse(mTimeline.isActive(OVERNIGHT));
+    }
+
+    public void testDaylightSavingTransition() {
+        mClock = new FakeClock(TimeZone.getTimeZone("America/Los_Angeles"));
+        mTimeline = new ScheduleTimeline(mClock);
+
+        // Clocks spring forward at 02:00 on 2013-03-10, so 08:00 that morning
+        // is seven hours behind UTC rather than eight.
+        final String daily = "com.example;time=0800-1800";
+        mClock.set(2013, Calendar.MARCH, 9, 20, 0);
+        mTimeline.rebuild(Collections.singletonList(daily));
+
+        final long expected = mClock.at(2013, Calendar.MARCH, 10, 8, 0);
+        assertEquals(expected, mTimeline.getNextTransitionTime());
+        assertEquals(11 * 60 * 60 * 1000L, expected - mClock.currentTimeMillis());
+    }
+
+    /**
+     * A clock that returns a fixed time in a fixed time zone.
+     */
+    private static class FakeClock implements ScheduleTimeline.Clock {
+        private final TimeZone mTimeZone;
+        private long mTime;
+
+        public FakeClock(TimeZone timeZone) {
+            mTimeZone = timeZone;
+        }
+
+        public void set(int year, int month, int day, int hour, int minute) {
+            mTime = at(year, month, day, hour, minute);
+        }
+
+        public long at(int year, int month, int day, int hour, int minute) {
+            final Calendar calendar = Calendar.getInstance(mTimeZone);
+            calendar.clear();
+            calendar.set(year, month, day, hour, minute);
+            return calendar.getTimeInMillis();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mTime;
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return mTimeZone;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.setorientation;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.view.WindowManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+
+/**
+ * A context that keeps preferences apart from the app under test and counts
+ * the windows attached through its window manager.
+ */
+public class TestContext extends ContextWrapper {
+    private static final String PREFIX = "test.";
+
+    private final HashSet<String> mPreferenceNames = new HashSet<String>();
+    private WindowManager mWindowManager;
+    private int mAttachedWindows;
+    private int mAttachCount;
+
+    public TestContext(Context base) {
+        super(base);
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        synchronized (mPreferenceNames) {
+            mPreferenceNames.add(name);
+        }
+
+        return super.getSharedPreferences(PREFIX + name, mode);
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        if (WINDOW_SERVICE.equals(name)) {
+            return getWindowManager();
+        }
+
+        return super.getSystemService(name);
+    }
+
+    /**
+     * Clears every preference file opened through this context.
+     */
+    public void clearSharedPreferences() {
+        synchronized (mPreferenceNames) {
+            for (String name : mPreferenceNames) {
+                super.getSharedPreferences(PREFIX + name, MODE_PRIVATE).edit().clear().commit();
+            }
+        }
+    }
+
+    /**
+     * @return The number of windows currently attached through this context.
+     */
+    public synchronized int getAttachedWindowCount() {
+        return mAttachedWindows;
+    }
+
+    /**
+     * @return The number of times a window was attached through this context.
+     */
+    public synchronized int getAttachCount() {
+        return mAttachCount;
+    }
+
+    private synchronized WindowManager getWindowManager() {
+        if (mWindowManager != null) {
+            return mWindowManager;
+        }
+
+        final WindowManager windowManager = (WindowManager) super.getSystemService(WINDOW_SERVICE);
+        mWindowManager = (WindowManager) Proxy.newProxyInstance(
+                WindowManager.class.getClassLoader(), new Class<?>[] { WindowManager.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        final Object result;
+                        try {
+                            result = method.invoke(windowManager, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+
+                        onWindowManagerCall(method.getName());
+                        return result;
+                    }
+                });
+
+        return mWindowManager;
+    }
+
+    private synchronized void onWindowManagerCall(String methodName) {
+        if ("addView".equals(methodName)) {
+            mAttachedWindows++;
+            mAttachCount++;
+        } else if ("removeView".equals(methodName) || "removeViewImmediate".equals(methodName)) {
+            mAttachedWindows--;
+        }
+    }
+}